@@ -27,6 +27,7 @@ package com.oracle.ipack.blobs;
 
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public abstract class Blob {
     public final int getSize() {
@@ -34,15 +35,50 @@ public abstract class Blob {
     }
 
     public final void write(final DataOutput dataOutput) throws IOException {
-        dataOutput.writeInt(getMagic());
-        dataOutput.writeInt(getSize());
-        writePayload(dataOutput);
+        final ByteBuffer buffer = toByteBuffer();
+        dataOutput.write(buffer.array(), 0, buffer.limit());
+    }
+
+    /**
+     * Serializes the blob at the current position of the given buffer,
+     * which must be in the big endian byte order and have at least
+     * {@code getSize()} bytes remaining.
+     */
+    public final void write(final ByteBuffer buffer) {
+        write(buffer, getSize());
+    }
+
+    /**
+     * Returns a new buffer which contains the serialized blob. The buffer
+     * is backed by an array, so it can be passed on or hashed without
+     * another copy.
+     */
+    public final ByteBuffer toByteBuffer() {
+        final int size = getSize();
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        write(buffer, size);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * Serializes the blob with its already calculated size, super blobs use
+     * this to size their sub blobs only once.
+     */
+    final void write(final ByteBuffer buffer, final int size) {
+        buffer.putInt(getMagic());
+        buffer.putInt(size);
+        writePayload(buffer, size - 8);
     }
 
     protected abstract int getMagic();
 
     protected abstract int getPayloadSize();
 
-    protected abstract void writePayload(DataOutput dataOutput)
-            throws IOException;
+    /**
+     * Serializes the payload into the given buffer, which has at least
+     * {@code payloadSize} bytes remaining.
+     */
+    protected abstract void writePayload(ByteBuffer buffer, int payloadSize);
 }
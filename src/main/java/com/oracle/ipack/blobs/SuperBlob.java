@@ -25,8 +25,7 @@
 
 package com.oracle.ipack.blobs;
 
-import java.io.DataOutput;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public abstract class SuperBlob<T extends Blob> extends Blob {
     private final SubBlob<T>[] subBlobs;
@@ -56,19 +55,23 @@ public abstract class SuperBlob<T extends Blob> extends Blob {
     }
 
     @Override
-    protected final void writePayload(final DataOutput dataOutput)
-            throws IOException {
-        dataOutput.writeInt(subBlobs.length);
+    protected final void writePayload(final ByteBuffer buffer,
+                                      final int payloadSize) {
+        // the sub blob sizes are calculated once for the index and reused
+        // when the sub blobs are serialized
+        final int[] sizes = new int[subBlobs.length];
+        buffer.putInt(subBlobs.length);
         int offset = 8 + 4 + subBlobs.length * 8;
         for (int i = 0; i < subBlobs.length; ++i) {
-            dataOutput.writeInt(subBlobs[i].getType());
-            dataOutput.writeInt(offset);
+            sizes[i] = subBlobs[i].getBlob().getSize();
+            buffer.putInt(subBlobs[i].getType());
+            buffer.putInt(offset);
 
-            offset += subBlobs[i].getBlob().getSize();
+            offset += sizes[i];
         }
 
         for (int i = 0; i < subBlobs.length; ++i) {
-            subBlobs[i].getBlob().write(dataOutput);
+            subBlobs[i].getBlob().write(buffer, sizes[i]);
         }
     }
 
@@ -25,8 +25,7 @@
 
 package com.oracle.ipack.blobs;
 
-import java.io.DataOutput;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public final class VirtualBlob extends Blob {
     private final int magic;
@@ -48,10 +47,12 @@ public final class VirtualBlob extends Blob {
     }
 
     @Override
-    protected void writePayload(final DataOutput dataOutput)
-            throws IOException {
+    protected void writePayload(final ByteBuffer buffer,
+                                final int payloadSize) {
+        final byte[] payload = new byte[payloadSize];
         for (int i = 0; i < payloadSize; ++i) {
-            dataOutput.write(i);
+            payload[i] = (byte) i;
         }
+        buffer.put(payload);
     }
 }
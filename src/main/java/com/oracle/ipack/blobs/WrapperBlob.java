@@ -25,8 +25,7 @@
 
 package com.oracle.ipack.blobs;
 
-import java.io.DataOutput;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public final class WrapperBlob extends Blob {
     private final byte[] data;
@@ -46,8 +45,8 @@ public final class WrapperBlob extends Blob {
     }
 
     @Override
-    protected void writePayload(final DataOutput dataOutput)
-            throws IOException {
-        dataOutput.write(data);
+    protected void writePayload(final ByteBuffer buffer,
+                                final int payloadSize) {
+        buffer.put(data);
     }
 }
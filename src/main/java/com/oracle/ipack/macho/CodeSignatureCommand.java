@@ -25,10 +25,11 @@
 
 package com.oracle.ipack.macho;
 
+import java.nio.ByteBuffer;
+
 public final class CodeSignatureCommand extends LinkeditDataCommand {
-    @Override
-    public int getId() {
-        return LC_CODE_SIGNATURE;
+    CodeSignatureCommand(final ByteBuffer buffer, final int offset) {
+        super(buffer, offset);
     }
 
     @Override
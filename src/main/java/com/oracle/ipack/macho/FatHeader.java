@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.macho;
+
+import com.oracle.ipack.util.Util;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Header of a universal (fat) binary. Unlike the mach-o headers of the
+ * contained slices, it is stored in big endian byte order. With FAT_MAGIC_64
+ * the slice offsets and sizes are 64-bit values.
+ */
+public final class FatHeader {
+    public static final int FAT_MAGIC = 0xcafebabe;
+    public static final int FAT_MAGIC_64 = 0xcafebabf;
+
+    private final ArrayList<FatArch> archs;
+
+    private int magic;
+
+    public FatHeader() {
+        archs = new ArrayList<FatArch>();
+        magic = FAT_MAGIC;
+    }
+
+    public static boolean isFatMagic(final int magic) {
+        return (magic == FAT_MAGIC) || (magic == FAT_MAGIC_64);
+    }
+
+    public static FatHeader read(final DataInput dataInput)
+            throws IOException {
+        final FatHeader header = new FatHeader();
+        header.readImpl(dataInput);
+        return header;
+    }
+
+    public int getMagic() {
+        return magic;
+    }
+
+    public void setMagic(final int magic) {
+        this.magic = magic;
+    }
+
+    public boolean is64Bit() {
+        return magic == FAT_MAGIC_64;
+    }
+
+    public List<FatArch> getArchs() {
+        return archs;
+    }
+
+    public void addArch(final FatArch arch) {
+        archs.add(arch);
+    }
+
+    public int getSize() {
+        return 8 + (is64Bit() ? 32 : 20) * archs.size();
+    }
+
+    public void write(final DataOutput dataOutput) throws IOException {
+        dataOutput.writeInt(magic);
+        dataOutput.writeInt(archs.size());
+        for (final FatArch arch: archs) {
+            arch.write(dataOutput, is64Bit());
+        }
+    }
+
+    private void readImpl(final DataInput dataInput) throws IOException {
+        magic = dataInput.readInt();
+        if (!isFatMagic(magic)) {
+            throw new IOException("Not a universal binary, magic: 0x"
+                                      + Util.hex32(magic));
+        }
+
+        final int numberOfArchs = dataInput.readInt();
+        archs.clear();
+        archs.ensureCapacity(numberOfArchs);
+        for (int i = 0; i < numberOfArchs; ++i) {
+            final FatArch arch = new FatArch();
+            arch.readImpl(dataInput, is64Bit());
+            archs.add(arch);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FatHeader { magic: 0x" + Util.hex32(magic)
+                   + ", archs: " + archs + " }";
+    }
+
+    public static final class FatArch {
+        private int cpuType;
+        private int cpuSubType;
+        private long offset;
+        private long size;
+        private int align;
+        private int reserved;
+
+        public int getCpuType() {
+            return cpuType;
+        }
+
+        public void setCpuType(final int cpuType) {
+            this.cpuType = cpuType;
+        }
+
+        public int getCpuSubType() {
+            return cpuSubType;
+        }
+
+        public void setCpuSubType(final int cpuSubType) {
+            this.cpuSubType = cpuSubType;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public void setOffset(final long offset) {
+            this.offset = offset;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public void setSize(final long size) {
+            this.size = size;
+        }
+
+        /**
+         * Returns the slice alignment as a power of two.
+         */
+        public int getAlign() {
+            return align;
+        }
+
+        public void setAlign(final int align) {
+            this.align = align;
+        }
+
+        private void write(final DataOutput dataOutput,
+                           final boolean is64Bit) throws IOException {
+            dataOutput.writeInt(cpuType);
+            dataOutput.writeInt(cpuSubType);
+            if (is64Bit) {
+                dataOutput.writeLong(offset);
+                dataOutput.writeLong(size);
+                dataOutput.writeInt(align);
+                dataOutput.writeInt(reserved);
+            } else {
+                if (((offset | size) >>> 32) != 0) {
+                    throw new IOException("Slice out of 32-bit range, "
+                                              + "FAT_MAGIC_64 required");
+                }
+                dataOutput.writeInt((int) offset);
+                dataOutput.writeInt((int) size);
+                dataOutput.writeInt(align);
+            }
+        }
+
+        private void readImpl(final DataInput dataInput,
+                              final boolean is64Bit) throws IOException {
+            cpuType = dataInput.readInt();
+            cpuSubType = dataInput.readInt();
+            if (is64Bit) {
+                offset = dataInput.readLong();
+                size = dataInput.readLong();
+                align = dataInput.readInt();
+                reserved = dataInput.readInt();
+            } else {
+                offset = dataInput.readInt() & 0xffffffffL;
+                size = dataInput.readInt() & 0xffffffffL;
+                align = dataInput.readInt();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "FatArch { cpuType: 0x" + Util.hex32(cpuType)
+                       + ", cpuSubType: 0x" + Util.hex32(cpuSubType)
+                       + ", offset: 0x" + Util.hex64(offset)
+                       + ", size: 0x" + Util.hex64(size)
+                       + ", align: " + align + " }";
+        }
+    }
+}
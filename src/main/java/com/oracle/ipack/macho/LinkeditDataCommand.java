@@ -26,54 +26,51 @@
 package com.oracle.ipack.macho;
 
 import com.oracle.ipack.util.Util;
-import java.io.DataInput;
-import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
+/**
+ * Command referring to data in the __LINKEDIT segment. The offset and size
+ * are unsigned 32-bit values, kept as long.
+ */
 public abstract class LinkeditDataCommand extends MachoCommand {
-    private int dataOffset;
-    private int dataSize;
+    static final int SIZE = 16;
 
-    public final int getDataOffset() {
-        return dataOffset;
+    LinkeditDataCommand(final ByteBuffer buffer, final int offset) {
+        super(buffer, offset);
     }
 
-    public final void setDataOffset(final int dataOffset) {
-        this.dataOffset = dataOffset;
+    public final long getDataOffset() {
+        return getUnsignedInt(8);
     }
 
-    public final int getDataSize() {
-        return dataSize;
+    public final void setDataOffset(final long dataOffset)
+            throws IOException {
+        putUnsignedInt(8, dataOffset, getName() + " data offset");
     }
 
-    public final void setDataSize(final int dataSize) {
-        this.dataSize = dataSize;
+    public final long getDataSize() {
+        return getUnsignedInt(12);
     }
 
-    @Override
-    public final String toString() {
-        return getName() + " { dataOffset: 0x" + Util.hex32(dataOffset)
-                       + ", dataSize: 0x" + Util.hex32(dataSize) + " }";
+    public final void setDataSize(final long dataSize) throws IOException {
+        putUnsignedInt(12, dataSize, getName() + " data size");
     }
 
-    protected abstract String getName();
-
     @Override
-    protected final int getPayloadSize() {
-        return 8;
+    public final String toString() {
+        return getName() + " { dataOffset: 0x" + Util.hex64(getDataOffset())
+                       + ", dataSize: 0x" + Util.hex64(getDataSize())
+                       + " }";
     }
 
-    @Override
-    protected final void readPayload(final DataInput dataInput)
-            throws IOException {
-        dataOffset = dataInput.readInt();
-        dataSize = dataInput.readInt();
-    }
+    protected abstract String getName();
 
     @Override
-    protected final void writePayload(final DataOutput dataOutput)
-            throws IOException {
-        dataOutput.writeInt(dataOffset);
-        dataOutput.writeInt(dataSize);
+    final void validate() throws IOException {
+        if (getSize() != SIZE) {
+            throw new IOException("Can't decode command in mach-o header. "
+                                      + getName() + " size=" + getSize());
+        }
     }
 }
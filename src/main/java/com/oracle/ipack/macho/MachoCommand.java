@@ -25,61 +25,122 @@
 
 package com.oracle.ipack.macho;
 
-import java.io.DataInput;
-import java.io.DataOutput;
+import com.oracle.ipack.util.Util;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
-public abstract class MachoCommand {
+/**
+ * A load command viewed in place in the buffer of its mach-o header. The
+ * command isn't copied, its fields are read from and patched into the
+ * buffer at the offset of the command. Commands which ipack doesn't touch
+ * are viewed as plain commands, only their id and size are decoded.
+ */
+public class MachoCommand {
     public static final int LC_SEGMENT = 0x1;
     public static final int LC_SEGMENT_64 = 0x19;
     public static final int LC_CODE_SIGNATURE = 0x1d;
 
-    public abstract int getId();
+    private final ByteBuffer buffer;
+    private final int offset;
 
-    public final int getSize() {
-        return 8 + getPayloadSize();
+    MachoCommand(final ByteBuffer buffer, final int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
     }
 
-    public static MachoCommand read(final DataInput dataInput)
-            throws IOException {
-        final int commandId = dataInput.readInt();
-        final int commandSize = dataInput.readInt();
-        MachoCommand command;
-        switch (commandId) {
+    /**
+     * Creates the view of the command at the given offset of the little
+     * endian header buffer, typed by the command id.
+     */
+    static MachoCommand view(final ByteBuffer buffer, final int offset) {
+        switch (buffer.getInt(offset)) {
             case LC_SEGMENT:
             case LC_SEGMENT_64:
-                //System.out.println("LC_SEGMENT command " + commandId);
-                command = new SegmentCommand(commandId);
-                break;
+                return new SegmentCommand(buffer, offset);
             case LC_CODE_SIGNATURE:
-                //System.out.println("LC_CODE_SIGNATURE command " + commandId);
-                command = new CodeSignatureCommand();
-                break;
+                return new CodeSignatureCommand(buffer, offset);
             default:
-                //System.out.println("Unknown command " + commandId);
-                command = new UnknownCommand(commandId, commandSize - 8);
-                break;
+                return new MachoCommand(buffer, offset);
         }
+    }
+
+    public final int getId() {
+        return buffer.getInt(offset);
+    }
+
+    public final int getSize() {
+        return buffer.getInt(offset + 4);
+    }
+
+    /**
+     * Returns the offset of the command from the start of the mach-o
+     * header.
+     */
+    public final int getOffset() {
+        return offset;
+    }
+
+    @Override
+    public String toString() {
+        return "MachoCommand { id: 0x" + Util.hex32(getId())
+                   + ", size: " + getSize() + " }";
+    }
+
+    /**
+     * Checks that the fields of the command fit into its size, called once
+     * for every command when the header is wrapped.
+     */
+    void validate() throws IOException {
+    }
+
+    final int getInt(final int fieldOffset) {
+        return buffer.getInt(offset + fieldOffset);
+    }
+
+    final void putInt(final int fieldOffset, final int value) {
+        buffer.putInt(offset + fieldOffset, value);
+    }
+
+    final long getUnsignedInt(final int fieldOffset) {
+        return buffer.getInt(offset + fieldOffset) & 0xffffffffL;
+    }
 
-        command.readPayload(dataInput);
-        if (command.getSize() != commandSize) {
-            throw new IOException("Can't decode command in mach-o header. command.getSize()=" + command.getSize() + " commandSize=" + commandSize);
+    final void putUnsignedInt(final int fieldOffset,
+                              final long value,
+                              final String fieldName) throws IOException {
+        if ((value >>> 32) != 0) {
+            throw new IOException("Value 0x" + Util.hex64(value) + " of "
+                                      + fieldName
+                                      + " out of 32-bit range");
         }
+        buffer.putInt(offset + fieldOffset, (int) value);
+    }
+
+    final long getLong(final int fieldOffset) {
+        return buffer.getLong(offset + fieldOffset);
+    }
 
-        return command;
+    final void putLong(final int fieldOffset, final long value) {
+        buffer.putLong(offset + fieldOffset, value);
     }
 
-    public final void write(final DataOutput dataOutput) throws IOException {
-        dataOutput.writeInt(getId());
-        dataOutput.writeInt(getSize());
-        writePayload(dataOutput);
+    /**
+     * Reads a fixed size name, which is padded with zeros.
+     */
+    final String getName(final int fieldOffset) {
+        return readName(buffer, offset + fieldOffset);
     }
 
-    protected abstract int getPayloadSize();
+    final ByteBuffer getBuffer() {
+        return buffer;
+    }
 
-    protected abstract void readPayload(final DataInput dataInput)
-            throws IOException;
+    static String readName(final ByteBuffer buffer, final int position) {
+        final byte[] nameBytes = new byte[16];
+        for (int i = 0; i < nameBytes.length; ++i) {
+            nameBytes[i] = buffer.get(position + i);
+        }
 
-    protected abstract void writePayload(final DataOutput dataOutput)
-            throws IOException;
+        return new String(nameBytes).trim();
+    }
 }
@@ -27,30 +27,81 @@ package com.oracle.ipack.macho;
 
 import com.oracle.ipack.macho.SegmentCommand.Section;
 import com.oracle.ipack.util.Util;
-import java.io.DataInput;
-import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * The mach-o header of a slice together with its load commands, held in a
+ * little endian buffer. The commands are viewed in place: only the offsets
+ * of the commands are collected when the header is wrapped, a command is
+ * decoded when it is looked up and its setters patch the buffer directly.
+ *
+ * The buffer can be a heap copy of the header or a mapping of the file, in
+ * the latter case the patches go to the file.
+ */
 public final class MachoHeader {
     public static final int CPU_TYPE_ARM64 = 0x0100000C;
-    private ArrayList<MachoCommand> commands;
+    public static final int MH_MAGIC = 0xfeedface;
+    public static final int MH_MAGIC_64 = 0xfeedfacf;
+
+    private static final int NUMBER_OF_COMMANDS_OFFSET = 16;
+    private static final int SIZE_OF_COMMANDS_OFFSET = 20;
+
+    private final ByteBuffer buffer;
+    private int[] commandOffsets;
+
+    private MachoHeader(final ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Reads the header of the slice starting at the given position. The
+     * buffer has room for a code signature command to be added.
+     */
+    public static MachoHeader read(final FileChannel channel,
+                                   final long position) throws IOException {
+        final ByteBuffer fixedHeader = ByteBuffer.allocate(32)
+                                               .order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, fixedHeader, position);
+        checkMagic(fixedHeader.getInt(0));
+
+        final long size = getHeaderSize(fixedHeader.getInt(0))
+                              + (fixedHeader.getInt(SIZE_OF_COMMANDS_OFFSET)
+                                     & 0xffffffffL);
+        if (size > Integer.MAX_VALUE - LinkeditDataCommand.SIZE) {
+            throw new IOException("Failed to decode commands");
+        }
 
-    private int magic;
-    private int cpuType;
-    private int cpuSubType;
-    private int fileType;
-    private int flags;
-    private int reserved;
+        final ByteBuffer buffer =
+                ByteBuffer.allocate((int) size + LinkeditDataCommand.SIZE);
+        buffer.limit((int) size);
+        readFully(channel, buffer, position);
+        buffer.clear();
 
-    public MachoHeader() {
-        commands = new ArrayList<MachoCommand>();
+        return wrap(buffer);
+    }
+
+    /**
+     * Views the header starting at the position of the buffer. The byte
+     * order of the buffer doesn't matter, the view is little endian.
+     */
+    public static MachoHeader wrap(final ByteBuffer buffer)
+            throws IOException {
+        final MachoHeader header =
+                new MachoHeader(buffer.slice()
+                                      .order(ByteOrder.LITTLE_ENDIAN));
+        header.collectCommands();
+        return header;
     }
 
     public MachoCommand findCommand(final int commandId) {
-        for (final MachoCommand command: commands) {
-            if (command.getId() == commandId) {
-                return command;
+        for (final int commandOffset: commandOffsets) {
+            if (buffer.getInt(commandOffset) == commandId) {
+                return MachoCommand.view(buffer, commandOffset);
             }
         }
 
@@ -58,177 +109,210 @@ public final class MachoHeader {
     }
 
     public SegmentCommand findSegment(final String segmentName) {
-        for (final MachoCommand command: commands) {
-            if (command.getId() == MachoCommand.LC_SEGMENT || command.getId() == MachoCommand.LC_SEGMENT_64) {
-                final SegmentCommand segmentCommand = (SegmentCommand) command;
-                if (segmentName.equals(segmentCommand.getSegmentName())) {
-                    return segmentCommand;
-                }
+        for (final int commandOffset: commandOffsets) {
+            if (isSegment(buffer.getInt(commandOffset))
+                    && segmentName.equals(
+                           MachoCommand.readName(buffer, commandOffset + 8))) {
+                return new SegmentCommand(buffer, commandOffset);
             }
         }
 
         return null;
     }
-    
-    public int getFirstSectionFileOffset()
-            throws IOException {
-        int lowestOffset = Integer.MAX_VALUE;
-        for (final MachoCommand command: commands) {
-            if (command.getId() == MachoCommand.LC_SEGMENT || command.getId() == MachoCommand.LC_SEGMENT_64) {
-                final SegmentCommand segmentCommand = (SegmentCommand) command;
-                final ArrayList<Section> sections = segmentCommand.getSections();
-                for (final Section section: sections) {
-//                    System.out.println("Segment: " + section.getSegmentName() + " Section: " + section.getSectionName() + " Section size: " + section.getSize() + " Section offset: " + section.getOffset());
-                    if (section.getSize() > 0 && section.getOffset() > 0 && section.getOffset() < lowestOffset) {
-//                        System.out.println("Updating lowest offset from: " + lowestOffset + " to: " + section.getOffset());
-                        lowestOffset = section.getOffset();
-                    }
+
+    /**
+     * Returns views of all the commands, in their order in the header.
+     */
+    public List<MachoCommand> getCommands() {
+        final List<MachoCommand> commands =
+                new ArrayList<MachoCommand>(commandOffsets.length);
+        for (final int commandOffset: commandOffsets) {
+            commands.add(MachoCommand.view(buffer, commandOffset));
+        }
+
+        return commands;
+    }
+
+    public long getFirstSectionFileOffset() {
+        long lowestOffset = Long.MAX_VALUE;
+        for (final int commandOffset: commandOffsets) {
+            if (!isSegment(buffer.getInt(commandOffset))) {
+                continue;
+            }
+
+            final SegmentCommand segmentCommand =
+                    new SegmentCommand(buffer, commandOffset);
+            for (final Section section: segmentCommand.getSections()) {
+                if ((section.getSize() > 0) && (section.getOffset() > 0)
+                        && (section.getOffset() < lowestOffset)) {
+                    lowestOffset = section.getOffset();
                 }
             }
         }
-        if (lowestOffset < Integer.MAX_VALUE) {
-//            System.out.println("Returning: " + lowestOffset);
-            return lowestOffset;
-        } else {
-//            System.out.println("Returning: 0");
-            return 0;
-        }
-    }
 
-    public void addCommand(final MachoCommand command) {
-        commands.add(command);
+        return (lowestOffset < Long.MAX_VALUE) ? lowestOffset : 0;
     }
 
-    public static MachoHeader read(final DataInput dataInput)
+    /**
+     * Appends an empty code signature command. Its data have to be set by
+     * the caller. The buffer must have room for the command beyond the
+     * current size of the header.
+     */
+    public CodeSignatureCommand addCodeSignatureCommand()
             throws IOException {
-        final MachoHeader header = new MachoHeader();
-        header.readImpl(dataInput);
-        return header;
+        final int commandOffset = getSize();
+        if (commandOffset + LinkeditDataCommand.SIZE > buffer.capacity()) {
+            throw new IOException("No room for another command in the "
+                                      + "mach-o header");
+        }
+
+        buffer.putInt(commandOffset, MachoCommand.LC_CODE_SIGNATURE);
+        buffer.putInt(commandOffset + 4, LinkeditDataCommand.SIZE);
+        buffer.putLong(commandOffset + 8, 0);
+        buffer.putInt(NUMBER_OF_COMMANDS_OFFSET, commandOffsets.length + 1);
+        buffer.putInt(SIZE_OF_COMMANDS_OFFSET,
+                      buffer.getInt(SIZE_OF_COMMANDS_OFFSET)
+                          + LinkeditDataCommand.SIZE);
+
+        final int[] newCommandOffsets =
+                new int[commandOffsets.length + 1];
+        System.arraycopy(commandOffsets, 0, newCommandOffsets, 0,
+                         commandOffsets.length);
+        newCommandOffsets[commandOffsets.length] = commandOffset;
+        commandOffsets = newCommandOffsets;
+
+        return new CodeSignatureCommand(buffer, commandOffset);
     }
 
+    /**
+     * Returns the size of the header including its commands.
+     */
     public int getSize() {
-        int size = 7 * 4;
-        if(cpuType == CPU_TYPE_ARM64) {
-            size += 4;
-        }
-        for (final MachoCommand command: commands) {
-            size += command.getSize();
-        }
+        return getHeaderSize(getMagic())
+                   + buffer.getInt(SIZE_OF_COMMANDS_OFFSET);
+    }
 
-        return size;
+    /**
+     * Returns a copy of the (patched) header including its commands.
+     */
+    public byte[] getBytes() {
+        final byte[] bytes = new byte[getSize()];
+        final ByteBuffer source = buffer.duplicate();
+        source.clear();
+        source.get(bytes);
+        return bytes;
     }
 
     public int getMagic() {
-        return magic;
+        return buffer.getInt(0);
     }
 
-    public void setMagic(final int magic) {
-        this.magic = magic;
+    /**
+     * Returns whether the header has the 64-bit layout. Slices of a
+     * universal executable can differ in this, so it is decided by the magic
+     * instead of the cpu type.
+     */
+    public boolean is64Bit() {
+        return getMagic() == MH_MAGIC_64;
     }
 
     public int getCpuType() {
-        return cpuType;
-    }
-
-    public void setCpuType(final int cpuType) {
-        this.cpuType = cpuType;
+        return buffer.getInt(4);
     }
 
     public int getCpuSubType() {
-        return cpuSubType;
-    }
-
-    public void setCpuSubType(final int cpuSubType) {
-        this.cpuSubType = cpuSubType;
+        return buffer.getInt(8);
     }
 
     public int getFileType() {
-        return fileType;
+        return buffer.getInt(12);
     }
 
-    public void setFileType(final int fileType) {
-        this.fileType = fileType;
+    public int getNumberOfCommands() {
+        return commandOffsets.length;
     }
 
     public int getFlags() {
-        return flags;
-    }
-
-    public void setFlags(final int flags) {
-        this.flags = flags;
-    }
-    
-    public int getReserved() {
-        return reserved;
+        return buffer.getInt(24);
     }
 
-    public void setReserved(final int reserved) {
-        this.reserved = reserved;
+    @Override
+    public String toString() {
+        return "Header { magic: 0x" + Util.hex32(getMagic())
+                   + ", cpuType: " + getCpuType()
+                   + ", cpuSubType: " + getCpuSubType()
+                   + ", fileType: " + getFileType()
+                   + ", flags: 0x" + Util.hex32(getFlags())
+                   + ", commands: " + getCommands() + " }";
     }
 
-    public void write(final DataOutput dataOutput) throws IOException {
-        dataOutput.writeInt(magic);
-        dataOutput.writeInt(cpuType);
-        dataOutput.writeInt(cpuSubType);
-        dataOutput.writeInt(fileType);
-        dataOutput.writeInt(commands.size());
-        dataOutput.writeInt(getSizeOfCommands());
-        dataOutput.writeInt(flags);
-        if(cpuType == CPU_TYPE_ARM64) {
-            dataOutput.writeInt(reserved);
+    private void collectCommands() throws IOException {
+        if (buffer.limit() < 28) {
+            throw new IOException("Mach-o header truncated");
         }
+        checkMagic(getMagic());
 
-        for (final MachoCommand command: commands) {
-            command.write(dataOutput);
-        }
-    }
-
-    private void readImpl(final DataInput dataInput) throws IOException {
-        magic = dataInput.readInt();
-        cpuType = dataInput.readInt();
-        cpuSubType = dataInput.readInt();
-        fileType = dataInput.readInt();
-        final int numberOfCommands = dataInput.readInt();
-        final int sizeOfCommands = dataInput.readInt();
-        flags = dataInput.readInt();
-        if(cpuType == CPU_TYPE_ARM64) {
-            reserved = dataInput.readInt();
+        final int numberOfCommands = buffer.getInt(NUMBER_OF_COMMANDS_OFFSET);
+        final long end = getHeaderSize(getMagic())
+                             + (buffer.getInt(SIZE_OF_COMMANDS_OFFSET)
+                                    & 0xffffffffL);
+        if ((numberOfCommands < 0) || (end > buffer.limit())) {
+            throw new IOException("Failed to decode commands");
         }
 
-        int sizeOfReadCommands = 0;
-        commands.clear();
-        commands.ensureCapacity(numberOfCommands);
+        commandOffsets = new int[numberOfCommands];
+        int commandOffset = getHeaderSize(getMagic());
         for (int i = 0; i < numberOfCommands; ++i) {
-            final MachoCommand command = MachoCommand.read(dataInput);
-            commands.add(command);
-            sizeOfReadCommands += command.getSize();
+            if (commandOffset + 8 > end) {
+                throw new IOException("Failed to decode commands");
+            }
+            final int commandSize = buffer.getInt(commandOffset + 4);
+            if ((commandSize < 8) || (commandOffset + commandSize > end)) {
+                throw new IOException("Can't decode command in mach-o "
+                                          + "header. commandSize="
+                                          + commandSize);
+            }
+
+            // only the commands ipack touches have fields to check
+            final int commandId = buffer.getInt(commandOffset);
+            if (isSegment(commandId)
+                    || (commandId == MachoCommand.LC_CODE_SIGNATURE)) {
+                MachoCommand.view(buffer, commandOffset).validate();
+            }
+
+            commandOffsets[i] = commandOffset;
+            commandOffset += commandSize;
         }
 
-        if (sizeOfCommands != sizeOfReadCommands) {
+        if (commandOffset != end) {
             throw new IOException("Failed to decode commands");
         }
     }
 
-    private int getSizeOfCommands() {
-        int sizeOfCommands = 0;
-        for (final MachoCommand command: commands) {
-            sizeOfCommands += command.getSize();
-        }
+    private static int getHeaderSize(final int magic) {
+        return (magic == MH_MAGIC_64) ? 32 : 28;
+    }
 
-        return sizeOfCommands;
+    private static boolean isSegment(final int commandId) {
+        return (commandId == MachoCommand.LC_SEGMENT)
+                   || (commandId == MachoCommand.LC_SEGMENT_64);
     }
 
-    @Override
-    public String toString() {
-        String ret = "Header { magic: 0x" + Util.hex32(magic)
-                + ", cpuType: " + cpuType
-                + ", cpuSubType: " + cpuSubType
-                + ", fileType: " + fileType
-                + ", flags: 0x" + Util.hex32(flags);
-        if(cpuType == CPU_TYPE_ARM64) {
-            ret += ", reserved: 0x" + Util.hex32(reserved);
+    private static void checkMagic(final int magic) throws IOException {
+        if ((magic != MH_MAGIC) && (magic != MH_MAGIC_64)) {
+            throw new IOException("Not a mach-o image, magic: 0x"
+                                      + Util.hex32(magic));
+        }
+    }
+
+    private static void readFully(final FileChannel channel,
+                                  final ByteBuffer buffer,
+                                  final long position) throws IOException {
+        final long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of executable");
+            }
         }
-        ret += ", commands: " + commands + " }";
-        return ret;
     }
 }
@@ -26,40 +26,32 @@
 package com.oracle.ipack.macho;
 
 import com.oracle.ipack.util.Util;
-import java.io.DataInput;
-import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * LC_SEGMENT or LC_SEGMENT_64 command. Addresses, sizes and offsets are
+ * returned as (unsigned) long values for both, in LC_SEGMENT they are stored
+ * as 32-bit values. The sections are viewed in place as well.
+ */
 public final class SegmentCommand extends MachoCommand {
-    private final ArrayList<Section> sections;
-
-    private String segmentName;
-    private int vmAddress;
-    private int vmAddress2;
-    private int vmSize;
-    private int vmSize2;
-    private int fileOffset;
-    private int fileOffset2;
-    private int fileSize;
-    private int fileSize2;
-    private int maxVmProtection;
-    private int initVmProtection;
-    private int flags;
-    private int id;
-
-    public SegmentCommand(final int id) {
-        this.id = id;
-        sections = new ArrayList<Section>();
+    private static final int SEGMENT_NAME_OFFSET = 8;
+    private static final int ADDRESSES_OFFSET = 24;
+
+    SegmentCommand(final ByteBuffer buffer, final int offset) {
+        super(buffer, offset);
     }
 
-    @Override
-    public int getId() {
-        return id;
+    public boolean is64Bit() {
+        return getId() == LC_SEGMENT_64;
     }
 
     public Section findSection(final String sectionName) {
-        for (final Section section: sections) {
+        final int numberOfSections = getNumberOfSections();
+        for (int i = 0; i < numberOfSections; ++i) {
+            final Section section = getSection(i);
             if (sectionName.equals(section.getSectionName())) {
                 return section;
             }
@@ -69,411 +61,210 @@ public final class SegmentCommand extends MachoCommand {
     }
 
     public String getSegmentName() {
-        return segmentName;
-    }
-
-    public void setSegmentName(final String segmentName) {
-        this.segmentName = segmentName;
-    }
-
-    public int getVmAddress() {
-        return vmAddress;
-    }
-
-    public void setVmAddress(final int vmAddress) {
-        this.vmAddress = vmAddress;
-    }
-
-    public int getVmAddress2() {
-        return vmAddress2;
-    }
-
-    public void setVmAddress2(final int vmAddress2) {
-        this.vmAddress2 = vmAddress2;
-    }
-
-    public int getVmSize() {
-        return vmSize;
-    }
-
-    public void setVmSize(final int vmSize) {
-        this.vmSize = vmSize;
-    }
-
-    public int getVmSize2() {
-        return vmSize2;
+        return getName(SEGMENT_NAME_OFFSET);
     }
 
-    public void setVmSize2(final int vmSize2) {
-        this.vmSize2 = vmSize2;
+    public long getVmAddress() {
+        return getAddress(0);
     }
 
-    public int getFileOffset() {
-        return fileOffset;
+    public void setVmAddress(final long vmAddress) throws IOException {
+        setAddress(0, vmAddress);
     }
 
-    public void setFileOffset(final int fileOffset) {
-        this.fileOffset = fileOffset;
+    public long getVmSize() {
+        return getAddress(1);
     }
 
-    public int getFileOffset2() {
-        return fileOffset2;
+    public void setVmSize(final long vmSize) throws IOException {
+        setAddress(1, vmSize);
     }
 
-    public void setFileOffset2(final int fileOffset2) {
-        this.fileOffset2 = fileOffset2;
+    public long getFileOffset() {
+        return getAddress(2);
     }
 
-    public int getFileSize() {
-        return fileSize;
+    public void setFileOffset(final long fileOffset) throws IOException {
+        setAddress(2, fileOffset);
     }
 
-    public void setFileSize(final int fileSize) {
-        this.fileSize = fileSize;
+    public long getFileSize() {
+        return getAddress(3);
     }
 
-    public int getFileSize2() {
-        return fileSize2;
-    }
-
-    public void setFileSize2(final int fileSize2) {
-        this.fileSize2 = fileSize2;
+    public void setFileSize(final long fileSize) throws IOException {
+        setAddress(3, fileSize);
     }
 
     public int getMaxVmProtection() {
-        return maxVmProtection;
-    }
-
-    public void setMaxVmProtection(final int maxVmProtection) {
-        this.maxVmProtection = maxVmProtection;
+        return getInt(getFieldsOffset());
     }
 
     public int getInitVmProtection() {
-        return initVmProtection;
+        return getInt(getFieldsOffset() + 4);
     }
 
-    public void setInitVmProtection(final int initVmProtection) {
-        this.initVmProtection = initVmProtection;
+    public int getNumberOfSections() {
+        return getInt(getFieldsOffset() + 8);
     }
 
     public int getFlags() {
-        return flags;
+        return getInt(getFieldsOffset() + 12);
     }
 
-    public void setFlags(final int flags) {
-        this.flags = flags;
-    }
+    /**
+     * Returns views of all the sections of the segment.
+     */
+    public List<Section> getSections() {
+        final int numberOfSections = getNumberOfSections();
+        final List<Section> sections = new ArrayList<Section>(numberOfSections);
+        for (int i = 0; i < numberOfSections; ++i) {
+            sections.add(getSection(i));
+        }
 
-    public ArrayList<Section> getSections() {
         return sections;
     }
 
     @Override
     public String toString() {
-        String ret = "SegmentCommand { segmentName: \"" + segmentName + "\"";
-        ret += ", vmAddress: 0x" + Util.hex32(vmAddress);
-
-        if(id == LC_SEGMENT_64) {
-            ret += Util.hex32(vmAddress2);
-        }
-        ret += ", vmSize: 0x" + Util.hex32(vmSize);
-        if(id == LC_SEGMENT_64) {
-            ret += Util.hex32(vmSize2);
-        }
-        ret += ", fileOffset: 0x" + Util.hex32(fileOffset);
-        if(id == LC_SEGMENT_64) {
-            ret += Util.hex32(fileOffset2);
-        }
-        ret += ", fileSize: 0x" + Util.hex32(fileSize);
-        if(id == LC_SEGMENT_64) {
-            ret += Util.hex32(fileSize2);
-        }
-        ret += ", maxVmProtection: " + maxVmProtection
-        + ", initVmProtection: " + initVmProtection
-        + ", flags: 0x" + Util.hex32(flags)
-        + ", sections: " + sections + " }";
-        return ret;
+        return "SegmentCommand { segmentName: \"" + getSegmentName() + "\""
+                   + ", vmAddress: 0x" + Util.hex64(getVmAddress())
+                   + ", vmSize: 0x" + Util.hex64(getVmSize())
+                   + ", fileOffset: 0x" + Util.hex64(getFileOffset())
+                   + ", fileSize: 0x" + Util.hex64(getFileSize())
+                   + ", maxVmProtection: " + getMaxVmProtection()
+                   + ", initVmProtection: " + getInitVmProtection()
+                   + ", flags: 0x" + Util.hex32(getFlags())
+                   + ", sections: " + getSections() + " }";
     }
 
     @Override
-    protected int getPayloadSize() {
-        if(id == LC_SEGMENT) {
-            return 16 + 4 * 8 + 68 * sections.size();
-        } else if(id == LC_SEGMENT_64) {
-            return 16 + 4 * 8 + 4 * 4 + 80 * sections.size();
-        } else {
-            System.out.println("Unknown id " + id);
-            return 0;
+    void validate() throws IOException {
+        final int numberOfSections = getNumberOfSections();
+        final long expectedSize =
+                getFieldsOffset() + 16
+                    + (long) numberOfSections * getSectionSize();
+        if ((numberOfSections < 0) || (getSize() != expectedSize)) {
+            throw new IOException("Can't decode command in mach-o header. "
+                                      + "segment size=" + getSize()
+                                      + " expected size=" + expectedSize);
         }
     }
 
-    @Override
-    protected void readPayload(final DataInput dataInput) throws IOException {
-        segmentName = Util.readString(dataInput, 16).trim();
-        vmAddress = dataInput.readInt();
-        if(id == LC_SEGMENT_64) {
-            vmAddress2 = dataInput.readInt();
-        }
-        vmSize = dataInput.readInt();
-        if(id == LC_SEGMENT_64) {
-            vmSize2 = dataInput.readInt();
-        }
-        fileOffset = dataInput.readInt();
-        if(id == LC_SEGMENT_64) {
-            fileOffset2 = dataInput.readInt();
-        }
-        fileSize = dataInput.readInt();
-        if(id == LC_SEGMENT_64) {
-            fileSize2 = dataInput.readInt();
-        }
-        maxVmProtection = dataInput.readInt();
-        initVmProtection = dataInput.readInt();
-        final int numberOfSections = dataInput.readInt();
-        flags = dataInput.readInt();
+    private Section getSection(final int index) {
+        return new Section(getBuffer(),
+                           getOffset() + getFieldsOffset() + 16
+                               + index * getSectionSize(),
+                           is64Bit());
+    }
 
-        sections.clear();
-        sections.ensureCapacity(numberOfSections);
-        for (int i = 0; i < numberOfSections; ++i) {
-            final Section section = new Section(id);
-            section.readImpl(dataInput);
-            sections.add(section);
-        }
+    private int getSectionSize() {
+        return is64Bit() ? 80 : 68;
     }
 
-    @Override
-    protected void writePayload(final DataOutput dataOutput)
-            throws IOException {
-        Util.writeString(dataOutput, segmentName, 16, '\0');
-        dataOutput.writeInt(vmAddress);
-        if(id == LC_SEGMENT_64) {
-            dataOutput.writeInt(vmAddress2);
-        }
-        dataOutput.writeInt(vmSize);
-        if(id == LC_SEGMENT_64) {
-            dataOutput.writeInt(vmSize2);
-        }
-        dataOutput.writeInt(fileOffset);
-        if(id == LC_SEGMENT_64) {
-            dataOutput.writeInt(fileOffset2);
-        }
-        dataOutput.writeInt(fileSize);
-        if(id == LC_SEGMENT_64) {
-            dataOutput.writeInt(fileSize2);
-        }
-        dataOutput.writeInt(maxVmProtection);
-        dataOutput.writeInt(initVmProtection);
-        dataOutput.writeInt(sections.size());
-        dataOutput.writeInt(flags);
+    // the offset of the fields following the four addresses
+    private int getFieldsOffset() {
+        return ADDRESSES_OFFSET + 4 * (is64Bit() ? 8 : 4);
+    }
+
+    private long getAddress(final int index) {
+        return is64Bit() ? getLong(ADDRESSES_OFFSET + 8 * index)
+                         : getUnsignedInt(ADDRESSES_OFFSET + 4 * index);
+    }
 
-        for (final Section section: sections) {
-            section.write(dataOutput);
+    private void setAddress(final int index, final long value)
+            throws IOException {
+        if (is64Bit()) {
+            putLong(ADDRESSES_OFFSET + 8 * index, value);
+        } else {
+            putUnsignedInt(ADDRESSES_OFFSET + 4 * index, value,
+                           "LC_SEGMENT " + getSegmentName());
         }
     }
 
+    /**
+     * A section of a segment, viewed in place. The address and size are
+     * 64-bit values in LC_SEGMENT_64, the file offset is always a 32-bit
+     * value.
+     */
     public static final class Section {
-        private String sectionName;
-        private String segmentName;
-        private int address;
-        private int address2;
-        private int size;
-        private int size2;
-        private int offset;
-        private int align;
-        private int relocationOffset;
-        private int numberOfRelocations;
-        private int flags;
-        private int reserved1;
-        private int reserved2;
-        private int reserved3;
-        private int id;
-        
-        public Section(final int id) {
-        	this.id = id;
+        private final ByteBuffer buffer;
+        private final int offset;
+        private final boolean is64Bit;
+
+        Section(final ByteBuffer buffer,
+                final int offset,
+                final boolean is64Bit) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.is64Bit = is64Bit;
         }
 
         public String getSectionName() {
-            return sectionName;
-        }
-
-        public void setSectionName(final String sectionName) {
-            this.sectionName = sectionName;
+            return readName(buffer, offset);
         }
 
         public String getSegmentName() {
-            return segmentName;
-        }
-
-        public void setSegmentName(final String segmentName) {
-            this.segmentName = segmentName;
-        }
-
-        public int getAddress() {
-            return address;
-        }
-
-        public void setAddress(final int address) {
-            this.address = address;
-        }
-        
-        public int getAddress2() {
-            return address2;
-        }
-
-        public void setAddress2(final int address2) {
-            this.address2 = address2;
-        }
-
-        public int getSize() {
-            return size;
-        }
-
-        public void setSize(final int size) {
-            this.size = size;
+            return readName(buffer, offset + 16);
         }
 
-        public int getSize2() {
-            return size2;
+        public long getAddress() {
+            return is64Bit ? buffer.getLong(offset + 32)
+                           : buffer.getInt(offset + 32) & 0xffffffffL;
         }
 
-        public void setSize2(final int size2) {
-            this.size2 = size2;
+        public long getSize() {
+            return is64Bit ? buffer.getLong(offset + 40)
+                           : buffer.getInt(offset + 36) & 0xffffffffL;
         }
 
-        public int getOffset() {
-            return offset;
-        }
-
-        public void setOffset(final int offset) {
-            this.offset = offset;
+        /**
+         * Returns the file offset of the section. It is a 32-bit value also
+         * in LC_SEGMENT_64, returned here as unsigned.
+         */
+        public long getOffset() {
+            return getUnsignedInt(0);
         }
 
         public int getAlign() {
-            return align;
-        }
-
-        public void setAlign(final int align) {
-            this.align = align;
+            return getFieldInt(1);
         }
 
         public int getRelocationOffset() {
-            return relocationOffset;
-        }
-
-        public void setRelocationOffset(final int relocationOffset) {
-            this.relocationOffset = relocationOffset;
+            return getFieldInt(2);
         }
 
         public int getNumberOfRelocations() {
-            return numberOfRelocations;
-        }
-
-        public void setNumberOfRelocations(final int numberOfRelocations) {
-            this.numberOfRelocations = numberOfRelocations;
+            return getFieldInt(3);
         }
 
         public int getFlags() {
-            return flags;
-        }
-
-        public void setFlags(final int flags) {
-            this.flags = flags;
-        }
-
-        public int getReserved1() {
-            return reserved1;
-        }
-
-        public void setReserved1(final int reserved1) {
-            this.reserved1 = reserved1;
-        }
-
-        public int getReserved2() {
-            return reserved2;
-        }
-
-        public void setReserved2(final int reserved2) {
-            this.reserved2 = reserved2;
-        }
-        
-        public int getReserved3() {
-            return reserved3;
-        }
-
-        public void setReserved3(final int reserved3) {
-            this.reserved3 = reserved3;
-        }
-
-        public void write(final DataOutput dataOutput) throws IOException {
-            Util.writeString(dataOutput, sectionName, 16, '\0');
-            Util.writeString(dataOutput, segmentName, 16, '\0');
-            dataOutput.writeInt(address);
-            if(id == LC_SEGMENT_64) {
-                dataOutput.writeInt(address2);
-            }
-            dataOutput.writeInt(size);
-            if(id == LC_SEGMENT_64) {
-                dataOutput.writeInt(size2);
-            }
-            dataOutput.writeInt(offset);
-            dataOutput.writeInt(align);
-            dataOutput.writeInt(relocationOffset);
-            dataOutput.writeInt(numberOfRelocations);
-            dataOutput.writeInt(flags);
-            dataOutput.writeInt(reserved1);
-            dataOutput.writeInt(reserved2);
-            if(id == LC_SEGMENT_64) {
-                dataOutput.writeInt(reserved3);
-            }
-        }
-
-        private void readImpl(final DataInput dataInput) throws IOException {
-            sectionName = Util.readString(dataInput, 16).trim();
-            segmentName = Util.readString(dataInput, 16).trim();
-            address = dataInput.readInt();
-            if(id == LC_SEGMENT_64) {
-                address2 = dataInput.readInt();
-            }
-            size = dataInput.readInt();
-            if(id == LC_SEGMENT_64) {
-                size2 = dataInput.readInt();
-            }
-            offset = dataInput.readInt();
-            align = dataInput.readInt();
-            relocationOffset = dataInput.readInt();
-            numberOfRelocations = dataInput.readInt();
-            flags = dataInput.readInt();
-            reserved1 = dataInput.readInt();
-            reserved2 = dataInput.readInt();
-            if(id == LC_SEGMENT_64) {
-                reserved3 = dataInput.readInt();
-            }
+            return getFieldInt(4);
         }
 
         @Override
         public String toString() {
-            String ret = "Section { sectionName: \"" + sectionName + "\""
-            + ", segmentName: \"" + segmentName + "\""
-            + ", address: 0x" + Util.hex32(address);
-            if(id == LC_SEGMENT_64) {
-                ret += Util.hex32(address2);
-            }
-            ret += ", size: 0x" + Util.hex32(size);
-            if(id == LC_SEGMENT_64) {
-                ret += Util.hex32(size2);
-            }
-            ret += ", offset: 0x" + Util.hex32(offset)
-             + ", align: " + align
-             + ", relocationOffset: 0x"
-             + Util.hex32(relocationOffset)
-             + ", numberOfRelocations: " + numberOfRelocations
-             + ", flags: 0x" + Util.hex32(flags)
-             + ", reserved1: " + reserved1
-             + ", reserved2: " + reserved2;
-            if(id == LC_SEGMENT_64) {
-                ret += ", reserved3: " + reserved3;
-            }
-            ret += " }";
-            return ret;
+            return "Section { sectionName: \"" + getSectionName() + "\""
+                       + ", segmentName: \"" + getSegmentName() + "\""
+                       + ", address: 0x" + Util.hex64(getAddress())
+                       + ", size: 0x" + Util.hex64(getSize())
+                       + ", offset: 0x" + Util.hex64(getOffset())
+                       + ", align: " + getAlign()
+                       + ", relocationOffset: 0x"
+                       + Util.hex32(getRelocationOffset())
+                       + ", numberOfRelocations: "
+                       + getNumberOfRelocations()
+                       + ", flags: 0x" + Util.hex32(getFlags()) + " }";
+        }
+
+        // the 32-bit fields following the address and size, starting
+        // with the file offset
+        private int getFieldInt(final int index) {
+            return buffer.getInt(offset + (is64Bit ? 48 : 40) + 4 * index);
+        }
+
+        private long getUnsignedInt(final int index) {
+            return getFieldInt(index) & 0xffffffffL;
         }
     }
 }
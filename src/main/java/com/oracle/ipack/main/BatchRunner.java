@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.main;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Signs the applications listed in a manifest file one after another in a
+ * single process. The signers and the worker threads are shared by all the
+ * applications.
+ *
+ * Each line of the manifest contains the options of a single invocation,
+ * which are appended to the options common to all lines. For each line a
+ * result line is written, either "<line> OK" followed by the four hashes
+ * normally printed by the program and the time spent on the application in
+ * milliseconds or "<line> FAILED" followed by the error message.
+ */
+final class BatchRunner {
+    private final List<String> commonArgs;
+    private final SignerCache signers;
+    private final Map<Integer, ForkJoinPool> threadPools;
+
+    BatchRunner(final String[] commonArgs) {
+        this.commonArgs = new ArrayList<String>();
+        for (final String commonArg: commonArgs) {
+            this.commonArgs.add(commonArg);
+        }
+        this.signers = new SignerCache();
+        this.threadPools = new HashMap<Integer, ForkJoinPool>();
+    }
+
+    /**
+     * Signs the applications of the manifest and returns the number of
+     * applications which failed.
+     */
+    int run(final File manifestFile, final PrintStream os)
+            throws IOException {
+        final BufferedReader reader =
+                new BufferedReader(new InputStreamReader(
+                        new FileInputStream(manifestFile), "UTF-8"));
+        int failedApplications = 0;
+        try {
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                ++lineNumber;
+                final String trimmedLine = line.trim();
+                if (trimmedLine.isEmpty() || trimmedLine.startsWith("#")) {
+                    continue;
+                }
+
+                final long startTime = System.nanoTime();
+                String result;
+                try {
+                    final String[] hashes = signApplication(trimmedLine);
+                    final StringBuilder sb = new StringBuilder("OK");
+                    for (final String hash: hashes) {
+                        sb.append(' ').append(hash);
+                    }
+                    sb.append(' ').append(
+                            (System.nanoTime() - startTime) / 1000000);
+                    result = sb.toString();
+                } catch (final RuntimeException e) {
+                    ++failedApplications;
+                    result = "FAILED " + String.valueOf(e.getMessage())
+                                               .replaceAll("\\s+", " ").trim();
+                }
+
+                os.println(lineNumber + " " + result);
+                os.flush();
+            }
+        } finally {
+            reader.close();
+            for (final ForkJoinPool threadPool: threadPools.values()) {
+                threadPool.shutdown();
+            }
+            signers.close();
+        }
+
+        return failedApplications;
+    }
+
+    private String[] signApplication(final String line)
+            throws RuntimeException {
+        final List<String> args = new ArrayList<String>(commonArgs);
+        args.addAll(Main.splitArguments(line));
+
+        final Main.Invocation invocation =
+                Main.parseArguments(args.toArray(new String[args.size()]));
+        final SignerCache.CachedSigner cachedSigner =
+                signers.get(invocation.getSigningArgs());
+        try {
+            return Main.execute(invocation,
+                                cachedSigner.getSigner(),
+                                getThreadPool(
+                                        invocation.getNumberOfThreads()));
+        } finally {
+            cachedSigner.release();
+        }
+    }
+
+    private ForkJoinPool getThreadPool(final int numberOfThreads) {
+        if (numberOfThreads == 1) {
+            // single threaded applications don't use any pool
+            return null;
+        }
+
+        ForkJoinPool threadPool = threadPools.get(numberOfThreads);
+        if (threadPool == null) {
+            threadPool = new ForkJoinPool(numberOfThreads);
+            threadPools.put(numberOfThreads, threadPool);
+        }
+
+        return threadPool;
+    }
+}
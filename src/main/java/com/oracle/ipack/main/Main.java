@@ -25,21 +25,38 @@
 
 package com.oracle.ipack.main;
 
+import com.oracle.ipack.packer.CompressionPolicy;
 import com.oracle.ipack.packer.Packer;
+import com.oracle.ipack.packer.SignatureCache;
+import com.oracle.ipack.packer.Verifier;
+import com.oracle.ipack.signature.CodeDirectoryBlob;
+import com.oracle.ipack.signer.ProcessSigningBackend;
 import com.oracle.ipack.signer.Signer;
+import com.oracle.ipack.signer.SigningBackend;
+import com.oracle.ipack.util.CompressionStats;
+import com.oracle.ipack.util.PhaseStats;
 import com.oracle.ipack.util.ResourceDescriptor;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.Security;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 import javax.naming.InvalidNameException;
+import javax.xml.bind.DatatypeConverter;
 import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.operator.OperatorCreationException;
@@ -48,8 +65,8 @@ public final class Main {
     private static final String USAGE =
             "Usage:\n"
             + "\n"
-            + " ipack [ <archive> ] <signing opts> <application opts>"
-                    + " [ <application opts> ... ]\n"
+            + " ipack [ <archive> ] <signing opts> [ <packing opts> ]"
+                    + " <application opts> [ <application opts> ... ]\n"
             + "\n"
             + "Signing options:\n"
             + "\n"
@@ -62,6 +79,68 @@ public final class Main {
             + "                        the associated private key\n"
             + " -keypass <password>    "
                   + "password for the private key\n"
+            + " [-signing_backend <backend>]\n"
+            + "                        "
+                  + "bc (default) or jca sign in the process with the\n"
+            + "                        "
+                  + "Bouncy Castle or JDK provider, command signs in\n"
+            + "                        "
+                  + "the process started by -signing_command\n"
+            + " [-signing_command <command>]\n"
+            + "                        "
+                  + "command of a signing process, see below; the\n"
+            + "                        "
+                  + "keystore still provides the certificates\n"
+            + "\n"
+            + "Packing options:\n"
+            + "\n"
+            + " [-threads <count>]     "
+                  + "number of threads for hashing and compressing\n"
+            + "                        the application (default 1)\n"
+            + " [-hash_cache <file>]   "
+                  + "file caching the resource hashes between runs\n"
+            + "                        (only with --in_place)\n"
+            + " [-hash_cache_verify <percentage>]\n"
+            + "                        "
+                  + "percentage of cached hashes to verify (default 0)\n"
+            + " [-compression <mode>]  "
+                  + "deflate (default), store, extension or entropy;\n"
+            + "                        "
+                  + "extension stores already compressed formats,\n"
+            + "                        "
+                  + "entropy stores resources which look random\n"
+            + " [-compression_level <level>]\n"
+            + "                        "
+                  + "deflate level from 0 to 9\n"
+            + " [-store_extensions <ext,ext...>]\n"
+            + "                        "
+                  + "extensions stored by the extension mode\n"
+            + " [--parallel_deflate]   "
+                  + "deflate large entries in blocks on all threads\n"
+            + " [--compression_report] "
+                  + "print compression statistics to stderr\n"
+            + " [-page_size <bytes>]   "
+                  + "code signing page size of arm64 executables,\n"
+            + "                        "
+                  + "4096 (default) or 16384\n"
+            + " [-metrics_file <file>] "
+                  + "file to which the time, files, bytes and throughput\n"
+            + "                        "
+                  + "of each packing phase are written as JSON\n"
+            + " [-signature_cache <directory>]\n"
+            + "                        "
+                  + "directory of signed executables reused for jobs\n"
+            + "                        "
+                  + "with the same executable, resources, identifiers,\n"
+            + "                        "
+                  + "entitlements and certificates\n"
+            + " [-signature_cache_size <megabytes>]\n"
+            + "                        "
+                  + "size above which the least recently used cached\n"
+            + "                        "
+                  + "executables are deleted (default 1024)\n"
+            + " [--cache_report]       "
+                  + "print signature cache statistics to stderr\n"
             + "\n"
             + "Application options:\n"
             + "\n"
@@ -69,6 +148,10 @@ public final class Main {
                   + "base directory from which to derive relative paths\n"
             + " -appdir <directory>    "
                   + "directory with the application executable and resources\n"
+            + " [-ipa <file>]          "
+                  + "archive from which the application is re-signed,\n"
+            + "                        "
+                  + "-appdir is then the directory in the archive\n"
             + " -appname <file>        "
                   + "name of the application executable\n"
             + " -appid <id>            "
@@ -89,6 +172,10 @@ public final class Main {
                   + "specifies standalone executable (No code resources or Info.plist)\n"
             + " [--in_place]           "
                   + "sign the executable in-place\n"
+            + " [--sign_nested]        "
+                  + "sign nested frameworks, extensions and libraries\n"
+            + "                        "
+                  + "first and seal them in the CodeResources\n"
             + "\n"
             + "Example:\n"
             + "\n"
@@ -119,7 +206,93 @@ public final class Main {
             + "                        "
                   + " [--no_bundle]\n"
             + "                        "
-                  + " [--in_place]";
+                  + " [--in_place]\n"
+            + "\n"
+            + "Server mode:\n"
+            + "\n"
+            + " ipack --server [-jobs <count>]\n"
+            + "\n"
+            + " Reads signing jobs from the standard input, one per line, as\n"
+            + " <job id> followed by the options of a single invocation.\n"
+            + " Arguments with spaces can be enclosed in double quotes. For\n"
+            + " each job a line is written to the standard output, either\n"
+            + " <job id> OK <resources hash> <resources 256 hash>"
+                  + " <info plist hash> <info plist 256 hash>\n"
+            + " or <job id> FAILED <message>. Up to <count> jobs"
+                  + " (default 1) run\n"
+            + " concurrently, signers are reused between jobs.\n"
+            + "\n"
+            + "Batch mode:\n"
+            + "\n"
+            + " ipack --batch <manifest> [ <signing opts> ] [ <packing opts> ]\n"
+            + "\n"
+            + " Signs the applications listed in the manifest, one per line"
+                  + " as\n"
+            + " [ <archive> ] <application opts>. The options given on the\n"
+            + " command line are shared by all lines, a line can override"
+                  + " them.\n"
+            + " Empty lines and lines starting with # are ignored. For each\n"
+            + " application a line is written to the standard output, either\n"
+            + " <line> OK <resources hash> <resources 256 hash>"
+                  + " <info plist hash>\n"
+            + " <info plist 256 hash> <milliseconds> or <line> FAILED"
+                  + " <message>.\n"
+            + "\n"
+            + "Verify mode:\n"
+            + "\n"
+            + " ipack --verify [-threads <count>] [-ipa <file>]"
+                  + " [-basedir <directory>]\n"
+            + "                -appdir <directory> -appname <file>"
+                  + " [--no_bundle]\n"
+            + "\n"
+            + " Checks the signature of the application and of its nested"
+                  + " code\n"
+            + " against the executable pages, the sealed resources and the"
+                  + " CMS\n"
+            + " signature. Each mismatch is written to the standard output"
+                  + " as\n"
+            + " <path>: <problem>, OK if there are none.\n"
+            + "\n"
+            + "Manifest mode:\n"
+            + "\n"
+            + " ipack --manifest [-threads <count>] [-hash_cache <file>]"
+                  + " [-hash_cache_verify <percentage>]\n"
+            + "                  [-metrics_file <file>]"
+                  + " [-basedir <directory>]\n"
+            + "                  -appdir <directory> -appname <file>\n"
+            + "\n"
+            + " Hashes the resources of the application and writes its\n"
+            + " _CodeSignature/CodeResources, without signing the executable"
+                  + " or\n"
+            + " creating an archive. No keystore is needed. The hashes are"
+                  + " written\n"
+            + " to the standard output as when signing, for a later run"
+                  + " with\n"
+            + " -resources_hash, -resources_256_hash, -info_plist_hash and\n"
+            + " -info_plist_256_hash.\n"
+            + "\n"
+            + "Signing process mode:\n"
+            + "\n"
+            + " ipack --signing_process <signing opts>\n"
+            + "\n"
+            + " Signs batches of messages read from the standard input for"
+                  + " the\n"
+            + " command backend, standing in for a key device. Each line"
+                  + " holds\n"
+            + " the base64 encoded messages separated by spaces and is"
+                  + " answered\n"
+            + " by OK and the base64 encoded SHA1withRSA signatures or by"
+                  + " FAILED\n"
+            + " <message>.";
+
+    private static final String SERVER_OPTION = "--server";
+    private static final String BATCH_OPTION = "--batch";
+    private static final String VERIFY_OPTION = "--verify";
+    private static final String MANIFEST_OPTION = "--manifest";
+    private static final String SIGNING_PROCESS_OPTION = "--signing_process";
+
+    private static final long DEFAULT_SIGNATURE_CACHE_SIZE =
+            1024L * 1024L * 1024L;
 
     private Main() {
     }
@@ -133,7 +306,39 @@ public final class Main {
         Security.addProvider(new BouncyCastleProvider());
 
         try {
-            execute(args);
+            if (SERVER_OPTION.equalsIgnoreCase(args[0])) {
+                runServer(args);
+                return;
+            }
+            if (BATCH_OPTION.equalsIgnoreCase(args[0])) {
+                runBatch(args);
+                return;
+            }
+            if (VERIFY_OPTION.equalsIgnoreCase(args[0])) {
+                runVerify(args);
+                return;
+            }
+            if (MANIFEST_OPTION.equalsIgnoreCase(args[0])) {
+                runManifest(args);
+                return;
+            }
+            if (SIGNING_PROCESS_OPTION.equalsIgnoreCase(args[0])) {
+                runSigningProcess(args);
+                return;
+            }
+
+            final Invocation invocation = parseArguments(args);
+            final Signer signer = createSigner(invocation.getSigningArgs());
+            final String[] hashes;
+            try {
+                hashes = execute(invocation, signer, null);
+            } finally {
+                signer.close();
+            }
+            //This should be the only output from the program ever, it's used by codesign.py and any other output will cause codesign.py to stop working
+            for (final String hash: hashes) {
+                System.out.println(hash);
+            }
         } catch (final RuntimeException e) {
             System.err.println(e.toString());
             e.printStackTrace(System.out);
@@ -142,13 +347,359 @@ public final class Main {
         }
     }
 
-    private static void execute(final String... args) throws RuntimeException {
+    private static void runServer(final String... args) {
+        int numberOfJobs = 1;
+        for (int i = 1; i < args.length; ++i) {
+            if ("-jobs".equalsIgnoreCase(args[i]) && (i + 1 < args.length)) {
+                numberOfJobs = parsePositiveInt(args[i], args[++i]);
+            } else {
+                throw new RuntimeException("Illegal server option " + args[i]);
+            }
+        }
+
+        try {
+            new SigningServer(numberOfJobs).run(System.in, System.out);
+        } catch (final IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void runBatch(final String... args) {
+        if (args.length < 2) {
+            throw new RuntimeException("Value missing for " + args[0]);
+        }
+
+        final File manifestFile = new File(args[1]);
+        if (!manifestFile.isFile()) {
+            throw new RuntimeException(
+                    "Manifest \"" + manifestFile + "\" doesn't exist");
+        }
+
+        final int failedApplications;
+        try {
+            failedApplications =
+                    new BatchRunner(Arrays.copyOfRange(args, 2, args.length))
+                            .run(manifestFile, System.out);
+        } catch (final IOException e) {
+            throw new RuntimeException(
+                    constructExceptionMessage("Failed to read manifest", e));
+        }
+
+        if (failedApplications > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void runVerify(final String... args) {
+        int numberOfThreads = 1;
+        File baseDir = new File("");
+        File sourceArchive = null;
+        String appDir = null;
+        String appName = null;
+        boolean isBundle = true;
+        for (int i = 1; i < args.length; ++i) {
+            final String argument = args[i];
+            if ("--no_bundle".equalsIgnoreCase(argument)) {
+                isBundle = false;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new RuntimeException("Value missing for " + argument);
+            }
+
+            final String value = args[++i];
+            if ("-threads".equalsIgnoreCase(argument)) {
+                numberOfThreads = parsePositiveInt(argument, value);
+            } else if ("-basedir".equalsIgnoreCase(argument)) {
+                baseDir = new File(value);
+                if (!baseDir.isDirectory()) {
+                    throw new RuntimeException("Base directory \"" + value + "\" doesn't exist");
+                }
+            } else if ("-ipa".equalsIgnoreCase(argument)) {
+                sourceArchive = new File(value);
+                if (!sourceArchive.isFile()) {
+                    throw new RuntimeException("Archive \"" + value + "\" doesn't exist");
+                }
+            } else if ("-appdir".equalsIgnoreCase(argument)) {
+                appDir = value;
+            } else if ("-appname".equalsIgnoreCase(argument)) {
+                appName = value;
+            } else {
+                throw new RuntimeException("Illegal verify option " + argument);
+            }
+        }
+
+        if (appDir == null) {
+            throw new RuntimeException("Application directory not specified");
+        }
+        if (appName == null) {
+            throw new RuntimeException("Application name not specified");
+        }
+
+        final Verifier verifier = new Verifier();
+        verifier.setNumberOfThreads(numberOfThreads);
+        final List<String> mismatches;
+        try {
+            if (sourceArchive != null) {
+                mismatches = verifier.verifyArchivedApplication(
+                                     sourceArchive, appDir, appName,
+                                     isBundle);
+            } else {
+                final ResourceDescriptor appDirDescriptor =
+                        new ResourceDescriptor(baseDir, appDir);
+                if (!appDirDescriptor.getFile().isDirectory()) {
+                    throw new RuntimeException("Directory \"" + appDir
+                                                   + "\" doesn't exist");
+                }
+                mismatches = verifier.verifyApplication(
+                                     appDirDescriptor.getBaseDir(),
+                                     appDirDescriptor.getRelativePath(),
+                                     appName, isBundle);
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException(
+                    constructExceptionMessage("Failed to verify " + appName,
+                                              e));
+        }
+
+        if (mismatches.isEmpty()) {
+            System.out.println("OK");
+            return;
+        }
+
+        for (final String mismatch: mismatches) {
+            System.out.println(mismatch);
+        }
+        System.exit(1);
+    }
+
+    private static void runManifest(final String... args) {
+        int numberOfThreads = 1;
+        File hashCacheFile = null;
+        int hashCacheVerifyPercentage = 0;
+        File metricsFile = null;
+        File baseDir = new File("");
+        String appDir = null;
+        String appName = null;
+        for (int i = 1; i < args.length; ++i) {
+            final String argument = args[i];
+            if (i + 1 >= args.length) {
+                throw new RuntimeException("Value missing for " + argument);
+            }
+
+            final String value = args[++i];
+            if ("-threads".equalsIgnoreCase(argument)) {
+                numberOfThreads = parsePositiveInt(argument, value);
+            } else if ("-hash_cache".equalsIgnoreCase(argument)) {
+                hashCacheFile = new File(value);
+            } else if ("-hash_cache_verify".equalsIgnoreCase(argument)) {
+                hashCacheVerifyPercentage = parsePercentage(argument, value);
+            } else if ("-metrics_file".equalsIgnoreCase(argument)) {
+                metricsFile = new File(value);
+            } else if ("-basedir".equalsIgnoreCase(argument)) {
+                baseDir = new File(value);
+                if (!baseDir.isDirectory()) {
+                    throw new RuntimeException("Base directory \"" + value + "\" doesn't exist");
+                }
+            } else if ("-appdir".equalsIgnoreCase(argument)) {
+                appDir = value;
+            } else if ("-appname".equalsIgnoreCase(argument)) {
+                appName = value;
+            } else {
+                throw new RuntimeException(
+                        "Illegal manifest option " + argument);
+            }
+        }
+
+        if (appDir == null) {
+            throw new RuntimeException("Application directory not specified");
+        }
+        if (appName == null) {
+            throw new RuntimeException("Application name not specified");
+        }
+
+        final ResourceDescriptor appDirDescriptor =
+                new ResourceDescriptor(baseDir, appDir);
+        if (!appDirDescriptor.getFile().isDirectory()) {
+            throw new RuntimeException("Directory \"" + appDir
+                                           + "\" doesn't exist");
+        }
+
+        // only the resources are hashed, so neither an archive nor a signer
+        // is needed
+        final Packer packer;
+        try {
+            packer = new Packer(null, null, true);
+        } catch (final IOException e) {
+            throw new RuntimeException(
+                    constructExceptionMessage("Failed to create packer", e));
+        }
+        packer.setNumberOfThreads(numberOfThreads);
+        packer.setHashCacheFile(hashCacheFile);
+        packer.setHashCacheVerifyPercentage(hashCacheVerifyPercentage);
+        if (metricsFile != null) {
+            packer.setPhaseStats(new PhaseStats());
+        }
+        try {
+            try {
+                packer.storeManifest(appDirDescriptor.getBaseDir(),
+                                     appDirDescriptor.getRelativePath(),
+                                     appName);
+            } catch (final IOException e) {
+                throw new RuntimeException(
+                        constructExceptionMessage(
+                            "Failed to write manifest of " + appName, e));
+            }
+        } finally {
+            packer.close();
+        }
+
+        if (metricsFile != null) {
+            writeMetrics(metricsFile, packer.getPhaseStats());
+        }
+
+        for (final String hash: getHashes(packer)) {
+            System.out.println(hash);
+        }
+    }
+
+    private static void runSigningProcess(final String... args) {
+        final SigningArgs signingArgs = new SigningArgs();
+        for (int i = 1; i < args.length; ++i) {
+            final String argument = args[i];
+            if (i + 1 >= args.length) {
+                throw new RuntimeException("Value missing for " + argument);
+            }
+
+            final String value = args[++i];
+            if ("-keystore".equalsIgnoreCase(argument)) {
+                signingArgs.setKeyStore(new File(value));
+            } else if ("-storepass".equalsIgnoreCase(argument)) {
+                signingArgs.setStorePass(value);
+            } else if ("-alias".equalsIgnoreCase(argument)) {
+                signingArgs.setAlias(value);
+            } else if ("-keypass".equalsIgnoreCase(argument)) {
+                signingArgs.setKeyPass(value);
+            } else if ("-signing_backend".equalsIgnoreCase(argument)) {
+                signingArgs.setBackend(value);
+            } else {
+                throw new RuntimeException(
+                        "Illegal signing process option " + argument);
+            }
+        }
+        signingArgs.validate();
+        if (Signer.BACKEND_COMMAND.equals(signingArgs.getBackend())) {
+            throw new RuntimeException(
+                    "A signing process can't use the command backend");
+        }
+
+        Exception exception;
+        try {
+            final SigningBackend backend =
+                    Signer.createBackend(signingArgs.getKeyStore(),
+                                         signingArgs.getStorePass(),
+                                         signingArgs.getAlias(),
+                                         signingArgs.getKeyPass(),
+                                         signingArgs.getBackend());
+            try {
+                ProcessSigningBackend.serve(backend, System.in, System.out);
+            } finally {
+                backend.close();
+            }
+            return;
+        } catch (final KeyStoreException e) {
+            exception = e;
+        } catch (final NoSuchAlgorithmException e) {
+            exception = e;
+        } catch (final CertificateException e) {
+            exception = e;
+        } catch (final UnrecoverableKeyException e) {
+            exception = e;
+        } catch (final IOException e) {
+            exception = e;
+        }
+
+        throw new RuntimeException(
+                constructExceptionMessage("Signing process failed",
+                                          exception));
+    }
+
+    /**
+     * Splits the line into whitespace separated tokens. Double quotes group
+     * characters into a single token, inside them \" and \\ stand for a
+     * quote and a backslash.
+     */
+    static List<String> splitArguments(final String line) throws RuntimeException {
+        final List<String> tokens = new ArrayList<String>();
+        final StringBuilder token = new StringBuilder();
+        boolean inToken = false;
+        boolean inQuotes = false;
+
+        for (int i = 0; i < line.length(); ++i) {
+            final char c = line.charAt(i);
+            if (inQuotes) {
+                if (c == '"') {
+                    inQuotes = false;
+                } else if ((c == '\\') && (i + 1 < line.length())
+                               && ((line.charAt(i + 1) == '"')
+                                       || (line.charAt(i + 1) == '\\'))) {
+                    token.append(line.charAt(++i));
+                } else {
+                    token.append(c);
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (inToken) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                    inToken = false;
+                }
+            } else {
+                inToken = true;
+                if (c == '"') {
+                    inQuotes = true;
+                } else {
+                    token.append(c);
+                }
+            }
+        }
+
+        if (inQuotes) {
+            throw new RuntimeException("Unterminated quote");
+        }
+        if (inToken) {
+            tokens.add(token.toString());
+        }
+
+        return tokens;
+    }
+
+    /**
+     * Parses the options of a single invocation.
+     */
+    static Invocation parseArguments(final String... args)
+            throws RuntimeException {
         final SigningArgs signingArgs = new SigningArgs();
 
         File destFile = null;
+        int numberOfThreads = 1;
+        File hashCacheFile = null;
+        int hashCacheVerifyPercentage = 0;
+        int compressionMode = CompressionPolicy.DEFLATE_ALL;
+        int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        Set<String> storedExtensions = null;
+        boolean parallelDeflate = false;
+        boolean compressionReport = false;
+        boolean signNested = false;
+        int pageSize = CodeDirectoryBlob.DEFAULT_PAGE_SIZE;
+        File metricsFile = null;
+        File signatureCacheDir = null;
+        long signatureCacheSize = DEFAULT_SIGNATURE_CACHE_SIZE;
+        boolean cacheReport = false;
 
         File baseDir = null;
         File appBaseDir = null;
+        File sourceArchive = null;
         String appDir = null;
         String appName = null;
         String appId = null;
@@ -179,12 +730,12 @@ public final class Main {
                 continue;
             }
 
-            if (i == (args.length - 1)  && !argument.equals("--no_bundle") && !argument.equals("--in_place")) {
+            if (i == (args.length - 1)  && !isFlag(argument)) {
                 throw new RuntimeException("Value missing for " + argument);
             }
 
             String value = null;
-            if(!argument.equals("--no_bundle") && !argument.equals("--in_place")) {
+            if(!isFlag(argument)) {
                 value = args[++i];
                 if (value.startsWith("-")) {
                     throw new RuntimeException("Illegal value for " + argument);
@@ -203,6 +754,38 @@ public final class Main {
                 signingArgs.setAlias(value);
             } else if ("-keypass".equalsIgnoreCase(argument)) {
                 signingArgs.setKeyPass(value);
+            } else if ("-signing_backend".equalsIgnoreCase(argument)) {
+                signingArgs.setBackend(value);
+            } else if ("-signing_command".equalsIgnoreCase(argument)) {
+                signingArgs.setBackendCommand(value);
+            } else if ("-threads".equalsIgnoreCase(argument)) {
+                numberOfThreads = parsePositiveInt(argument, value);
+            } else if ("-hash_cache".equalsIgnoreCase(argument)) {
+                hashCacheFile = new File(value);
+            } else if ("-hash_cache_verify".equalsIgnoreCase(argument)) {
+                hashCacheVerifyPercentage = parsePercentage(argument, value);
+            } else if ("-compression".equalsIgnoreCase(argument)) {
+                compressionMode = parseCompressionMode(argument, value);
+            } else if ("-compression_level".equalsIgnoreCase(argument)) {
+                compressionLevel = parseCompressionLevel(argument, value);
+            } else if ("-store_extensions".equalsIgnoreCase(argument)) {
+                storedExtensions = new HashSet<String>(
+                        Arrays.asList(value.split(",")));
+            } else if ("--parallel_deflate".equalsIgnoreCase(argument)) {
+                parallelDeflate = true;
+            } else if ("--compression_report".equalsIgnoreCase(argument)) {
+                compressionReport = true;
+            } else if ("-page_size".equalsIgnoreCase(argument)) {
+                pageSize = parsePageSize(argument, value);
+            } else if ("-metrics_file".equalsIgnoreCase(argument)) {
+                metricsFile = new File(value);
+            } else if ("-signature_cache".equalsIgnoreCase(argument)) {
+                signatureCacheDir = new File(value);
+            } else if ("-signature_cache_size".equalsIgnoreCase(argument)) {
+                signatureCacheSize =
+                        parsePositiveInt(argument, value) * 1024L * 1024L;
+            } else if ("--cache_report".equalsIgnoreCase(argument)) {
+                cacheReport = true;
             } else if ("-basedir".equalsIgnoreCase(argument)) {
                 baseDir = new File(value);
                 if (!baseDir.isDirectory()) {
@@ -214,6 +797,11 @@ public final class Main {
                     throw new RuntimeException("Entitlements \"" + entitlementsFile + "\" doesn't exist");
                 }
                 entitlements = value;
+            } else if ("-ipa".equalsIgnoreCase(argument)) {
+                sourceArchive = new File(value);
+                if (!sourceArchive.isFile()) {
+                    throw new RuntimeException("Archive \"" + value + "\" doesn't exist");
+                }
             } else if ("-appdir".equalsIgnoreCase(argument)) {
                 appDir = value;
                 appBaseDir = baseDir;
@@ -233,6 +821,8 @@ public final class Main {
                 infoPlist256Hash = value;
             } else if ("--no_bundle".equalsIgnoreCase(argument)) {
                 isBundle = false;
+            } else if ("--sign_nested".equalsIgnoreCase(argument)) {
+                signNested = true;
             } else if ("--in_place".equalsIgnoreCase(argument)) {
                 inPlace = true;
                 if (destFile != null) {
@@ -244,7 +834,7 @@ public final class Main {
 
         if ((appName != null) || (appId != null) || (appDir != null) || (teamId != null) || (entitlements != null) || (isBundle != null) || (inPlace != null) || (resourcesHash != null) || (infoPlistHash != null) || (resources256Hash != null) || (infoPlist256Hash != null)) {
             appArgsList.add(createApplicationArgs(
-                                appBaseDir, appDir, appName, appId, teamId, entitlements, resourcesHash, infoPlistHash, resources256Hash, infoPlist256Hash, isBundle, inPlace));
+                                appBaseDir, sourceArchive, appDir, appName, appId, teamId, entitlements, resourcesHash, infoPlistHash, resources256Hash, infoPlist256Hash, isBundle, inPlace));
         }
 
         if (destFile == null && !inPlace) {
@@ -255,40 +845,102 @@ public final class Main {
             throw new RuntimeException("No application specified");
         }
 
+        if ((sourceArchive != null) && inPlace) {
+            throw new RuntimeException(
+                    "Archive and in place both specified");
+        }
+
+        if ((sourceArchive != null) && signNested) {
+            throw new RuntimeException(
+                    "Nested code can't be signed in an archive");
+        }
+
+        if ((hashCacheFile != null) && !inPlace) {
+            throw new RuntimeException(
+                    "Hash cache can be used only with --in_place");
+        }
+
+        final CompressionPolicy compressionPolicy =
+                new CompressionPolicy(compressionMode);
+        compressionPolicy.setLevel(compressionLevel);
+        if (storedExtensions != null) {
+            compressionPolicy.setStoredExtensions(storedExtensions);
+        }
+        compressionPolicy.setParallelDeflate(parallelDeflate);
+
         signingArgs.validate();
-        execute(destFile, signingArgs, appArgsList);
+        return new Invocation(destFile, signingArgs, numberOfThreads,
+                              hashCacheFile, hashCacheVerifyPercentage,
+                              compressionPolicy, compressionReport,
+                              signNested, pageSize, metricsFile,
+                              signatureCacheDir, signatureCacheSize,
+                              cacheReport, appArgsList);
     }
 
-    private static void execute(
-            final File destFile,
-            final SigningArgs signingArgs,
-            final List<ApplicationArgs> appArgsList) throws RuntimeException {
-        final Signer signer = createSigner(signingArgs);
-
+    /**
+     * Packs and signs the application of the invocation. Returns the hex
+     * encoded CodeResources SHA-1 and SHA-256 and Info.plist SHA-1 and
+     * SHA-256 hashes. The thread pool is optional, it lets several
+     * invocations share their worker threads.
+     */
+    static String[] execute(final Invocation invocation,
+                            final Signer signer,
+                            final ForkJoinPool threadPool)
+            throws RuntimeException {
         final Packer packer;
 
-        final ApplicationArgs appArgs = appArgsList.get(0);
+        final ApplicationArgs appArgs = invocation.getAppArgsList().get(0);
         try {
-            packer = new Packer(destFile, signer, appArgs.getInPlace());
+            packer = new Packer(invocation.getDestFile(), signer,
+                                appArgs.getInPlace());
         } catch (final IOException e) {
             throw new RuntimeException(
                     constructExceptionMessage("Failed to create packer", e));
         }
+        packer.setNumberOfThreads(invocation.getNumberOfThreads());
+        packer.setThreadPool(threadPool);
+        packer.setCompressionPolicy(invocation.getCompressionPolicy());
+        if (invocation.getMetricsFile() != null) {
+            packer.setPhaseStats(new PhaseStats());
+        }
+        packer.setHashCacheFile(invocation.getHashCacheFile());
+        packer.setHashCacheVerifyPercentage(
+                invocation.getHashCacheVerifyPercentage());
+        packer.setSignNested(invocation.getSignNested());
+        packer.setPageSize(invocation.getPageSize());
+        final SignatureCache signatureCache =
+                createSignatureCache(invocation);
+        packer.setSignatureCache(signatureCache);
 
         try {
             try {
-                packer.storeApplication(
-                        appArgs.getBaseDir(),
-                        appArgs.getAppDir(),
-                        appArgs.getAppName(),
-                        appArgs.getAppId(),
-                        appArgs.getTeamId(),
-                        appArgs.getEntitlements(),
-                        appArgs.getResourcesHash(),
-                        appArgs.getInfoPlistHash(),
-                        appArgs.getResources256Hash(),
-                        appArgs.getInfoPlist256Hash(),
-                        appArgs.getIsBundle());
+                if (appArgs.getSourceArchive() != null) {
+                    packer.storeArchivedApplication(
+                            appArgs.getSourceArchive(),
+                            appArgs.getAppDir(),
+                            appArgs.getAppName(),
+                            appArgs.getAppId(),
+                            appArgs.getTeamId(),
+                            appArgs.getEntitlements(),
+                            appArgs.getResourcesHash(),
+                            appArgs.getInfoPlistHash(),
+                            appArgs.getResources256Hash(),
+                            appArgs.getInfoPlist256Hash(),
+                            appArgs.getIsBundle());
+                } else {
+                    packer.storeApplication(
+                            appArgs.getBaseDir(),
+                            appArgs.getAppDir(),
+                            appArgs.getAppName(),
+                            appArgs.getAppId(),
+                            appArgs.getTeamId(),
+                            appArgs.getEntitlements(),
+                            appArgs.getResourcesHash(),
+                            appArgs.getInfoPlistHash(),
+                            appArgs.getResources256Hash(),
+                            appArgs.getInfoPlist256Hash(),
+                            appArgs.getIsBundle());
+                }
             } catch (final IOException e) {
                 throw new RuntimeException(
                         constructExceptionMessage(
@@ -297,10 +949,203 @@ public final class Main {
         } finally {
             packer.close();
         }
+
+        if (invocation.getCompressionReport()
+                && (packer.getCompressionStats() != null)) {
+            printCompressionReport(invocation.getCompressionPolicy(),
+                                   packer.getCompressionStats());
+        }
+
+        if (invocation.getMetricsFile() != null) {
+            writeMetrics(invocation.getMetricsFile(),
+                         packer.getPhaseStats());
+        }
+
+        if (invocation.getCacheReport() && (signatureCache != null)) {
+            printCacheReport(signatureCache);
+        }
+
+        return getHashes(packer);
+    }
+
+    /**
+     * Returns the hex encoded hashes of the last application stored by the
+     * packer, in the order in which they are printed.
+     */
+    private static String[] getHashes(final Packer packer) {
+        return new String[] {
+                DatatypeConverter.printHexBinary(
+                        packer.getCodeResourcesHash()),
+                DatatypeConverter.printHexBinary(
+                        packer.getCodeResources256Hash()),
+                DatatypeConverter.printHexBinary(packer.getInfoPlistHash()),
+                DatatypeConverter.printHexBinary(
+                        packer.getInfoPlist256Hash())
+            };
+    }
+
+    private static boolean isFlag(final String argument) {
+        return argument.equals("--no_bundle")
+                   || argument.equals("--in_place")
+                   || argument.equals("--parallel_deflate")
+                   || argument.equals("--compression_report")
+                   || argument.equals("--cache_report")
+                   || argument.equals("--sign_nested");
+    }
+
+    private static int parseCompressionMode(final String argument,
+                                            final String value)
+            throws RuntimeException {
+        if ("deflate".equalsIgnoreCase(value)) {
+            return CompressionPolicy.DEFLATE_ALL;
+        } else if ("store".equalsIgnoreCase(value)) {
+            return CompressionPolicy.STORE_ALL;
+        } else if ("extension".equalsIgnoreCase(value)) {
+            return CompressionPolicy.STORE_BY_EXTENSION;
+        } else if ("entropy".equalsIgnoreCase(value)) {
+            return CompressionPolicy.STORE_BY_ENTROPY;
+        }
+
+        throw new RuntimeException("Illegal value for " + argument);
+    }
+
+    private static int parseCompressionLevel(final String argument,
+                                             final String value)
+            throws RuntimeException {
+        final int intValue;
+        try {
+            intValue = Integer.parseInt(value);
+        } catch (final NumberFormatException e) {
+            throw new RuntimeException("Illegal value for " + argument);
+        }
+
+        if ((intValue < Deflater.NO_COMPRESSION)
+                || (intValue > Deflater.BEST_COMPRESSION)) {
+            throw new RuntimeException("Illegal value for " + argument);
+        }
+
+        return intValue;
+    }
+
+    // goes to stderr, stdout carries only the hashes
+    private static void printCompressionReport(
+            final CompressionPolicy compressionPolicy,
+            final CompressionStats compressionStats) {
+        System.err.println("Compression (" + compressionPolicy + "):");
+        System.err.println("  deflated " + compressionStats.getDeflatedEntries()
+                               + " entries, "
+                               + compressionStats.getDeflatedSize()
+                               + " -> "
+                               + compressionStats.getDeflatedCompressedSize()
+                               + " bytes, "
+                               + compressionStats.getDeflateTime() / 1000000
+                               + " ms CPU");
+        System.err.println("  stored " + compressionStats.getStoredEntries()
+                               + " entries, "
+                               + compressionStats.getStoredSize()
+                               + " bytes, about "
+                               + compressionStats.getEstimatedSavedTime()
+                                     / 1000000
+                               + " ms CPU saved");
+    }
+
+    private static SignatureCache createSignatureCache(
+            final Invocation invocation) throws RuntimeException {
+        if (invocation.getSignatureCacheDir() == null) {
+            return null;
+        }
+
+        try {
+            return new SignatureCache(invocation.getSignatureCacheDir(),
+                                      invocation.getSignatureCacheSize());
+        } catch (final IOException e) {
+            throw new RuntimeException(
+                    constructExceptionMessage(
+                        "Failed to create signature cache", e));
+        }
+    }
+
+    // goes to stderr, stdout carries only the hashes
+    private static void printCacheReport(
+            final SignatureCache signatureCache) {
+        System.err.println("Signature cache: "
+                               + signatureCache.getHits() + " hits, "
+                               + signatureCache.getMisses() + " misses ("
+                               + signatureCache.getHitRate()
+                               + "% hit rate), "
+                               + signatureCache.getEvictions()
+                               + " evictions");
+    }
+
+    private static void writeMetrics(final File metricsFile,
+                                     final PhaseStats phaseStats)
+            throws RuntimeException {
+        try {
+            Files.write(metricsFile.toPath(),
+                        phaseStats.toJson().getBytes(
+                                Charset.forName("UTF-8")));
+        } catch (final IOException e) {
+            throw new RuntimeException(
+                    constructExceptionMessage(
+                        "Failed to write metrics to " + metricsFile, e));
+        }
+    }
+
+    private static int parsePositiveInt(final String argument,
+                                        final String value)
+            throws RuntimeException {
+        final int intValue;
+        try {
+            intValue = Integer.parseInt(value);
+        } catch (final NumberFormatException e) {
+            throw new RuntimeException("Illegal value for " + argument);
+        }
+
+        if (intValue < 1) {
+            throw new RuntimeException("Illegal value for " + argument);
+        }
+
+        return intValue;
+    }
+
+    private static int parsePageSize(final String argument,
+                                     final String value)
+            throws RuntimeException {
+        final int intValue;
+        try {
+            intValue = Integer.parseInt(value);
+        } catch (final NumberFormatException e) {
+            throw new RuntimeException("Illegal value for " + argument);
+        }
+
+        if ((intValue != CodeDirectoryBlob.DEFAULT_PAGE_SIZE)
+                && (intValue != CodeDirectoryBlob.LARGE_PAGE_SIZE)) {
+            throw new RuntimeException("Illegal value for " + argument);
+        }
+
+        return intValue;
+    }
+
+    private static int parsePercentage(final String argument,
+                                       final String value)
+            throws RuntimeException {
+        final int intValue;
+        try {
+            intValue = Integer.parseInt(value);
+        } catch (final NumberFormatException e) {
+            throw new RuntimeException("Illegal value for " + argument);
+        }
+
+        if ((intValue < 0) || (intValue > 100)) {
+            throw new RuntimeException("Illegal value for " + argument);
+        }
+
+        return intValue;
     }
 
     private static ApplicationArgs createApplicationArgs(
             final File baseDir,
+            final File sourceArchive,
             final String appDir,
             final String appName,
             final String appId,
@@ -316,6 +1161,9 @@ public final class Main {
         if (baseDir != null) {
             applicationArgs.setBaseDir(baseDir);
         }
+        if (sourceArchive != null) {
+            applicationArgs.setSourceArchive(sourceArchive);
+        }
         if (appDir != null) {
             applicationArgs.setAppDir(appDir);
         }
@@ -354,14 +1202,19 @@ public final class Main {
         return applicationArgs;
     }
 
-    private static Signer createSigner(final SigningArgs signingArgs)
+    static Signer createSigner(final SigningArgs signingArgs)
             throws RuntimeException {
         Exception exception;
         try {
             return Signer.create(signingArgs.getKeyStore(),
                                  signingArgs.getStorePass(),
                                  signingArgs.getAlias(),
-                                 signingArgs.getKeyPass());
+                                 signingArgs.getKeyPass(),
+                                 signingArgs.getBackend(),
+                                 (signingArgs.getBackendCommand() != null)
+                                         ? splitArguments(
+                                               signingArgs.getBackendCommand())
+                                         : null);
         } catch (final KeyStoreException e) {
             exception = e;
         } catch (final NoSuchAlgorithmException e) {
@@ -404,15 +1257,121 @@ public final class Main {
         return sb.toString();
     }
 
-    private static final class SigningArgs {
+    static final class Invocation {
+        private final File destFile;
+        private final SigningArgs signingArgs;
+        private final int numberOfThreads;
+        private final File hashCacheFile;
+        private final int hashCacheVerifyPercentage;
+        private final CompressionPolicy compressionPolicy;
+        private final boolean compressionReport;
+        private final boolean signNested;
+        private final int pageSize;
+        private final File metricsFile;
+        private final File signatureCacheDir;
+        private final long signatureCacheSize;
+        private final boolean cacheReport;
+        private final List<ApplicationArgs> appArgsList;
+
+        public Invocation(final File destFile,
+                          final SigningArgs signingArgs,
+                          final int numberOfThreads,
+                          final File hashCacheFile,
+                          final int hashCacheVerifyPercentage,
+                          final CompressionPolicy compressionPolicy,
+                          final boolean compressionReport,
+                          final boolean signNested,
+                          final int pageSize,
+                          final File metricsFile,
+                          final File signatureCacheDir,
+                          final long signatureCacheSize,
+                          final boolean cacheReport,
+                          final List<ApplicationArgs> appArgsList) {
+            this.destFile = destFile;
+            this.signingArgs = signingArgs;
+            this.numberOfThreads = numberOfThreads;
+            this.hashCacheFile = hashCacheFile;
+            this.hashCacheVerifyPercentage = hashCacheVerifyPercentage;
+            this.compressionPolicy = compressionPolicy;
+            this.compressionReport = compressionReport;
+            this.signNested = signNested;
+            this.pageSize = pageSize;
+            this.metricsFile = metricsFile;
+            this.signatureCacheDir = signatureCacheDir;
+            this.signatureCacheSize = signatureCacheSize;
+            this.cacheReport = cacheReport;
+            this.appArgsList = appArgsList;
+        }
+
+        public File getDestFile() {
+            return destFile;
+        }
+
+        public SigningArgs getSigningArgs() {
+            return signingArgs;
+        }
+
+        public int getNumberOfThreads() {
+            return numberOfThreads;
+        }
+
+        public File getHashCacheFile() {
+            return hashCacheFile;
+        }
+
+        public int getHashCacheVerifyPercentage() {
+            return hashCacheVerifyPercentage;
+        }
+
+        public CompressionPolicy getCompressionPolicy() {
+            return compressionPolicy;
+        }
+
+        public boolean getCompressionReport() {
+            return compressionReport;
+        }
+
+        public boolean getSignNested() {
+            return signNested;
+        }
+
+        public int getPageSize() {
+            return pageSize;
+        }
+
+        public File getMetricsFile() {
+            return metricsFile;
+        }
+
+        public File getSignatureCacheDir() {
+            return signatureCacheDir;
+        }
+
+        public long getSignatureCacheSize() {
+            return signatureCacheSize;
+        }
+
+        public boolean getCacheReport() {
+            return cacheReport;
+        }
+
+        public List<ApplicationArgs> getAppArgsList() {
+            return appArgsList;
+        }
+    }
+
+    static final class SigningArgs {
         private File keyStore;
         private String storePass;
         private String alias;
         private String keyPass;
+        private String backend;
+        private String backendCommand;
 
         public SigningArgs() {
             storePass = "";
             keyPass = "";
+            backend = Signer.BACKEND_BC;
         }
 
         public File getKeyStore() {
@@ -447,6 +1406,22 @@ public final class Main {
             this.keyPass = keyPass;
         }
 
+        public String getBackend() {
+            return backend;
+        }
+
+        public void setBackend(final String backend) {
+            this.backend = backend.toLowerCase(Locale.ROOT);
+        }
+
+        public String getBackendCommand() {
+            return backendCommand;
+        }
+
+        public void setBackendCommand(final String backendCommand) {
+            this.backendCommand = backendCommand;
+        }
+
         public void validate() throws RuntimeException {
             if (keyStore == null) {
                 throw new RuntimeException("Key store not specified");
@@ -455,11 +1430,24 @@ public final class Main {
             if (alias == null) {
                 throw new RuntimeException("Signing key not specified");
             }
+
+            if (!Signer.BACKEND_BC.equals(backend)
+                    && !Signer.BACKEND_JCA.equals(backend)
+                    && !Signer.BACKEND_COMMAND.equals(backend)) {
+                throw new RuntimeException(
+                        "Unknown signing backend " + backend);
+            }
+
+            if (Signer.BACKEND_COMMAND.equals(backend)
+                    && (backendCommand == null)) {
+                throw new RuntimeException("Signing command not specified");
+            }
         }
     }
 
     private static final class ApplicationArgs {
         private File baseDir;
+        private File sourceArchive;
         private String appDir;
         private String appName;
         private String appId;
@@ -485,6 +1473,14 @@ public final class Main {
             this.baseDir = baseDir;
         }
 
+        public File getSourceArchive() {
+            return sourceArchive;
+        }
+
+        public void setSourceArchive(final File sourceArchive) {
+            this.sourceArchive = sourceArchive;
+        }
+
         public String getAppDir() {
             return appDir;
         }
@@ -589,7 +1585,9 @@ public final class Main {
             final ResourceDescriptor appDirDescriptor =
                     new ResourceDescriptor(baseDir, appDir);
 
-            if (!appDirDescriptor.getFile().exists()) {
+            // an application in an archive is checked when it is packed
+            if ((sourceArchive == null)
+                    && !appDirDescriptor.getFile().exists()) {
                 throw new RuntimeException("Directory \"" + appDir
                                                + "\" doesn't exist");
             }
@@ -602,7 +1600,8 @@ public final class Main {
             final ResourceDescriptor appExeDescriptor =
                     new ResourceDescriptor(appDirDescriptor.getFile(),
                                            appName);
-            if (!appExeDescriptor.getFile().exists()) {
+            if ((sourceArchive == null)
+                    && !appExeDescriptor.getFile().exists()) {
                 throw new RuntimeException(
                         "Application \"" + appName + "\" doesn't exist");
             }
@@ -646,9 +1645,11 @@ public final class Main {
             }
 
             // all ok, store normalized paths
-            baseDir = appDirDescriptor.getBaseDir();
-            appDir = appDirDescriptor.getRelativePath();
-            appName = appExeDescriptor.getRelativePath();
+            if (sourceArchive == null) {
+                baseDir = appDirDescriptor.getBaseDir();
+                appDir = appDirDescriptor.getRelativePath();
+                appName = appExeDescriptor.getRelativePath();
+            }
         }
     }
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.main;
+
+import com.oracle.ipack.signer.Signer;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps the signers created for the keystores used by the jobs of a single
+ * process, so each keystore is loaded only once. A signer is created outside
+ * of the cache lock, by the first job which needs it, and replaced when its
+ * keystore file changes. A replaced signer is closed once the last job using
+ * it has released it.
+ */
+final class SignerCache {
+    private final Map<String, CachedSigner> signers;
+
+    SignerCache() {
+        signers = new HashMap<String, CachedSigner>();
+    }
+
+    /**
+     * Returns the signer for the given arguments, which the job has to
+     * release when it doesn't use the signer anymore.
+     */
+    CachedSigner get(final Main.SigningArgs signingArgs)
+            throws RuntimeException {
+        final File keyStore = signingArgs.getKeyStore();
+        final String key;
+        try {
+            key = keyStore.getCanonicalPath()
+                      + '\0' + signingArgs.getAlias()
+                      + '\0' + signingArgs.getStorePass()
+                      + '\0' + signingArgs.getKeyPass()
+                      + '\0' + signingArgs.getBackend()
+                      + '\0' + signingArgs.getBackendCommand();
+        } catch (final IOException e) {
+            throw new RuntimeException("Failed to access keystore "
+                                           + keyStore + ": " + e.getMessage());
+        }
+
+        final long lastModified = keyStore.lastModified();
+        final CachedSigner cachedSigner;
+        CachedSigner unusedSigner = null;
+        synchronized (this) {
+            final CachedSigner existingSigner = signers.get(key);
+            if ((existingSigner != null)
+                    && (existingSigner.lastModified == lastModified)) {
+                cachedSigner = existingSigner;
+            } else {
+                // a changed keystore file is loaded again, jobs still using
+                // the old signer keep it until they release it
+                if ((existingSigner != null) && existingSigner.retire()) {
+                    unusedSigner = existingSigner;
+                }
+                cachedSigner = new CachedSigner(signingArgs, lastModified);
+                signers.put(key, cachedSigner);
+            }
+            ++cachedSigner.users;
+        }
+
+        if (unusedSigner != null) {
+            unusedSigner.close();
+        }
+
+        try {
+            cachedSigner.create();
+        } catch (final RuntimeException e) {
+            // a failed signer isn't kept, so the next job tries again
+            synchronized (this) {
+                --cachedSigner.users;
+                if (signers.get(key) == cachedSigner) {
+                    signers.remove(key);
+                }
+            }
+            throw e;
+        }
+
+        return cachedSigner;
+    }
+
+    /**
+     * Closes the signers, which stops their signing threads and processes.
+     * Signers which are still used are closed when they are released.
+     */
+    void close() {
+        final List<CachedSigner> unusedSigners = new ArrayList<CachedSigner>();
+        synchronized (this) {
+            for (final CachedSigner cachedSigner: signers.values()) {
+                if (cachedSigner.retire()) {
+                    unusedSigners.add(cachedSigner);
+                }
+            }
+            signers.clear();
+        }
+
+        for (final CachedSigner cachedSigner: unusedSigners) {
+            cachedSigner.close();
+        }
+    }
+
+    final class CachedSigner {
+        private final long lastModified;
+        private final FutureTask<Signer> signerTask;
+
+        // guarded by the cache
+        private int users;
+        private boolean retired;
+
+        CachedSigner(final Main.SigningArgs signingArgs,
+                     final long lastModified) {
+            this.lastModified = lastModified;
+            this.signerTask = new FutureTask<Signer>(
+                    new Callable<Signer>() {
+                        @Override
+                        public Signer call() {
+                            return Main.createSigner(signingArgs);
+                        }
+                    });
+        }
+
+        Signer getSigner() {
+            return create();
+        }
+
+        /**
+         * Ends the use of the signer by a job. A replaced signer is closed
+         * when its last job releases it.
+         */
+        void release() {
+            synchronized (SignerCache.this) {
+                --users;
+                if (!retired || (users > 0)) {
+                    return;
+                }
+            }
+
+            close();
+        }
+
+        // called with the cache lock held, returns whether the signer can
+        // be closed right away
+        private boolean retire() {
+            retired = true;
+            return users == 0;
+        }
+
+        private Signer create() throws RuntimeException {
+            // only the first caller creates the signer, the others wait
+            // for it
+            signerTask.run();
+
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return signerTask.get();
+                    } catch (final InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } catch (final ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new RuntimeException(cause);
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void close() {
+            // a signer nobody asked for isn't created just to be closed
+            if (!signerTask.isDone()) {
+                signerTask.cancel(false);
+                return;
+            }
+
+            final Signer signer;
+            try {
+                signer = create();
+            } catch (final RuntimeException e) {
+                // there is nothing to close
+                return;
+            }
+
+            try {
+                signer.close();
+            } catch (final IOException e) {
+                // the signer isn't used anymore
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.main;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs signing jobs read line by line from an input stream in a single
+ * long-running process, so the JVM startup, the provider initialization and
+ * the keystore loading are paid only once.
+ *
+ * Each line contains a job identifier followed by the options of a single
+ * invocation. For each job a single result line is written, either
+ * "<id> OK" followed by the four hashes normally printed by the program or
+ * "<id> FAILED" followed by the error message. The results are written in the
+ * order in which the jobs finish.
+ */
+final class SigningServer {
+    private final int numberOfJobs;
+    private final SignerCache signers;
+
+    SigningServer(final int numberOfJobs) {
+        this.numberOfJobs = numberOfJobs;
+        this.signers = new SignerCache();
+    }
+
+    void run(final InputStream is, final PrintStream os) throws IOException {
+        final BufferedReader reader =
+                new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        final ExecutorService executor =
+                Executors.newFixedThreadPool(numberOfJobs);
+        // limits the number of read but not yet started jobs
+        final Semaphore pendingJobs = new Semaphore(2 * numberOfJobs);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final List<String> tokens;
+                try {
+                    tokens = Main.splitArguments(line);
+                } catch (final RuntimeException e) {
+                    writeResult(os, line.trim().split("\\s+")[0],
+                                "FAILED " + e.getMessage());
+                    continue;
+                }
+
+                if (tokens.isEmpty()) {
+                    continue;
+                }
+
+                pendingJobs.acquireUninterruptibly();
+                executor.execute(new Job(tokens, os, pendingJobs));
+            }
+        } finally {
+            executor.shutdown();
+            awaitTermination(executor);
+            signers.close();
+        }
+    }
+
+    private static void writeResult(final PrintStream os,
+                                    final String jobId,
+                                    final String result) {
+        synchronized (os) {
+            os.println(jobId + ' ' + result);
+            os.flush();
+        }
+    }
+
+    private static void awaitTermination(final ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class Job implements Runnable {
+        private final List<String> tokens;
+        private final PrintStream os;
+        private final Semaphore pendingJobs;
+
+        Job(final List<String> tokens,
+            final PrintStream os,
+            final Semaphore pendingJobs) {
+            this.tokens = tokens;
+            this.os = os;
+            this.pendingJobs = pendingJobs;
+        }
+
+        @Override
+        public void run() {
+            pendingJobs.release();
+
+            final String jobId = tokens.get(0);
+            final String result;
+            try {
+                final List<String> args = tokens.subList(1, tokens.size());
+                final Main.Invocation invocation =
+                        Main.parseArguments(
+                                args.toArray(new String[args.size()]));
+                final SignerCache.CachedSigner cachedSigner =
+                        signers.get(invocation.getSigningArgs());
+                final String[] hashes;
+                try {
+                    hashes = Main.execute(invocation,
+                                          cachedSigner.getSigner(),
+                                          null);
+                } finally {
+                    cachedSigner.release();
+                }
+
+                final StringBuilder sb = new StringBuilder("OK");
+                for (final String hash: hashes) {
+                    sb.append(' ').append(hash);
+                }
+                result = sb.toString();
+            } catch (final Throwable t) {
+                // every job gets its result line, even when it fails with
+                // an error which then ends the pool thread
+                final String message = (t instanceof Error)
+                                               ? t.toString()
+                                               : String.valueOf(t.getMessage());
+                writeResult(os, jobId,
+                            "FAILED " + message.replaceAll("\\s+", " ").trim());
+                if (t instanceof Error) {
+                    throw (Error) t;
+                }
+                return;
+            }
+
+            writeResult(os, jobId, result);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.packer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Decides whether the resources of an archive are deflated or stored
+ * uncompressed, and with which compression level the deflated ones are
+ * compressed.
+ */
+public final class CompressionPolicy {
+    /** All resources are deflated. */
+    public static final int DEFLATE_ALL = 0;
+    /** All resources are stored. */
+    public static final int STORE_ALL = 1;
+    /** Resources with one of the stored extensions are stored. */
+    public static final int STORE_BY_EXTENSION = 2;
+    /**
+     * Resources whose leading bytes look random, as those of already
+     * compressed data do, are stored.
+     */
+    public static final int STORE_BY_ENTROPY = 3;
+
+    // formats which are compressed by themselves, static libraries and
+    // other object archives compress well, so they aren't included
+    private static final String[] DEFAULT_STORED_EXTENSIONS = {
+        "png", "jpg", "jpeg", "gif", "heic", "webp", "car",
+        "mp3", "mp4", "m4a", "m4v", "mov", "aac",
+        "zip", "gz", "bz2", "xz", "jar", "ipa"
+    };
+
+    private static final int ENTROPY_SAMPLE_SIZE = 64 * 1024;
+    // in bits per byte, deflate gains almost nothing above this
+    private static final double ENTROPY_THRESHOLD = 7.5;
+
+    private final int mode;
+    private final Set<String> storedExtensions;
+    private int level;
+    private boolean parallelDeflate;
+
+    public CompressionPolicy() {
+        this(DEFLATE_ALL);
+    }
+
+    public CompressionPolicy(final int mode) {
+        if ((mode < DEFLATE_ALL) || (mode > STORE_BY_ENTROPY)) {
+            throw new IllegalArgumentException(
+                    "Invalid compression mode " + mode);
+        }
+
+        this.mode = mode;
+        this.storedExtensions = new HashSet<String>(
+                Arrays.asList(DEFAULT_STORED_EXTENSIONS));
+        this.level = Deflater.DEFAULT_COMPRESSION;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Replaces the extensions of the resources stored with
+     * STORE_BY_EXTENSION. The extensions are compared ignoring case.
+     */
+    public void setStoredExtensions(final Set<String> storedExtensions) {
+        this.storedExtensions.clear();
+        for (final String extension: storedExtensions) {
+            this.storedExtensions.add(extension.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    public void setLevel(final int level) {
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets whether large entries are deflated in independent blocks on
+     * several threads. The archive content is the same, but the deflated
+     * data differ from the ones produced by a single thread.
+     */
+    public void setParallelDeflate(final boolean parallelDeflate) {
+        this.parallelDeflate = parallelDeflate;
+    }
+
+    public boolean getParallelDeflate() {
+        return parallelDeflate;
+    }
+
+    /**
+     * Decides whether a resource whose content is already in memory is
+     * stored.
+     */
+    public boolean isStored(final String name,
+                            final byte[] data,
+                            final int length) {
+        switch (mode) {
+            case STORE_ALL:
+                return true;
+            case STORE_BY_EXTENSION:
+                return storedExtensions.contains(getExtension(name));
+            case STORE_BY_ENTROPY:
+                return calculateEntropy(data,
+                                        Math.min(length, ENTROPY_SAMPLE_SIZE))
+                           > ENTROPY_THRESHOLD;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Decides whether a resource file is stored. With STORE_BY_ENTROPY only
+     * the beginning of the file is read.
+     */
+    public boolean isStored(final String name, final File file)
+            throws IOException {
+        if (mode != STORE_BY_ENTROPY) {
+            return isStored(name, null, 0);
+        }
+
+        final byte[] sample = new byte[ENTROPY_SAMPLE_SIZE];
+        int sampleLength = 0;
+        final InputStream is = new FileInputStream(file);
+        try {
+            int read;
+            while ((sampleLength < sample.length)
+                       && ((read = is.read(sample, sampleLength,
+                                           sample.length - sampleLength))
+                               != -1)) {
+                sampleLength += read;
+            }
+        } finally {
+            is.close();
+        }
+
+        return isStored(name, sample, sampleLength);
+    }
+
+    @Override
+    public String toString() {
+        final String modeName;
+        switch (mode) {
+            case STORE_ALL:
+                modeName = "store";
+                break;
+            case STORE_BY_EXTENSION:
+                modeName = "extension";
+                break;
+            case STORE_BY_ENTROPY:
+                modeName = "entropy";
+                break;
+            default:
+                modeName = "deflate";
+                break;
+        }
+
+        return modeName + ", level "
+                   + ((level == Deflater.DEFAULT_COMPRESSION)
+                              ? "default" : String.valueOf(level))
+                   + (parallelDeflate ? ", parallel deflate" : "");
+    }
+
+    private static String getExtension(final String name) {
+        final int dotIndex = name.lastIndexOf('.');
+        if ((dotIndex == -1) || (dotIndex < name.lastIndexOf('/'))) {
+            return "";
+        }
+
+        return name.substring(dotIndex + 1).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Calculates the Shannon entropy of the byte values in bits per byte.
+     */
+    private static double calculateEntropy(final byte[] data,
+                                           final int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        final int[] counts = new int[256];
+        for (int i = 0; i < length; ++i) {
+            ++counts[data[i] & 0xff];
+        }
+
+        double entropy = 0;
+        for (final int count: counts) {
+            if (count != 0) {
+                final double probability = (double) count / length;
+                entropy -= probability * Math.log(probability);
+            }
+        }
+
+        return entropy / Math.log(2);
+    }
+}
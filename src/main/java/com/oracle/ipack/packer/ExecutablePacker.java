@@ -26,51 +26,47 @@
 package com.oracle.ipack.packer;
 
 
-import com.oracle.ipack.Pair;
-import com.oracle.ipack.blobs.Blob;
-import com.oracle.ipack.blobs.VirtualBlob;
-import com.oracle.ipack.blobs.WrapperBlob;
-import com.oracle.ipack.macho.CodeSignatureCommand;
-import com.oracle.ipack.macho.MachoCommand;
-import com.oracle.ipack.macho.MachoHeader;
-import com.oracle.ipack.macho.SegmentCommand;
-import com.oracle.ipack.macho.SegmentCommand.Section;
+import com.oracle.ipack.macho.FatHeader;
+import com.oracle.ipack.macho.FatHeader.FatArch;
 import com.oracle.ipack.signature.CodeDirectoryBlob;
-import com.oracle.ipack.signature.EmbeddedSignatureBlob;
 import com.oracle.ipack.signature.EntitlementsBlob;
-import com.oracle.ipack.signature.Requirement;
-import com.oracle.ipack.signature.RequirementBlob;
-import com.oracle.ipack.signature.RequirementsBlob;
 import com.oracle.ipack.signer.Signer;
-import com.oracle.ipack.util.DataCopier;
-import com.oracle.ipack.util.HashingOutputStream;
-import com.oracle.ipack.util.LsbDataInputStream;
-import com.oracle.ipack.util.LsbDataOutputStream;
-import com.oracle.ipack.util.NullOutputStream;
-import com.oracle.ipack.util.PageHashingOutputStream;
+import com.oracle.ipack.util.PhaseStats;
+import com.oracle.ipack.util.ZipArchiveOutputStream;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
-import org.bouncycastle.cms.CMSException;
 
 final class ExecutablePacker {
-    private static final int RESERVED_SIGNATURE_BLOB_SIZE = 9000;
-
-    private final ZipOutputStream zipStream;
+    private static final byte[] EMPTY_ENTITLEMENTS = (
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<!DOCTYPE plist PUBLIC \"-//Apple//DTD PLIST 1.0//EN\" "
+                + "\"http://www.apple.com/DTDs/PropertyList-1.0.dtd\">\n"
+                + "<plist version=\"1.0\">\n"
+                + "<dict/>\n"
+                + "</plist>\n").getBytes(Charset.forName("UTF-8"));
+
+    private final ZipArchiveOutputStream zipStream;
     private final File baseDir;
     private final String appPath;
     private final String appName;
@@ -80,12 +76,20 @@ final class ExecutablePacker {
     private final String entitlements;
     private final Boolean inPlace;
 
+    private int numberOfThreads;
+    private ForkJoinPool threadPool;
+    private int pageSize;
+    private File executableFile;
+    private File outputFile;
+    private PhaseStats phaseStats;
+    private SignatureCache signatureCache;
+    private byte[] codeDirectoryHash;
     private byte[] codeResourcesHash;
     private byte[] infoPlistHash;
     private byte[] codeResources256Hash;
     private byte[] infoPlist256Hash;
 
-    ExecutablePacker(final ZipOutputStream zipStream,
+    ExecutablePacker(final ZipArchiveOutputStream zipStream,
                      final File baseDir,
                      final String appPath,
                      final String appName,
@@ -103,6 +107,65 @@ final class ExecutablePacker {
         this.entitlements = entitlements;
         this.inPlace = inPlace;
         this.signer = signer;
+        this.numberOfThreads = 1;
+        this.pageSize = CodeDirectoryBlob.DEFAULT_PAGE_SIZE;
+        this.phaseStats = new PhaseStats(false);
+    }
+
+    void setNumberOfThreads(final int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    void setThreadPool(final ForkJoinPool threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * Sets the page size with which the arm64 slices are hashed, slices of
+     * other architectures are always hashed in 4 KiB pages.
+     */
+    void setPageSize(final int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets the file from which the executable is read instead of the
+     * application directory.
+     */
+    void setExecutableFile(final File executableFile) {
+        this.executableFile = executableFile;
+    }
+
+    /**
+     * Sets the file to which the signed executable is written instead of
+     * the archive or the original executable.
+     */
+    void setOutputFile(final File outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    /**
+     * Sets the statistics to which the header patching, the page hashing
+     * and the signing of the slices are added.
+     */
+    void setPhaseStats(final PhaseStats phaseStats) {
+        this.phaseStats = phaseStats;
+    }
+
+    /**
+     * Sets the cache from which an executable signed before with the same
+     * input is taken, and to which newly signed executables are added.
+     */
+    void setSignatureCache(final SignatureCache signatureCache) {
+        this.signatureCache = signatureCache;
+    }
+
+    /**
+     * Returns the cdhash of the signed executable, for universal executables
+     * the one of the first slice.
+     */
+    byte[] getCodeDirectoryHash() {
+        return codeDirectoryHash;
     }
 
     void setCodeResourcesHash(final byte[] codeResourcesHash) {
@@ -120,336 +183,452 @@ final class ExecutablePacker {
     void setInfoPlist256Hash(final byte[] infoPlist256Hash) {
         this.infoPlist256Hash = infoPlist256Hash;
     }
+
     void execute() throws IOException {
-        File execFile = new File(baseDir, appPath + appName);
-        final InputStream execInputStream = new BufferedInputStream(new FileInputStream(execFile));
-        try {
-            final MachoHeader header =
-                    MachoHeader.read(new LsbDataInputStream(execInputStream));
-            final int oldHeaderSize = header.getSize();
-
-            final SegmentCommand linkeditSegment =
-                    header.findSegment("__LINKEDIT");
-            if (linkeditSegment == null) {
-                throw new IOException("Linkedit segment not found");
+        File execFile = (executableFile != null)
+                                 ? executableFile
+                                 : new File(baseDir, appPath + appName);
+        // nested code without entitlements gets an empty dictionary
+        final byte[] entitlementsBytes =
+                (entitlements != null)
+                        ? Files.readAllBytes(new File(entitlements).toPath())
+                        : EMPTY_ENTITLEMENTS;
+
+        String fingerprint = null;
+        if (signatureCache != null) {
+            fingerprint = SignatureCache.fingerprint(
+                                  execFile,
+                                  SignatureCache.toBytes(appIdentifier),
+                                  SignatureCache.toBytes(teamIdentifier),
+                                  entitlementsBytes,
+                                  codeResourcesHash,
+                                  codeResources256Hash,
+                                  infoPlistHash,
+                                  infoPlist256Hash,
+                                  ByteBuffer.allocate(4).putInt(pageSize)
+                                            .array(),
+                                  signer.getCertificateHash());
+            if (storeCachedExecutable(execFile, fingerprint)) {
+                return;
             }
+        }
 
-            CodeSignatureCommand codeSignatureCommand =
-                    (CodeSignatureCommand) header.findCommand(
-                                               MachoCommand.LC_CODE_SIGNATURE);
-            int originalCodeLimit = linkeditSegment.getFileOffset() + linkeditSegment.getFileSize();
-            if (codeSignatureCommand == null) {
-                // no previous signature in the executable
-                codeSignatureCommand = new CodeSignatureCommand();
-                codeSignatureCommand.setDataOffset((
-                        linkeditSegment.getFileOffset()
-                            + linkeditSegment.getFileSize() + 15) & ~15);
-                header.addCommand(codeSignatureCommand);
+        final boolean modifiesExecutable = inPlace && (outputFile == null);
+        final FileChannel execChannel =
+                new RandomAccessFile(execFile,
+                                     modifiesExecutable ? "rw" : "r")
+                        .getChannel();
+        try {
+            final FatHeader fatHeader = readFatHeader(execChannel);
+            final List<ExecutableSlice> slices =
+                    new ArrayList<ExecutableSlice>();
+            if (fatHeader == null) {
+                slices.add(new ExecutableSlice(execChannel, 0,
+                                               execChannel.size(),
+                                               phaseStats));
             } else {
-                originalCodeLimit = codeSignatureCommand.getDataOffset();
-            }
-            final int codeLimit = codeSignatureCommand.getDataOffset();
-
-            final SegmentCommand textSegment = header.findSegment("__TEXT");
-            if (textSegment != null) {
-                final Section infoPlistSection = textSegment.findSection("__info_plist");
-                if (infoPlistSection != null) {
-                    final HashingOutputStream hashingStream = new HashingOutputStream(new NullOutputStream());
-                    final DataOutputStream dataStream = new DataOutputStream(hashingStream);
-                    try {
-                        RandomAccessFile raf = new RandomAccessFile(new File(baseDir, appPath + appName), "r");
-                        raf.seek(infoPlistSection.getOffset());
-                        final byte[] embeddedInfoPlist = new byte[infoPlistSection.getSize()]; //In arm64 we would have to take size2 into account, we are assuming that the size is small enough to fit in size(1)
-                        raf.read(embeddedInfoPlist, 0, infoPlistSection.getSize());
-                        raf.close();
-                        dataStream.write(embeddedInfoPlist, 0, infoPlistSection.getSize());
-                    } finally {
-                        dataStream.close();
-                    }
-
-                    final byte[] embeddedInfoPlistHash = hashingStream.calculateHash();
-                    if (!Arrays.equals(infoPlistHash, embeddedInfoPlistHash) && !Arrays.equals(infoPlistHash, new byte[20])) {
-                        throw new IOException("Plist file hash and embedded plist hash don't match");
-                    }
-                    infoPlistHash = embeddedInfoPlistHash;
-                    
-                    final byte[] embeddedInfoPlist256Hash = hashingStream.calculateHash(256);
-                    if (!Arrays.equals(infoPlist256Hash, embeddedInfoPlist256Hash) && !Arrays.equals(infoPlist256Hash, new byte[32])) {
-                        throw new IOException("Plist file SHA-256 hash and embedded plist SHA-256 hash don't match");
-                    }
-                    infoPlist256Hash = embeddedInfoPlist256Hash;
+                for (final FatArch arch: fatHeader.getArchs()) {
+                    slices.add(new ExecutableSlice(execChannel,
+                                                   arch.getOffset(),
+                                                   arch.getSize(),
+                                                   phaseStats));
                 }
             }
 
-            final EntitlementsBlob embeddedEntitlementsBlob = new EntitlementsBlob(new File(entitlements));
-            final EmbeddedSignatureBlob embeddedSignatureBlob =
-                    createEmbeddedSignatureBlob(
-                            appIdentifier,
-                            teamIdentifier,
-                            signer.getSubjectName(),
-                            codeLimit,
-                            embeddedEntitlementsBlob);
-            // update the header with information about the new embedded
-            // code signature
-            final int reservedForEmbeddedSignature =
-                    (embeddedSignatureBlob.getSize() + 15) & ~15;
-            codeSignatureCommand.setDataSize(reservedForEmbeddedSignature);
-            final int newLinkeditSize =
-                    codeLimit - linkeditSegment.getFileOffset()
-                              + reservedForEmbeddedSignature;
-            linkeditSegment.setFileSize(newLinkeditSize);
-            linkeditSegment.setVmSize((newLinkeditSize + 0x3fff) & ~0x3fff);
-            final int newHeaderSize = header.getSize();
-
-            final int firstSectionOffset = header.getFirstSectionFileOffset();
-            if (newHeaderSize > firstSectionOffset) {
-                throw new IOException("Patched header too long. newHeaderSize: " + newHeaderSize + " firstSectionOffset: " + firstSectionOffset);
+            final EntitlementsBlob embeddedEntitlementsBlob =
+                    new EntitlementsBlob(entitlementsBytes);
+            for (final ExecutableSlice slice: slices) {
+                slice.prepare(appIdentifier,
+                              teamIdentifier,
+                              signer.getSubjectName(),
+                              signer.getSignatureSize(),
+                              embeddedEntitlementsBlob,
+                              infoPlistHash,
+                              infoPlist256Hash,
+                              pageSize);
             }
 
-            // we assume that there is only padding between the header and the
-            // first section, so we can skip some of it in the input stream
-            long totalToSkip = newHeaderSize - oldHeaderSize;
-            long totalSkipped = 0;
-            long leftToSkip = totalToSkip;
-            long skipped = 0;
-            do {
-                skipped = execInputStream.skip(leftToSkip);
-                totalSkipped += skipped;
-                leftToSkip -= skipped;
-            } while(leftToSkip > 0 && skipped > 0);
-            if (totalSkipped != totalToSkip) {
-                throw new IOException("Couldn't skip " + totalToSkip + " bytes, only skipped " + totalSkipped + " bytes");
+            if (fatHeader != null) {
+                // the sizes of the signed slices are known at this point,
+                // so their new offsets can be assigned before signing
+                if ((layoutSlices(fatHeader, slices) > 0xffffffffL)
+                        && !fatHeader.is64Bit()) {
+                    fatHeader.setMagic(FatHeader.FAT_MAGIC_64);
+                    layoutSlices(fatHeader, slices);
+                }
             }
 
-            // start the executable zip entry
-            final String entryName = appPath + appName;
-            //System.out.println("Executable Adding " + entryName);
-            zipStream.putNextEntry(new ZipEntry(entryName));
-            PageHashingOutputStream hashingStream = null;
-            File tempFile = null;
-            FileOutputStream execOutputFileStream = null;
-            if (inPlace) {
-                tempFile = new File(baseDir, entryName + "_temp");
+            signSlices(slices);
+            codeDirectoryHash = slices.get(0).getCodeDirectoryHash();
+
+            if (outputFile != null) {
+                writeExecutableFile(outputFile, fatHeader, slices);
+            } else if (!inPlace) {
+                storeExecutableEntry(fatHeader, slices);
+            } else if (isLayoutUnchanged(fatHeader, slices)) {
+                patchExecutable(execChannel, fatHeader, slices);
+            } else {
+                rewriteExecutable(execFile, execChannel, fatHeader, slices);
             }
-            try {
-                if (inPlace) {
-                    execOutputFileStream = new FileOutputStream(tempFile);
-                    hashingStream = new PageHashingOutputStream(execOutputFileStream);
-                } else {
-                    hashingStream = new PageHashingOutputStream(zipStream);
-                }
 
-                // store the patched header
-                writeHeader(hashingStream, header);
-
-                // copy the rest of the executable up to the codeLimit
-                final DataCopier dataCopier = new DataCopier();
-                // no need to use buffered stream, because the data is copied in
-                // large chunks
-                dataCopier.copyStream(hashingStream, execInputStream,
-                                      codeLimit - newHeaderSize);
-                hashingStream.write(new byte[(((originalCodeLimit + 15) & ~15) - originalCodeLimit)]); //Pad with zeros to the nearest 16
-
-                // finalize the last page hash
-                hashingStream.flush();
-                hashingStream.commitPageHash();
-
-                // update the code directory blobs with hashes
-                final Pair<byte[], byte[]> requirementsBlobHashPair = calculateBlobHash(embeddedSignatureBlob.getRequirementsSubBlob());
-                final byte[] requirementsBlobHash = requirementsBlobHashPair.first;
-                final byte[] requirementsBlob256Hash = requirementsBlobHashPair.second;
-                final Pair<byte[], byte[]>  entitlementsBlobHashPair = calculateBlobHash(embeddedSignatureBlob.getEntitlementsSubBlob());
-                final byte[] entitlementsBlobHash = entitlementsBlobHashPair.first;
-                final byte[] entitlementsBlob256Hash = entitlementsBlobHashPair.second;
-                updateHashes(embeddedSignatureBlob.getCodeDirectorySubBlob(),
-                             hashingStream.getPageHashes(),
-                             infoPlistHash,
-                             requirementsBlobHash,
-                             codeResourcesHash,
-                             entitlementsBlobHash);
-                updateHashes(embeddedSignatureBlob.getCodeDirectory256SubBlob(),
-                             hashingStream.getPageHashes(256),
-                             infoPlist256Hash,
-                             requirementsBlob256Hash,
-                             codeResources256Hash,
-                             entitlementsBlob256Hash);
-
-                // sign the embedded signature blob
-                signEmbeddedSignatureBlob(embeddedSignatureBlob, signer);
-
-                // write the embedded signature blob and padding
-                if (inPlace) {
-                    writeEmbeddedSignatureBlob(execOutputFileStream, embeddedSignatureBlob, reservedForEmbeddedSignature);
+            if (fingerprint != null) {
+                if (outputFile != null) {
+                    signatureCache.store(fingerprint, codeDirectoryHash,
+                                         outputFile);
+                } else if (inPlace) {
+                    signatureCache.store(fingerprint, codeDirectoryHash,
+                                         execFile);
                 } else {
-                    writeEmbeddedSignatureBlob(zipStream, embeddedSignatureBlob, reservedForEmbeddedSignature);
+                    // the archive entry can't be read back, the signed
+                    // executable is written once more
+                    signatureCache.store(
+                            fingerprint, codeDirectoryHash,
+                            new SignatureCache.EntryWriter() {
+                                @Override
+                                public void write(
+                                        final WritableByteChannel channel,
+                                        final OutputStream stream)
+                                        throws IOException {
+                                    writeExecutable(fatHeader, slices,
+                                                    channel, stream);
+                                }
+                            });
                 }
+            }
+        } finally {
+            execChannel.close();
+        }
+    }
 
-                if (inPlace) {
-                    hashingStream.close();
-                    execInputStream.close();
-                    Files.move(tempFile.toPath(), execFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                }
-            } catch  (final IOException e) {
-                if (inPlace) {
-                    Files.deleteIfExists(tempFile.toPath());
+    /**
+     * Stores the executable signed before with the same fingerprint, if it
+     * is in the cache. Returns whether it was found.
+     */
+    private boolean storeCachedExecutable(final File execFile,
+                                          final String fingerprint)
+            throws IOException {
+        final SignatureCache.Entry cacheEntry =
+                signatureCache.find(fingerprint);
+        if (cacheEntry == null) {
+            return false;
+        }
+
+        try {
+            if (outputFile != null) {
+                storeCachedExecutableFile(cacheEntry, outputFile);
+            } else if (!inPlace) {
+                final ZipEntry zipEntry = new ZipEntry(appPath + appName);
+                zipEntry.setSize(cacheEntry.getSize());
+                zipStream.putNextEntry(zipEntry);
+                try {
+                    cacheEntry.copyTo(Channels.newChannel(zipStream));
+                } finally {
+                    zipStream.closeEntry();
                 }
-                throw(e);
-            } finally {
-                if (inPlace) {
-                    hashingStream.close();
+            } else {
+                // written over the original like a patched executable, so
+                // the file keeps its mode
+                final FileChannel execChannel =
+                        new RandomAccessFile(execFile, "rw").getChannel();
+                try {
+                    execChannel.position(0);
+                    cacheEntry.copyTo(execChannel);
+                    execChannel.truncate(cacheEntry.getSize());
+                } finally {
+                    execChannel.close();
                 }
-                zipStream.closeEntry();
             }
         } finally {
-            execInputStream.close();
+            cacheEntry.close();
         }
 
+        codeDirectoryHash = cacheEntry.getCodeDirectoryHash();
+        return true;
     }
 
-    private static EmbeddedSignatureBlob createEmbeddedSignatureBlob(
-            final String appIdentifier,
-            final String teamIdentifier,
-            final String subjectName,
-            final int codeLimit,
-            final EntitlementsBlob entitlementsBlob) {
-        final CodeDirectoryBlob codeDirectoryBlob =
-                new CodeDirectoryBlob(appIdentifier, teamIdentifier, codeLimit);
-
-        final CodeDirectoryBlob codeDirectory256Blob =
-                new CodeDirectoryBlob(appIdentifier, teamIdentifier, codeLimit, 32, 2);
-
-        final RequirementsBlob requirementsBlob = new RequirementsBlob(1);
-        final RequirementBlob designatedRequirementBlob =
-                new RequirementBlob(
-                    Requirement.createDefault(appIdentifier, subjectName));
-        requirementsBlob.setSubBlob(
-                0, RequirementsBlob.KSEC_DESIGNATED_REQUIREMENT_TYPE,
-                designatedRequirementBlob);
-
-        final VirtualBlob reservedForSignatureBlob =
-                new VirtualBlob(0, RESERVED_SIGNATURE_BLOB_SIZE - 8);
-
-        final EmbeddedSignatureBlob embeddedSignatureBlob =
-                new EmbeddedSignatureBlob();
-        embeddedSignatureBlob.setCodeDirectorySubBlob(codeDirectoryBlob);
-        embeddedSignatureBlob.setRequirementsSubBlob(requirementsBlob);
-        embeddedSignatureBlob.setEntitlementsSubBlob(entitlementsBlob);
-        embeddedSignatureBlob.setCodeDirectory256SubBlob(codeDirectory256Blob);
-        embeddedSignatureBlob.setSignatureSubBlob(reservedForSignatureBlob);
-
-        return embeddedSignatureBlob;
+    private static void storeCachedExecutableFile(
+            final SignatureCache.Entry cacheEntry,
+            final File file) throws IOException {
+        final FileOutputStream fileStream = new FileOutputStream(file);
+        try {
+            cacheEntry.copyTo(fileStream.getChannel());
+        } finally {
+            fileStream.close();
+        }
     }
 
-    private static void signEmbeddedSignatureBlob(
-            final EmbeddedSignatureBlob embeddedSignatureBlob,
-            final Signer signer) throws IOException {
-        final CodeDirectoryBlob codeDirectoryBlob =
-                embeddedSignatureBlob.getCodeDirectorySubBlob();
-        final ByteArrayOutputStream bos =
-                new ByteArrayOutputStream(codeDirectoryBlob.getSize());
-        final DataOutputStream os = new DataOutputStream(bos);
+    private void storeExecutableEntry(final FatHeader fatHeader,
+                                      final List<ExecutableSlice> slices)
+            throws IOException {
+        // start the executable zip entry
+        final String entryName = appPath + appName;
+        //System.out.println("Executable Adding " + entryName);
+        final ZipEntry zipEntry = new ZipEntry(entryName);
+        zipEntry.setSize(getSignedSize(fatHeader, slices));
+        zipStream.putNextEntry(zipEntry);
         try {
-            codeDirectoryBlob.write(os);
+            writeExecutable(fatHeader, slices,
+                            Channels.newChannel(zipStream), zipStream);
         } finally {
-            os.close();
+            zipStream.closeEntry();
         }
+    }
 
-        final byte[] signature;
-        try {
-            signature = signer.sign(bos.toByteArray());
-        } catch (final CMSException e) {
-            throw new IOException("Failed to sign executable", e);
+    /**
+     * Signs the executable in place. Only the patched headers, the zero
+     * padding up to the code limits and the embedded signatures are written,
+     * the rest of the file stays untouched.
+     */
+    private static void patchExecutable(final FileChannel execChannel,
+                                        final FatHeader fatHeader,
+                                        final List<ExecutableSlice> slices)
+            throws IOException {
+        final long executableSize;
+        if (fatHeader == null) {
+            slices.get(0).patch(execChannel);
+            executableSize = slices.get(0).getSignedSize();
+        } else {
+            ExecutableSlice.writeFully(execChannel,
+                                       ByteBuffer.wrap(
+                                           serializeFatHeader(fatHeader)),
+                                       0);
+            long sliceEnd = fatHeader.getSize();
+            for (int i = 0; i < slices.size(); ++i) {
+                final long sliceOffset =
+                        fatHeader.getArchs().get(i).getOffset();
+                // clear the remains of a longer previous signature
+                ExecutableSlice.writeZeros(execChannel, sliceEnd,
+                                           sliceOffset - sliceEnd);
+                slices.get(i).patch(execChannel);
+                sliceEnd = sliceOffset + slices.get(i).getSignedSize();
+            }
+            executableSize = sliceEnd;
         }
 
-        embeddedSignatureBlob.setSignatureSubBlob(
-                new WrapperBlob(signature));
+        execChannel.truncate(executableSize);
     }
 
-    private static void writeHeader(
-            final OutputStream dataStream,
-            final MachoHeader header) throws IOException {
-        final LsbDataOutputStream headerStream =
-                new LsbDataOutputStream(new BufferedOutputStream(dataStream));
+    /**
+     * Signs the executable in place by writing it to a temporary file which
+     * then replaces the original. Needed when slices of a universal
+     * executable have to be moved.
+     */
+    private void rewriteExecutable(final File execFile,
+                                   final FileChannel execChannel,
+                                   final FatHeader fatHeader,
+                                   final List<ExecutableSlice> slices)
+            throws IOException {
+        final File tempFile = new File(baseDir, appPath + appName + "_temp");
+        try {
+            writeExecutableFile(tempFile, fatHeader, slices);
 
+            execChannel.close();
+            Files.move(tempFile.toPath(), execFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch  (final IOException e) {
+            Files.deleteIfExists(tempFile.toPath());
+            throw(e);
+        }
+    }
+
+    private static void writeExecutableFile(
+            final File file,
+            final FatHeader fatHeader,
+            final List<ExecutableSlice> slices) throws IOException {
+        final FileOutputStream execOutputFileStream =
+                new FileOutputStream(file);
         try {
-            header.write(headerStream);
+            writeExecutable(fatHeader, slices,
+                            execOutputFileStream.getChannel(),
+                            execOutputFileStream);
         } finally {
-            headerStream.flush();
+            execOutputFileStream.close();
         }
     }
 
-    private static void writeEmbeddedSignatureBlob(
-            final OutputStream dataStream,
-            final EmbeddedSignatureBlob embeddedSignatureBlob,
-            final int reservedForEmbeddedSignature) throws IOException {
-        final int realEmbeddedSignatureSize =
-                embeddedSignatureBlob.getSize();
-        if (realEmbeddedSignatureSize > reservedForEmbeddedSignature) {
-            throw new IOException("Embedded signature too large");
+    private void signSlices(final List<ExecutableSlice> slices)
+            throws IOException {
+        final ForkJoinPool pool = (threadPool != null)
+                                          ? threadPool
+                                          : new ForkJoinPool(numberOfThreads);
+        try {
+            // each slice is signed in its own task, the page hashing of
+            // the slices shares the same pool
+            pool.invoke(new SliceSigningTask(slices, signer,
+                                             codeResourcesHash,
+                                             codeResources256Hash));
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            if (pool != threadPool) {
+                pool.shutdown();
+            }
         }
 
-        final DataOutputStream signatureStream =
-                new DataOutputStream(new BufferedOutputStream(dataStream));
-        try {
-            embeddedSignatureBlob.write(signatureStream);
+        // the private key operations of all slices run while the later
+        // slices are hashed, they are awaited only here
+        for (final ExecutableSlice slice: slices) {
+            slice.completeSignature();
+        }
+    }
 
-            // add padding
-            for (int i = reservedForEmbeddedSignature
-                             - realEmbeddedSignatureSize; i > 0; --i) {
-                signatureStream.writeByte(0);
-            }
-        } finally {
-            signatureStream.flush();
+    /**
+     * Assigns aligned offsets to the signed slices and returns the end of
+     * the last one.
+     */
+    private static long layoutSlices(final FatHeader fatHeader,
+                                     final List<ExecutableSlice> slices) {
+        long offset = fatHeader.getSize();
+        for (int i = 0; i < slices.size(); ++i) {
+            final FatArch arch = fatHeader.getArchs().get(i);
+            final long alignment = 1L << arch.getAlign();
+            offset = (offset + alignment - 1) & ~(alignment - 1);
+            arch.setOffset(offset);
+            arch.setSize(slices.get(i).getSignedSize());
+            offset += slices.get(i).getSignedSize();
         }
+
+        return offset;
     }
 
-    private static void updateHashes(
-            final CodeDirectoryBlob codeDirectoryBlob,
-            final List<byte[]> pageHashes,
-            final byte[] infoPlistHash,
-            final byte[] requirementsHash,
-            final byte[] codeResourcesHash,
-            final byte[] entitlementsHash) {
-        int i = 0;
-        for (final byte[] pageHash: pageHashes) {
-            codeDirectoryBlob.setCodeSlot(i++, pageHash);
+    /**
+     * Returns the size of the signed executable, the slices of a universal
+     * executable have to be laid out.
+     */
+    private static long getSignedSize(final FatHeader fatHeader,
+                                      final List<ExecutableSlice> slices) {
+        final int last = slices.size() - 1;
+        if (fatHeader == null) {
+            return slices.get(last).getSignedSize();
         }
 
-        if (entitlementsHash != null) {
-            codeDirectoryBlob.setEntitlementsSlot(entitlementsHash);
+        return fatHeader.getArchs().get(last).getOffset()
+                   + slices.get(last).getSignedSize();
+    }
+
+    /**
+     * Returns the fat header of a universal executable, null for a thin
+     * one.
+     */
+    static FatHeader readFatHeader(final FileChannel execChannel)
+            throws IOException {
+        final ByteBuffer magicBuffer = ByteBuffer.allocate(4);
+        while (magicBuffer.hasRemaining()) {
+            if (execChannel.read(magicBuffer, magicBuffer.position()) < 0) {
+                throw new IOException("Unexpected end of executable");
+            }
         }
 
-        if (infoPlistHash != null) {
-            codeDirectoryBlob.setInfoPlistSlot(infoPlistHash);
+        // the fat header is stored in big endian, the default byte order
+        // of ByteBuffer
+        if (!FatHeader.isFatMagic(magicBuffer.getInt(0))) {
+            return null;
         }
 
-        if (requirementsHash != null) {
-            codeDirectoryBlob.setRequirementsSlot(requirementsHash);
+        // the stream isn't closed, it would close the shared channel
+        execChannel.position(0);
+        return FatHeader.read(new DataInputStream(
+                                      new BufferedInputStream(
+                                          Channels.newInputStream(
+                                              execChannel))));
+    }
+
+    private static boolean isLayoutUnchanged(
+            final FatHeader fatHeader,
+            final List<ExecutableSlice> slices) {
+        if (fatHeader == null) {
+            return true;
         }
 
-        if (codeResourcesHash != null) {
-            codeDirectoryBlob.setCodeResourcesSlot(codeResourcesHash);
+        for (int i = 0; i < slices.size(); ++i) {
+            if (fatHeader.getArchs().get(i).getOffset()
+                    != slices.get(i).getOffset()) {
+                return false;
+            }
         }
+
+        return true;
     }
 
-    private static Pair<byte[], byte[]> calculateBlobHash(
-            final Blob blob) {
-        final HashingOutputStream hashingStream =
-                new HashingOutputStream(new NullOutputStream());
+    private static void writeExecutable(
+            final FatHeader fatHeader,
+            final List<ExecutableSlice> slices,
+            final WritableByteChannel outputChannel,
+            final OutputStream outputStream) throws IOException {
+        if (fatHeader == null) {
+            slices.get(0).write(outputChannel, outputStream);
+            return;
+        }
+
+        ExecutableSlice.writeFully(outputChannel,
+                                   ByteBuffer.wrap(
+                                       serializeFatHeader(fatHeader)));
+
+        long position = fatHeader.getSize();
+        for (int i = 0; i < slices.size(); ++i) {
+            final long sliceOffset = fatHeader.getArchs().get(i).getOffset();
+            ExecutableSlice.writeZeros(outputChannel, sliceOffset - position);
+            slices.get(i).write(outputChannel, outputStream);
+            position = sliceOffset + slices.get(i).getSignedSize();
+        }
+    }
 
+    private static byte[] serializeFatHeader(final FatHeader fatHeader)
+            throws IOException {
+        final ByteArrayOutputStream bos =
+                new ByteArrayOutputStream(fatHeader.getSize());
+        final DataOutputStream headerStream = new DataOutputStream(bos);
         try {
-            final DataOutputStream dataStream =
-                    new DataOutputStream(hashingStream);
-            try {
-                blob.write(dataStream);
-            } finally {
-                dataStream.close();
+            fatHeader.write(headerStream);
+        } finally {
+            headerStream.close();
+        }
+
+        return bos.toByteArray();
+    }
+
+    private static final class SliceSigningTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<ExecutableSlice> slices;
+        private final Signer signer;
+        private final byte[] codeResourcesHash;
+        private final byte[] codeResources256Hash;
+
+        SliceSigningTask(final List<ExecutableSlice> slices,
+                         final Signer signer,
+                         final byte[] codeResourcesHash,
+                         final byte[] codeResources256Hash) {
+            this.slices = slices;
+            this.signer = signer;
+            this.codeResourcesHash = codeResourcesHash;
+            this.codeResources256Hash = codeResources256Hash;
+        }
+
+        @Override
+        protected void compute() {
+            if (slices.size() > 1) {
+                final List<SliceSigningTask> sliceTasks =
+                        new ArrayList<SliceSigningTask>(slices.size());
+                for (final ExecutableSlice slice: slices) {
+                    sliceTasks.add(new SliceSigningTask(
+                            Collections.singletonList(slice),
+                            signer,
+                            codeResourcesHash,
+                            codeResources256Hash));
+                }
+                invokeAll(sliceTasks);
+                return;
             }
 
-            return new Pair<byte[], byte[]>(hashingStream.calculateHash(), hashingStream.calculateHash(256));
-        } catch (final IOException e) {
-            // won't happen
-            return new Pair<byte[], byte[]>(null, null);
+            try {
+                for (final ExecutableSlice slice: slices) {
+                    slice.sign(signer,
+                               codeResourcesHash,
+                               codeResources256Hash);
+                }
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
     }
 }
@@ -0,0 +1,480 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.packer;
+
+import com.oracle.ipack.Pair;
+import com.oracle.ipack.blobs.Blob;
+import com.oracle.ipack.blobs.VirtualBlob;
+import com.oracle.ipack.blobs.WrapperBlob;
+import com.oracle.ipack.macho.CodeSignatureCommand;
+import com.oracle.ipack.macho.MachoCommand;
+import com.oracle.ipack.macho.MachoHeader;
+import com.oracle.ipack.macho.SegmentCommand;
+import com.oracle.ipack.macho.SegmentCommand.Section;
+import com.oracle.ipack.signature.CodeDirectoryBlob;
+import com.oracle.ipack.signature.EmbeddedSignatureBlob;
+import com.oracle.ipack.signature.EntitlementsBlob;
+import com.oracle.ipack.signature.Requirement;
+import com.oracle.ipack.signature.RequirementBlob;
+import com.oracle.ipack.signature.RequirementsBlob;
+import com.oracle.ipack.signer.Signer;
+import com.oracle.ipack.util.DualDigest;
+import com.oracle.ipack.util.HashingOutputStream;
+import com.oracle.ipack.util.NullOutputStream;
+import com.oracle.ipack.util.PhaseStats;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import org.bouncycastle.cms.CMSException;
+
+/**
+ * A single mach-o image in an executable file. A thin executable consists of
+ * one slice starting at offset 0, a universal executable contains one slice
+ * for each of its architectures.
+ *
+ * The slice is signed in four steps. {@code prepare} reads and patches the
+ * mach-o header and determines the size of the signed slice, {@code sign}
+ * hashes the pages and requests the signature of the code directory,
+ * {@code completeSignature} waits for it and {@code write} stores the signed
+ * slice. Signing of different slices can run concurrently, the page hashing
+ * forks into the fork join pool from which {@code sign} is called.
+ */
+final class ExecutableSlice {
+    private static final int ZEROS_BUFFER_SIZE = 65536;
+
+    private final FileChannel execChannel;
+    private final long sliceOffset;
+    private final long sliceSize;
+    private final PhaseStats phaseStats;
+
+    private byte[] headerBytes;
+    private long codeLimit;
+    private long mappedSize;
+    private int reservedForEmbeddedSignature;
+    private EmbeddedSignatureBlob embeddedSignatureBlob;
+    private byte[] infoPlistHash;
+    private byte[] infoPlist256Hash;
+    private byte[] codeDirectoryHash;
+    private Future<byte[]> signature;
+    private PhaseStats.Measurement signatureMeasurement;
+
+    ExecutableSlice(final FileChannel execChannel,
+                    final long sliceOffset,
+                    final long sliceSize,
+                    final PhaseStats phaseStats) {
+        this.execChannel = execChannel;
+        this.sliceOffset = sliceOffset;
+        this.sliceSize = sliceSize;
+        this.phaseStats = phaseStats;
+    }
+
+    void prepare(final String appIdentifier,
+                 final String teamIdentifier,
+                 final String subjectName,
+                 final int signatureSize,
+                 final EntitlementsBlob entitlementsBlob,
+                 final byte[] expectedInfoPlistHash,
+                 final byte[] expectedInfoPlist256Hash,
+                 final int pageSize) throws IOException {
+        final PhaseStats.Measurement measurement =
+                phaseStats.start(PhaseStats.HEADER_PATCHING);
+        // the commands are patched in the buffer of the header, which is
+        // written in place of the original one
+        final MachoHeader header = MachoHeader.read(execChannel, sliceOffset);
+
+        final SegmentCommand linkeditSegment =
+                header.findSegment("__LINKEDIT");
+        if (linkeditSegment == null) {
+            throw new IOException("Linkedit segment not found");
+        }
+
+        CodeSignatureCommand codeSignatureCommand =
+                (CodeSignatureCommand) header.findCommand(
+                                           MachoCommand.LC_CODE_SIGNATURE);
+        if (codeSignatureCommand == null) {
+            // no previous signature in the executable
+            codeSignatureCommand = header.addCodeSignatureCommand();
+            codeSignatureCommand.setDataOffset((
+                    linkeditSegment.getFileOffset()
+                        + linkeditSegment.getFileSize() + 15) & ~15);
+        }
+        codeLimit = codeSignatureCommand.getDataOffset();
+
+        infoPlistHash = expectedInfoPlistHash;
+        infoPlist256Hash = expectedInfoPlist256Hash;
+        final SegmentCommand textSegment = header.findSegment("__TEXT");
+        if (textSegment != null) {
+            final Section infoPlistSection = textSegment.findSection("__info_plist");
+            if (infoPlistSection != null) {
+                checkEmbeddedInfoPlist(infoPlistSection);
+            }
+        }
+
+        // only arm64 code can be loaded with larger pages, the slices of
+        // other architectures keep the default page size
+        embeddedSignatureBlob =
+                createEmbeddedSignatureBlob(
+                        appIdentifier,
+                        teamIdentifier,
+                        subjectName,
+                        signatureSize,
+                        codeLimit,
+                        (header.getCpuType() == MachoHeader.CPU_TYPE_ARM64)
+                                ? pageSize
+                                : CodeDirectoryBlob.DEFAULT_PAGE_SIZE,
+                        entitlementsBlob);
+        // update the header with information about the new embedded
+        // code signature
+        reservedForEmbeddedSignature =
+                (embeddedSignatureBlob.getSize() + 15) & ~15;
+        codeSignatureCommand.setDataSize(reservedForEmbeddedSignature);
+        final long newLinkeditSize =
+                codeLimit - linkeditSegment.getFileOffset()
+                          + reservedForEmbeddedSignature;
+        linkeditSegment.setFileSize(newLinkeditSize);
+        linkeditSegment.setVmSize((newLinkeditSize + 0x3fff) & ~0x3fffL);
+        final int newHeaderSize = header.getSize();
+
+        final long firstSectionOffset = header.getFirstSectionFileOffset();
+        if (newHeaderSize > firstSectionOffset) {
+            throw new IOException("Patched header too long. newHeaderSize: " + newHeaderSize + " firstSectionOffset: " + firstSectionOffset);
+        }
+
+        // we assume that there is only padding between the header and the
+        // first section, so the patched header can overwrite some of it
+        headerBytes = header.getBytes();
+        mappedSize = Math.min(sliceSize, codeLimit);
+        measurement.end(1, headerBytes.length);
+    }
+
+    long getOffset() {
+        return sliceOffset;
+    }
+
+    /**
+     * Returns the size of the slice after signing.
+     */
+    long getSignedSize() {
+        return codeLimit + reservedForEmbeddedSignature;
+    }
+
+    void sign(final Signer signer,
+              final byte[] codeResourcesHash,
+              final byte[] codeResources256Hash) throws IOException {
+        // calculate the page hashes of the patched slice up to the codeLimit
+        final PhaseStats.Measurement pageHashMeasurement =
+                phaseStats.start(PhaseStats.PAGE_HASHING);
+        final ByteBuffer[] execData =
+                PageHashTask.mapRegions(execChannel, sliceOffset, mappedSize);
+        final CodeDirectoryBlob codeDirectoryBlob =
+                embeddedSignatureBlob.getCodeDirectorySubBlob();
+        final CodeDirectoryBlob codeDirectory256Blob =
+                embeddedSignatureBlob.getCodeDirectory256SubBlob();
+        new PageHashTask(headerBytes, execData, mappedSize, codeLimit,
+                         codeDirectoryBlob.getPageSize(),
+                         codeDirectoryBlob.getCodeSlots(),
+                         codeDirectory256Blob.getCodeSlots()).invoke();
+        pageHashMeasurement.end(1, codeLimit);
+
+        // update the code directory blobs with hashes
+        final Pair<byte[], byte[]> requirementsBlobHashPair = calculateBlobHash(embeddedSignatureBlob.getRequirementsSubBlob());
+        final byte[] requirementsBlobHash = requirementsBlobHashPair.first;
+        final byte[] requirementsBlob256Hash = requirementsBlobHashPair.second;
+        final Pair<byte[], byte[]>  entitlementsBlobHashPair = calculateBlobHash(embeddedSignatureBlob.getEntitlementsSubBlob());
+        final byte[] entitlementsBlobHash = entitlementsBlobHashPair.first;
+        final byte[] entitlementsBlob256Hash = entitlementsBlobHashPair.second;
+        updateHashes(codeDirectoryBlob,
+                     infoPlistHash,
+                     requirementsBlobHash,
+                     codeResourcesHash,
+                     entitlementsBlobHash);
+        updateHashes(codeDirectory256Blob,
+                     infoPlist256Hash,
+                     requirementsBlob256Hash,
+                     codeResources256Hash,
+                     entitlementsBlob256Hash);
+
+        // the code directory is final now, its hash identifies the code. It
+        // is serialized once, the same bytes are hashed and signed
+        final ByteBuffer codeDirectoryBuffer = codeDirectoryBlob.toByteBuffer();
+        codeDirectoryHash =
+                calculateBlobHash(codeDirectoryBuffer.duplicate()).first;
+
+        // the signature is completed when the other slices are hashed, its
+        // measurement covers the wait in the signing queue
+        signatureMeasurement = phaseStats.start(PhaseStats.SIGNING);
+        try {
+            signature = signer.signAsync(codeDirectoryBuffer.array());
+        } catch (final CMSException e) {
+            throw new IOException("Failed to sign executable", e);
+        }
+    }
+
+    /**
+     * Waits for the signature requested by {@code sign} and stores it in
+     * the embedded signature blob.
+     */
+    void completeSignature() throws IOException {
+        try {
+            final byte[] signatureBytes = Signer.getSignature(signature);
+            signatureMeasurement.end(1, signatureBytes.length);
+            embeddedSignatureBlob.setSignatureSubBlob(
+                    new WrapperBlob(signatureBytes));
+        } catch (final CMSException e) {
+            throw new IOException("Failed to sign executable", e);
+        }
+    }
+
+    /**
+     * Returns the SHA-1 hash of the signed code directory (the cdhash).
+     */
+    byte[] getCodeDirectoryHash() {
+        return codeDirectoryHash;
+    }
+
+    void write(final WritableByteChannel outputChannel,
+               final OutputStream outputStream) throws IOException {
+        // store the patched header, the rest of the slice up to the
+        // codeLimit and the embedded signature blob
+        writeFully(outputChannel, ByteBuffer.wrap(headerBytes));
+        transferFully(execChannel, sliceOffset + headerBytes.length,
+                      mappedSize - headerBytes.length,
+                      outputChannel);
+        writeZeros(outputChannel, codeLimit - mappedSize);
+        final ByteBuffer signatureBuffer = serializeEmbeddedSignatureBlob();
+        outputStream.write(signatureBuffer.array(), 0,
+                           signatureBuffer.limit());
+    }
+
+    /**
+     * Writes the signed slice over the original one. Only the patched header,
+     * the padding up to the codeLimit and the embedded signature blob are
+     * written, the rest of the slice is the same in the signed one.
+     */
+    void patch(final FileChannel outputChannel) throws IOException {
+        final ByteBuffer signatureBuffer = serializeEmbeddedSignatureBlob();
+
+        writeFully(outputChannel, ByteBuffer.wrap(headerBytes), sliceOffset);
+        writeZeros(outputChannel, sliceOffset + mappedSize,
+                   codeLimit - mappedSize);
+        writeFully(outputChannel, signatureBuffer, sliceOffset + codeLimit);
+    }
+
+    /**
+     * Serializes the embedded signature blob padded with zeros to the
+     * reserved size.
+     */
+    private ByteBuffer serializeEmbeddedSignatureBlob() throws IOException {
+        if (embeddedSignatureBlob.getSize() > reservedForEmbeddedSignature) {
+            throw new IOException("Embedded signature too large");
+        }
+
+        // a new buffer is zeroed, so the padding is already there
+        final ByteBuffer signatureBuffer =
+                ByteBuffer.allocate(reservedForEmbeddedSignature);
+        embeddedSignatureBlob.write(signatureBuffer);
+        signatureBuffer.clear();
+
+        return signatureBuffer;
+    }
+
+    static void writeFully(final WritableByteChannel channel,
+                           final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static void writeZeros(final WritableByteChannel channel,
+                           final long count) throws IOException {
+        final ByteBuffer zeros =
+                ByteBuffer.allocate((int) Math.min(count, ZEROS_BUFFER_SIZE));
+        long remaining = count;
+        while (remaining > 0) {
+            zeros.clear();
+            zeros.limit((int) Math.min(remaining, zeros.capacity()));
+            remaining -= zeros.remaining();
+            writeFully(channel, zeros);
+        }
+    }
+
+    static void writeFully(final FileChannel channel,
+                           final ByteBuffer buffer,
+                           final long position) throws IOException {
+        final long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, start + buffer.position());
+        }
+    }
+
+    static void writeZeros(final FileChannel channel,
+                           final long position,
+                           final long count) throws IOException {
+        final ByteBuffer zeros =
+                ByteBuffer.allocate((int) Math.min(count, ZEROS_BUFFER_SIZE));
+        long written = 0;
+        while (written < count) {
+            zeros.clear();
+            zeros.limit((int) Math.min(count - written, zeros.capacity()));
+            final int chunkSize = zeros.remaining();
+            writeFully(channel, zeros, position + written);
+            written += chunkSize;
+        }
+    }
+
+    private void checkEmbeddedInfoPlist(final Section infoPlistSection)
+            throws IOException {
+        if (infoPlistSection.getSize() > Integer.MAX_VALUE) {
+            throw new IOException("Embedded plist too large");
+        }
+        final byte[] embeddedInfoPlist =
+                new byte[(int) infoPlistSection.getSize()];
+        final ByteBuffer buffer = ByteBuffer.wrap(embeddedInfoPlist);
+        while (buffer.hasRemaining()) {
+            if (execChannel.read(buffer, sliceOffset
+                                             + infoPlistSection.getOffset()
+                                             + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of executable");
+            }
+        }
+
+        final HashingOutputStream hashingStream = new HashingOutputStream(new NullOutputStream());
+        try {
+            hashingStream.write(embeddedInfoPlist);
+        } finally {
+            hashingStream.close();
+        }
+
+        final byte[] embeddedInfoPlistHash = hashingStream.calculateHash();
+        if (!Arrays.equals(infoPlistHash, embeddedInfoPlistHash) && !Arrays.equals(infoPlistHash, new byte[20])) {
+            throw new IOException("Plist file hash and embedded plist hash don't match");
+        }
+        infoPlistHash = embeddedInfoPlistHash;
+
+        final byte[] embeddedInfoPlist256Hash = hashingStream.calculateHash(256);
+        if (!Arrays.equals(infoPlist256Hash, embeddedInfoPlist256Hash) && !Arrays.equals(infoPlist256Hash, new byte[32])) {
+            throw new IOException("Plist file SHA-256 hash and embedded plist SHA-256 hash don't match");
+        }
+        infoPlist256Hash = embeddedInfoPlist256Hash;
+    }
+
+    private static EmbeddedSignatureBlob createEmbeddedSignatureBlob(
+            final String appIdentifier,
+            final String teamIdentifier,
+            final String subjectName,
+            final int signatureSize,
+            final long codeLimit,
+            final int pageSize,
+            final EntitlementsBlob entitlementsBlob) {
+        final CodeDirectoryBlob codeDirectoryBlob =
+                new CodeDirectoryBlob(appIdentifier, teamIdentifier, codeLimit,
+                                      5, pageSize, 20, 1);
+
+        final CodeDirectoryBlob codeDirectory256Blob =
+                new CodeDirectoryBlob(appIdentifier, teamIdentifier, codeLimit,
+                                      5, pageSize, 32, 2);
+
+        final RequirementsBlob requirementsBlob = new RequirementsBlob(1);
+        final RequirementBlob designatedRequirementBlob =
+                new RequirementBlob(
+                    Requirement.createDefault(appIdentifier, subjectName));
+        requirementsBlob.setSubBlob(
+                0, RequirementsBlob.KSEC_DESIGNATED_REQUIREMENT_TYPE,
+                designatedRequirementBlob);
+
+        // the placeholder has the size of the wrapped signature, so the
+        // space reserved in the header fits it exactly
+        final VirtualBlob reservedForSignatureBlob =
+                new VirtualBlob(0, signatureSize);
+
+        final EmbeddedSignatureBlob embeddedSignatureBlob =
+                new EmbeddedSignatureBlob();
+        embeddedSignatureBlob.setCodeDirectorySubBlob(codeDirectoryBlob);
+        embeddedSignatureBlob.setRequirementsSubBlob(requirementsBlob);
+        embeddedSignatureBlob.setEntitlementsSubBlob(entitlementsBlob);
+        embeddedSignatureBlob.setCodeDirectory256SubBlob(codeDirectory256Blob);
+        embeddedSignatureBlob.setSignatureSubBlob(reservedForSignatureBlob);
+
+        return embeddedSignatureBlob;
+    }
+
+    private static void transferFully(final FileChannel source,
+                                      final long position,
+                                      final long count,
+                                      final WritableByteChannel target)
+            throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            final long chunkSize = source.transferTo(position + transferred,
+                                                     count - transferred,
+                                                     target);
+            if (chunkSize <= 0) {
+                throw new IOException("Unexpected end of executable");
+            }
+            transferred += chunkSize;
+        }
+    }
+
+    private static void updateHashes(
+            final CodeDirectoryBlob codeDirectoryBlob,
+            final byte[] infoPlistHash,
+            final byte[] requirementsHash,
+            final byte[] codeResourcesHash,
+            final byte[] entitlementsHash) {
+        if (entitlementsHash != null) {
+            codeDirectoryBlob.setEntitlementsSlot(entitlementsHash);
+        }
+
+        if (infoPlistHash != null) {
+            codeDirectoryBlob.setInfoPlistSlot(infoPlistHash);
+        }
+
+        if (requirementsHash != null) {
+            codeDirectoryBlob.setRequirementsSlot(requirementsHash);
+        }
+
+        if (codeResourcesHash != null) {
+            codeDirectoryBlob.setCodeResourcesSlot(codeResourcesHash);
+        }
+    }
+
+    private static Pair<byte[], byte[]> calculateBlobHash(
+            final Blob blob) {
+        return calculateBlobHash(blob.toByteBuffer());
+    }
+
+    private static Pair<byte[], byte[]> calculateBlobHash(
+            final ByteBuffer blobBuffer) {
+        final DualDigest digest = new DualDigest();
+        digest.update(blobBuffer);
+
+        return new Pair<byte[], byte[]>(digest.digest(1), digest.digest(256));
+    }
+}
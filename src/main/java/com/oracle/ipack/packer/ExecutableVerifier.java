@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.packer;
+
+import com.oracle.ipack.Pair;
+import com.oracle.ipack.macho.CodeSignatureCommand;
+import com.oracle.ipack.macho.FatHeader;
+import com.oracle.ipack.macho.FatHeader.FatArch;
+import com.oracle.ipack.macho.MachoCommand;
+import com.oracle.ipack.macho.MachoHeader;
+import com.oracle.ipack.macho.SegmentCommand;
+import com.oracle.ipack.macho.SegmentCommand.Section;
+import com.oracle.ipack.signature.CodeDirectoryBlob;
+import com.oracle.ipack.signature.EmbeddedSignature;
+import com.oracle.ipack.signature.SpecialSlotConstants;
+import com.oracle.ipack.signer.Signer;
+import com.oracle.ipack.util.DualDigest;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.cert.CertificateException;
+import java.util.Arrays;
+import java.util.List;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.operator.OperatorCreationException;
+
+/**
+ * Verifies the embedded signature of an executable, of every slice of a
+ * universal one. The pages are hashed from the memory mapped executable by
+ * PageHashTask, so the verifier has to run in a fork join pool, and compared
+ * with the code slots of both code directories. The special slots are
+ * compared with the hashes of the sub-blobs and of the Info.plist and
+ * CodeResources of the bundle, the CMS signature is checked against the
+ * code directory.
+ *
+ * Every mismatch is added to the list as "name: problem".
+ */
+final class ExecutableVerifier {
+    private static final int HASH_TYPE_SHA1 = 1;
+    private static final int HASH_TYPE_SHA256 = 2;
+
+    private final File executableFile;
+    private final String name;
+    private final List<String> mismatches;
+
+    private Pair<byte[], byte[]> infoPlistHashPair;
+    private Pair<byte[], byte[]> codeResourcesHashPair;
+
+    ExecutableVerifier(final File executableFile,
+                       final String name,
+                       final List<String> mismatches) {
+        this.executableFile = executableFile;
+        this.name = name;
+        this.mismatches = mismatches;
+    }
+
+    /**
+     * Sets the SHA-1 and SHA-256 hashes of the Info.plist of the bundle,
+     * null if it has none.
+     */
+    void setInfoPlistHashPair(final Pair<byte[], byte[]> infoPlistHashPair) {
+        this.infoPlistHashPair = infoPlistHashPair;
+    }
+
+    /**
+     * Sets the SHA-1 and SHA-256 hashes of the CodeResources of the bundle,
+     * null if it has none.
+     */
+    void setCodeResourcesHashPair(
+            final Pair<byte[], byte[]> codeResourcesHashPair) {
+        this.codeResourcesHashPair = codeResourcesHashPair;
+    }
+
+    /**
+     * Verifies the executable and returns its cdhash, for universal
+     * executables the one of the first slice. Returns null if there is no
+     * readable code directory.
+     */
+    byte[] execute() throws IOException {
+        final FileChannel execChannel =
+                new RandomAccessFile(executableFile, "r").getChannel();
+        try {
+            final FatHeader fatHeader =
+                    ExecutablePacker.readFatHeader(execChannel);
+            if (fatHeader == null) {
+                return verifySlice(execChannel, 0, execChannel.size(), name);
+            }
+
+            byte[] codeDirectoryHash = null;
+            final List<FatArch> archs = fatHeader.getArchs();
+            for (int i = 0; i < archs.size(); ++i) {
+                final FatArch arch = archs.get(i);
+                final String sliceName = name + " [slice " + i + "]";
+                if ((arch.getOffset() < 0) || (arch.getSize() < 0)
+                        || (arch.getOffset() + arch.getSize()
+                                > execChannel.size())) {
+                    // the fat header is corrupt, only the slice fails
+                    report(sliceName, "slice beyond the end of the executable");
+                    continue;
+                }
+                final byte[] sliceCodeDirectoryHash =
+                        verifySlice(execChannel, arch.getOffset(),
+                                    arch.getSize(), sliceName);
+                if (i == 0) {
+                    codeDirectoryHash = sliceCodeDirectoryHash;
+                }
+            }
+
+            return codeDirectoryHash;
+        } finally {
+            execChannel.close();
+        }
+    }
+
+    private byte[] verifySlice(final FileChannel execChannel,
+                               final long sliceOffset,
+                               final long sliceSize,
+                               final String sliceName) throws IOException {
+        final int magic = readFully(execChannel, sliceOffset, 4)
+                                  .order(ByteOrder.LITTLE_ENDIAN)
+                                  .getInt(0);
+        if ((magic != MachoHeader.MH_MAGIC)
+                && (magic != MachoHeader.MH_MAGIC_64)) {
+            report(sliceName, "not a mach-o executable");
+            return null;
+        }
+
+        final MachoHeader header;
+        try {
+            header = MachoHeader.read(execChannel, sliceOffset);
+        } catch (final IOException e) {
+            report(sliceName, "invalid mach-o header, " + e.getMessage());
+            return null;
+        }
+
+        final CodeSignatureCommand codeSignatureCommand =
+                (CodeSignatureCommand) header.findCommand(
+                                           MachoCommand.LC_CODE_SIGNATURE);
+        if (codeSignatureCommand == null) {
+            report(sliceName, "not signed");
+            return null;
+        }
+
+        final long signatureOffset = codeSignatureCommand.getDataOffset();
+        final long signatureSize = codeSignatureCommand.getDataSize();
+        if (signatureOffset + signatureSize > sliceSize) {
+            report(sliceName, "signature beyond the end of the executable");
+            return null;
+        }
+        if (signatureSize > Integer.MAX_VALUE) {
+            // checked before the size is used for a buffer
+            report(sliceName, "signature too large");
+            return null;
+        }
+
+        final EmbeddedSignature embeddedSignature;
+        final byte[] codeDirectoryBytes;
+        final CodeDirectoryBlob codeDirectoryBlob;
+        final CodeDirectoryBlob codeDirectory256Blob;
+        try {
+            embeddedSignature = EmbeddedSignature.read(
+                    readFully(execChannel, sliceOffset + signatureOffset,
+                              (int) signatureSize));
+            codeDirectoryBytes = embeddedSignature.getSubBlob(
+                    SpecialSlotConstants.CD_CODE_DIRECTORY_SLOT);
+            if (codeDirectoryBytes == null) {
+                report(sliceName, "code directory missing");
+                return null;
+            }
+            codeDirectoryBlob = embeddedSignature.getCodeDirectory();
+            codeDirectory256Blob = embeddedSignature.getCodeDirectory256();
+        } catch (final IOException e) {
+            report(sliceName, "invalid signature, " + e.getMessage());
+            return null;
+        }
+
+        final Pair<byte[], byte[]> embeddedInfoPlistHashPair =
+                readEmbeddedInfoPlistHashPair(execChannel, sliceOffset,
+                                              header);
+        PageHashes pageHashes = null;
+        for (final CodeDirectoryBlob blob:
+                 new CodeDirectoryBlob[] { codeDirectoryBlob,
+                                           codeDirectory256Blob }) {
+            if (blob == null) {
+                continue;
+            }
+
+            final String hashName;
+            if ((blob.getHashType() == HASH_TYPE_SHA1)
+                    && (blob.getHashSize() == 20)) {
+                hashName = "SHA-1";
+            } else if ((blob.getHashType() == HASH_TYPE_SHA256)
+                           && (blob.getHashSize() == 32)) {
+                hashName = "SHA-256";
+            } else {
+                report(sliceName, "unsupported hash type "
+                                      + blob.getHashType());
+                continue;
+            }
+
+            if (blob.getCodeLimit() != signatureOffset) {
+                report(sliceName, hashName + " code limit doesn't end at"
+                                      + " the signature");
+            }
+            if ((pageHashes == null)
+                    || !pageHashes.matches(blob.getPageSize(),
+                                           blob.getCodeLimit())) {
+                pageHashes = new PageHashes(execChannel, sliceOffset,
+                                            sliceSize, blob.getPageSize(),
+                                            blob.getCodeLimit());
+            }
+
+            final boolean isSha1 = (blob.getHashType() == HASH_TYPE_SHA1);
+            verifyCodeSlots(sliceName, hashName, blob,
+                            isSha1 ? pageHashes.codeSlots
+                                   : pageHashes.codeSlots256);
+            verifySpecialSlots(sliceName, hashName, blob, embeddedSignature,
+                               isSha1, embeddedInfoPlistHashPair);
+        }
+
+        verifyCmsSignature(sliceName, embeddedSignature, codeDirectoryBytes);
+
+        return hash(codeDirectoryBytes).first;
+    }
+
+    private void verifyCodeSlots(final String sliceName,
+                                 final String hashName,
+                                 final CodeDirectoryBlob blob,
+                                 final byte[] calculatedCodeSlots) {
+        final byte[] codeSlots = blob.getCodeSlots();
+        final int hashSize = blob.getHashSize();
+        for (int i = 0; i < blob.getNumberOfCodeSlots(); ++i) {
+            final int offset = i * hashSize;
+            if (!rangeEquals(codeSlots, calculatedCodeSlots, offset,
+                             hashSize)) {
+                report(sliceName, hashName + " hash of page " + i
+                                      + " doesn't match");
+            }
+        }
+    }
+
+    private void verifySpecialSlots(
+            final String sliceName,
+            final String hashName,
+            final CodeDirectoryBlob blob,
+            final EmbeddedSignature embeddedSignature,
+            final boolean isSha1,
+            final Pair<byte[], byte[]> embeddedInfoPlistHashPair) {
+        verifyBlobSlot(sliceName, hashName, blob, isSha1,
+                       SpecialSlotConstants.CD_REQUIREMENTS_SLOT,
+                       "requirements",
+                       embeddedSignature.getSubBlob(
+                               SpecialSlotConstants.CD_REQUIREMENTS_SLOT));
+        verifyBlobSlot(sliceName, hashName, blob, isSha1,
+                       SpecialSlotConstants.CD_ENTITLEMENT_SLOT,
+                       "entitlements",
+                       embeddedSignature.getSubBlob(
+                               SpecialSlotConstants.CD_ENTITLEMENT_SLOT));
+
+        final byte[] infoPlistSlot =
+                blob.getSpecialSlot(SpecialSlotConstants.CD_INFO_SLOT);
+        if (isEmpty(infoPlistSlot)) {
+            if (infoPlistHashPair != null) {
+                report(sliceName, hashName + " Info.plist not sealed");
+            }
+        } else if (!matches(infoPlistSlot, infoPlistHashPair, isSha1)
+                       && !matches(infoPlistSlot, embeddedInfoPlistHashPair,
+                                   isSha1)) {
+            report(sliceName, hashName + " Info.plist hash doesn't match");
+        }
+
+        final byte[] codeResourcesSlot =
+                blob.getSpecialSlot(SpecialSlotConstants.CD_RESOURCE_DIR_SLOT);
+        if (isEmpty(codeResourcesSlot)) {
+            if (codeResourcesHashPair != null) {
+                report(sliceName, hashName + " CodeResources not sealed");
+            }
+        } else if (!matches(codeResourcesSlot, codeResourcesHashPair,
+                            isSha1)) {
+            report(sliceName,
+                   hashName + " CodeResources hash doesn't match");
+        }
+    }
+
+    private void verifyBlobSlot(final String sliceName,
+                                final String hashName,
+                                final CodeDirectoryBlob blob,
+                                final boolean isSha1,
+                                final int slot,
+                                final String blobName,
+                                final byte[] subBlob) {
+        final byte[] slotHash = blob.getSpecialSlot(slot);
+        if (subBlob == null) {
+            if (!isEmpty(slotHash)) {
+                report(sliceName, blobName + " blob missing");
+            }
+            return;
+        }
+
+        if (!matches(slotHash, hash(subBlob), isSha1)) {
+            report(sliceName,
+                   hashName + " " + blobName + " hash doesn't match");
+        }
+    }
+
+    private void verifyCmsSignature(
+            final String sliceName,
+            final EmbeddedSignature embeddedSignature,
+            final byte[] codeDirectoryBytes) {
+        try {
+            final byte[] signature = embeddedSignature.getSignature();
+            if (signature == null) {
+                report(sliceName, "CMS signature missing");
+                return;
+            }
+
+            Signer.verify(codeDirectoryBytes, signature);
+        } catch (final IOException e) {
+            report(sliceName, "invalid CMS signature, " + e.getMessage());
+        } catch (final CMSException e) {
+            report(sliceName, "invalid CMS signature, " + e.getMessage());
+        } catch (final CertificateException e) {
+            report(sliceName, "invalid CMS signature, " + e.getMessage());
+        } catch (final OperatorCreationException e) {
+            report(sliceName, "invalid CMS signature, " + e.getMessage());
+        }
+    }
+
+    private static Pair<byte[], byte[]> readEmbeddedInfoPlistHashPair(
+            final FileChannel execChannel,
+            final long sliceOffset,
+            final MachoHeader header) throws IOException {
+        final SegmentCommand textSegment = header.findSegment("__TEXT");
+        final Section infoPlistSection =
+                (textSegment != null)
+                        ? textSegment.findSection("__info_plist")
+                        : null;
+        if ((infoPlistSection == null)
+                || (infoPlistSection.getSize() > Integer.MAX_VALUE)) {
+            return null;
+        }
+
+        final ByteBuffer embeddedInfoPlist =
+                readFully(execChannel,
+                          sliceOffset + infoPlistSection.getOffset(),
+                          (int) infoPlistSection.getSize());
+        return hash(embeddedInfoPlist.array());
+    }
+
+    private static ByteBuffer readFully(final FileChannel channel,
+                                        final long position,
+                                        final int size) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of executable");
+            }
+        }
+        buffer.flip();
+
+        return buffer;
+    }
+
+    private static Pair<byte[], byte[]> hash(final byte[] data) {
+        final DualDigest digest = new DualDigest();
+        digest.update(data, 0, data.length);
+        return new Pair<byte[], byte[]>(digest.digest(1), digest.digest(256));
+    }
+
+    private static boolean matches(final byte[] slotHash,
+                                   final Pair<byte[], byte[]> hashPair,
+                                   final boolean isSha1) {
+        return (hashPair != null)
+                   && Arrays.equals(slotHash, isSha1 ? hashPair.first
+                                                     : hashPair.second);
+    }
+
+    private static boolean isEmpty(final byte[] hash) {
+        for (final byte hashByte: hash) {
+            if (hashByte != 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean rangeEquals(final byte[] first,
+                                       final byte[] second,
+                                       final int offset,
+                                       final int length) {
+        for (int i = offset; i < offset + length; ++i) {
+            if (first[i] != second[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void report(final String sliceName, final String problem) {
+        mismatches.add(sliceName + ": " + problem);
+    }
+
+    /**
+     * The SHA-1 and SHA-256 page hashes of a slice up to a code limit. The
+     * slice data beyond its end are hashed as zeros, as they are signed.
+     */
+    private static final class PageHashes {
+        private final int pageSize;
+        private final long codeLimit;
+        private final byte[] codeSlots;
+        private final byte[] codeSlots256;
+
+        public PageHashes(final FileChannel execChannel,
+                          final long sliceOffset,
+                          final long sliceSize,
+                          final int pageSize,
+                          final long codeLimit) throws IOException {
+            this.pageSize = pageSize;
+            this.codeLimit = codeLimit;
+
+            final int numberOfPages =
+                    (int) ((codeLimit + pageSize - 1) / pageSize);
+            codeSlots = new byte[numberOfPages * 20];
+            codeSlots256 = new byte[numberOfPages * 32];
+
+            final long mappedSize = Math.min(sliceSize, codeLimit);
+            new PageHashTask(new byte[0],
+                             PageHashTask.mapRegions(execChannel,
+                                                     sliceOffset,
+                                                     mappedSize),
+                             mappedSize, codeLimit, pageSize,
+                             codeSlots, codeSlots256).invoke();
+        }
+
+        public boolean matches(final int otherPageSize,
+                               final long otherCodeLimit) {
+            return (pageSize == otherPageSize)
+                       && (codeLimit == otherCodeLimit);
+        }
+    }
+}
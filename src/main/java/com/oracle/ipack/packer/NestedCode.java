@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.packer;
+
+import com.oracle.ipack.util.PlistReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Code nested in an application which has to be signed before it, a
+ * framework, an application extension, an XPC service or a dynamic library.
+ * Nested bundles can contain further nested code, so the nested code of an
+ * application forms a tree in which the children are signed before their
+ * parents.
+ */
+final class NestedCode {
+    private static final String[] NESTED_CODE_DIRS = {
+        "Frameworks", "PlugIns", "XPCServices"
+    };
+    private static final String[] NESTED_BUNDLE_EXTENSIONS = {
+        ".framework", ".appex", ".xpc"
+    };
+
+    private final String path;
+    private final String fullPath;
+    private final boolean isBundle;
+    private final String executableName;
+    private final String identifier;
+    private final List<NestedCode> children;
+
+    private byte[] codeDirectoryHash;
+    private String requirement;
+
+    private NestedCode(final String path,
+                       final String fullPath,
+                       final boolean isBundle,
+                       final String executableName,
+                       final String identifier,
+                       final List<NestedCode> children) {
+        this.path = path;
+        this.fullPath = fullPath;
+        this.isBundle = isBundle;
+        this.executableName = executableName;
+        this.identifier = identifier;
+        this.children = children;
+    }
+
+    /**
+     * Finds the nested code of the given bundle directory.
+     */
+    static List<NestedCode> find(final File bundleDir) throws IOException {
+        return find(bundleDir, "");
+    }
+
+    private static List<NestedCode> find(final File bundleDir,
+                                         final String fullPathPrefix)
+            throws IOException {
+        final List<NestedCode> nestedCode = new ArrayList<NestedCode>();
+        for (final String nestedCodeDirName: NESTED_CODE_DIRS) {
+            final File nestedCodeDir = new File(bundleDir, nestedCodeDirName);
+            final String[] names = nestedCodeDir.list();
+            if (names == null) {
+                continue;
+            }
+
+            Arrays.sort(names);
+            for (final String name: names) {
+                final File file = new File(nestedCodeDir, name);
+                final String path = nestedCodeDirName + '/' + name;
+                if (file.isDirectory() && isNestedBundleName(name)) {
+                    final NestedCode bundle =
+                            findBundle(file, path, fullPathPrefix + path);
+                    if (bundle != null) {
+                        nestedCode.add(bundle);
+                    }
+                } else if (file.isFile() && name.endsWith(".dylib")) {
+                    nestedCode.add(new NestedCode(
+                            path, fullPathPrefix + path, false, name,
+                            name.substring(0, name.length() - 6),
+                            Collections.<NestedCode>emptyList()));
+                }
+            }
+        }
+
+        return nestedCode;
+    }
+
+    private static NestedCode findBundle(final File bundleDir,
+                                         final String path,
+                                         final String fullPath)
+            throws IOException {
+        final File infoPlistFile = new File(bundleDir, "Info.plist");
+        if (!infoPlistFile.isFile()) {
+            return null;
+        }
+
+        final Map<String, String> infoPlist =
+                PlistReader.readStrings(infoPlistFile);
+        String executableName = infoPlist.get("CFBundleExecutable");
+        if (executableName == null) {
+            final String bundleName = bundleDir.getName();
+            executableName =
+                    bundleName.substring(0, bundleName.lastIndexOf('.'));
+        }
+        if (!new File(bundleDir, executableName).isFile()) {
+            // a bundle with resources only, there is nothing to sign
+            return null;
+        }
+
+        String identifier = infoPlist.get("CFBundleIdentifier");
+        if (identifier == null) {
+            identifier = executableName;
+        }
+
+        return new NestedCode(path, fullPath, true, executableName,
+                              identifier, find(bundleDir, fullPath + '/'));
+    }
+
+    private static boolean isNestedBundleName(final String name) {
+        for (final String extension: NESTED_BUNDLE_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the path of the nested code relative to its parent bundle.
+     */
+    String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the path of the nested code relative to the application.
+     */
+    String getFullPath() {
+        return fullPath;
+    }
+
+    boolean isBundle() {
+        return isBundle;
+    }
+
+    String getExecutableName() {
+        return executableName;
+    }
+
+    String getIdentifier() {
+        return identifier;
+    }
+
+    List<NestedCode> getChildren() {
+        return children;
+    }
+
+    void setSignature(final byte[] codeDirectoryHash,
+                      final String requirement) {
+        this.codeDirectoryHash = codeDirectoryHash;
+        this.requirement = requirement;
+    }
+
+    byte[] getCodeDirectoryHash() {
+        return codeDirectoryHash;
+    }
+
+    String getRequirement() {
+        return requirement;
+    }
+}
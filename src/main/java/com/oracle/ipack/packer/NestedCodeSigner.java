@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.packer;
+
+import com.oracle.ipack.signature.CodeDirectoryBlob;
+import com.oracle.ipack.signature.Requirement;
+import com.oracle.ipack.signer.Signer;
+import com.oracle.ipack.util.PhaseStats;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Signs the nested code of an application. Each nested code is signed in its
+ * own fork-join task after the tasks of its children, so independent code is
+ * signed concurrently and every parent seals the final signatures of its
+ * children.
+ *
+ * When signing in place the nested code is signed where it is. Otherwise the
+ * signed executables and CodeResources are written to a staging directory
+ * with the layout of the application, which overlays the application
+ * directory when it is packed.
+ */
+final class NestedCodeSigner {
+    private static final String ENTITLEMENTS_FILE_NAME =
+            "archived-expanded-entitlements.xcent";
+
+    private final File baseDir;
+    private final String appPath;
+    private final String teamIdentifier;
+    private final Signer signer;
+    private final File stagingDir;
+
+    private int numberOfThreads;
+    private ForkJoinPool threadPool;
+    private int pageSize;
+    private PhaseStats phaseStats;
+    private SignatureCache signatureCache;
+
+    NestedCodeSigner(final File baseDir,
+                     final String appPath,
+                     final String teamIdentifier,
+                     final Signer signer,
+                     final boolean inPlace) throws IOException {
+        this.baseDir = baseDir;
+        this.appPath = appPath;
+        this.teamIdentifier = teamIdentifier;
+        this.signer = signer;
+        this.stagingDir = inPlace ? null
+                                  : Files.createTempDirectory("ipack-nested")
+                                         .toFile();
+        this.numberOfThreads = 1;
+        this.pageSize = CodeDirectoryBlob.DEFAULT_PAGE_SIZE;
+        this.phaseStats = new PhaseStats(false);
+    }
+
+    void setNumberOfThreads(final int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    void setThreadPool(final ForkJoinPool threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    void setPageSize(final int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    void setPhaseStats(final PhaseStats phaseStats) {
+        this.phaseStats = phaseStats;
+    }
+
+    void setSignatureCache(final SignatureCache signatureCache) {
+        this.signatureCache = signatureCache;
+    }
+
+    /**
+     * Returns the directory with the signed nested code, null when signing
+     * in place.
+     */
+    File getStagingDir() {
+        return stagingDir;
+    }
+
+    void sign(final List<NestedCode> nestedCode) throws IOException {
+        final ForkJoinPool pool = (threadPool != null)
+                                          ? threadPool
+                                          : new ForkJoinPool(numberOfThreads);
+        try {
+            pool.invoke(new NestedCodeListTask(nestedCode));
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            if (pool != threadPool) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Deletes the staging directory.
+     */
+    void close() throws IOException {
+        if (stagingDir == null) {
+            return;
+        }
+
+        Files.walkFileTree(stagingDir.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file,
+                                             final BasicFileAttributes attrs)
+                    throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir,
+                                                      final IOException e)
+                    throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private List<NestedCodeTask> createTasks(
+            final List<NestedCode> nestedCode) {
+        final List<NestedCodeTask> tasks =
+                new ArrayList<NestedCodeTask>(nestedCode.size());
+        for (final NestedCode nestedCodeEntry: nestedCode) {
+            tasks.add(new NestedCodeTask(nestedCodeEntry));
+        }
+
+        return tasks;
+    }
+
+    private void signBundle(final NestedCode bundle,
+                            final ForkJoinPool pool) throws IOException {
+        final String bundlePath = appPath + bundle.getFullPath() + '/';
+        final File bundleStagingDir =
+                (stagingDir != null)
+                        ? new File(stagingDir, bundle.getFullPath())
+                        : null;
+
+        final ResourcePacker resourcePacker =
+                new ResourcePacker(null, baseDir, bundlePath,
+                                   bundle.getExecutableName(),
+                                   null, null, null, null, true, true);
+        resourcePacker.setNestedCode(bundle.getChildren());
+        resourcePacker.setPhaseStats(phaseStats);
+        if (bundleStagingDir != null) {
+            resourcePacker.setOverlayDir(bundleStagingDir);
+            resourcePacker.setCodeResourcesFile(
+                    new File(bundleStagingDir,
+                             "_CodeSignature/CodeResources"));
+        }
+        resourcePacker.execute();
+
+        final File entitlementsFile =
+                new File(baseDir, bundlePath + ENTITLEMENTS_FILE_NAME);
+        final ExecutablePacker executablePacker =
+                new ExecutablePacker(null, baseDir, bundlePath,
+                                     bundle.getExecutableName(),
+                                     bundle.getIdentifier(),
+                                     teamIdentifier,
+                                     entitlementsFile.isFile()
+                                             ? entitlementsFile.getPath()
+                                             : null,
+                                     true,
+                                     signer);
+        executablePacker.setThreadPool(pool);
+        executablePacker.setPageSize(pageSize);
+        executablePacker.setPhaseStats(phaseStats);
+        executablePacker.setSignatureCache(signatureCache);
+        executablePacker.setCodeResourcesHash(
+                resourcePacker.getCodeResourcesHash());
+        executablePacker.setInfoPlistHash(
+                resourcePacker.getInfoPlistHash());
+        executablePacker.setCodeResources256Hash(
+                resourcePacker.getCodeResources256Hash());
+        executablePacker.setInfoPlist256Hash(
+                resourcePacker.getInfoPlist256Hash());
+        if (bundleStagingDir != null) {
+            bundleStagingDir.mkdirs();
+            executablePacker.setOutputFile(
+                    new File(bundleStagingDir, bundle.getExecutableName()));
+        }
+        executablePacker.execute();
+
+        bundle.setSignature(executablePacker.getCodeDirectoryHash(),
+                            getRequirement(bundle));
+    }
+
+    private void signLibrary(final NestedCode library,
+                             final ForkJoinPool pool) throws IOException {
+        final String libraryPath = appPath + library.getFullPath();
+        final String libraryDirPath =
+                libraryPath.substring(0, libraryPath.lastIndexOf('/') + 1);
+
+        // a library has no resources and no Info.plist to seal
+        final ExecutablePacker executablePacker =
+                new ExecutablePacker(null, baseDir, libraryDirPath,
+                                     library.getExecutableName(),
+                                     library.getIdentifier(),
+                                     teamIdentifier,
+                                     null,
+                                     true,
+                                     signer);
+        executablePacker.setThreadPool(pool);
+        executablePacker.setPageSize(pageSize);
+        executablePacker.setPhaseStats(phaseStats);
+        executablePacker.setSignatureCache(signatureCache);
+        executablePacker.setCodeResourcesHash(new byte[20]);
+        executablePacker.setInfoPlistHash(new byte[20]);
+        executablePacker.setCodeResources256Hash(new byte[32]);
+        executablePacker.setInfoPlist256Hash(new byte[32]);
+        if (stagingDir != null) {
+            final File outputFile = new File(stagingDir, library.getFullPath());
+            outputFile.getParentFile().mkdirs();
+            executablePacker.setOutputFile(outputFile);
+        }
+        executablePacker.execute();
+
+        library.setSignature(executablePacker.getCodeDirectoryHash(),
+                             getRequirement(library));
+    }
+
+    private String getRequirement(final NestedCode nestedCode) {
+        return Requirement.createDefault(nestedCode.getIdentifier(),
+                                         signer.getSubjectName())
+                          .toString();
+    }
+
+    private final class NestedCodeListTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<NestedCode> nestedCode;
+
+        public NestedCodeListTask(final List<NestedCode> nestedCode) {
+            this.nestedCode = nestedCode;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(createTasks(nestedCode));
+        }
+    }
+
+    private final class NestedCodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final NestedCode nestedCode;
+
+        public NestedCodeTask(final NestedCode nestedCode) {
+            this.nestedCode = nestedCode;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(createTasks(nestedCode.getChildren()));
+            try {
+                if (nestedCode.isBundle()) {
+                    signBundle(nestedCode, getPool());
+                } else {
+                    signLibrary(nestedCode, getPool());
+                }
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
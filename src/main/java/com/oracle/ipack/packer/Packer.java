@@ -25,38 +25,170 @@
 
 package com.oracle.ipack.packer;
 
+import com.oracle.ipack.signature.CodeDirectoryBlob;
 import com.oracle.ipack.signer.Signer;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import com.oracle.ipack.util.CompressionStats;
+import com.oracle.ipack.util.DataCopier;
+import com.oracle.ipack.util.PhaseStats;
+import com.oracle.ipack.util.ZipArchiveOutputStream;
+import com.oracle.ipack.util.ZipArchiveReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.zip.Deflater;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 public final class Packer {
-    private final ZipOutputStream zipStream;
+    private final ZipArchiveOutputStream zipStream;
     private final Signer signer;
     private Boolean inPlace;
+    private PhaseStats phaseStats;
+    private int numberOfThreads;
+    private ForkJoinPool threadPool;
+    private CompressionPolicy compressionPolicy;
+    private ForkJoinPool deflatePool;
+    private File hashCacheFile;
+    private int hashCacheVerifyPercentage;
+    private boolean signNested;
+    private int pageSize;
+    private SignatureCache signatureCache;
+
+    private byte[] codeResourcesHash;
+    private byte[] codeResources256Hash;
+    private byte[] infoPlistHash;
+    private byte[] infoPlist256Hash;
 
     public Packer(final File destFile,
                   final Signer signer,
                   final Boolean inPlace) throws FileNotFoundException {
         this.inPlace = inPlace;
         if (inPlace) { //In codesign.py this is what we use
-            this.zipStream = new ZipOutputStream(
-                                 new DataOutputStream(
-                                     new ByteArrayOutputStream(128*1024*1024-1))); //Avoid java bug https://bugs.openjdk.java.net/browse/JDK-8055949 by being able to get to max buffer size of MAX_INT-16
-            zipStream.setLevel(Deflater.NO_COMPRESSION);
+            // the application is signed where it is, no archive is created
+            this.zipStream = null;
         } else {
-            this.zipStream = new ZipOutputStream(
-                                 new BufferedOutputStream(
-                                     new FileOutputStream(destFile)));
+            this.zipStream = new ZipArchiveOutputStream(
+                                 new FileOutputStream(destFile).getChannel());
         }
         this.signer = signer;
+        this.phaseStats = new PhaseStats(false);
+        if (zipStream != null) {
+            zipStream.setPhaseStats(phaseStats);
+        }
+        this.numberOfThreads = 1;
+        this.compressionPolicy = new CompressionPolicy();
+        this.pageSize = CodeDirectoryBlob.DEFAULT_PAGE_SIZE;
+    }
+
+    /**
+     * Sets the number of threads used for hashing and compressing the
+     * application resources and for hashing the executable pages. With a
+     * single thread the resources are processed sequentially.
+     */
+    public void setNumberOfThreads(final int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    /**
+     * Sets the pool on which the application is hashed and compressed when
+     * more than one thread is used. The pool can be shared by several
+     * packers, it isn't shut down by them. Without a pool each application
+     * creates its own.
+     */
+    public void setThreadPool(final ForkJoinPool threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * Sets how the resources are compressed in the archive. Not used when
+     * signing in place.
+     */
+    public void setCompressionPolicy(
+            final CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+        if (zipStream != null) {
+            zipStream.setLevel(compressionPolicy.getLevel());
+        }
+    }
+
+    /**
+     * Returns the statistics of the entries written to the archive so far,
+     * or null when signing in place.
+     */
+    public CompressionStats getCompressionStats() {
+        return (zipStream != null) ? zipStream.getCompressionStats() : null;
+    }
+
+    /**
+     * Returns the time, files and bytes of the packing phases of all the
+     * applications stored so far. The archive is finalized when the packer
+     * is closed.
+     */
+    public PhaseStats getPhaseStats() {
+        return phaseStats;
+    }
+
+    /**
+     * Sets the statistics the packing phases are added to. By default the
+     * phases are only reported as flight recorder events.
+     */
+    public void setPhaseStats(final PhaseStats phaseStats) {
+        this.phaseStats = phaseStats;
+        if (zipStream != null) {
+            zipStream.setPhaseStats(phaseStats);
+        }
+    }
+
+    /**
+     * Sets the file in which the resource hashes are cached between
+     * runs. Used only when signing in place.
+     */
+    public void setHashCacheFile(final File hashCacheFile) {
+        this.hashCacheFile = hashCacheFile;
+    }
+
+    /**
+     * Sets the percentage of cached resource hashes which are verified
+     * against the resources before the cache is used.
+     */
+    public void setHashCacheVerifyPercentage(
+            final int hashCacheVerifyPercentage) {
+        this.hashCacheVerifyPercentage = hashCacheVerifyPercentage;
+    }
+
+    /**
+     * Enables signing of the frameworks, application extensions and dynamic
+     * libraries nested in a bundle before the bundle itself.
+     */
+    public void setSignNested(final boolean signNested) {
+        this.signNested = signNested;
+    }
+
+    /**
+     * Sets the page size with which the arm64 executables are hashed,
+     * 4096 by default. With 16384 the code directories of the arm64 slices
+     * have a quarter of the code slots.
+     */
+    public void setPageSize(final int pageSize) {
+        if ((pageSize != CodeDirectoryBlob.DEFAULT_PAGE_SIZE)
+                && (pageSize != CodeDirectoryBlob.LARGE_PAGE_SIZE)) {
+            throw new IllegalArgumentException(
+                    "Unsupported page size " + pageSize);
+        }
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets the cache of signed executables which lets the executables of
+     * applications signed before with the same input be copied instead of
+     * signed again. The cache can be shared by several packers.
+     */
+    public void setSignatureCache(final SignatureCache signatureCache) {
+        this.signatureCache = signatureCache;
     }
 
     public void storeApplication(
@@ -73,13 +205,178 @@ public final class Packer {
             final Boolean isBundle) throws IOException {
         final String normalizedAppPath = normalizePath(appPath);
 
-        if (!normalizedAppPath.isEmpty()) {
+        if (!normalizedAppPath.isEmpty() && !inPlace) {
             storeDirEntry(normalizedAppPath);
         }
 
+        if (!inPlace && compressionPolicy.getParallelDeflate()
+                && (numberOfThreads > 1) && (deflatePool == null)) {
+            // kept until the archive is closed
+            deflatePool = (threadPool != null)
+                                  ? threadPool
+                                  : new ForkJoinPool(numberOfThreads);
+            zipStream.setParallelDeflate(deflatePool, 2 * numberOfThreads);
+        }
+
+        List<NestedCode> nestedCode = Collections.emptyList();
+        if (signNested && isBundle && (resourcesHash == null)) {
+            nestedCode = NestedCode.find(new File(baseDir, normalizedAppPath));
+        }
+
+        NestedCodeSigner nestedCodeSigner = null;
+        try {
+            if (!nestedCode.isEmpty()) {
+                nestedCodeSigner =
+                        new NestedCodeSigner(baseDir, normalizedAppPath,
+                                             teamIdentifier, signer, inPlace);
+                nestedCodeSigner.setNumberOfThreads(numberOfThreads);
+                nestedCodeSigner.setThreadPool(threadPool);
+                nestedCodeSigner.setPageSize(pageSize);
+                nestedCodeSigner.setPhaseStats(phaseStats);
+                nestedCodeSigner.setSignatureCache(signatureCache);
+                nestedCodeSigner.sign(nestedCode);
+            }
+
+            storeApplication(baseDir, normalizedAppPath, appName,
+                             appIdentifier, teamIdentifier, entitlements,
+                             resourcesHash, infoPlistHash,
+                             resources256Hash, infoPlist256Hash, isBundle,
+                             nestedCode,
+                             (nestedCodeSigner != null)
+                                     ? nestedCodeSigner.getStagingDir()
+                                     : null);
+        } finally {
+            if (nestedCodeSigner != null) {
+                nestedCodeSigner.close();
+            }
+        }
+    }
+
+    /**
+     * Stores the application from a source archive instead of a directory.
+     * The resources are copied from the source archive without being
+     * recompressed, only the executable and its CodeResources are new. The
+     * entries outside the application directory are copied unchanged.
+     */
+    public void storeArchivedApplication(
+            final File sourceFile,
+            final String appPath,
+            final String appName,
+            final String appIdentifier,
+            final String teamIdentifier,
+            final String entitlements,
+            final String resourcesHash,
+            final String infoPlistHash,
+            final String resources256Hash,
+            final String infoPlist256Hash,
+            final Boolean isBundle) throws IOException {
+        if (inPlace) {
+            throw new IOException(
+                    "An archived application can't be signed in place");
+        }
+
+        final String normalizedAppPath = normalizePath(appPath);
+        final ZipArchiveReader sourceArchive =
+                new ZipArchiveReader(sourceFile);
+        File executableFile = null;
+        try {
+            final ZipArchiveReader.Entry executableEntry =
+                    sourceArchive.getEntry(normalizedAppPath + appName);
+            if (executableEntry == null) {
+                throw new IOException("Application \"" + normalizedAppPath
+                                          + appName + "\" not found in "
+                                          + sourceFile);
+            }
+
+            // the executable is mapped while signing, so it has to be
+            // extracted
+            executableFile = File.createTempFile("ipack", ".exe");
+            final OutputStream executableStream =
+                    new FileOutputStream(executableFile);
+            try {
+                final InputStream entryStream =
+                        sourceArchive.getInputStream(executableEntry);
+                try {
+                    new DataCopier().copyStream(executableStream,
+                                                entryStream);
+                } finally {
+                    entryStream.close();
+                }
+            } finally {
+                executableStream.close();
+            }
+
+            for (final ZipArchiveReader.Entry entry:
+                    sourceArchive.getEntries()) {
+                if (!entry.getName().startsWith(normalizedAppPath)) {
+                    final InputStream rawStream =
+                            sourceArchive.getRawInputStream(entry);
+                    try {
+                        zipStream.writeRawEntry(entry.toZipEntry(),
+                                                rawStream);
+                    } finally {
+                        rawStream.close();
+                    }
+                }
+            }
+
+            if (!normalizedAppPath.isEmpty()) {
+                storeDirEntry(normalizedAppPath);
+            }
+
+            final ResourcePacker resourcePacker =
+                    new ResourcePacker(zipStream, null, normalizedAppPath,
+                                       appName, resourcesHash, infoPlistHash,
+                                       resources256Hash, infoPlist256Hash,
+                                       isBundle, false);
+            resourcePacker.setSourceArchive(sourceArchive);
+            resourcePacker.setPhaseStats(phaseStats);
+            resourcePacker.execute();
+
+            final ExecutablePacker executablePacker =
+                    new ExecutablePacker(zipStream, null, normalizedAppPath,
+                                         appName,
+                                         appIdentifier,
+                                         teamIdentifier,
+                                         entitlements,
+                                         false,
+                                         signer);
+            executablePacker.setExecutableFile(executableFile);
+            executablePacker.setNumberOfThreads(numberOfThreads);
+            executablePacker.setThreadPool(threadPool);
+            executablePacker.setPageSize(pageSize);
+            executablePacker.setPhaseStats(phaseStats);
+            executablePacker.setSignatureCache(signatureCache);
+            storeExecutable(resourcePacker, executablePacker);
+        } finally {
+            sourceArchive.close();
+            if (executableFile != null) {
+                executableFile.delete();
+            }
+        }
+    }
+
+    private void storeApplication(
+            final File baseDir,
+            final String normalizedAppPath,
+            final String appName,
+            final String appIdentifier,
+            final String teamIdentifier,
+            final String entitlements,
+            final String resourcesHash,
+            final String infoPlistHash,
+            final String resources256Hash,
+            final String infoPlist256Hash,
+            final Boolean isBundle,
+            final List<NestedCode> nestedCode,
+            final File nestedCodeDir) throws IOException {
         final ResourcePacker resourcePacker =
-                new ResourcePacker(zipStream, baseDir, normalizedAppPath,
-                                   appName, resourcesHash, infoPlistHash, resources256Hash, infoPlist256Hash, isBundle, inPlace);
+                createResourcePacker(baseDir, normalizedAppPath, appName,
+                                     resourcesHash, infoPlistHash,
+                                     resources256Hash, infoPlist256Hash,
+                                     isBundle);
+        resourcePacker.setNestedCode(nestedCode);
+        resourcePacker.setOverlayDir(nestedCodeDir);
         resourcePacker.execute();
 
         final ExecutablePacker executablePacker =
@@ -90,7 +387,65 @@ public final class Packer {
                                      entitlements,
                                      inPlace,
                                      signer);
+        executablePacker.setNumberOfThreads(numberOfThreads);
+        executablePacker.setThreadPool(threadPool);
+        executablePacker.setPageSize(pageSize);
+        executablePacker.setPhaseStats(phaseStats);
+        executablePacker.setSignatureCache(signatureCache);
+        storeExecutable(resourcePacker, executablePacker);
+    }
+
+    /**
+     * Hashes the resources of the application and writes its
+     * _CodeSignature/CodeResources into the application directory, without
+     * signing the executable or creating an archive. The hashes of the last
+     * stored application can be passed to a later signing run, which then
+     * doesn't need to read the resources. Only for packers signing in place.
+     */
+    public void storeManifest(final File baseDir,
+                              final String appPath,
+                              final String appName) throws IOException {
+        if (!inPlace) {
+            throw new IOException(
+                    "A manifest can only be written into the application");
+        }
+
+        final ResourcePacker resourcePacker =
+                createResourcePacker(baseDir, normalizePath(appPath),
+                                     appName, null, null, null, null, true);
+        resourcePacker.execute();
 
+        this.codeResourcesHash = resourcePacker.getCodeResourcesHash();
+        this.codeResources256Hash = resourcePacker.getCodeResources256Hash();
+        this.infoPlistHash = resourcePacker.getInfoPlistHash();
+        this.infoPlist256Hash = resourcePacker.getInfoPlist256Hash();
+    }
+
+    private ResourcePacker createResourcePacker(
+            final File baseDir,
+            final String normalizedAppPath,
+            final String appName,
+            final String resourcesHash,
+            final String infoPlistHash,
+            final String resources256Hash,
+            final String infoPlist256Hash,
+            final Boolean isBundle) {
+        final ResourcePacker resourcePacker =
+                new ResourcePacker(zipStream, baseDir, normalizedAppPath,
+                                   appName, resourcesHash, infoPlistHash, resources256Hash, infoPlist256Hash, isBundle, inPlace);
+        resourcePacker.setNumberOfThreads(numberOfThreads);
+        resourcePacker.setThreadPool(threadPool);
+        resourcePacker.setCompressionPolicy(compressionPolicy);
+        resourcePacker.setHashCacheFile(hashCacheFile);
+        resourcePacker.setHashCacheVerifyPercentage(hashCacheVerifyPercentage);
+        resourcePacker.setPhaseStats(phaseStats);
+
+        return resourcePacker;
+    }
+
+    private void storeExecutable(final ResourcePacker resourcePacker,
+                                 final ExecutablePacker executablePacker)
+            throws IOException {
         executablePacker.setCodeResourcesHash(
                 resourcePacker.getCodeResourcesHash());
         executablePacker.setInfoPlistHash(
@@ -100,19 +455,58 @@ public final class Packer {
         executablePacker.setInfoPlist256Hash(
                 resourcePacker.getInfoPlist256Hash());
         executablePacker.execute();
+
+        this.codeResourcesHash = resourcePacker.getCodeResourcesHash();
+        this.codeResources256Hash = resourcePacker.getCodeResources256Hash();
+        this.infoPlistHash = resourcePacker.getInfoPlistHash();
+        this.infoPlist256Hash = resourcePacker.getInfoPlist256Hash();
+    }
+
+    /**
+     * Returns the SHA-1 hash of the CodeResources of the last stored
+     * application.
+     */
+    public byte[] getCodeResourcesHash() {
+        return codeResourcesHash;
+    }
+
+    public byte[] getCodeResources256Hash() {
+        return codeResources256Hash;
+    }
+
+    /**
+     * Returns the SHA-1 hash of the Info.plist of the last stored
+     * application.
+     */
+    public byte[] getInfoPlistHash() {
+        return infoPlistHash;
+    }
+
+    public byte[] getInfoPlist256Hash() {
+        return infoPlist256Hash;
     }
 
     public void close() {
+        if (zipStream == null) {
+            return;
+        }
+
         try {
             zipStream.close();
         } catch (final IOException e) {
             // ignore
+        } finally {
+            if ((deflatePool != null) && (deflatePool != threadPool)) {
+                deflatePool.shutdown();
+            }
         }
     }
 
     private void storeDirEntry(final String entryName) throws IOException {
         // TODO: intermediate dirs
-        zipStream.putNextEntry(new ZipEntry(entryName));
+        final ZipEntry zipEntry = new ZipEntry(entryName);
+        zipEntry.setSize(0);
+        zipStream.putNextEntry(zipEntry);
         zipStream.closeEntry();
     }
 
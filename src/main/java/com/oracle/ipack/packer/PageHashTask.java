@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.packer;
+
+import com.oracle.ipack.util.DualDigest;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Calculates the SHA-1 and SHA-256 page hashes of a patched executable
+ * directly into the code slot arrays of the code directories.
+ *
+ * The executable content is the patched header followed by the original
+ * file data and zero padding up to the code limit. The file data is memory
+ * mapped in regions of MAPPED_REGION_SIZE bytes, since a single mapping can't
+ * exceed 2 GB. Ranges of pages are split between the threads of a fork-join
+ * pool.
+ */
+final class PageHashTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    // a multiple of any supported page size, so pages don't cross regions
+    static final int MAPPED_REGION_SIZE = 1 << 30;
+
+    // number of pages hashed by a single task without further splitting
+    private static final int PAGES_PER_TASK = 64;
+
+    private final byte[] header;
+    private final ByteBuffer[] fileRegions;
+    private final long fileDataSize;
+    private final long codeLimit;
+    private final int pageSize;
+    private final byte[] codeSlots;
+    private final byte[] codeSlots256;
+    private final int firstPage;
+    private final int endPage;
+
+    PageHashTask(final byte[] header,
+                 final ByteBuffer[] fileRegions,
+                 final long fileDataSize,
+                 final long codeLimit,
+                 final int pageSize,
+                 final byte[] codeSlots,
+                 final byte[] codeSlots256) {
+        this(header, fileRegions, fileDataSize, codeLimit, pageSize,
+             codeSlots, codeSlots256,
+             0, (int) ((codeLimit + pageSize - 1) / pageSize));
+    }
+
+    private PageHashTask(final byte[] header,
+                         final ByteBuffer[] fileRegions,
+                         final long fileDataSize,
+                         final long codeLimit,
+                         final int pageSize,
+                         final byte[] codeSlots,
+                         final byte[] codeSlots256,
+                         final int firstPage,
+                         final int endPage) {
+        this.header = header;
+        this.fileRegions = fileRegions;
+        this.fileDataSize = fileDataSize;
+        this.codeLimit = codeLimit;
+        this.pageSize = pageSize;
+        this.codeSlots = codeSlots;
+        this.codeSlots256 = codeSlots256;
+        this.firstPage = firstPage;
+        this.endPage = endPage;
+    }
+
+    /**
+     * Maps the given part of the file read-only in consecutive regions of
+     * MAPPED_REGION_SIZE bytes.
+     */
+    static ByteBuffer[] mapRegions(final FileChannel channel,
+                                   final long offset,
+                                   final long size) throws IOException {
+        final ByteBuffer[] regions =
+                new ByteBuffer[(int) ((size + MAPPED_REGION_SIZE - 1)
+                                          / MAPPED_REGION_SIZE)];
+        for (int i = 0; i < regions.length; ++i) {
+            final long regionStart = (long) i * MAPPED_REGION_SIZE;
+            regions[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                     offset + regionStart,
+                                     Math.min(MAPPED_REGION_SIZE,
+                                              size - regionStart));
+        }
+
+        return regions;
+    }
+
+    @Override
+    protected void compute() {
+        if ((endPage - firstPage) <= PAGES_PER_TASK) {
+            hashPages();
+            return;
+        }
+
+        final int middlePage = (firstPage + endPage) >>> 1;
+        invokeAll(new PageHashTask(header, fileRegions, fileDataSize,
+                                   codeLimit, pageSize,
+                                   codeSlots, codeSlots256,
+                                   firstPage, middlePage),
+                  new PageHashTask(header, fileRegions, fileDataSize,
+                                   codeLimit, pageSize,
+                                   codeSlots, codeSlots256,
+                                   middlePage, endPage));
+    }
+
+    private void hashPages() {
+        final DualDigest digest = new DualDigest();
+        final byte[] page = new byte[pageSize];
+
+        for (int i = firstPage; i < endPage; ++i) {
+            final long pageStart = (long) i * pageSize;
+            final int pageLength =
+                    (int) Math.min(pageSize, codeLimit - pageStart);
+            readPage(page, pageStart, pageLength);
+
+            digest.update(page, 0, pageLength);
+            digest.digest(codeSlots, i * 20, codeSlots256, i * 32);
+        }
+    }
+
+    private void readPage(final byte[] page,
+                          final long pageStart,
+                          final int pageLength) {
+        int filled = 0;
+        if (pageStart < header.length) {
+            // the header has been patched, so take it from the new one
+            filled = (int) Math.min(pageLength, header.length - pageStart);
+            System.arraycopy(header, (int) pageStart, page, 0, filled);
+        }
+
+        while ((filled < pageLength) && (pageStart + filled < fileDataSize)) {
+            final long dataStart = pageStart + filled;
+            final ByteBuffer region =
+                    fileRegions[(int) (dataStart / MAPPED_REGION_SIZE)]
+                            .duplicate();
+            region.position((int) (dataStart % MAPPED_REGION_SIZE));
+            final int dataLength = Math.min(pageLength - filled,
+                                            region.remaining());
+            region.get(page, filled, dataLength);
+            filled += dataLength;
+        }
+
+        // the rest is padding up to the code limit
+        while (filled < pageLength) {
+            page[filled++] = 0;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.packer;
+
+import com.oracle.ipack.Pair;
+import com.oracle.ipack.util.DataCopier;
+import com.oracle.ipack.util.HashingOutputStream;
+import com.oracle.ipack.util.NullOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent cache of the SHA-1 and SHA-256 hashes of application resources,
+ * so repeated signing of the same application only reads the resources
+ * which have changed.
+ *
+ * Entries are keyed by the resource path relative to the application
+ * directory and are only used while the size, the modification time and the
+ * file key (device and inode on unix) of the file are unchanged. Resources
+ * modified shortly before the run started are not stored, since a later
+ * modification within the timestamp granularity of the file system wouldn't
+ * be noticed. Only the resources seen by the last run are kept in the cache
+ * file, an unreadable or incompatible cache file is ignored.
+ */
+final class ResourceHashCache {
+    private static final int MAGIC = 0x69686331; // "ihc1"
+    private static final int VERSION = 1;
+
+    // covers the timestamp granularity of common file systems
+    private static final long RACY_INTERVAL_NANOS =
+            TimeUnit.SECONDS.toNanos(2);
+
+    private final File cacheFile;
+    private final long runStartNanos;
+    private final Map<String, Entry> loadedEntries;
+    private final Map<String, Entry> currentEntries;
+
+    private ResourceHashCache(final File cacheFile,
+                              final Map<String, Entry> loadedEntries) {
+        this.cacheFile = cacheFile;
+        this.runStartNanos =
+                TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        this.loadedEntries = loadedEntries;
+        this.currentEntries = new ConcurrentHashMap<String, Entry>();
+    }
+
+    static ResourceHashCache load(final File cacheFile) {
+        final Map<String, Entry> entries =
+                new ConcurrentHashMap<String, Entry>();
+        if (cacheFile.isFile()) {
+            try {
+                readEntries(cacheFile, entries);
+            } catch (final IOException e) {
+                // start with an empty cache
+                entries.clear();
+            }
+        }
+
+        return new ResourceHashCache(cacheFile, entries);
+    }
+
+    /**
+     * Returns the hashes of the given resource, either from the cache or by
+     * reading the file. Can be called concurrently.
+     */
+    Pair<byte[], byte[]> hash(final String name,
+                              final File file,
+                              final DataCopier dataCopier)
+            throws IOException {
+        // the attributes are read before the content, so a modification
+        // during hashing invalidates the entry
+        final FileState state = FileState.read(file);
+        final Entry cachedEntry = loadedEntries.get(name);
+        if ((cachedEntry != null) && cachedEntry.state.equals(state)) {
+            currentEntries.put(name, cachedEntry);
+            return new Pair<byte[], byte[]>(cachedEntry.hash,
+                                            cachedEntry.hash256);
+        }
+
+        final Pair<byte[], byte[]> hashPair = hashFile(file, dataCopier);
+        currentEntries.put(name,
+                           new Entry(state, hashPair.first, hashPair.second));
+        return hashPair;
+    }
+
+    /**
+     * Rehashes the given percentage of the cached resources which are still
+     * unchanged in the application directory. If any of them doesn't match,
+     * the whole cache is dropped. Returns whether the sample matched.
+     */
+    boolean verifySample(final File appDir,
+                         final int percentage,
+                         final DataCopier dataCopier) throws IOException {
+        final Random random = new Random();
+        for (final Map.Entry<String, Entry> mapEntry:
+                 loadedEntries.entrySet()) {
+            if (random.nextInt(100) >= percentage) {
+                continue;
+            }
+
+            final Entry cachedEntry = mapEntry.getValue();
+            final File file = new File(appDir, mapEntry.getKey());
+            if (!file.isFile()
+                    || !cachedEntry.state.equals(FileState.read(file))) {
+                continue;
+            }
+
+            final Pair<byte[], byte[]> hashPair = hashFile(file, dataCopier);
+            if (!Arrays.equals(cachedEntry.hash, hashPair.first)
+                    || !Arrays.equals(cachedEntry.hash256,
+                                      hashPair.second)) {
+                loadedEntries.clear();
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Stores the entries of the resources seen in this run.
+     */
+    void save() throws IOException {
+        final File parentDir = cacheFile.getAbsoluteFile().getParentFile();
+        // a fixed prefix, the name of the cache file may be too short for one
+        final File tempFile =
+                Files.createTempFile(parentDir.toPath(), ".ipack-hash-cache",
+                                     ".tmp").toFile();
+        try {
+            final DataOutputStream os =
+                    new DataOutputStream(
+                        new BufferedOutputStream(
+                            new FileOutputStream(tempFile)));
+            try {
+                writeEntries(os);
+            } finally {
+                os.close();
+            }
+
+            Files.move(tempFile.toPath(), cacheFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    private void writeEntries(final DataOutputStream os) throws IOException {
+        int numberOfEntries = 0;
+        for (final Entry entry: currentEntries.values()) {
+            if (isStorable(entry)) {
+                ++numberOfEntries;
+            }
+        }
+
+        os.writeInt(MAGIC);
+        os.writeInt(VERSION);
+        os.writeInt(numberOfEntries);
+        for (final Map.Entry<String, Entry> mapEntry:
+                 currentEntries.entrySet()) {
+            final Entry entry = mapEntry.getValue();
+            if (!isStorable(entry)) {
+                continue;
+            }
+
+            os.writeUTF(mapEntry.getKey());
+            os.writeLong(entry.state.size);
+            os.writeLong(entry.state.modificationTime);
+            os.writeUTF(entry.state.fileKey);
+            os.write(entry.hash);
+            os.write(entry.hash256);
+        }
+    }
+
+    private boolean isStorable(final Entry entry) {
+        return entry.state.modificationTime
+                   < (runStartNanos - RACY_INTERVAL_NANOS);
+    }
+
+    private static void readEntries(final File cacheFile,
+                                    final Map<String, Entry> entries)
+            throws IOException {
+        final DataInputStream is =
+                new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(cacheFile)));
+        try {
+            if ((is.readInt() != MAGIC) || (is.readInt() != VERSION)) {
+                throw new IOException("Incompatible hash cache");
+            }
+
+            final int numberOfEntries = is.readInt();
+            for (int i = 0; i < numberOfEntries; ++i) {
+                final String name = is.readUTF();
+                final long size = is.readLong();
+                final long modificationTime = is.readLong();
+                final String fileKey = is.readUTF();
+                final byte[] hash = new byte[20];
+                is.readFully(hash);
+                final byte[] hash256 = new byte[32];
+                is.readFully(hash256);
+
+                entries.put(name,
+                            new Entry(new FileState(size, modificationTime,
+                                                    fileKey),
+                                      hash, hash256));
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    private static Pair<byte[], byte[]> hashFile(final File file,
+                                                 final DataCopier dataCopier)
+            throws IOException {
+        final HashingOutputStream hashingStream =
+                new HashingOutputStream(new NullOutputStream());
+        try {
+            dataCopier.copyFile(hashingStream, file);
+        } finally {
+            hashingStream.close();
+        }
+
+        return new Pair<byte[], byte[]>(hashingStream.calculateHash(),
+                                        hashingStream.calculateHash(256));
+    }
+
+    private static final class FileState {
+        private final long size;
+        private final long modificationTime;
+        private final String fileKey;
+
+        FileState(final long size,
+                  final long modificationTime,
+                  final String fileKey) {
+            this.size = size;
+            this.modificationTime = modificationTime;
+            this.fileKey = fileKey;
+        }
+
+        static FileState read(final File file) throws IOException {
+            final BasicFileAttributes attributes =
+                    Files.readAttributes(file.toPath(),
+                                         BasicFileAttributes.class);
+            final Object fileKey = attributes.fileKey();
+            return new FileState(
+                           attributes.size(),
+                           attributes.lastModifiedTime().to(
+                                   TimeUnit.NANOSECONDS),
+                           (fileKey != null) ? fileKey.toString() : "");
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof FileState)) {
+                return false;
+            }
+
+            final FileState otherState = (FileState) other;
+            return (size == otherState.size)
+                       && (modificationTime == otherState.modificationTime)
+                       && fileKey.equals(otherState.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (size ^ modificationTime) ^ fileKey.hashCode();
+        }
+    }
+
+    private static final class Entry {
+        private final FileState state;
+        private final byte[] hash;
+        private final byte[] hash256;
+
+        Entry(final FileState state,
+              final byte[] hash,
+              final byte[] hash256) {
+            this.state = state;
+            this.hash = hash;
+            this.hash256 = hash256;
+        }
+    }
+}
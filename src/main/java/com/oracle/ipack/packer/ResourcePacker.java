@@ -28,18 +28,47 @@ package com.oracle.ipack.packer;
 import com.oracle.ipack.Pair;
 import com.oracle.ipack.resources.CodeResources;
 import com.oracle.ipack.resources.ResourceRules;
+import com.oracle.ipack.resources.ResourceScanner;
+import com.oracle.ipack.util.CompressionStats;
 import com.oracle.ipack.util.DataCopier;
 import com.oracle.ipack.util.HashingOutputStream;
+import com.oracle.ipack.util.NullOutputStream;
+import com.oracle.ipack.util.PhaseStats;
+import com.oracle.ipack.util.ZipArchiveOutputStream;
+import com.oracle.ipack.util.ZipArchiveReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.ZipException;
 import javax.xml.bind.DatatypeConverter;
 
 final class ResourcePacker {
-    private final ZipOutputStream zipStream;
+    // files larger than this are not buffered by the worker threads, they
+    // are hashed and compressed on the writer thread while being stored
+    private static final long MAX_BUFFERED_RESOURCE_SIZE = 4 * 1024 * 1024;
+    // number of resources which can be processed ahead of the writer per
+    // worker thread
+    private static final int RESOURCES_AHEAD_PER_THREAD = 4;
+
+    private final ZipArchiveOutputStream zipStream;
     private final File baseDir;
     private final String appPath;
     private final String resourcesHashStr;
@@ -57,8 +86,19 @@ final class ResourcePacker {
     private byte[] infoPlistHash;
     private byte[] codeResources256Hash;
     private byte[] infoPlist256Hash;
+    private int numberOfThreads;
+    private ExecutorService threadPool;
+    private CompressionPolicy compressionPolicy;
+    private File hashCacheFile;
+    private int hashCacheVerifyPercentage;
+    private ResourceHashCache hashCache;
+    private File overlayDir;
+    private File codeResourcesFile;
+    private List<NestedCode> nestedCode;
+    private ZipArchiveReader sourceArchive;
+    private PhaseStats phaseStats;
 
-    ResourcePacker(final ZipOutputStream zipStream,
+    ResourcePacker(final ZipArchiveOutputStream zipStream,
                    final File baseDir,
                    final String appPath,
                    final String appName,
@@ -79,16 +119,95 @@ final class ResourcePacker {
         this.inPlace = inPlace;
 
         dataCopier = new DataCopier();
-        dataStream = new HashingOutputStream(zipStream);
+        // there is no archive when signing in place
+        dataStream = inPlace ? null : new HashingOutputStream(zipStream);
 
         infoPlistHash = new byte[20];
         infoPlist256Hash = new byte[32];
+        numberOfThreads = 1;
+        compressionPolicy = new CompressionPolicy();
+        nestedCode = Collections.emptyList();
+        phaseStats = new PhaseStats(false);
+
+        resourceRules = createResourceRules(appName);
+    }
 
-        resourceRules = new ResourceRules();
+    /**
+     * Creates the rules excluding the executable and the signature files of
+     * a bundle from its resources.
+     */
+    static ResourceRules createResourceRules(final String appName) {
+        final ResourceRules resourceRules = new ResourceRules();
         resourceRules.addExclude(appName, -1);
         resourceRules.addExclude("_CodeSignature", -1);
         resourceRules.addExclude("CodeResources", -1);
         resourceRules.addExclude("ResourceRules.plist", 100);
+
+        return resourceRules;
+    }
+
+    void setNumberOfThreads(final int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    void setThreadPool(final ExecutorService threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    void setCompressionPolicy(final CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    void setHashCacheFile(final File hashCacheFile) {
+        this.hashCacheFile = hashCacheFile;
+    }
+
+    void setHashCacheVerifyPercentage(final int hashCacheVerifyPercentage) {
+        this.hashCacheVerifyPercentage = hashCacheVerifyPercentage;
+    }
+
+    /**
+     * Sets the directory with signed nested code which replaces or adds to
+     * the files of the application. It has the layout of the application
+     * directory.
+     */
+    void setOverlayDir(final File overlayDir) {
+        this.overlayDir = overlayDir;
+    }
+
+    /**
+     * Sets the file to which the CodeResources are written when signing in
+     * place, by default they are written into the application.
+     */
+    void setCodeResourcesFile(final File codeResourcesFile) {
+        this.codeResourcesFile = codeResourcesFile;
+    }
+
+    /**
+     * Sets the signed nested code of the application, it is sealed by its
+     * cdhash instead of its files.
+     */
+    void setNestedCode(final List<NestedCode> nestedCode) {
+        this.nestedCode = nestedCode;
+    }
+
+    /**
+     * Sets the archive from which the resources are taken instead of the
+     * application directory. The resources are only inflated for hashing,
+     * their compressed data are copied to the new archive unchanged.
+     */
+    void setSourceArchive(final ZipArchiveReader sourceArchive) {
+        this.sourceArchive = sourceArchive;
+    }
+
+    /**
+     * Sets the statistics to which the directory scan, the hashing and the
+     * compression of the resources are added. Streamed resources are hashed
+     * and deflated in a single pass, the time of their hashing includes the
+     * compression.
+     */
+    void setPhaseStats(final PhaseStats phaseStats) {
+        this.phaseStats = phaseStats;
     }
 
     void execute() throws IOException {
@@ -108,15 +227,16 @@ final class ResourcePacker {
             }
         } else {
             storeResourceFiles(codeResources);
+            for (final NestedCode nestedCodeEntry: nestedCode) {
+                codeResources.addNestedCode(
+                        nestedCodeEntry.getPath(),
+                        nestedCodeEntry.getCodeDirectoryHash(),
+                        nestedCodeEntry.getRequirement());
+            }
             Pair<byte[], byte[]> codeResourcesHashPair = storeCodeResources(codeResources);
             codeResourcesHash = codeResourcesHashPair.first;
             codeResources256Hash = codeResourcesHashPair.second;
         }
-        //This should be the only output from the program ever, it's used by codesign.py and any other output will cause codesign.py to stop working
-        System.out.println(DatatypeConverter.printHexBinary(codeResourcesHash));
-        System.out.println(DatatypeConverter.printHexBinary(codeResources256Hash));
-        System.out.println(DatatypeConverter.printHexBinary(infoPlistHash));
-        System.out.println(DatatypeConverter.printHexBinary(infoPlist256Hash));
     }
 
     byte[] getCodeResourcesHash() {
@@ -137,74 +257,607 @@ final class ResourcePacker {
 
     private void storeResourceFiles(final CodeResources codeResources)
             throws IOException {
-        final List<String> resources =
-                resourceRules.collectResources(
-                        new File(baseDir, appPath));
+        if (sourceArchive != null) {
+            storeArchivedResourceFiles(codeResources);
+            return;
+        }
 
-        for (final String resourceName: resources) {
+        // the hash cache is only used when signing in place, otherwise all
+        // the resources have to be read for the archive anyway
+        if (inPlace && (hashCacheFile != null)) {
+            hashCache = ResourceHashCache.load(hashCacheFile);
+            if ((hashCacheVerifyPercentage > 0)
+                    && !hashCache.verifySample(new File(baseDir, appPath),
+                                               hashCacheVerifyPercentage,
+                                               dataCopier)) {
+                System.err.println("Hash cache verification failed, "
+                                       + "rehashing all resources");
+            }
+        }
+
+        if (numberOfThreads > 1) {
+            storeResourceFilesConcurrently(codeResources);
+        } else {
+            storeResourceFilesSequentially(
+                    codeResources,
+                    resourceRules.scanResources(new File(baseDir, appPath),
+                                                overlayDir, null,
+                                                phaseStats));
+        }
+
+        if (hashCache != null) {
+            try {
+                hashCache.save();
+            } catch (final IOException e) {
+                // the cache only saves time, the application is signed
+                // without it
+                System.err.println("Failed to save hash cache "
+                                       + hashCacheFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void storeResourceFilesSequentially(
+            final CodeResources codeResources,
+            final ResourceScanner resources) throws IOException {
+        for (String resourceName = resources.next();
+                 resourceName != null;
+                 resourceName = resources.next()) {
             final String fullResourceName =
                     appPath + resourceName;
             if (resourceName.endsWith("/")) {
-                storeDirEntry(fullResourceName);
+                if (!inPlace) {
+                    storeDirEntry(fullResourceName);
+                }
                 continue;
             }
 
-            final Pair<byte[], byte[]> resourceHashPair = storeFileEntry(fullResourceName, new File(baseDir, fullResourceName));
+            final File resourceFile = getResourceFile(resourceName);
+            final Pair<byte[], byte[]> resourceHashPair =
+                    inPlace ? hashFileEntry(resourceName, resourceFile)
+                            : storeResourceFileEntry(fullResourceName,
+                                                     resourceFile);
             final byte[] resourceHash = resourceHashPair.first;
             final byte[] resourceHash256 = resourceHashPair.second;
             codeResources.addHashedResource(resourceName, resourceHash, resourceHash256);
         }
     }
 
+    /**
+     * Reads, hashes and deflates the resources on a pool of worker threads.
+     * The finished entries are appended to the archive by the calling thread
+     * in the order of the resource list, so the produced archive is the same
+     * as the one produced by the sequential code path. When signing in place
+     * the resources are only hashed.
+     */
+    private void storeResourceFilesConcurrently(
+            final CodeResources codeResources) throws IOException {
+        final ExecutorService executor =
+                (threadPool != null)
+                        ? threadPool
+                        : Executors.newFixedThreadPool(
+                                  numberOfThreads, new WorkerThreadFactory());
+        final ArrayDeque<Future<PackedResource>> pendingResources =
+                new ArrayDeque<Future<PackedResource>>();
+        try {
+            final int maxPendingResources =
+                    numberOfThreads * RESOURCES_AHEAD_PER_THREAD;
+            final int level = inPlace ? Deflater.NO_COMPRESSION
+                                      : zipStream.getLevel();
+            final CompressionStats compressionStats =
+                    inPlace ? null : zipStream.getCompressionStats();
+
+            // the directories are listed on the same threads, ahead of the
+            // resources being hashed
+            final ResourceScanner resources =
+                    resourceRules.scanResources(new File(baseDir, appPath),
+                                                overlayDir, executor,
+                                                phaseStats);
+            String nextResourceName = resources.next();
+            while ((nextResourceName != null)
+                       || !pendingResources.isEmpty()) {
+                while ((nextResourceName != null)
+                           && (pendingResources.size()
+                                   < maxPendingResources)) {
+                    final String resourceName = nextResourceName;
+                    nextResourceName = resources.next();
+                    pendingResources.add(executor.submit(
+                            new ResourceTask(resourceName,
+                                             getResourceFile(resourceName),
+                                             level,
+                                             inPlace,
+                                             hashCache,
+                                             compressionPolicy,
+                                             compressionStats,
+                                             phaseStats)));
+                }
+
+                final PackedResource packedResource =
+                        waitFor(pendingResources.removeFirst());
+                final String fullResourceName =
+                        appPath + packedResource.name;
+                if (packedResource.name.endsWith("/")) {
+                    if (!inPlace) {
+                        storeDirEntry(fullResourceName);
+                    }
+                    continue;
+                }
+
+                final Pair<byte[], byte[]> resourceHashPair;
+                if (inPlace) {
+                    resourceHashPair =
+                            hashedEntry(fullResourceName,
+                                        packedResource.hash,
+                                        packedResource.hash256);
+                } else if (packedResource.data == null) {
+                    // too large to be buffered, store it directly
+                    resourceHashPair =
+                            storeResourceFileEntry(fullResourceName,
+                                                   packedResource.file);
+                } else {
+                    resourceHashPair =
+                            storePackedEntry(fullResourceName,
+                                             packedResource);
+                }
+                codeResources.addHashedResource(packedResource.name,
+                                                resourceHashPair.first,
+                                                resourceHashPair.second);
+            }
+        } finally {
+            if (executor != threadPool) {
+                executor.shutdownNow();
+            } else {
+                // the shared pool stays alive, drop only our own tasks
+                for (final Future<PackedResource> pendingResource:
+                        pendingResources) {
+                    pendingResource.cancel(true);
+                }
+            }
+        }
+    }
+
+    private void storeArchivedResourceFiles(
+            final CodeResources codeResources) throws IOException {
+        final List<String> entryNames = new ArrayList<String>();
+        for (final ZipArchiveReader.Entry entry: sourceArchive.getEntries()) {
+            if (entry.getName().startsWith(appPath)) {
+                entryNames.add(entry.getName().substring(appPath.length()));
+            }
+        }
+
+        final List<String> resources =
+                resourceRules.collectResources(entryNames);
+        for (final String resourceName: resources) {
+            final String fullResourceName = appPath + resourceName;
+            if (resourceName.endsWith("/")) {
+                storeDirEntry(fullResourceName);
+                continue;
+            }
+
+            final ZipArchiveReader.Entry entry =
+                    sourceArchive.getEntry(fullResourceName);
+            if ((entry.getMethod() != ZipEntry.STORED)
+                    && (entry.getMethod() != ZipEntry.DEFLATED)) {
+                throw new ZipException("Unsupported compression method of "
+                                           + fullResourceName);
+            }
+
+            // the crc is checked as well, the raw data are copied unchecked
+            final PhaseStats.Measurement measurement =
+                    phaseStats.start(PhaseStats.RESOURCE_HASHING);
+            final CRC32 crc = new CRC32();
+            final HashingOutputStream hashingStream =
+                    new HashingOutputStream(
+                        new CheckedOutputStream(new NullOutputStream(), crc));
+            final InputStream entryStream =
+                    sourceArchive.getInputStream(entry);
+            try {
+                dataCopier.copyStream(hashingStream, entryStream);
+            } finally {
+                entryStream.close();
+                hashingStream.close();
+            }
+            measurement.end(1, entry.getSize());
+            if (crc.getValue() != entry.getCrc()) {
+                throw new ZipException("Invalid crc-32 of "
+                                           + fullResourceName);
+            }
+
+            final InputStream rawStream =
+                    sourceArchive.getRawInputStream(entry);
+            try {
+                zipStream.writeRawEntry(entry.toZipEntry(), rawStream);
+            } finally {
+                rawStream.close();
+            }
+
+            final Pair<byte[], byte[]> resourceHashPair =
+                    hashedEntry(fullResourceName,
+                                hashingStream.calculateHash(),
+                                hashingStream.calculateHash(256));
+            codeResources.addHashedResource(resourceName,
+                                            resourceHashPair.first,
+                                            resourceHashPair.second);
+        }
+    }
+
     private Pair<byte[], byte[]> storeCodeResources(final CodeResources codeResources)
             throws IOException {
+        if (inPlace) {
+            return writeCodeResources(codeResources);
+        }
+
         storeDirEntry(appPath + "_CodeSignature/");
 
         final String codeResourcesName =
                 appPath + "_CodeSignature/CodeResources";
 
+        // serialized first, so the entry gets its size up front
+        final ByteArrayOutputStream codeResourcesBytes =
+                new ByteArrayOutputStream();
+        codeResources.write(codeResourcesBytes);
+
         //System.out.println("Resource Adding " + codeResourcesName);
-        zipStream.putNextEntry(new ZipEntry(codeResourcesName));
+        final ZipEntry zipEntry = new ZipEntry(codeResourcesName);
+        zipEntry.setSize(codeResourcesBytes.size());
+        zipStream.putNextEntry(zipEntry);
         try {
-            codeResources.write(dataStream);
+            codeResourcesBytes.writeTo(dataStream);
         } finally {
             dataStream.flush();
             zipStream.closeEntry();
         }
-        if (inPlace) {
-            (new File(baseDir, "_CodeSignature")).mkdirs();
-            File codeResourcesFile = new File(baseDir, codeResourcesName);
-            codeResourcesFile.createNewFile();
-            FileOutputStream codeResourcesFileStream = new FileOutputStream(codeResourcesFile);
-            codeResources.write(codeResourcesFileStream);
-            codeResourcesFileStream.close();
-        }
 
         return new Pair<byte[], byte[]>(dataStream.calculateHash(), dataStream.calculateHash(256));
     }
 
+    private Pair<byte[], byte[]> writeCodeResources(
+            final CodeResources codeResources) throws IOException {
+        final File outputFile =
+                (codeResourcesFile != null)
+                        ? codeResourcesFile
+                        : new File(baseDir,
+                                   appPath + "_CodeSignature/CodeResources");
+        outputFile.getParentFile().mkdirs();
+
+        final HashingOutputStream codeResourcesStream =
+                new HashingOutputStream(new FileOutputStream(outputFile));
+        try {
+            codeResources.write(codeResourcesStream);
+        } finally {
+            codeResourcesStream.close();
+        }
+
+        return new Pair<byte[], byte[]>(codeResourcesStream.calculateHash(),
+                                        codeResourcesStream.calculateHash(256));
+    }
+
+    private File getResourceFile(final String resourceName) {
+        if (overlayDir != null) {
+            final File overlayFile = new File(overlayDir, resourceName);
+            if (overlayFile.isFile()) {
+                return overlayFile;
+            }
+        }
+
+        return new File(baseDir, appPath + resourceName);
+    }
+
     private void storeDirEntry(final String entryName) throws IOException {
-        zipStream.putNextEntry(new ZipEntry(entryName));
+        final ZipEntry zipEntry = new ZipEntry(entryName);
+        zipEntry.setSize(0);
+        zipStream.putNextEntry(zipEntry);
         zipStream.closeEntry();
     }
 
+    private Pair<byte[], byte[]> storePackedEntry(
+            final String entryName,
+            final PackedResource packedResource) throws IOException {
+        final ZipEntry zipEntry = new ZipEntry(entryName);
+        zipEntry.setSize(packedResource.size);
+        zipEntry.setCrc(packedResource.crc);
+        if (packedResource.stored) {
+            zipStream.writeStoredEntry(zipEntry, packedResource.data, 0,
+                                       packedResource.data.length);
+        } else {
+            zipStream.writeDeflatedEntry(zipEntry, packedResource.data, 0,
+                                         packedResource.data.length);
+        }
+
+        return hashedEntry(entryName, packedResource.hash,
+                           packedResource.hash256);
+    }
+
+    private static PackedResource waitFor(final Future<PackedResource> future)
+            throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while packing resources", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to pack resource", cause);
+        }
+    }
+
     private Pair<byte[], byte[]> storeFileEntry(final String entryName,
                                   final File file) throws IOException {
         //System.out.println("Adding " + entryName);
-        zipStream.putNextEntry(new ZipEntry(entryName));
+        final ZipEntry zipEntry = new ZipEntry(entryName);
+        // only a hint, the local header is completed once the data are written
+        zipEntry.setSize(file.length());
+        zipStream.putNextEntry(zipEntry);
+        final PhaseStats.Measurement measurement =
+                phaseStats.start(PhaseStats.RESOURCE_HASHING);
         try {
             dataCopier.copyFile(dataStream, file);
         } finally {
             dataStream.flush();
             zipStream.closeEntry();
         }
+        measurement.end(1, zipEntry.getSize());
+
+        return hashedEntry(entryName, dataStream.calculateHash(),
+                           dataStream.calculateHash(256));
+    }
+
+    /**
+     * Stores a resource file either deflated or, if the compression policy
+     * says so, uncompressed. A stored file is read twice, its crc has to be
+     * known before its data are written. The second time its data are
+     * transferred to the archive file by the file channels.
+     */
+    private Pair<byte[], byte[]> storeResourceFileEntry(
+            final String entryName,
+            final File file) throws IOException {
+        if (!compressionPolicy.isStored(entryName, file)) {
+            return storeFileEntry(entryName, file);
+        }
+
+        final PhaseStats.Measurement measurement =
+                phaseStats.start(PhaseStats.RESOURCE_HASHING);
+        final CRC32 crc = new CRC32();
+        final HashingOutputStream hashingStream =
+                new HashingOutputStream(
+                    new CheckedOutputStream(new NullOutputStream(), crc));
+        try {
+            dataCopier.copyFile(hashingStream, file);
+        } finally {
+            hashingStream.close();
+        }
+        measurement.end(1, file.length());
+
+        final ZipEntry zipEntry = new ZipEntry(entryName);
+        zipEntry.setMethod(ZipEntry.STORED);
+        zipEntry.setCrc(crc.getValue());
+        final FileChannel fileChannel = new FileInputStream(file).getChannel();
+        try {
+            zipStream.writeStoredEntry(zipEntry, fileChannel);
+        } finally {
+            fileChannel.close();
+        }
+
+        return hashedEntry(entryName, hashingStream.calculateHash(),
+                           hashingStream.calculateHash(256));
+    }
+
+    private Pair<byte[], byte[]> hashFileEntry(final String resourceName,
+                                               final File file)
+            throws IOException {
+        final String entryName = appPath + resourceName;
+        final PhaseStats.Measurement measurement =
+                phaseStats.start(PhaseStats.RESOURCE_HASHING);
+        if (hashCache != null) {
+            final Pair<byte[], byte[]> hashPair =
+                    hashCache.hash(resourceName, file, dataCopier);
+            measurement.end(1, file.length());
+            return hashedEntry(entryName, hashPair.first, hashPair.second);
+        }
+
+        final HashingOutputStream hashingStream =
+                new HashingOutputStream(new NullOutputStream());
+        try {
+            dataCopier.copyFile(hashingStream, file);
+        } finally {
+            hashingStream.close();
+        }
+        measurement.end(1, file.length());
+
+        return hashedEntry(entryName, hashingStream.calculateHash(),
+                           hashingStream.calculateHash(256));
+    }
 
-        byte[] hash = dataStream.calculateHash();
-        byte[] hash256 = dataStream.calculateHash(256);
+    private Pair<byte[], byte[]> hashedEntry(final String entryName,
+                                             final byte[] hash,
+                                             final byte[] hash256) {
         if(isBundle && entryName.equals(appPath + "Info.plist")) {
             infoPlistHash = hash;
             infoPlist256Hash = hash256;
         }
         return new Pair<byte[], byte[]>(hash, hash256);
     }
+
+    private static final class PackedResource {
+        private final String name;
+        private final File file;
+        private final byte[] hash;
+        private final byte[] hash256;
+        private final long crc;
+        private final long size;
+        private final byte[] data;
+        private final boolean stored;
+
+        public PackedResource(final String name,
+                              final File file,
+                              final byte[] hash,
+                              final byte[] hash256,
+                              final long crc,
+                              final long size,
+                              final byte[] data,
+                              final boolean stored) {
+            this.name = name;
+            this.file = file;
+            this.hash = hash;
+            this.hash256 = hash256;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+            this.stored = stored;
+        }
+    }
+
+    /**
+     * Hashes and deflates a single resource into memory, unless the
+     * compression policy stores it uncompressed. With hashOnly the resource
+     * is only hashed, regardless of its size, using the hash cache if there
+     * is one.
+     */
+    private static final class ResourceTask implements Callable<PackedResource> {
+        private static final ThreadLocal<DataCopier> DATA_COPIER =
+                new ThreadLocal<DataCopier>() {
+                    @Override
+                    protected DataCopier initialValue() {
+                        return new DataCopier();
+                    }
+                };
+
+        private final String name;
+        private final File file;
+        private final int level;
+        private final boolean hashOnly;
+        private final ResourceHashCache hashCache;
+        private final CompressionPolicy compressionPolicy;
+        private final CompressionStats compressionStats;
+        private final PhaseStats phaseStats;
+
+        public ResourceTask(final String name,
+                            final File file,
+                            final int level,
+                            final boolean hashOnly,
+                            final ResourceHashCache hashCache,
+                            final CompressionPolicy compressionPolicy,
+                            final CompressionStats compressionStats,
+                            final PhaseStats phaseStats) {
+            this.name = name;
+            this.file = file;
+            this.level = level;
+            this.hashOnly = hashOnly;
+            this.hashCache = hashCache;
+            this.compressionPolicy = compressionPolicy;
+            this.compressionStats = compressionStats;
+            this.phaseStats = phaseStats;
+        }
+
+        @Override
+        public PackedResource call() throws IOException {
+            if (name.endsWith("/")) {
+                return new PackedResource(name, file, null, null, 0, 0,
+                                          null, false);
+            }
+
+            if (hashOnly && (hashCache != null)) {
+                final PhaseStats.Measurement measurement =
+                        phaseStats.start(PhaseStats.RESOURCE_HASHING);
+                final Pair<byte[], byte[]> hashPair =
+                        hashCache.hash(name, file, DATA_COPIER.get());
+                measurement.end(1, file.length());
+                return new PackedResource(name, file,
+                                          hashPair.first, hashPair.second,
+                                          0, 0, null, false);
+            }
+
+            if (hashOnly) {
+                final PhaseStats.Measurement measurement =
+                        phaseStats.start(PhaseStats.RESOURCE_HASHING);
+                final HashingOutputStream hashingStream =
+                        new HashingOutputStream(new NullOutputStream());
+                try {
+                    DATA_COPIER.get().copyFile(hashingStream, file);
+                } finally {
+                    hashingStream.close();
+                }
+                measurement.end(1, file.length());
+
+                return new PackedResource(name, file,
+                                          hashingStream.calculateHash(),
+                                          hashingStream.calculateHash(256),
+                                          0, 0, null, false);
+            }
+
+            final long fileSize = file.length();
+            if (fileSize > MAX_BUFFERED_RESOURCE_SIZE) {
+                return new PackedResource(name, file, null, null, 0, 0,
+                                          null, false);
+            }
+
+            final PhaseStats.Measurement measurement =
+                    phaseStats.start(PhaseStats.RESOURCE_HASHING);
+            final ByteArrayOutputStream contentStream =
+                    new ByteArrayOutputStream((int) fileSize);
+            final CRC32 crc = new CRC32();
+            final HashingOutputStream hashingStream =
+                    new HashingOutputStream(
+                        new CheckedOutputStream(contentStream, crc));
+            DATA_COPIER.get().copyFile(hashingStream, file);
+            hashingStream.close();
+
+            final byte[] data = contentStream.toByteArray();
+            measurement.end(1, data.length);
+            final boolean stored =
+                    compressionPolicy.isStored(name, data, data.length);
+            return new PackedResource(name, file,
+                                      hashingStream.calculateHash(),
+                                      hashingStream.calculateHash(256),
+                                      crc.getValue(),
+                                      data.length,
+                                      stored ? data : deflate(data),
+                                      stored);
+        }
+
+        private byte[] deflate(final byte[] data) {
+            final long startTime = CompressionStats.currentThreadTime();
+            final PhaseStats.Measurement measurement =
+                    phaseStats.start(PhaseStats.COMPRESSION);
+            final Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+
+                final ByteArrayOutputStream compressedStream =
+                        new ByteArrayOutputStream(data.length / 2 + 64);
+                final byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    final int length = deflater.deflate(buffer);
+                    compressedStream.write(buffer, 0, length);
+                }
+
+                return compressedStream.toByteArray();
+            } finally {
+                deflater.end();
+                compressionStats.addDeflateTime(
+                        CompressionStats.currentThreadTime() - startTime);
+                measurement.end(1, data.length);
+            }
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private int threadCounter;
+
+        @Override
+        public synchronized Thread newThread(final Runnable runnable) {
+            final Thread thread =
+                    new Thread(runnable,
+                               "ipack-resource-worker-" + (++threadCounter));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
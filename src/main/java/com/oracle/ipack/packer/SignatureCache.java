@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+
+package com.oracle.ipack.packer;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Directory of signed executables keyed by a fingerprint of everything which
+ * goes into their signature: the unsigned executable, the identifiers, the
+ * entitlements, the CodeResources and Info.plist hashes, the page size and
+ * the signing certificates. A job which signs the same input again copies
+ * the cached executable instead of hashing its pages and signing it, the
+ * copy keeps the signing time of the first signature.
+ *
+ * Each entry is a file named by the hex encoded fingerprint, it holds the
+ * cdhash followed by the signed executable. Entries are written to a
+ * temporary file first, so concurrent jobs only see complete ones. Used
+ * entries are touched, when the directory grows over its size limit the
+ * least recently used entries are deleted. An unreadable entry is treated
+ * as missing.
+ */
+public final class SignatureCache {
+    private static final int MAGIC = 0x69736331; // "isc1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8 + 20;
+    private static final String ENTRY_SUFFIX = ".exe";
+    private static final int BUFFER_SIZE = 65536;
+
+    private final File cacheDir;
+    private final long maxSize;
+    private final AtomicInteger hits;
+    private final AtomicInteger misses;
+    private final AtomicInteger evictions;
+
+    /**
+     * Creates a cache in the given directory, which is created if needed.
+     * The entries are limited to maxSize bytes in total.
+     */
+    public SignatureCache(final File cacheDir,
+                          final long maxSize) throws IOException {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IOException("Can't create cache directory " + cacheDir);
+        }
+
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+        this.hits = new AtomicInteger();
+        this.misses = new AtomicInteger();
+        this.evictions = new AtomicInteger();
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    public int getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the percentage of lookups which found a signed executable.
+     */
+    public int getHitRate() {
+        final int lookups = hits.get() + misses.get();
+        return (lookups != 0) ? (int) (100L * hits.get() / lookups) : 0;
+    }
+
+    /**
+     * Calculates the fingerprint of a signing job. The byte arrays are
+     * length prefixed, so different splits of the same bytes don't collide.
+     */
+    static String fingerprint(final File executableFile,
+                              final byte[]... parts) throws IOException {
+        final MessageDigest digest = createDigest();
+        final byte[] length = new byte[4];
+        for (final byte[] part: parts) {
+            ByteBuffer.wrap(length).putInt((part != null) ? part.length : -1);
+            digest.update(length);
+            if (part != null) {
+                digest.update(part);
+            }
+        }
+
+        final FileChannel channel =
+                new FileInputStream(executableFile).getChannel();
+        try {
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            channel.close();
+        }
+
+        return DatatypeConverter.printHexBinary(digest.digest());
+    }
+
+    static byte[] toBytes(final String value) {
+        return (value != null) ? value.getBytes(Charset.forName("UTF-8"))
+                               : null;
+    }
+
+    /**
+     * Returns the cached executable with the given fingerprint, or null if
+     * there is none. The returned entry has to be closed.
+     */
+    Entry find(final String fingerprint) throws IOException {
+        final File entryFile = getEntryFile(fingerprint);
+        final FileInputStream entryStream;
+        try {
+            entryStream = new FileInputStream(entryFile);
+        } catch (final FileNotFoundException e) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        try {
+            final DataInputStream is = new DataInputStream(entryStream);
+            if ((entryStream.getChannel().size() < HEADER_SIZE)
+                    || (is.readInt() != MAGIC) || (is.readInt() != VERSION)) {
+                entryStream.close();
+                misses.incrementAndGet();
+                return null;
+            }
+            final byte[] codeDirectoryHash = new byte[20];
+            is.readFully(codeDirectoryHash);
+
+            // the modification time orders the entries for the eviction
+            entryFile.setLastModified(System.currentTimeMillis());
+            hits.incrementAndGet();
+            return new Entry(entryStream, codeDirectoryHash);
+        } catch (final IOException e) {
+            entryStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Stores a signed executable, which is written to the stream returned by
+     * the writer.
+     */
+    void store(final String fingerprint,
+               final byte[] codeDirectoryHash,
+               final EntryWriter entryWriter) throws IOException {
+        final File tempFile =
+                File.createTempFile(fingerprint, ".tmp", cacheDir);
+        try {
+            final FileOutputStream os = new FileOutputStream(tempFile);
+            try {
+                final DataOutputStream headerStream =
+                        new DataOutputStream(os);
+                headerStream.writeInt(MAGIC);
+                headerStream.writeInt(VERSION);
+                headerStream.write(codeDirectoryHash, 0, 20);
+                headerStream.flush();
+
+                entryWriter.write(os.getChannel(), os);
+            } finally {
+                os.close();
+            }
+
+            Files.move(tempFile.toPath(), getEntryFile(fingerprint).toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+
+        evict();
+    }
+
+    /**
+     * Stores a signed executable file.
+     */
+    void store(final String fingerprint,
+               final byte[] codeDirectoryHash,
+               final File signedFile) throws IOException {
+        store(fingerprint, codeDirectoryHash,
+              new EntryWriter() {
+                  @Override
+                  public void write(final WritableByteChannel channel,
+                                    final OutputStream stream)
+                          throws IOException {
+                      Files.copy(signedFile.toPath(), stream);
+                  }
+              });
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits into its
+     * size limit.
+     */
+    private synchronized void evict() {
+        final File[] entryFiles = cacheDir.listFiles();
+        if (entryFiles == null) {
+            return;
+        }
+
+        long totalSize = 0;
+        final long[] lastModified = new long[entryFiles.length];
+        for (int i = 0; i < entryFiles.length; ++i) {
+            totalSize += entryFiles[i].length();
+            lastModified[i] = entryFiles[i].lastModified();
+        }
+        if (totalSize <= maxSize) {
+            return;
+        }
+
+        final Integer[] order = new Integer[entryFiles.length];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(final Integer first, final Integer second) {
+                    return Long.compare(lastModified[first],
+                                        lastModified[second]);
+                }
+            });
+
+        for (int i = 0; (i < order.length) && (totalSize > maxSize); ++i) {
+            final File entryFile = entryFiles[order[i]];
+            if (!entryFile.getName().endsWith(ENTRY_SUFFIX)) {
+                // temporary files of running jobs
+                continue;
+            }
+
+            final long entrySize = entryFile.length();
+            if (entryFile.delete()) {
+                totalSize -= entrySize;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private File getEntryFile(final String fingerprint) {
+        return new File(cacheDir, fingerprint + ENTRY_SUFFIX);
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Can't create message digest", e);
+        }
+    }
+
+    /**
+     * A signed executable found in the cache.
+     */
+    static final class Entry implements Closeable {
+        private final FileInputStream entryStream;
+        private final byte[] codeDirectoryHash;
+
+        Entry(final FileInputStream entryStream,
+              final byte[] codeDirectoryHash) {
+            this.entryStream = entryStream;
+            this.codeDirectoryHash = codeDirectoryHash;
+        }
+
+        /**
+         * Returns the cdhash of the executable, for universal executables
+         * the one of the first slice.
+         */
+        byte[] getCodeDirectoryHash() {
+            return codeDirectoryHash;
+        }
+
+        /**
+         * Returns the size of the cached executable.
+         */
+        long getSize() throws IOException {
+            return entryStream.getChannel().size() - HEADER_SIZE;
+        }
+
+        void copyTo(final WritableByteChannel target) throws IOException {
+            final FileChannel entryChannel = entryStream.getChannel();
+            final long size = entryChannel.size();
+            long position = HEADER_SIZE;
+            while (position < size) {
+                final long transferred =
+                        entryChannel.transferTo(position, size - position,
+                                                target);
+                if (transferred <= 0) {
+                    throw new IOException("Unexpected end of cache entry");
+                }
+                position += transferred;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            entryStream.close();
+        }
+    }
+
+    /**
+     * Writes a signed executable into a new cache entry.
+     */
+    interface EntryWriter {
+        void write(WritableByteChannel channel, OutputStream stream)
+                throws IOException;
+    }
+}
@@ -0,0 +1,719 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.packer;
+
+import com.oracle.ipack.Pair;
+import com.oracle.ipack.resources.CodeResources;
+import com.oracle.ipack.resources.ResourceRuleSet;
+import com.oracle.ipack.resources.ResourceRules;
+import com.oracle.ipack.util.DataCopier;
+import com.oracle.ipack.util.HashingOutputStream;
+import com.oracle.ipack.util.NullOutputStream;
+import com.oracle.ipack.util.PlistReader;
+import com.oracle.ipack.util.ZipArchiveReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Verifies the signature of an application, either in a directory or in an
+ * archive. The resources are hashed and compared with the files2
+ * dictionary of the CodeResources, the executable is checked by an
+ * ExecutableVerifier and the nested code sealed in the CodeResources is
+ * verified the same way, each bundle in its own fork join task. The
+ * resources and the pages of the executables are hashed concurrently on
+ * the threads of the pool.
+ */
+public final class Verifier {
+    private int numberOfThreads;
+    private ForkJoinPool threadPool;
+
+    public Verifier() {
+        this.numberOfThreads = 1;
+    }
+
+    public void setNumberOfThreads(final int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    /**
+     * Sets the pool on which the application is verified. It isn't shut
+     * down by the verifier, without a pool the verifier creates its own.
+     */
+    public void setThreadPool(final ForkJoinPool threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * Verifies the application in the given directory. Returns the
+     * mismatches found as "path: problem" with paths relative to the
+     * application directory, an empty list if the signature is valid.
+     */
+    public List<String> verifyApplication(
+            final File baseDir,
+            final String appPath,
+            final String appName,
+            final Boolean isBundle) throws IOException {
+        return verify(new DirectorySource(baseDir),
+                      normalizePath(appPath), appName, isBundle);
+    }
+
+    /**
+     * Verifies the application in the given archive. The executables are
+     * extracted to temporary files, the resources are hashed from the
+     * inflated entries.
+     */
+    public List<String> verifyArchivedApplication(
+            final File sourceFile,
+            final String appPath,
+            final String appName,
+            final Boolean isBundle) throws IOException {
+        final ArchiveSource source =
+                new ArchiveSource(new ZipArchiveReader(sourceFile));
+        try {
+            return verify(source, normalizePath(appPath), appName,
+                          isBundle);
+        } finally {
+            source.close();
+        }
+    }
+
+    private List<String> verify(final ApplicationSource source,
+                                final String appPath,
+                                final String appName,
+                                final Boolean isBundle) throws IOException {
+        final List<String> mismatches =
+                Collections.synchronizedList(new ArrayList<String>());
+        final ForkJoinPool pool = (threadPool != null)
+                                          ? threadPool
+                                          : new ForkJoinPool(numberOfThreads);
+        try {
+            pool.invoke(new CodeTask(source, appPath, "", appName,
+                                     isBundle, mismatches));
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            if (pool != threadPool) {
+                pool.shutdown();
+            }
+        }
+
+        // the tasks report concurrently, group the mismatches by path
+        final List<String> sortedMismatches =
+                new ArrayList<String>(mismatches);
+        Collections.sort(sortedMismatches, new Comparator<String>() {
+            @Override
+            public int compare(final String first, final String second) {
+                return getPath(first).compareTo(getPath(second));
+            }
+        });
+
+        return sortedMismatches;
+    }
+
+    private static String getPath(final String mismatch) {
+        return mismatch.substring(0, mismatch.indexOf(": "));
+    }
+
+    private static String normalizePath(final String path) {
+        if (path.isEmpty() || path.endsWith("/")) {
+            return path;
+        }
+
+        return path + '/';
+    }
+
+    /**
+     * Creates the rule set from a rules2 dictionary of CodeResources.
+     */
+    private static ResourceRuleSet readRules(final Map<?, ?> rules) {
+        final ResourceRuleSet ruleSet = new ResourceRuleSet();
+        for (final Map.Entry<?, ?> rule: rules.entrySet()) {
+            final String pattern = (String) rule.getKey();
+            if (!(rule.getValue() instanceof Map)) {
+                ruleSet.addRule(pattern);
+                continue;
+            }
+
+            final Map<?, ?> ruleAttributes = (Map<?, ?>) rule.getValue();
+            int flags = 0;
+            if (Boolean.TRUE.equals(ruleAttributes.get("optional"))) {
+                flags |= ResourceRuleSet.OPTIONAL;
+            }
+            if (Boolean.TRUE.equals(ruleAttributes.get("omit"))) {
+                flags |= ResourceRuleSet.OMIT;
+            }
+            if (Boolean.TRUE.equals(ruleAttributes.get("nested"))) {
+                flags |= ResourceRuleSet.NESTED;
+            }
+            final Object weight = ruleAttributes.get("weight");
+            ruleSet.addRule(pattern, flags,
+                            (weight instanceof Number)
+                                    ? ((Number) weight).intValue()
+                                    : 1);
+        }
+
+        return ruleSet;
+    }
+
+    private static Pair<byte[], byte[]> hash(final byte[] data) {
+        final HashingOutputStream hashingStream =
+                new HashingOutputStream(new NullOutputStream());
+        try {
+            hashingStream.write(data);
+            hashingStream.close();
+        } catch (final IOException e) {
+            // won't happen
+        }
+
+        return new Pair<byte[], byte[]>(hashingStream.calculateHash(),
+                                        hashingStream.calculateHash(256));
+    }
+
+    /**
+     * Verifies a bundle or, if it isn't a bundle, only its executable.
+     * Returns the cdhash of the executable.
+     */
+    private static final class CodeTask extends RecursiveTask<byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final ApplicationSource source;
+        private final String bundlePath;
+        private final String namePrefix;
+        private final String executableName;
+        private final boolean isBundle;
+        private final List<String> mismatches;
+
+        public CodeTask(final ApplicationSource source,
+                        final String bundlePath,
+                        final String namePrefix,
+                        final String executableName,
+                        final boolean isBundle,
+                        final List<String> mismatches) {
+            this.source = source;
+            this.bundlePath = bundlePath;
+            this.namePrefix = namePrefix;
+            this.executableName = executableName;
+            this.isBundle = isBundle;
+            this.mismatches = mismatches;
+        }
+
+        @Override
+        protected byte[] compute() {
+            try {
+                return verify();
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private byte[] verify() throws IOException {
+            final String executablePath = bundlePath + executableName;
+            if (!source.isFile(executablePath)) {
+                report(executableName, "missing");
+                return null;
+            }
+
+            Pair<byte[], byte[]> infoPlistHashPair = null;
+            Pair<byte[], byte[]> codeResourcesHashPair = null;
+            Map<?, ?> files = Collections.emptyMap();
+            ResourceRuleSet rules = null;
+            if (isBundle) {
+                if (source.isFile(bundlePath + "Info.plist")) {
+                    infoPlistHashPair =
+                            hash(source.read(bundlePath + "Info.plist"));
+                }
+
+                final String codeResourcesName =
+                        "_CodeSignature/CodeResources";
+                if (source.isFile(bundlePath + codeResourcesName)) {
+                    final byte[] codeResourcesData =
+                            source.read(bundlePath + codeResourcesName);
+                    codeResourcesHashPair = hash(codeResourcesData);
+                    try {
+                        final Map<String, Object> codeResources =
+                                PlistReader.readDictionary(
+                                        codeResourcesData);
+                        if ((codeResources.get("files2") instanceof Map)
+                                && (codeResources.get("rules2")
+                                        instanceof Map)) {
+                            files = (Map<?, ?>) codeResources.get("files2");
+                            rules = readRules(
+                                    (Map<?, ?>) codeResources.get("rules2"));
+                        } else {
+                            report(codeResourcesName,
+                                   "files2 or rules2 missing");
+                        }
+                    } catch (final IOException e) {
+                        report(codeResourcesName,
+                               "invalid, " + e.getMessage());
+                    }
+                } else {
+                    report(codeResourcesName, "missing");
+                }
+            }
+
+            final List<ResourceTask> resourceTasks =
+                    new ArrayList<ResourceTask>();
+            final List<NestedCodeTask> nestedCodeTasks =
+                    new ArrayList<NestedCodeTask>();
+            if (rules != null) {
+                collectTasks(files, rules, resourceTasks, nestedCodeTasks);
+            }
+            for (final ForkJoinTask<?> task: resourceTasks) {
+                task.fork();
+            }
+            for (final ForkJoinTask<?> task: nestedCodeTasks) {
+                task.fork();
+            }
+
+            final ExecutableVerifier executableVerifier =
+                    new ExecutableVerifier(
+                            source.getExecutableFile(executablePath),
+                            namePrefix + executableName,
+                            mismatches);
+            executableVerifier.setInfoPlistHashPair(infoPlistHashPair);
+            executableVerifier.setCodeResourcesHashPair(
+                    codeResourcesHashPair);
+            final byte[] codeDirectoryHash = executableVerifier.execute();
+
+            for (final ResourceTask task: resourceTasks) {
+                task.verify(task.join());
+            }
+            for (final NestedCodeTask task: nestedCodeTasks) {
+                task.verify(task.join());
+            }
+
+            return codeDirectoryHash;
+        }
+
+        /**
+         * Creates the tasks hashing the sealed resources and verifying the
+         * sealed nested code. Resources which are present but not sealed
+         * and sealed resources which are missing are reported right away.
+         */
+        private void collectTasks(final Map<?, ?> files,
+                                  final ResourceRuleSet rules,
+                                  final List<ResourceTask> resourceTasks,
+                                  final List<NestedCodeTask> nestedCodeTasks)
+                throws IOException {
+            final List<String> nestedCodePaths = new ArrayList<String>();
+            for (final Map.Entry<?, ?> file: files.entrySet()) {
+                if ((file.getValue() instanceof Map)
+                        && ((Map<?, ?>) file.getValue()).containsKey(
+                                   "cdhash")) {
+                    final String path = (String) file.getKey();
+                    nestedCodePaths.add(path);
+                    nestedCodeTasks.add(createNestedCodeTask(
+                            path, ((Map<?, ?>) file.getValue())
+                                      .get("cdhash")));
+                }
+            }
+
+            final Set<String> presentResources = new HashSet<String>();
+            final ResourceRules resourceRules =
+                    ResourcePacker.createResourceRules(executableName);
+            for (final String resourceName:
+                     source.collectResources(bundlePath, resourceRules)) {
+                final String normalizedName =
+                        CodeResources.normalizeName(resourceName);
+                if (resourceName.endsWith("/")
+                        || isNested(normalizedName, nestedCodePaths)) {
+                    continue;
+                }
+                presentResources.add(normalizedName);
+                if ((rules.match(normalizedName) & ResourceRuleSet.OMIT)
+                        != 0) {
+                    continue;
+                }
+
+                final Object sealedHash = files.get(normalizedName);
+                if (sealedHash == null) {
+                    report(resourceName, "not sealed");
+                } else if (!isSymlink(sealedHash)) {
+                    resourceTasks.add(
+                            new ResourceTask(resourceName, sealedHash));
+                }
+            }
+
+            for (final Map.Entry<?, ?> file: files.entrySet()) {
+                final String path = (String) file.getKey();
+                if (!presentResources.contains(path)
+                        && !nestedCodePaths.contains(path)
+                        && !isOptional(file.getValue())) {
+                    report(path, "missing");
+                }
+            }
+        }
+
+        private NestedCodeTask createNestedCodeTask(
+                final String path,
+                final Object sealedCodeDirectoryHash) throws IOException {
+            final String nestedPath = bundlePath + path;
+            if (source.isFile(nestedPath)) {
+                // a library, only its executable is signed
+                final int nameStart = path.lastIndexOf('/') + 1;
+                return new NestedCodeTask(
+                        path, sealedCodeDirectoryHash,
+                        new CodeTask(source,
+                                     bundlePath + path.substring(0, nameStart),
+                                     namePrefix + path.substring(0,
+                                                                 nameStart),
+                                     path.substring(nameStart),
+                                     false,
+                                     mismatches));
+            }
+
+            String nestedExecutableName = null;
+            if (source.isFile(nestedPath + "/Info.plist")) {
+                try {
+                    nestedExecutableName =
+                            PlistReader.readStrings(
+                                    source.read(nestedPath + "/Info.plist"))
+                                       .get("CFBundleExecutable");
+                } catch (final IOException e) {
+                    // reported as an Info.plist mismatch of the bundle
+                }
+            }
+            if (nestedExecutableName == null) {
+                final String bundleName =
+                        path.substring(path.lastIndexOf('/') + 1);
+                final int extensionStart = bundleName.lastIndexOf('.');
+                nestedExecutableName =
+                        (extensionStart > 0)
+                                ? bundleName.substring(0, extensionStart)
+                                : bundleName;
+            }
+
+            return new NestedCodeTask(
+                    path, sealedCodeDirectoryHash,
+                    new CodeTask(source, nestedPath + '/',
+                                 namePrefix + path + '/',
+                                 nestedExecutableName, true, mismatches));
+        }
+
+        private static boolean isNested(final String resourceName,
+                                        final List<String> nestedCodePaths) {
+            for (final String path: nestedCodePaths) {
+                if (resourceName.equals(path)
+                        || resourceName.startsWith(path + '/')) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private static boolean isSymlink(final Object sealedHash) {
+            return (sealedHash instanceof Map)
+                       && ((Map<?, ?>) sealedHash).containsKey("symlink");
+        }
+
+        private static boolean isOptional(final Object sealedHash) {
+            return (sealedHash instanceof Map)
+                       && Boolean.TRUE.equals(
+                              ((Map<?, ?>) sealedHash).get("optional"));
+        }
+
+        private void report(final String path, final String problem) {
+            mismatches.add(namePrefix + path + ": " + problem);
+        }
+
+        /**
+         * Hashes a resource, its hash is compared by the bundle task.
+         */
+        private final class ResourceTask
+                extends RecursiveTask<Pair<byte[], byte[]>> {
+            private static final long serialVersionUID = 1L;
+
+            private final String resourceName;
+            private final Object sealedHash;
+
+            public ResourceTask(final String resourceName,
+                                final Object sealedHash) {
+                this.resourceName = resourceName;
+                this.sealedHash = sealedHash;
+            }
+
+            @Override
+            protected Pair<byte[], byte[]> compute() {
+                try {
+                    return source.hash(bundlePath + resourceName);
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            public void verify(final Pair<byte[], byte[]> hashPair) {
+                // files2 entries have the SHA-256 hash in hash2, plain
+                // data entries only the SHA-1 hash
+                final boolean matches;
+                if (sealedHash instanceof byte[]) {
+                    matches = Arrays.equals((byte[]) sealedHash,
+                                            hashPair.first);
+                } else if (sealedHash instanceof Map) {
+                    final Map<?, ?> hashes = (Map<?, ?>) sealedHash;
+                    final Object hash2 = hashes.get("hash2");
+                    final Object hash = hashes.get("hash");
+                    matches = (hash2 instanceof byte[])
+                                      ? Arrays.equals((byte[]) hash2,
+                                                      hashPair.second)
+                                      : (hash instanceof byte[])
+                                            && Arrays.equals((byte[]) hash,
+                                                             hashPair.first);
+                } else {
+                    matches = false;
+                }
+
+                if (!matches) {
+                    report(resourceName, "modified");
+                }
+            }
+        }
+
+        /**
+         * Verifies nested code and compares its cdhash with the sealed one.
+         */
+        private final class NestedCodeTask extends RecursiveTask<byte[]> {
+            private static final long serialVersionUID = 1L;
+
+            private final String path;
+            private final Object sealedCodeDirectoryHash;
+            private final CodeTask codeTask;
+
+            public NestedCodeTask(final String path,
+                                  final Object sealedCodeDirectoryHash,
+                                  final CodeTask codeTask) {
+                this.path = path;
+                this.sealedCodeDirectoryHash = sealedCodeDirectoryHash;
+                this.codeTask = codeTask;
+            }
+
+            @Override
+            protected byte[] compute() {
+                return codeTask.compute();
+            }
+
+            public void verify(final byte[] codeDirectoryHash) {
+                if ((codeDirectoryHash != null)
+                        && !((sealedCodeDirectoryHash instanceof byte[])
+                                 && Arrays.equals(
+                                        (byte[]) sealedCodeDirectoryHash,
+                                        codeDirectoryHash))) {
+                    report(path, "cdhash doesn't match");
+                }
+            }
+        }
+    }
+
+    /**
+     * The files of the application, in a directory or an archive. Paths are
+     * relative to the base directory or the archive root.
+     */
+    private interface ApplicationSource {
+        List<String> collectResources(String bundlePath,
+                                      ResourceRules resourceRules)
+                throws IOException;
+
+        boolean isFile(String path);
+
+        byte[] read(String path) throws IOException;
+
+        Pair<byte[], byte[]> hash(String path) throws IOException;
+
+        File getExecutableFile(String path) throws IOException;
+    }
+
+    private static final ThreadLocal<DataCopier> DATA_COPIER =
+            new ThreadLocal<DataCopier>() {
+                @Override
+                protected DataCopier initialValue() {
+                    return new DataCopier();
+                }
+            };
+
+    private static final class DirectorySource implements ApplicationSource {
+        private final File baseDir;
+
+        public DirectorySource(final File baseDir) {
+            this.baseDir = baseDir;
+        }
+
+        @Override
+        public List<String> collectResources(
+                final String bundlePath,
+                final ResourceRules resourceRules) throws IOException {
+            return resourceRules.collectResources(
+                    new File(baseDir, bundlePath));
+        }
+
+        @Override
+        public boolean isFile(final String path) {
+            return new File(baseDir, path).isFile();
+        }
+
+        @Override
+        public byte[] read(final String path) throws IOException {
+            return Files.readAllBytes(new File(baseDir, path).toPath());
+        }
+
+        @Override
+        public Pair<byte[], byte[]> hash(final String path)
+                throws IOException {
+            final HashingOutputStream hashingStream =
+                    new HashingOutputStream(new NullOutputStream());
+            try {
+                DATA_COPIER.get().copyFile(hashingStream,
+                                           new File(baseDir, path));
+            } finally {
+                hashingStream.close();
+            }
+
+            return new Pair<byte[], byte[]>(hashingStream.calculateHash(),
+                                            hashingStream.calculateHash(256));
+        }
+
+        @Override
+        public File getExecutableFile(final String path) {
+            return new File(baseDir, path);
+        }
+    }
+
+    private static final class ArchiveSource implements ApplicationSource {
+        private final ZipArchiveReader archive;
+        private final List<File> extractedFiles;
+
+        public ArchiveSource(final ZipArchiveReader archive) {
+            this.archive = archive;
+            this.extractedFiles =
+                    Collections.synchronizedList(new ArrayList<File>());
+        }
+
+        @Override
+        public List<String> collectResources(
+                final String bundlePath,
+                final ResourceRules resourceRules) {
+            final List<String> entryNames = new ArrayList<String>();
+            for (final ZipArchiveReader.Entry entry: archive.getEntries()) {
+                if (entry.getName().startsWith(bundlePath)) {
+                    entryNames.add(
+                            entry.getName().substring(bundlePath.length()));
+                }
+            }
+
+            return resourceRules.collectResources(entryNames);
+        }
+
+        @Override
+        public boolean isFile(final String path) {
+            final ZipArchiveReader.Entry entry = archive.getEntry(path);
+            return (entry != null) && !entry.isDirectory();
+        }
+
+        @Override
+        public byte[] read(final String path) throws IOException {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            copyEntry(path, bos);
+            return bos.toByteArray();
+        }
+
+        @Override
+        public Pair<byte[], byte[]> hash(final String path)
+                throws IOException {
+            final HashingOutputStream hashingStream =
+                    new HashingOutputStream(new NullOutputStream());
+            try {
+                copyEntry(path, hashingStream);
+            } finally {
+                hashingStream.close();
+            }
+
+            return new Pair<byte[], byte[]>(hashingStream.calculateHash(),
+                                            hashingStream.calculateHash(256));
+        }
+
+        /**
+         * Extracts the executable, it is mapped while being verified.
+         */
+        @Override
+        public File getExecutableFile(final String path) throws IOException {
+            final File executableFile =
+                    File.createTempFile("ipack", ".exe");
+            extractedFiles.add(executableFile);
+            final OutputStream executableStream =
+                    new FileOutputStream(executableFile);
+            try {
+                copyEntry(path, executableStream);
+            } finally {
+                executableStream.close();
+            }
+
+            return executableFile;
+        }
+
+        public void close() throws IOException {
+            try {
+                archive.close();
+            } finally {
+                for (final File extractedFile: extractedFiles) {
+                    extractedFile.delete();
+                }
+            }
+        }
+
+        private void copyEntry(final String path, final OutputStream os)
+                throws IOException {
+            final ZipArchiveReader.Entry entry = archive.getEntry(path);
+            if (entry == null) {
+                throw new IOException("Entry \"" + path + "\" not found");
+            }
+
+            final InputStream entryStream = archive.getInputStream(entry);
+            try {
+                DATA_COPIER.get().copyStream(os, entryStream);
+            } finally {
+                entryStream.close();
+            }
+        }
+    }
+}
@@ -25,281 +25,299 @@
 
 package com.oracle.ipack.resources;
 
-import com.oracle.ipack.resources.ResourceRules.Exclude;
-import com.oracle.ipack.util.Base64;
-import java.io.BufferedWriter;
+import com.oracle.ipack.util.PlistWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public final class CodeResources {
+    private static final int WRITE_DICTIONARY = 1;
+    private static final int OPTIONAL = 2;
+    private static final int WRITE_DICTIONARY2 = 4;
+    private static final int OPTIONAL2 = 8;
+    private static final int OMITTED = 16;
+    private static final int OMITTED2 = 32;
+
     private final ResourceRules resourceRules;
+    private final ResourceRuleSet rules;
+    private final ResourceRuleSet rules2;
     private final List<HashedResource> hashedResources;
+    private final List<NestedCode> nestedCode;
 
     public CodeResources(final ResourceRules resourceRules) {
         this.resourceRules = resourceRules;
+        this.rules = createRules();
+        this.rules2 = createRules2();
+        if (resourceRules.getIsResourceRulesPlist()) {
+            // ResourceRules.plist is never collected as a resource, so the
+            // rule only has to be written
+            rules.addRule("^ResourceRules.plist$", ResourceRuleSet.OMIT, 100);
+            rules2.addRule("^ResourceRules.plist$",
+                           ResourceRuleSet.OMIT, 100);
+        }
         this.hashedResources = new ArrayList<HashedResource>();
+        this.nestedCode = new ArrayList<NestedCode>();
     }
 
+    /**
+     * Adds a hashed resource. It is matched against the rules right away,
+     * when it is written only the result is needed.
+     */
     public void addHashedResource(
             final String resourceName,
             final byte[] resourceHash,
             final byte[] resource256Hash) {
         hashedResources.add(
                 new HashedResource(resourceName,
-                                   Base64.byteArrayToBase64(resourceHash),
-                                   Base64.byteArrayToBase64(resource256Hash)));
+                                   resourceHash,
+                                   resource256Hash,
+                                   getAttributes(resourceName)));
+    }
+
+    /**
+     * Adds signed nested code, a bundle directory or a dylib. In files2 its
+     * resources are replaced by the cdhash and the designated requirement
+     * of the nested code.
+     */
+    public void addNestedCode(final String path,
+                              final byte[] codeDirectoryHash,
+                              final String requirement) {
+        nestedCode.add(new NestedCode(path, codeDirectoryHash, requirement));
     }
 
     public void write(final OutputStream os) throws IOException {
-        final PrintWriter pw =
-                new PrintWriter(
-                    new BufferedWriter(
-                        new OutputStreamWriter(os, "UTF-8")));
-
-        pw.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
-                      + "<!DOCTYPE plist PUBLIC \"-//Apple//DTD PLIST 1.0//EN\""
-                      + " \"http://www.apple.com/DTDs/PropertyList-1.0.dtd\">\n"
-                      + "<plist version=\"1.0\">\n"
-                      + "<dict>\n"
-                      + "\t<key>files</key>\n"
-                      + "\t<dict>\n");
+        final PlistWriter writer = new PlistWriter(os);
+        writer.writeStartDocument();
+        writer.writeStartDict();
 
+        writer.writeKey("files");
+        writer.writeStartDict();
         for (final HashedResource hashedResource: hashedResources) {
-            appendResource(pw, hashedResource, false);
+            if ((hashedResource.getAttributes() & OMITTED) == 0) {
+                writeResource(writer, hashedResource, false);
+            }
         }
+        writer.writeEndDict();
 
-        pw.append("\t</dict>\n"
-                      + "\t<key>files2</key>\n"
-                      + "\t<dict>\n");
-
+        writer.writeKey("files2");
+        writer.writeStartDict();
+        final List<NestedCode> writtenNestedCode =
+                new ArrayList<NestedCode>();
         for (final HashedResource hashedResource: hashedResources) {
-            if(hashedResource.getName().equals("Info.plist") || hashedResource.getName().equals("PkgInfo")) {
+            if ((hashedResource.getAttributes() & OMITTED2) != 0) {
+                continue;
+            }
+            final NestedCode containingNestedCode =
+                    findNestedCode(hashedResource.getName());
+            if (containingNestedCode != null) {
+                if (!writtenNestedCode.contains(containingNestedCode)) {
+                    writeNestedCode(writer, containingNestedCode);
+                    writtenNestedCode.add(containingNestedCode);
+                }
                 continue;
             }
-            appendResource(pw, hashedResource, true);
+            writeResource(writer, hashedResource, true);
         }
+        for (final NestedCode nestedCodeEntry: nestedCode) {
+            if (!writtenNestedCode.contains(nestedCodeEntry)) {
+                writeNestedCode(writer, nestedCodeEntry);
+            }
+        }
+        writer.writeEndDict();
 
-        pw.append("\t</dict>\n"
-                + "\t<key>rules</key>\n"
-                + "\t<dict>\n"
-                + "\t\t<key>^</key>\n"
-                + "\t\t<true/>\n"
-                + "\t\t<key>^.*\\.lproj/</key>\n"
-                + "\t\t<dict>\n"
-                + "\t\t\t<key>optional</key>\n"
-                + "\t\t\t<true/>\n"
-                + "\t\t\t<key>weight</key>\n"
-                + "\t\t\t<real>1000</real>\n"
-                + "\t\t</dict>\n"
-                + "\t\t<key>^.*\\.lproj/locversion.plist$</key>\n"
-                + "\t\t<dict>\n"
-                + "\t\t\t<key>omit</key>\n"
-                + "\t\t\t<true/>\n"
-                + "\t\t\t<key>weight</key>\n"
-                + "\t\t\t<real>1100</real>\n"
-                + "\t\t</dict>\n"
-                + "\t\t<key>^version.plist$</key>\n"
-                + "\t\t<true/>\n");
-        if (resourceRules.getIsResourceRulesPlist()) {
-            pw.append("\t\t<key>^ResourceRules.plist$</key>\n"
-                    + "\t\t<dict>\n"
-                    + "\t\t\t<key>omit</key>\n"
-                    + "\t\t\t<true/>\n"
-                    + "\t\t\t<key>weight</key>\n"
-                    + "\t\t\t<real>100</real>\n"
-                    + "\t\t</dict>\n");
+        writer.writeKey("rules");
+        rules.write(writer);
+        writer.writeKey("rules2");
+        rules2.write(writer);
+
+        writer.writeEndDict();
+        writer.writeEndDocument();
+        writer.flush();
+    }
+
+    private static ResourceRuleSet createRules() {
+        final ResourceRuleSet ruleSet = new ResourceRuleSet();
+        ruleSet.addRule("^");
+        ruleSet.addRule("^.*\\.lproj/", ResourceRuleSet.OPTIONAL, 1000);
+        ruleSet.addRule("^.*\\.lproj/locversion.plist$",
+                        ResourceRuleSet.OMIT, 1100);
+        ruleSet.addRule("^version.plist$");
+
+        return ruleSet;
+    }
+
+    private static ResourceRuleSet createRules2() {
+        final ResourceRuleSet ruleSet = new ResourceRuleSet();
+        ruleSet.addRule(".*\\.dSYM($|/)", 0, 11);
+        ruleSet.addRule("^", 0, 20);
+        ruleSet.addRule("^(.*/)?\\.DS_Store$", ResourceRuleSet.OMIT, 2000);
+        ruleSet.addRule("^(Frameworks|SharedFrameworks|PlugIns|Plug-ins"
+                            + "|XPCServices|Helpers|MacOS"
+                            + "|Library/(Automator|Spotlight|LoginItems))/",
+                        ResourceRuleSet.NESTED, 10);
+        ruleSet.addRule("^.*");
+        ruleSet.addRule("^.*\\.lproj/", ResourceRuleSet.OPTIONAL, 1000);
+        ruleSet.addRule("^.*\\.lproj/locversion.plist$",
+                        ResourceRuleSet.OMIT, 1100);
+        ruleSet.addRule("^Info\\.plist$", ResourceRuleSet.OMIT, 20);
+        ruleSet.addRule("^PkgInfo$", ResourceRuleSet.OMIT, 20);
+        ruleSet.addRule("^[^/]+$", ResourceRuleSet.NESTED, 10);
+        ruleSet.addRule("^embedded\\.provisionprofile$", 0, 20);
+        ruleSet.addRule("^version\\.plist$", 0, 20);
+
+        return ruleSet;
+    }
+
+    /**
+     * Determines how the resource is written in files and files2 from the
+     * rules governing it. In files only optional resources are written with
+     * a hash dictionary, in files2 every resource is.
+     */
+    private int getAttributes(final String resourceName) {
+        int attributes = WRITE_DICTIONARY2;
+
+        final int flags = rules.match(resourceName);
+        if ((flags & ResourceRuleSet.OMIT) != 0) {
+            attributes |= OMITTED;
         }
-        pw.append("\t</dict>\n"
-                + "\t<key>rules2</key>\n"
-                + "\t<dict>\n"
-                + "\t\t<key>.*\\.dSYM($|/)</key>\n"
-                + "\t\t<dict>\n"
-                + "\t\t\t<key>weight</key>\n"
-                + "\t\t\t<real>11</real>\n"
-                + "\t\t</dict>\n"
-                + "\t\t<key>^</key>\n"
-                + "\t\t<dict>\n"
-                + "\t\t\t<key>weight</key>\n"
-                + "\t\t\t<real>20</real>\n"
-                + "\t\t</dict>\n"
-                + "\t\t<key>^(.*/)?\\.DS_Store$</key>\n"
-                + "\t\t<dict>\n"
-                + "\t\t\t<key>omit</key>\n"
-                + "\t\t\t<true/>\n"
-                + "\t\t\t<key>weight</key>\n"
-                + "\t\t\t<real>2000</real>\n"
-                + "\t\t</dict>\n"
-                + "\t\t<key>^(Frameworks|SharedFrameworks|PlugIns|Plug-ins|XPCServices|Helpers|MacOS|Library/(Automator|Spotlight|LoginItems))/</key>\n"
-                + "\t\t<dict>\n"
-                + "\t\t\t<key>nested</key>\n"
-                + "\t\t\t<true/>\n"
-                + "\t\t\t<key>weight</key>\n"
-                + "\t\t\t<real>10</real>\n"
-                + "\t\t</dict>\n"
-                + "\t\t<key>^.*</key>\n"
-                + "\t\t<true/>\n"
-                + "\t\t<key>^.*\\.lproj/</key>\n"
-                + "\t\t<dict>\n"
-                + "\t\t\t<key>optional</key>\n"
-                + "\t\t\t<true/>\n"
-                + "\t\t\t<key>weight</key>\n"
-                + "\t\t\t<real>1000</real>\n"
-                + "\t\t</dict>\n"
-                + "\t\t<key>^.*\\.lproj/locversion.plist$</key>\n"
-                + "\t\t<dict>\n"
-                + "\t\t\t<key>omit</key>\n"
-                + "\t\t\t<true/>\n"
-                + "\t\t\t<key>weight</key>\n"
-                + "\t\t\t<real>1100</real>\n"
-                + "\t\t</dict>\n"
-                + "\t\t<key>^Info\\.plist$</key>\n"
-                + "\t\t<dict>\n"
-                + "\t\t\t<key>omit</key>\n"
-                + "\t\t\t<true/>\n"
-                + "\t\t\t<key>weight</key>\n"
-                + "\t\t\t<real>20</real>\n"
-                + "\t\t</dict>\n"
-                + "\t\t<key>^PkgInfo$</key>\n"
-                + "\t\t<dict>\n"
-                + "\t\t\t<key>omit</key>\n"
-                + "\t\t\t<true/>\n"
-                + "\t\t\t<key>weight</key>\n"
-                + "\t\t\t<real>20</real>\n"
-                + "\t\t</dict>\n"
-                + "\t\t<key>^[^/]+$</key>\n"
-                + "\t\t<dict>\n"
-                + "\t\t\t<key>nested</key>\n"
-                + "\t\t\t<true/>\n"
-                + "\t\t\t<key>weight</key>\n"
-                + "\t\t\t<real>10</real>\n"
-                + "\t\t</dict>\n"
-                + "\t\t<key>^embedded\\.provisionprofile$</key>\n"
-                + "\t\t<dict>\n"
-                + "\t\t\t<key>weight</key>\n"
-                + "\t\t\t<real>20</real>\n"
-                + "\t\t</dict>\n"
-                + "\t\t<key>^version\\.plist$</key>\n"
-                + "\t\t<dict>\n"
-                + "\t\t\t<key>weight</key>\n"
-                + "\t\t\t<real>20</real>\n"
-                + "\t\t</dict>\n");
-        if (resourceRules.getIsResourceRulesPlist()) {
-            pw.append("\t\t<key>^ResourceRules.plist$</key>\n"
-                    + "\t\t<dict>\n"
-                    + "\t\t\t<key>omit</key>\n"
-                    + "\t\t\t<true/>\n"
-                    + "\t\t\t<key>weight</key>\n"
-                    + "\t\t\t<real>100</real>\n"
-                    + "\t\t</dict>\n");
+        if ((flags & ResourceRuleSet.OPTIONAL) != 0) {
+            attributes |= WRITE_DICTIONARY | OPTIONAL;
         }
-        pw.append("\t</dict>\n"
-                + "</dict>\n"
-                + "</plist>\n");
-        pw.flush();
-    }
 
-    private static void appendResource(final PrintWriter pw,
-                                       final HashedResource hashedResource,
-                                       final Boolean isFiles2) {
-        //http://stackoverflow.com/a/32663908
-        pw.append("\t\t<key>").append(xmlEscapeString(Normalizer.normalize(hashedResource.getName(), Normalizer.Form.NFD))).append("</key>\n");
-        Pattern p = Pattern.compile("\\.nib$|\\/Info[^/]*\\.plist$");
-        Matcher m = p.matcher(hashedResource.getName());
-        Boolean shouldAddDict = isFiles2 || m.find();
-        if(shouldAddDict) {
-            pw.append("\t\t<dict>\n\t\t\t<key>hash</key>\n\t");
+        final int flags2 = rules2.match(resourceName);
+        if ((flags2 & ResourceRuleSet.OMIT) != 0) {
+            attributes |= OMITTED2;
         }
-        pw.append("\t\t<data>\n");
-        if(shouldAddDict) {
-            pw.append("\t");
+        if ((flags2 & ResourceRuleSet.OPTIONAL) != 0) {
+            attributes |= OPTIONAL2;
         }
-        pw.append("\t\t").append(hashedResource.getHash()).append('\n');
-        if(shouldAddDict) {
-            pw.append("\t");
+
+        return attributes;
+    }
+
+    private static void writeResource(final PlistWriter writer,
+                                      final HashedResource hashedResource,
+                                      final boolean isFiles2)
+            throws IOException {
+        final int attributes = hashedResource.getAttributes();
+        writer.writeKey(normalizeName(hashedResource.getName()));
+        if ((attributes & (isFiles2 ? WRITE_DICTIONARY2
+                                    : WRITE_DICTIONARY)) == 0) {
+            writer.writeData(hashedResource.getHash());
+            return;
         }
-        pw.append("\t\t</data>\n");
 
-        if(isFiles2) {
-            pw.append("\t\t\t<key>hash2</key>\n\t\t\t<data>\n\t\t\t");
-            pw.append(hashedResource.get256Hash()).append("\n\t\t\t</data>\n");
+        writer.writeStartDict();
+        writer.writeKey("hash");
+        writer.writeData(hashedResource.getHash());
+        if (isFiles2) {
+            writer.writeKey("hash2");
+            writer.writeData(hashedResource.get256Hash());
         }
-        p = Pattern.compile("\\.png$");
-        m = p.matcher(hashedResource.getName());
-        Boolean isPng = m.find();
-        p = Pattern.compile("Icon.*\\.png$|LaunchImage.*\\.png$");
-        m = p.matcher(hashedResource.getName());
-        Boolean isExcludedPng = m.find();
-        p = Pattern.compile("^Assets.car$|^archived-expanded-entitlements.xcent$|^embedded.mobileprovision$|^entitlements.plist$");
-        m = p.matcher(hashedResource.getName());
-        Boolean otherExclusions = m.find();
-        if(shouldAddDict) {
-            if ((!isFiles2 && !isPng) || (isFiles2 && !otherExclusions && !isExcludedPng)) {
-                pw.append("\t\t\t<key>optional</key>\n\t\t\t<true/>\n");
-            }
+        if ((attributes & (isFiles2 ? OPTIONAL2 : OPTIONAL)) != 0) {
+            writer.writeKey("optional");
+            writer.writeTrue();
         }
-        if(shouldAddDict) {
-            pw.append("\t\t</dict>\n");
+        writer.writeEndDict();
+    }
+
+    private NestedCode findNestedCode(final String resourceName) {
+        for (final NestedCode nestedCodeEntry: nestedCode) {
+            final String path = nestedCodeEntry.getPath();
+            if (resourceName.equals(path)
+                    || resourceName.startsWith(path + '/')) {
+                return nestedCodeEntry;
+            }
         }
+
+        return null;
+    }
+
+    private static void writeNestedCode(final PlistWriter writer,
+                                        final NestedCode nestedCode)
+            throws IOException {
+        writer.writeKey(normalizeName(nestedCode.getPath()));
+        writer.writeStartDict();
+        writer.writeKey("cdhash");
+        writer.writeData(nestedCode.getCodeDirectoryHash());
+        writer.writeKey("requirement");
+        writer.writeString(nestedCode.getRequirement());
+        writer.writeEndDict();
     }
 
-    private static void appendExclude(final PrintWriter pw,
-                                      final Exclude exclude) {
-        pw.append("\t\t<key>").append(exclude.getName()).append("</key>\n")
-          .append("\t\t<dict>\n")
-          .append("\t\t\t<key>omit</key>\n")
-          .append("\t\t\t<true/>\n")
-          .append("\t\t\t<key>weight</key>\n")
-          .append("\t\t\t<real>");
-        pw.print(exclude.getWeight());
-        pw.append("</real>\n")
-          .append("\t\t</dict>\n");
+    /**
+     * Returns the name in the decomposed form used on HFS+ volumes, as the
+     * resources are named in CodeResources. ASCII names are already
+     * decomposed.
+     */
+    public static String normalizeName(final String name) {
+        for (int i = 0; i < name.length(); ++i) {
+            if (name.charAt(i) >= 0x80) {
+                return Normalizer.normalize(name, Normalizer.Form.NFD);
+            }
+        }
+
+        return name;
     }
 
     private static final class HashedResource {
         private final String name;
-        private final String hash;
-        private final String hash256;
+        private final byte[] hash;
+        private final byte[] hash256;
+        private final int attributes;
 
-        public HashedResource(final String name, final String hash, final String hash256) {
+        public HashedResource(final String name,
+                              final byte[] hash,
+                              final byte[] hash256,
+                              final int attributes) {
             this.name = name;
             this.hash = hash;
             this.hash256 = hash256;
+            this.attributes = attributes;
         }
 
         public String getName() {
             return name;
         }
 
-        public String getHash() {
+        public byte[] getHash() {
             return hash;
         }
 
-        public String get256Hash() {
+        public byte[] get256Hash() {
             return hash256;
         }
+
+        public int getAttributes() {
+            return attributes;
+        }
     }
-    
-    private static String xmlEscapeString(String t) {
-        StringBuilder sb = new StringBuilder();
-        for(int i = 0; i < t.length(); i++){
-        char c = t.charAt(i);
-        switch(c){
-            case '<': sb.append("&lt;"); break;
-            case '>': sb.append("&gt;"); break;
-            case '\"': sb.append("&quot;"); break;
-            case '&': sb.append("&amp;"); break;
-            case '\'': sb.append("&apos;"); break;
-            default:
-                sb.append(c);
-            }
+
+    private static final class NestedCode {
+        private final String path;
+        private final byte[] codeDirectoryHash;
+        private final String requirement;
+
+        public NestedCode(final String path,
+                          final byte[] codeDirectoryHash,
+                          final String requirement) {
+            this.path = path;
+            this.codeDirectoryHash = codeDirectoryHash;
+            this.requirement = requirement;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public byte[] getCodeDirectoryHash() {
+            return codeDirectoryHash;
+        }
+
+        public String getRequirement() {
+            return requirement;
         }
-        return sb.toString();
     }
 }
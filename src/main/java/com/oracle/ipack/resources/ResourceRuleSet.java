@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.resources;
+
+import com.oracle.ipack.util.PlistWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A set of resource rules as written into the rules and rules2 dictionaries
+ * of CodeResources, compiled for matching resource names.
+ *
+ * A resource is governed by the matching rule with the highest weight, of
+ * equally weighted rules an omitting one wins. The rules are kept sorted by
+ * that precedence, so a resource name is only matched until the first rule
+ * applies. Rules which only match a literal name or match any name are
+ * evaluated without regular expressions, other rules run their regular
+ * expression only on names containing the literal text the expression
+ * requires.
+ */
+public final class ResourceRuleSet {
+    public static final int OPTIONAL = 1;
+    public static final int OMIT = 2;
+    public static final int NESTED = 4;
+
+    // the weight of a rule without an explicit weight
+    private static final int DEFAULT_WEIGHT = 1;
+
+    private final List<Rule> rules;
+    private final List<Rule> rulesByPrecedence;
+
+    public ResourceRuleSet() {
+        rules = new ArrayList<Rule>();
+        rulesByPrecedence = new ArrayList<Rule>();
+    }
+
+    /**
+     * Adds a rule without flags and weight, written as a plain true value.
+     */
+    public void addRule(final String pattern) {
+        addRule(new Rule(pattern, 0, DEFAULT_WEIGHT, false));
+    }
+
+    public void addRule(final String pattern,
+                        final int flags,
+                        final int weight) {
+        addRule(new Rule(pattern, flags, weight, true));
+    }
+
+    /**
+     * Returns the flags of the rule governing the resource. A resource which
+     * isn't matched by any rule is omitted.
+     */
+    public int match(final String resourceName) {
+        for (final Rule rule: rulesByPrecedence) {
+            if (rule.matches(resourceName)) {
+                return rule.flags;
+            }
+        }
+
+        return OMIT;
+    }
+
+    /**
+     * Writes the rules as a dictionary in the order they have been added.
+     */
+    public void write(final PlistWriter writer) throws IOException {
+        writer.writeStartDict();
+        for (final Rule rule: rules) {
+            writer.writeKey(rule.pattern);
+            if (!rule.hasWeight) {
+                writer.writeTrue();
+                continue;
+            }
+
+            writer.writeStartDict();
+            writeFlag(writer, rule.flags, NESTED, "nested");
+            writeFlag(writer, rule.flags, OMIT, "omit");
+            writeFlag(writer, rule.flags, OPTIONAL, "optional");
+            writer.writeKey("weight");
+            writer.writeReal(rule.weight);
+            writer.writeEndDict();
+        }
+        writer.writeEndDict();
+    }
+
+    private void addRule(final Rule rule) {
+        rules.add(rule);
+
+        int index = 0;
+        while ((index < rulesByPrecedence.size())
+                   && !rule.precedes(rulesByPrecedence.get(index))) {
+            ++index;
+        }
+        rulesByPrecedence.add(index, rule);
+    }
+
+    private static void writeFlag(final PlistWriter writer,
+                                  final int flags,
+                                  final int flag,
+                                  final String key) throws IOException {
+        if ((flags & flag) != 0) {
+            writer.writeKey(key);
+            writer.writeTrue();
+        }
+    }
+
+    private static final class Rule {
+        private final String pattern;
+        private final int flags;
+        private final int weight;
+        private final boolean hasWeight;
+
+        // set for rules matching a literal name only
+        private final String literal;
+        // set for rules which need a regular expression
+        private final Pattern compiledPattern;
+        // text contained in any name matched by the regular expression
+        private final String requiredText;
+
+        public Rule(final String pattern,
+                    final int flags,
+                    final int weight,
+                    final boolean hasWeight) {
+            this.pattern = pattern;
+            this.flags = flags;
+            this.weight = weight;
+            this.hasWeight = hasWeight;
+
+            if (pattern.equals("^") || pattern.equals("^.*")) {
+                literal = null;
+                compiledPattern = null;
+                requiredText = null;
+            } else {
+                literal = toLiteral(pattern);
+                compiledPattern = (literal == null) ? Pattern.compile(pattern)
+                                                    : null;
+                requiredText = (literal == null) ? toRequiredText(pattern)
+                                                 : null;
+            }
+        }
+
+        public boolean matches(final String resourceName) {
+            if (literal != null) {
+                return literal.equals(resourceName);
+            }
+            if (compiledPattern == null) {
+                return true;
+            }
+
+            return ((requiredText == null)
+                        || (resourceName.indexOf(requiredText) != -1))
+                       && compiledPattern.matcher(resourceName).find();
+        }
+
+        public boolean precedes(final Rule other) {
+            if (weight != other.weight) {
+                return weight > other.weight;
+            }
+
+            return ((flags & OMIT) != 0) && ((other.flags & OMIT) == 0);
+        }
+
+        /**
+         * Returns the name matched by a pattern of the form ^name$ in which
+         * only dots may be escaped, null for any other pattern.
+         */
+        private static String toLiteral(final String pattern) {
+            if (!pattern.startsWith("^") || !pattern.endsWith("$")) {
+                return null;
+            }
+
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 1; i < pattern.length() - 1; ++i) {
+                final char c = pattern.charAt(i);
+                if ((c == '\\') && (pattern.charAt(i + 1) == '.')) {
+                    sb.append('.');
+                    ++i;
+                } else if ("\\.[](){}|?*+^$".indexOf(c) != -1) {
+                    return null;
+                } else {
+                    sb.append(c);
+                }
+            }
+
+            return sb.toString();
+        }
+
+        /**
+         * Returns the longest literal text outside of groups which any
+         * match of the pattern contains, null if there is none. Patterns
+         * with alternatives or embedded flags are not analyzed.
+         */
+        private static String toRequiredText(final String pattern) {
+            if ((pattern.indexOf('|') != -1) || pattern.contains("(?")) {
+                return null;
+            }
+
+            String requiredText = "";
+            final StringBuilder run = new StringBuilder();
+            int groupDepth = 0;
+            for (int i = 0; i < pattern.length(); ++i) {
+                final char c = pattern.charAt(i);
+                char literalChar = 0;
+                if (c == '\\') {
+                    // only escaped punctuation is literal, not \d and alike
+                    if ((i + 1 < pattern.length())
+                            && (".$^/-".indexOf(pattern.charAt(i + 1))
+                                    != -1)) {
+                        literalChar = pattern.charAt(i + 1);
+                    }
+                    ++i;
+                } else if (c == '(') {
+                    ++groupDepth;
+                } else if (c == ')') {
+                    --groupDepth;
+                } else if (c == '[') {
+                    // skip the character class
+                    while ((i < pattern.length())
+                               && (pattern.charAt(i) != ']')) {
+                        i += (pattern.charAt(i) == '\\') ? 2 : 1;
+                    }
+                } else if (".*+?{}^$]".indexOf(c) == -1) {
+                    literalChar = c;
+                }
+
+                final boolean isQuantified =
+                        (i + 1 < pattern.length())
+                            && ("*?{".indexOf(pattern.charAt(i + 1)) != -1);
+                if ((literalChar != 0) && (groupDepth == 0)
+                        && !isQuantified) {
+                    run.append(literalChar);
+                    continue;
+                }
+
+                if (run.length() > requiredText.length()) {
+                    requiredText = run.toString();
+                }
+                run.setLength(0);
+            }
+            if (run.length() > requiredText.length()) {
+                requiredText = run.toString();
+            }
+
+            return requiredText.isEmpty() ? null : requiredText;
+        }
+    }
+}
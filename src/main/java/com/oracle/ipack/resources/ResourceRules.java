@@ -25,13 +25,17 @@
 
 package com.oracle.ipack.resources;
 
+import com.oracle.ipack.util.PhaseStats;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 public final class ResourceRules {
     private final List<Exclude> excludes;
@@ -53,51 +57,103 @@ public final class ResourceRules {
         return Collections.unmodifiableList(excludes);
     }
 
-    public List<String> collectResources(final File baseDirectory) {
+    public List<String> collectResources(final File baseDirectory)
+            throws IOException {
+        return collectResources(baseDirectory, null);
+    }
+
+    /**
+     * Collects the resources of the base directory merged with the ones of
+     * the overlay directory, which holds replaced or additional files in the
+     * same layout.
+     */
+    public List<String> collectResources(final File baseDirectory,
+                                         final File overlayDirectory)
+            throws IOException {
+        final ResourceScanner scanner =
+                scanResources(baseDirectory, overlayDirectory, null);
         final List<String> resources = new ArrayList<String>();
-        collectResources(resources, baseDirectory, "");
+        for (String resource = scanner.next();
+                 resource != null;
+                 resource = scanner.next()) {
+            resources.add(resource);
+        }
 
         return Collections.unmodifiableList(resources);
     }
-    
-    public Boolean getIsResourceRulesPlist() {
-        return isResourceRulesPlist;
+
+    /**
+     * Starts scanning the resources of the base directory merged with the
+     * ones of the overlay directory, in the same order as collectResources.
+     * The directories are listed on the executor if there is one.
+     */
+    public ResourceScanner scanResources(final File baseDirectory,
+                                         final File overlayDirectory,
+                                         final ExecutorService executor) {
+        return scanResources(baseDirectory, overlayDirectory, executor,
+                             new PhaseStats(false));
     }
 
-    private void collectResources(final List<String> resources,
-                                  final File resourceFile,
-                                  final String resourceName) {
-        //System.out.println("Resource: " + resourceName);
-        if (resourceName.equals("ResourceRules.plist")) {
-            isResourceRulesPlist = true;
-        }
-        if (excludesLookup.contains(resourceName)) {
-            return;
-        }
+    /**
+     * Starts scanning the resources like the method above, adding the
+     * listing of every directory to the given statistics.
+     */
+    public ResourceScanner scanResources(final File baseDirectory,
+                                         final File overlayDirectory,
+                                         final ExecutorService executor,
+                                         final PhaseStats phaseStats) {
+        return new ResourceScanner(this, excludesLookup, baseDirectory,
+                                   overlayDirectory, executor, phaseStats);
+    }
 
-        if (resourceFile.isDirectory()) {
-            if (!resourceName.isEmpty()) {
-                resources.add(resourceName + '/');
+    /**
+     * Collects the resources from the names of archive entries relative to
+     * the application directory. The resources are in the same order as if
+     * they were collected from a directory, missing parent directories are
+     * added.
+     */
+    public List<String> collectResources(
+            final Collection<String> entryNames) {
+        final Set<String> resources = new HashSet<String>();
+        for (final String entryName: entryNames) {
+            final String[] segments = entryName.split("/");
+            String resourceName = "";
+            for (int i = 0; i < segments.length; ++i) {
+                resourceName = constructResourceName(resourceName,
+                                                     segments[i]);
+                if (resourceName.equals("ResourceRules.plist")) {
+                    isResourceRulesPlist = true;
+                }
+                if (resourceName.isEmpty()
+                        || excludesLookup.contains(resourceName)) {
+                    break;
+                }
+
+                final boolean isDirectory = (i < segments.length - 1)
+                                                || entryName.endsWith("/");
+                resources.add(isDirectory ? resourceName + '/'
+                                          : resourceName);
             }
+        }
 
-            final String[] childNames = resourceFile.list();
-            Arrays.sort(childNames);
-            for (final String childName: childNames) {
-                collectResources(resources,
-                                 new File(resourceFile, childName),
-                                 constructResourceName(
-                                         resourceName, childName));
+        final List<String> sortedResources =
+                new ArrayList<String>(resources);
+        Collections.sort(sortedResources, new Comparator<String>() {
+            @Override
+            public int compare(final String first, final String second) {
+                return compareResourceNames(first, second);
             }
+        });
 
-            return;
-        }
+        return Collections.unmodifiableList(sortedResources);
+    }
 
-        if (resourceFile.isFile()) {
-            resources.add(resourceName);
-            return;
-        }
+    public Boolean getIsResourceRulesPlist() {
+        return isResourceRulesPlist;
+    }
 
-        System.err.println("Skipping " + resourceName);
+    void setIsResourceRulesPlist() {
+        isResourceRulesPlist = true;
     }
 
     public static final class Exclude {
@@ -118,6 +174,26 @@ public final class ResourceRules {
         }
     }
 
+    /**
+     * Compares the names by their path segments, like a sorted depth first
+     * walk of the directories.
+     */
+    private static int compareResourceNames(final String first,
+                                            final String second) {
+        final String[] firstSegments = first.split("/");
+        final String[] secondSegments = second.split("/");
+        final int commonLength = Math.min(firstSegments.length,
+                                          secondSegments.length);
+        for (int i = 0; i < commonLength; ++i) {
+            final int result = firstSegments[i].compareTo(secondSegments[i]);
+            if (result != 0) {
+                return result;
+            }
+        }
+
+        return firstSegments.length - secondSegments.length;
+    }
+
     private static String constructResourceName(final String parentResource,
                                                 final String childResource) {
         return parentResource.isEmpty()
@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.resources;
+
+import com.oracle.ipack.util.PhaseStats;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Scans the resources of a directory merged with an overlay directory and
+ * returns them one by one in sorted depth first order, while the scan is
+ * still in progress.
+ *
+ * Every directory is listed by its own task, which reads the attributes of
+ * all entries once while walking the directory. With an executor the tasks
+ * for the subdirectories found in a listing are submitted right away, so
+ * sibling subtrees are listed in parallel ahead of the caller. A listing
+ * which hasn't been started by the time the caller needs it is done by the
+ * caller itself, without an executor all listings are done that way.
+ */
+public final class ResourceScanner {
+    private final ResourceRules resourceRules;
+    private final Set<String> excludes;
+    private final ExecutorService executor;
+    private final PhaseStats phaseStats;
+    private final ArrayDeque<Cursor> cursors;
+
+    ResourceScanner(final ResourceRules resourceRules,
+                    final Set<String> excludes,
+                    final File baseDirectory,
+                    final File overlayDirectory,
+                    final ExecutorService executor,
+                    final PhaseStats phaseStats) {
+        this.resourceRules = resourceRules;
+        this.excludes = excludes;
+        this.executor = executor;
+        this.phaseStats = phaseStats;
+        this.cursors = new ArrayDeque<Cursor>();
+
+        final Entry root = new Entry(baseDirectory.toPath(),
+                                     isDirectory(overlayDirectory)
+                                             ? overlayDirectory.toPath()
+                                             : null,
+                                     "");
+        cursors.push(new Cursor(startListing(root)));
+    }
+
+    /**
+     * Returns the next resource, null once all resources have been
+     * returned. Directories end with a slash.
+     */
+    public String next() throws IOException {
+        while (!cursors.isEmpty()) {
+            final Cursor cursor = cursors.peek();
+            final Listing listing = cursor.getListing();
+            if (cursor.index == listing.entries.size()) {
+                cursors.pop();
+                continue;
+            }
+
+            final Entry entry = listing.entries.get(cursor.index);
+            final FutureTask<Listing> subdirectoryListing =
+                    listing.subdirectoryListings.get(cursor.index);
+            ++cursor.index;
+            if (subdirectoryListing != null) {
+                cursors.push(new Cursor(subdirectoryListing));
+                return entry.resourceName + '/';
+            }
+
+            return entry.resourceName;
+        }
+
+        return null;
+    }
+
+    private FutureTask<Listing> startListing(final Entry directory) {
+        final FutureTask<Listing> listingTask =
+                new FutureTask<Listing>(new Callable<Listing>() {
+                    @Override
+                    public Listing call() throws IOException {
+                        return list(directory);
+                    }
+                });
+        if (executor != null) {
+            executor.execute(listingTask);
+        }
+
+        return listingTask;
+    }
+
+    private Listing list(final Entry directory) throws IOException {
+        final PhaseStats.Measurement measurement =
+                phaseStats.start(PhaseStats.DIRECTORY_SCAN);
+        final Map<String, Entry> entries = new TreeMap<String, Entry>();
+        // the attributes of the root directory are not known
+        final boolean hasDirectory =
+                (directory.attributes != null)
+                        ? directory.attributes.isDirectory()
+                        : Files.isDirectory(directory.path);
+        final boolean hasOverlayDirectory =
+                (directory.overlayAttributes != null)
+                        ? directory.overlayAttributes.isDirectory()
+                        : (directory.overlayPath != null);
+        if (hasDirectory) {
+            walk(directory.path, directory, entries, false);
+        }
+        if (hasOverlayDirectory) {
+            walk(directory.overlayPath, directory, entries, true);
+        }
+
+        final Listing listing = new Listing();
+        for (final Entry entry: entries.values()) {
+            if (entry.resourceName.equals("ResourceRules.plist")) {
+                listing.hasResourceRulesPlist = true;
+            }
+            if (excludes.contains(entry.resourceName)) {
+                continue;
+            }
+
+            if (entry.isDirectory()) {
+                listing.entries.add(entry);
+                listing.subdirectoryListings.add(startListing(entry));
+            } else if (entry.isFile()) {
+                listing.entries.add(entry);
+                listing.subdirectoryListings.add(null);
+            } else {
+                System.err.println("Skipping " + entry.resourceName);
+            }
+        }
+
+        measurement.end(listing.entries.size(), 0);
+        return listing;
+    }
+
+    /**
+     * Adds the entries of the base or overlay directory with the attributes
+     * read by the walk, symbolic links are followed. Entries whose
+     * attributes can't be read are added without them.
+     */
+    private static void walk(final Path walkedDirectory,
+                             final Entry directory,
+                             final Map<String, Entry> entries,
+                             final boolean isOverlay) throws IOException {
+        Files.walkFileTree(
+                walkedDirectory,
+                EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+                1,
+                new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(
+                            final Path file,
+                            final BasicFileAttributes attributes) {
+                        addEntry(file, attributes);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(
+                            final Path file,
+                            final IOException e) throws IOException {
+                        if (file.equals(walkedDirectory)) {
+                            throw e;
+                        }
+                        addEntry(file, null);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    private void addEntry(
+                            final Path file,
+                            final BasicFileAttributes attributes) {
+                        final String name = file.getFileName().toString();
+                        Entry entry = entries.get(name);
+                        if (entry == null) {
+                            entry = new Entry(
+                                    directory.path.resolve(name),
+                                    null,
+                                    constructResourceName(
+                                            directory.resourceName, name));
+                            entries.put(name, entry);
+                        }
+                        // a broken link doesn't count as existing
+                        if ((attributes == null)
+                                || attributes.isSymbolicLink()) {
+                            return;
+                        }
+                        if (isOverlay) {
+                            entry.overlayPath = file;
+                            entry.overlayAttributes = attributes;
+                        } else {
+                            entry.attributes = attributes;
+                        }
+                    }
+                });
+    }
+
+    private static boolean isDirectory(final File file) {
+        return (file != null) && file.isDirectory();
+    }
+
+    private static String constructResourceName(final String parentResource,
+                                                final String childResource) {
+        return parentResource.isEmpty()
+                ? childResource
+                : parentResource + '/' + childResource;
+    }
+
+    private final class Cursor {
+        private final FutureTask<Listing> listingTask;
+        private Listing listing;
+        private int index;
+
+        public Cursor(final FutureTask<Listing> listingTask) {
+            this.listingTask = listingTask;
+        }
+
+        public Listing getListing() throws IOException {
+            if (listing != null) {
+                return listing;
+            }
+
+            // does nothing if the task has already been started
+            listingTask.run();
+            try {
+                listing = listingTask.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while scanning resources",
+                                      e);
+            } catch (final ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException("Failed to scan resources", cause);
+            }
+            if (listing.hasResourceRulesPlist) {
+                resourceRules.setIsResourceRulesPlist();
+            }
+
+            return listing;
+        }
+    }
+
+    private static final class Listing {
+        private final List<Entry> entries = new ArrayList<Entry>();
+        private final List<FutureTask<Listing>> subdirectoryListings =
+                new ArrayList<FutureTask<Listing>>();
+        private boolean hasResourceRulesPlist;
+    }
+
+    private static final class Entry {
+        private final Path path;
+        private final String resourceName;
+        private Path overlayPath;
+        private BasicFileAttributes attributes;
+        private BasicFileAttributes overlayAttributes;
+
+        public Entry(final Path path,
+                     final Path overlayPath,
+                     final String resourceName) {
+            this.path = path;
+            this.overlayPath = overlayPath;
+            this.resourceName = resourceName;
+        }
+
+        public boolean isDirectory() {
+            return ((attributes != null) && attributes.isDirectory())
+                       || ((overlayAttributes != null)
+                               && overlayAttributes.isDirectory());
+        }
+
+        public boolean isFile() {
+            return ((attributes != null) && attributes.isRegularFile())
+                       || (overlayAttributes != null);
+        }
+    }
+}
@@ -26,11 +26,24 @@
 package com.oracle.ipack.signature;
 
 import com.oracle.ipack.blobs.Blob;
-import java.io.DataOutput;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public final class CodeDirectoryBlob extends Blob {
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+    // the largest page size, only valid for arm64 code
+    public static final int LARGE_PAGE_SIZE = 16384;
+
+    private static final int MAGIC = 0xfade0c02;
+    private static final int VERSION = 0x20200;
+    // the first version with the teamOffset field
+    private static final int VERSION_TEAM_ID = 0x20200;
+    // adds the codeLimit64 field for code limits over 4 GB
+    private static final int VERSION_CODE_LIMIT_64 = 0x20300;
+
     private final byte[] identifierBytes;
     private final byte[] teamIdentifierBytes;
 
@@ -39,7 +52,7 @@ public final class CodeDirectoryBlob extends Blob {
     private final byte[] specialSlots;
     private final byte[] codeSlots;
 
-    private final int codeLimit;
+    private final long codeLimit;
     private final int hashSize;
     private final int hashType;
     private final int pageSize;
@@ -48,30 +61,39 @@ public final class CodeDirectoryBlob extends Blob {
 
     public CodeDirectoryBlob(final String identifier,
                              final String teamIdentifier,
-                             final int codeLimit) {
-        this(identifier, teamIdentifier, codeLimit, 5, 4096, 20, 1);
+                             final long codeLimit) {
+        this(identifier, teamIdentifier, codeLimit, 5, DEFAULT_PAGE_SIZE, 20,
+             1);
     }
 
     public CodeDirectoryBlob(final String identifier,
                              final String teamIdentifier,
-                             final int codeLimit,
+                             final long codeLimit,
                              final int hashSize,
                              final int hashType) {
-        this(identifier, teamIdentifier, codeLimit, 5, 4096, hashSize, hashType);
+        this(identifier, teamIdentifier, codeLimit, 5, DEFAULT_PAGE_SIZE,
+             hashSize, hashType);
     }
 
     public CodeDirectoryBlob(final String identifier,
                              final String teamIdentifier,
-                             final int codeLimit,
+                             final long codeLimit,
                              final int numberOfSpecialSlots,
                              final int pageSize,
                              final int hashSize,
                              final int hashType) {
+        if ((pageSize <= 0) || ((pageSize & (pageSize - 1)) != 0)) {
+            // stored as a shift count in the serialized code directory
+            throw new IllegalArgumentException(
+                    "Page size must be a power of two");
+        }
+
         this.identifierBytes = identifierBytes(identifier);
         this.teamIdentifierBytes = identifierBytes(teamIdentifier);
 
         this.numberOfSpecialSlots = numberOfSpecialSlots;
-        this.numberOfCodeSlots = (codeLimit + pageSize - 1) / pageSize;
+        this.numberOfCodeSlots =
+                (int) ((codeLimit + pageSize - 1) / pageSize);
 
         this.specialSlots = new byte[numberOfSpecialSlots * hashSize];
         this.codeSlots = new byte[numberOfCodeSlots * hashSize];
@@ -82,6 +104,74 @@ public final class CodeDirectoryBlob extends Blob {
         this.pageSize = pageSize;
     }
 
+    /**
+     * Reads a serialized code directory, as found in the embedded signature
+     * of a signed executable.
+     */
+    public static CodeDirectoryBlob read(final byte[] data)
+            throws IOException {
+        // code directories are stored in big endian, the default byte order
+        // of ByteBuffer
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        try {
+            if ((buffer.getInt(0) != MAGIC)
+                    || (buffer.getInt(4) != data.length)) {
+                throw new IOException("Invalid code directory");
+            }
+
+            final int version = buffer.getInt(8);
+            final int hashOffset = buffer.getInt(16);
+            final int identOffset = buffer.getInt(20);
+            final int numberOfSpecialSlots = buffer.getInt(24);
+            final int numberOfCodeSlots = buffer.getInt(28);
+            final int hashSize = buffer.get(36) & 0xff;
+            final int hashType = buffer.get(37) & 0xff;
+            final int pageSizeShift = buffer.get(39) & 0xff;
+            final int teamOffset =
+                    (version >= VERSION_TEAM_ID) ? buffer.getInt(48) : 0;
+            long codeLimit = buffer.getInt(32) & 0xffffffffL;
+            if ((version >= VERSION_CODE_LIMIT_64)
+                    && (buffer.getLong(56) != 0)) {
+                codeLimit = buffer.getLong(56);
+            }
+
+            if ((pageSizeShift == 0) || (pageSizeShift > 30)
+                    || (hashSize == 0)) {
+                throw new IOException("Unsupported code directory layout");
+            }
+
+            final CodeDirectoryBlob codeDirectoryBlob =
+                    new CodeDirectoryBlob(readString(data, identOffset),
+                                          (teamOffset != 0)
+                                                  ? readString(data,
+                                                               teamOffset)
+                                                  : null,
+                                          codeLimit,
+                                          numberOfSpecialSlots,
+                                          1 << pageSizeShift,
+                                          hashSize,
+                                          hashType);
+            if (codeDirectoryBlob.numberOfCodeSlots != numberOfCodeSlots) {
+                throw new IOException(
+                        "Number of code slots doesn't match the code limit");
+            }
+
+            codeDirectoryBlob.setFlags(buffer.getInt(12));
+            final byte[] specialSlots = codeDirectoryBlob.specialSlots;
+            buffer.position(hashOffset - specialSlots.length);
+            buffer.get(specialSlots);
+            buffer.get(codeDirectoryBlob.codeSlots);
+
+            return codeDirectoryBlob;
+        } catch (final IndexOutOfBoundsException e) {
+            throw new IOException("Truncated code directory", e);
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Truncated code directory", e);
+        } catch (final BufferUnderflowException e) {
+            throw new IOException("Truncated code directory", e);
+        }
+    }
+
     public int getFlags() {
         return flags;
     }
@@ -112,54 +202,123 @@ public final class CodeDirectoryBlob extends Blob {
                          hashSize);
     }
 
+    /**
+     * Returns the hash in the given special slot, slots which aren't present
+     * are empty.
+     */
+    public byte[] getSpecialSlot(final int index) {
+        final int offset = specialSlots.length - index * hashSize;
+        if ((index < 1) || (offset < 0)) {
+            return new byte[hashSize];
+        }
+
+        return Arrays.copyOfRange(specialSlots, offset, offset + hashSize);
+    }
+
     public void setCodeSlot(final int index, final byte[] hash) {
         System.arraycopy(hash, 0, codeSlots, index * hashSize, hashSize);
     }
 
+    /**
+     * Returns the array which backs the code slots. The hash of page i is
+     * stored at offset i * getHashSize(), so page hashes can be calculated
+     * directly into it, also concurrently for different pages.
+     */
+    public byte[] getCodeSlots() {
+        return codeSlots;
+    }
+
+    public int getNumberOfCodeSlots() {
+        return numberOfCodeSlots;
+    }
+
+    public int getHashSize() {
+        return hashSize;
+    }
+
+    public int getHashType() {
+        return hashType;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public long getCodeLimit() {
+        return codeLimit;
+    }
+
     @Override
     protected int getMagic() {
-        return 0xfade0c02;
+        return MAGIC;
     }
 
     @Override
     protected int getPayloadSize() {
-        return 4 * 11 + identifierBytes.length
+        return getFixedPayloadSize() + identifierBytes.length
                       + teamIdentifierBytes.length
                       + specialSlots.length
                       + codeSlots.length;
     }
 
     @Override
-    protected void writePayload(final DataOutput dataOutput)
-            throws IOException {
-        final int identOffset = 8 + 4 * 11;
+    protected void writePayload(final ByteBuffer buffer,
+                                final int payloadSize) {
+        final int identOffset = 8 + getFixedPayloadSize();
         final int teamOffset = identOffset + identifierBytes.length;
         final int hashOffset = teamOffset + teamIdentifierBytes.length
                                            + specialSlots.length;
         final int pageSizeShift = 31 - Integer.numberOfLeadingZeros(pageSize);
 
-        dataOutput.writeInt(0x20200); // version
-        dataOutput.writeInt(flags);
-        dataOutput.writeInt(hashOffset);
-        dataOutput.writeInt(identOffset);
-        dataOutput.writeInt(numberOfSpecialSlots);
-        dataOutput.writeInt(numberOfCodeSlots);
-        dataOutput.writeInt(codeLimit);
-        dataOutput.writeByte(hashSize);
-        dataOutput.writeByte(hashType);
-        dataOutput.writeByte(0); // spare1
-        dataOutput.writeByte(pageSizeShift);
-        dataOutput.writeInt(0); // spare2
-        dataOutput.writeInt(0); // scatterOffset
-        dataOutput.writeInt(teamOffset);
-
-        dataOutput.write(identifierBytes);
-        dataOutput.write(teamIdentifierBytes);
-        dataOutput.write(specialSlots);
-        dataOutput.write(codeSlots);
+        buffer.putInt(hasCodeLimit64() ? VERSION_CODE_LIMIT_64 : VERSION);
+        buffer.putInt(flags);
+        buffer.putInt(hashOffset);
+        buffer.putInt(identOffset);
+        buffer.putInt(numberOfSpecialSlots);
+        buffer.putInt(numberOfCodeSlots);
+        buffer.putInt(hasCodeLimit64() ? 0xffffffff : (int) codeLimit);
+        buffer.put((byte) hashSize);
+        buffer.put((byte) hashType);
+        buffer.put((byte) 0); // spare1
+        buffer.put((byte) pageSizeShift);
+        buffer.putInt(0); // spare2
+        buffer.putInt(0); // scatterOffset
+        buffer.putInt((teamIdentifierBytes.length != 0) ? teamOffset : 0);
+        if (hasCodeLimit64()) {
+            buffer.putInt(0); // spare3
+            buffer.putLong(codeLimit);
+        }
+
+        // the slots are the bulk of the code directory, they are copied
+        // with single puts
+        buffer.put(identifierBytes);
+        buffer.put(teamIdentifierBytes);
+        buffer.put(specialSlots);
+        buffer.put(codeSlots);
+    }
+
+    private boolean hasCodeLimit64() {
+        return codeLimit > 0xffffffffL;
+    }
+
+    private int getFixedPayloadSize() {
+        return hasCodeLimit64() ? 4 * 11 + 12 : 4 * 11;
+    }
+
+    private static String readString(final byte[] data, final int offset)
+            throws IOException {
+        int end = offset;
+        while (data[end] != 0) {
+            ++end;
+        }
+
+        return new String(data, offset, end - offset, "UTF-8");
     }
 
     private byte[] identifierBytes(final String identifier) {
+        if (identifier == null) {
+            return new byte[0];
+        }
         try {
             return (identifier + '\0').getBytes("UTF-8");
         } catch (final UnsupportedEncodingException e) {
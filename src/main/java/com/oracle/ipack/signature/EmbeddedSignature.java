@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.signature;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An embedded signature read from a signed executable. The sub-blobs are
+ * kept as they are stored, since the special slots of the code directories
+ * hold the hashes of their stored bytes. The code directories are parsed on
+ * request.
+ */
+public final class EmbeddedSignature {
+    private static final int EMBEDDED_SIGNATURE_MAGIC = 0xfade0cc0;
+    private static final int WRAPPER_MAGIC = 0xfade0b01;
+
+    private final Map<Integer, byte[]> subBlobs;
+
+    private EmbeddedSignature(final Map<Integer, byte[]> subBlobs) {
+        this.subBlobs = subBlobs;
+    }
+
+    /**
+     * Reads the embedded signature from the remaining bytes of the buffer,
+     * which may be followed by padding.
+     */
+    public static EmbeddedSignature read(final ByteBuffer data)
+            throws IOException {
+        // blobs are stored in big endian, the default byte order of
+        // ByteBuffer
+        final ByteBuffer buffer = data.slice();
+        try {
+            if (buffer.getInt(0) != EMBEDDED_SIGNATURE_MAGIC) {
+                throw new IOException("Invalid embedded signature");
+            }
+
+            final int size = buffer.getInt(4);
+            final int numberOfSubBlobs = buffer.getInt(8);
+            if ((size > buffer.limit())
+                    || (numberOfSubBlobs < 0)
+                    || (numberOfSubBlobs > (size - 12) / 8)) {
+                throw new IOException("Invalid embedded signature");
+            }
+
+            final Map<Integer, byte[]> subBlobs =
+                    new LinkedHashMap<Integer, byte[]>();
+            for (int i = 0; i < numberOfSubBlobs; ++i) {
+                final int type = buffer.getInt(12 + i * 8);
+                final int offset = buffer.getInt(16 + i * 8);
+                final int subBlobSize = buffer.getInt(offset + 4);
+                if ((offset < 12) || (subBlobSize < 8)
+                        || (subBlobSize > size - offset)) {
+                    throw new IOException("Invalid sub-blob of type 0x"
+                                              + Integer.toHexString(type));
+                }
+
+                final byte[] subBlob = new byte[subBlobSize];
+                buffer.position(offset);
+                buffer.get(subBlob);
+                subBlobs.put(type, subBlob);
+            }
+
+            return new EmbeddedSignature(subBlobs);
+        } catch (final IndexOutOfBoundsException e) {
+            throw new IOException("Truncated embedded signature", e);
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Truncated embedded signature", e);
+        }
+    }
+
+    /**
+     * Returns the stored bytes of the sub-blob of the given type, null if
+     * the signature has none.
+     */
+    public byte[] getSubBlob(final int type) {
+        return subBlobs.get(type);
+    }
+
+    public CodeDirectoryBlob getCodeDirectory() throws IOException {
+        return readCodeDirectory(SpecialSlotConstants.CD_CODE_DIRECTORY_SLOT);
+    }
+
+    /**
+     * Returns the alternate, SHA-256 code directory or null.
+     */
+    public CodeDirectoryBlob getCodeDirectory256() throws IOException {
+        return readCodeDirectory(
+                SpecialSlotConstants.CD_CODE_DIRECTORY_256_SLOT);
+    }
+
+    /**
+     * Returns the CMS signature of the code directory or null.
+     */
+    public byte[] getSignature() throws IOException {
+        final byte[] signatureBlob =
+                subBlobs.get(SpecialSlotConstants.CD_SIGNATURE_SLOT);
+        if (signatureBlob == null) {
+            return null;
+        }
+
+        if (ByteBuffer.wrap(signatureBlob).getInt(0) != WRAPPER_MAGIC) {
+            throw new IOException("Invalid signature blob");
+        }
+
+        return Arrays.copyOfRange(signatureBlob, 8, signatureBlob.length);
+    }
+
+    private CodeDirectoryBlob readCodeDirectory(final int type)
+            throws IOException {
+        final byte[] codeDirectory = subBlobs.get(type);
+        return (codeDirectory != null) ? CodeDirectoryBlob.read(codeDirectory)
+                                       : null;
+    }
+}
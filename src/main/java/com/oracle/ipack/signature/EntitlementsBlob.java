@@ -25,9 +25,9 @@
 
 package com.oracle.ipack.signature;
 
-import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -40,9 +40,15 @@ public final class EntitlementsBlob extends Blob {
         Path path = Paths.get(entitlementsFile.getCanonicalPath());
         entitlements = Files.readAllBytes(path);
     }
-    
-    protected void writePayload(final DataOutput dataOutput) throws IOException {
-        dataOutput.write(entitlements);
+
+    public EntitlementsBlob(final byte[] entitlements) {
+        this.entitlements = entitlements;
+    }
+
+    @Override
+    protected void writePayload(final ByteBuffer buffer,
+                                final int payloadSize) {
+        buffer.put(entitlements);
     }
 
     protected int getPayloadSize() {
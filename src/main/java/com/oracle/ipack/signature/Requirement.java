@@ -131,6 +131,11 @@ public abstract class Requirement {
             left.write(dataOutput);
             right.write(dataOutput);
         }
+
+        @Override
+        public String toString() {
+            return left + ((ident == 6) ? " and " : " or ") + right;
+        }
     }
 
     private static final class Ident extends Requirement {
@@ -155,6 +160,11 @@ public abstract class Requirement {
                 throws IOException {
             value.write(dataOutput);
         }
+
+        @Override
+        public String toString() {
+            return "identifier " + value;
+        }
     }
 
     private static final class Anchor extends Requirement {
@@ -178,6 +188,11 @@ public abstract class Requirement {
         protected void writePayload(final DataOutput dataOutput)
                 throws IOException {
         }
+
+        @Override
+        public String toString() {
+            return (ident == 0xf) ? "anchor apple generic" : "anchor apple";
+        }
     }
 
     private static final class CertField extends Requirement {
@@ -210,6 +225,12 @@ public abstract class Requirement {
             fieldName.write(dataOutput);
             match.write(dataOutput);
         }
+
+        @Override
+        public String toString() {
+            return "certificate " + certIndexToString(certIndex)
+                       + '[' + fieldName.getValue() + ']' + match;
+        }
     }
 
     private static final class CertGeneric extends Requirement {
@@ -242,6 +263,49 @@ public abstract class Requirement {
             oid.write(dataOutput);
             match.write(dataOutput);
         }
+
+        @Override
+        public String toString() {
+            return "certificate " + certIndexToString(certIndex)
+                       + "[field." + oidToString(oid.getBytes()) + ']'
+                       + match;
+        }
+    }
+
+    private static String certIndexToString(final int certIndex) {
+        switch (certIndex) {
+            case 0:
+                return "leaf";
+            case -1:
+                return "root";
+            default:
+                return Integer.toString(certIndex);
+        }
+    }
+
+    /**
+     * Converts a DER encoded object identifier to the dotted form.
+     */
+    private static String oidToString(final byte[] oid) {
+        final StringBuilder sb = new StringBuilder();
+        long value = 0;
+        for (int i = 0; i < oid.length; ++i) {
+            value = (value << 7) | (oid[i] & 0x7f);
+            if ((oid[i] & 0x80) != 0) {
+                continue;
+            }
+
+            if (sb.length() == 0) {
+                // the first byte encodes the first two components
+                final long first = Math.min(value / 40, 2);
+                sb.append(first).append('.').append(value - 40 * first);
+            } else {
+                sb.append('.').append(value);
+            }
+            value = 0;
+        }
+
+        return sb.toString();
     }
 
     private static class BinaryData {
@@ -251,6 +315,10 @@ public abstract class Requirement {
             this.bytes = bytes;
         }
 
+        public byte[] getBytes() {
+            return bytes;
+        }
+
         public int getSize() {
             final int rawSize = 4 + bytes.length;
             return (rawSize + 3) & ~3;
@@ -267,8 +335,21 @@ public abstract class Requirement {
     }
 
     private static final class StringData extends BinaryData {
+        private final String value;
+
         public StringData(final String value) {
             super(getBytes(value));
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"")
+                       + '"';
         }
 
         private static byte[] getBytes(final String value) {
@@ -304,6 +385,11 @@ public abstract class Requirement {
         protected void writeArg(final DataOutput dataOutput)
                 throws IOException {
         }
+
+        @Override
+        public String toString() {
+            return " /* exists */";
+        }
     }
 
     private static final class MatchEqual extends Match {
@@ -324,5 +410,10 @@ public abstract class Requirement {
                 throws IOException {
             arg.write(dataOutput);
         }
+
+        @Override
+        public String toString() {
+            return " = " + arg;
+        }
     }
 }
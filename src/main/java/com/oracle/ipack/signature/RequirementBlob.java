@@ -26,8 +26,10 @@
 package com.oracle.ipack.signature;
 
 import com.oracle.ipack.blobs.Blob;
-import java.io.DataOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public final class RequirementBlob extends Blob {
     private final Requirement requirement;
@@ -47,9 +49,25 @@ public final class RequirementBlob extends Blob {
     }
 
     @Override
-    protected void writePayload(
-            final DataOutput dataOutput) throws IOException {
-        dataOutput.writeInt(1); // expression form of requirement
-        requirement.write(dataOutput);
+    protected void writePayload(final ByteBuffer buffer,
+                                final int payloadSize) {
+        buffer.putInt(1); // expression form of requirement
+
+        // requirements are small and serialize themselves into a data output
+        final ByteArrayOutputStream bos =
+                new ByteArrayOutputStream(payloadSize - 4);
+        try {
+            final DataOutputStream dataStream = new DataOutputStream(bos);
+            try {
+                requirement.write(dataStream);
+            } finally {
+                dataStream.close();
+            }
+        } catch (final IOException e) {
+            // won't happen
+            throw new IllegalStateException(e);
+        }
+
+        buffer.put(bos.toByteArray());
     }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.signer;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+
+/**
+ * Signs with a private key in the process, using a JCA provider such as the
+ * Bouncy Castle provider ("BC") or the one of the JDK ("SunRsaSign"). Each
+ * signing thread keeps its own initialized signature object.
+ */
+public final class JcaSigningBackend implements SigningBackend {
+    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
+    private final ThreadLocal<Signature> signatures;
+
+    public JcaSigningBackend(final PrivateKey privateKey,
+                             final String providerName)
+            throws GeneralSecurityException {
+        // fails early for an unknown provider or an unsuitable key
+        Signature.getInstance(SIGNATURE_ALGORITHM, providerName)
+                 .initSign(privateKey);
+
+        // a signature object returns to the signing state after signing,
+        // so it is initialized only once
+        this.signatures = new ThreadLocal<Signature>() {
+            @Override
+            protected Signature initialValue() {
+                try {
+                    final Signature signature =
+                            Signature.getInstance(SIGNATURE_ALGORITHM,
+                                                  providerName);
+                    signature.initSign(privateKey);
+                    return signature;
+                } catch (final GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public int getParallelism() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    public byte[][] sign(final byte[][] messages) throws IOException {
+        final Signature signature = signatures.get();
+        final byte[][] signatureValues = new byte[messages.length][];
+        try {
+            for (int i = 0; i < messages.length; ++i) {
+                signature.update(messages[i]);
+                signatureValues[i] = signature.sign();
+            }
+        } catch (final GeneralSecurityException e) {
+            throw new IOException("Failed to sign", e);
+        }
+
+        return signatureValues;
+    }
+
+    @Override
+    public void close() {
+    }
+}
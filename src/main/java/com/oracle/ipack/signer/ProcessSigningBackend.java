@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.signer;
+
+import com.oracle.ipack.util.Base64;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signs in a separate process, a stand-in for a hardware security module or
+ * a remote signing service. The batches are sent to the standard input of
+ * the process, one per line as the base64 encoded messages separated by
+ * spaces. The process answers each line with "OK" followed by the base64
+ * encoded signatures or with "FAILED" followed by an error message.
+ *
+ * The process is a single key device, so only one batch is signed at a time.
+ * {@code serve} implements the process side of the protocol.
+ */
+public final class ProcessSigningBackend implements SigningBackend {
+    private static final long CLOSE_TIMEOUT = 10;
+
+    private final Process process;
+    private final Writer requestWriter;
+    private final BufferedReader responseReader;
+
+    public ProcessSigningBackend(final List<String> command)
+            throws IOException {
+        final ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        process = processBuilder.start();
+        requestWriter = new BufferedWriter(
+                new OutputStreamWriter(process.getOutputStream(), "US-ASCII"));
+        responseReader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), "US-ASCII"));
+    }
+
+    @Override
+    public int getParallelism() {
+        return 1;
+    }
+
+    @Override
+    public synchronized byte[][] sign(final byte[][] messages)
+            throws IOException {
+        final StringBuilder request = new StringBuilder();
+        for (final byte[] message: messages) {
+            if (request.length() > 0) {
+                request.append(' ');
+            }
+            request.append(Base64.byteArrayToBase64(message));
+        }
+        requestWriter.write(request.append('\n').toString());
+        requestWriter.flush();
+
+        final String response = responseReader.readLine();
+        if (response == null) {
+            throw new IOException("Signing process terminated");
+        }
+        if (!response.startsWith("OK")) {
+            throw new IOException("Signing process failed: " + response);
+        }
+
+        final String[] encodedSignatures = response.substring(2).trim()
+                                                   .split(" ");
+        if (encodedSignatures.length != messages.length) {
+            throw new IOException("Signing process returned "
+                                      + encodedSignatures.length
+                                      + " signatures for "
+                                      + messages.length + " messages");
+        }
+
+        final byte[][] signatures = new byte[messages.length][];
+        try {
+            for (int i = 0; i < signatures.length; ++i) {
+                signatures[i] = Base64.base64ToByteArray(encodedSignatures[i]);
+            }
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Invalid signature from signing process",
+                                  e);
+        } catch (final IndexOutOfBoundsException e) {
+            throw new IOException("Invalid signature from signing process",
+                                  e);
+        }
+
+        return signatures;
+    }
+
+    /**
+     * Closes the standard input of the process, so it terminates, and waits
+     * for it. The process is destroyed if it doesn't terminate in time.
+     *
+     * Unlike sign this isn't synchronized: a dispatcher waiting for an
+     * unresponsive process holds that lock, and only destroying the process
+     * ends its wait. The streams of the process are closed directly for the
+     * same reason, the reader and writer lock themselves while in use.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            process.getOutputStream().close();
+            if (!process.waitFor(CLOSE_TIMEOUT, TimeUnit.SECONDS)) {
+                process.destroy();
+            }
+        } catch (final InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+        } finally {
+            process.getInputStream().close();
+        }
+    }
+
+    /**
+     * Answers the signing requests read from the input stream with the
+     * given backend, until the input stream ends.
+     */
+    public static void serve(final SigningBackend backend,
+                             final InputStream is,
+                             final OutputStream os) throws IOException {
+        final BufferedReader reader =
+                new BufferedReader(new InputStreamReader(is, "US-ASCII"));
+        final Writer writer =
+                new BufferedWriter(new OutputStreamWriter(os, "US-ASCII"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            final String trimmedLine = line.trim();
+            if (trimmedLine.isEmpty()) {
+                continue;
+            }
+
+            String response;
+            try {
+                final String[] encodedMessages = trimmedLine.split(" ");
+                final byte[][] messages = new byte[encodedMessages.length][];
+                for (int i = 0; i < messages.length; ++i) {
+                    messages[i] = Base64.base64ToByteArray(encodedMessages[i]);
+                }
+
+                final StringBuilder sb = new StringBuilder("OK");
+                for (final byte[] signature: backend.sign(messages)) {
+                    sb.append(' ').append(Base64.byteArrayToBase64(signature));
+                }
+                response = sb.toString();
+            } catch (final IllegalArgumentException e) {
+                response = "FAILED Invalid message";
+            } catch (final IndexOutOfBoundsException e) {
+                response = "FAILED Invalid message";
+            } catch (final IOException e) {
+                response = "FAILED " + String.valueOf(e.getMessage())
+                                             .replaceAll("\\s+", " ").trim();
+            }
+
+            writer.write(response);
+            writer.write('\n');
+            writer.flush();
+        }
+    }
+}
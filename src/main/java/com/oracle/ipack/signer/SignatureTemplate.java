@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.signer;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.cms.Time;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.SignerInformation;
+
+/**
+ * A pre-encoded detached CMS signature. The signatures made with one key
+ * differ only in the signing time, the message digest and the signature
+ * value, which all have a fixed size for the key. They are spliced into a
+ * copy of the template, so the certificates, the signer identifier and the
+ * algorithm identifiers aren't encoded again for every signature.
+ *
+ * The template is a signature of empty data made by the generator, so the
+ * spliced signatures are encoded exactly like the ones of the generator. The
+ * signature values are requested from the signing queue, the signed data is
+ * completed when the returned future is read.
+ */
+final class SignatureTemplate {
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+
+    private final byte[] template;
+    private final int signedAttributesOffset;
+    private final int signedAttributesLength;
+    private final int signingTimeOffset;
+    private final int signingTimeLength;
+    private final int messageDigestOffset;
+    private final int messageDigestLength;
+    private final int signatureOffset;
+    private final int signatureLength;
+
+    private SignatureTemplate(final byte[] template,
+                              final int signedAttributesOffset,
+                              final int signedAttributesLength,
+                              final int signingTimeOffset,
+                              final int signingTimeLength,
+                              final int messageDigestOffset,
+                              final int messageDigestLength,
+                              final int signatureOffset,
+                              final int signatureLength) {
+        this.template = template;
+        this.signedAttributesOffset = signedAttributesOffset;
+        this.signedAttributesLength = signedAttributesLength;
+        this.signingTimeOffset = signingTimeOffset;
+        this.signingTimeLength = signingTimeLength;
+        this.messageDigestOffset = messageDigestOffset;
+        this.messageDigestLength = messageDigestLength;
+        this.signatureOffset = signatureOffset;
+        this.signatureLength = signatureLength;
+    }
+
+    /**
+     * Creates the template from a signature of the generator. Returns null
+     * if the variable parts of the signature can't be located in it.
+     */
+    static SignatureTemplate create(final CMSSignedDataGenerator generator)
+            throws CMSException, IOException {
+        final CMSSignedData signedData =
+                generator.generate(new CMSProcessableByteArray(new byte[0]));
+        final byte[] template = signedData.getEncoded();
+        if (signedData.getSignerInfos().size() != 1) {
+            return null;
+        }
+
+        final SignerInformation signerInfo =
+                (SignerInformation) signedData.getSignerInfos().getSigners()
+                                              .iterator().next();
+        final AttributeTable signedAttributeTable =
+                signerInfo.getSignedAttributes();
+        if ((signedAttributeTable == null)
+                || (signedAttributeTable.get(CMSAttributes.signingTime)
+                        == null)
+                || (signedAttributeTable.get(CMSAttributes.messageDigest)
+                        == null)) {
+            return null;
+        }
+
+        // the signed attributes are signed as a set, but stored with an
+        // implicit [0] tag in the signer info
+        final byte[] signedAttributes =
+                signerInfo.getEncodedSignedAttributes();
+        signedAttributes[0] = (byte) 0xa0;
+        final int signedAttributesOffset =
+                indexOf(template, signedAttributes, 0, template.length);
+        if (signedAttributesOffset == -1) {
+            return null;
+        }
+        final int signedAttributesEnd =
+                signedAttributesOffset + signedAttributes.length;
+
+        final byte[] signingTime =
+                signedAttributeTable.get(CMSAttributes.signingTime)
+                                    .getAttrValues().getObjectAt(0)
+                                    .toASN1Primitive().getEncoded();
+        final byte[] messageDigest =
+                ASN1OctetString.getInstance(
+                        signedAttributeTable.get(CMSAttributes.messageDigest)
+                                            .getAttrValues().getObjectAt(0))
+                               .getOctets();
+        final byte[] signature = signerInfo.getSignature();
+        final int signingTimeOffset =
+                indexOf(template, signingTime, signedAttributesOffset,
+                        signedAttributesEnd);
+        final int messageDigestOffset =
+                indexOf(template, messageDigest, signedAttributesOffset,
+                        signedAttributesEnd);
+        final int signatureOffset =
+                indexOf(template, signature, signedAttributesEnd,
+                        template.length);
+        if ((signingTimeOffset == -1) || (messageDigestOffset == -1)
+                || (signatureOffset == -1)) {
+            return null;
+        }
+
+        return new SignatureTemplate(template,
+                                     signedAttributesOffset,
+                                     signedAttributes.length,
+                                     signingTimeOffset,
+                                     signingTime.length,
+                                     messageDigestOffset,
+                                     messageDigest.length,
+                                     signatureOffset,
+                                     signature.length);
+    }
+
+    /**
+     * Returns the size of the signatures made with the template.
+     */
+    int getSize() {
+        return template.length;
+    }
+
+    /**
+     * Starts signing the data. Returns null if the signature doesn't fit into
+     * the template, the signing time is encoded in a longer format after
+     * 2049. Can be called concurrently.
+     */
+    Future<byte[]> sign(final byte[] data, final SigningQueue signingQueue)
+            throws IOException {
+        final byte[] signingTime =
+                new Time(new Date()).toASN1Primitive().getEncoded();
+        if (signingTime.length != signingTimeLength) {
+            return null;
+        }
+
+        final byte[] messageDigest;
+        try {
+            messageDigest =
+                    MessageDigest.getInstance(DIGEST_ALGORITHM).digest(data);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IOException("Failed to sign data", e);
+        }
+        if (messageDigest.length != messageDigestLength) {
+            return null;
+        }
+
+        final byte[] signedData = template.clone();
+        System.arraycopy(signingTime, 0,
+                         signedData, signingTimeOffset,
+                         signingTimeLength);
+        System.arraycopy(messageDigest, 0,
+                         signedData, messageDigestOffset,
+                         messageDigestLength);
+
+        final byte[] signedAttributes =
+                Arrays.copyOfRange(signedData,
+                                   signedAttributesOffset,
+                                   signedAttributesOffset
+                                       + signedAttributesLength);
+        signedAttributes[0] = 0x31;
+        return new PendingSignature(signedData,
+                                    signingQueue.submit(signedAttributes));
+    }
+
+    /**
+     * Returns the offset of the only occurrence of the pattern in the given
+     * range of the data, -1 if it isn't found or found more than once.
+     */
+    private static int indexOf(final byte[] data,
+                               final byte[] pattern,
+                               final int fromIndex,
+                               final int toIndex) {
+        int foundIndex = -1;
+        for (int i = fromIndex; i <= toIndex - pattern.length; ++i) {
+            if (regionMatches(data, i, pattern)) {
+                if (foundIndex != -1) {
+                    return -1;
+                }
+                foundIndex = i;
+            }
+        }
+
+        return foundIndex;
+    }
+
+    private static boolean regionMatches(final byte[] data,
+                                         final int offset,
+                                         final byte[] pattern) {
+        for (int i = 0; i < pattern.length; ++i) {
+            if (data[offset + i] != pattern[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Signed data waiting for its signature value. Fails with a
+     * CMSException if the signature value doesn't fit into the template.
+     */
+    private final class PendingSignature implements Future<byte[]> {
+        private final byte[] signedData;
+        private final Future<byte[]> signatureValue;
+
+        PendingSignature(final byte[] signedData,
+                         final Future<byte[]> signatureValue) {
+            this.signedData = signedData;
+            this.signatureValue = signatureValue;
+        }
+
+        @Override
+        public byte[] get() throws InterruptedException, ExecutionException {
+            return complete(signatureValue.get());
+        }
+
+        @Override
+        public byte[] get(final long timeout, final TimeUnit unit)
+                throws InterruptedException, ExecutionException,
+                       TimeoutException {
+            return complete(signatureValue.get(timeout, unit));
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            return signatureValue.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return signatureValue.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return signatureValue.isDone();
+        }
+
+        private byte[] complete(final byte[] signature)
+                throws ExecutionException {
+            if (signature.length != signatureLength) {
+                throw new ExecutionException(
+                        new CMSException("Unexpected signature length "
+                                             + signature.length));
+            }
+
+            final byte[] completedData = signedData.clone();
+            System.arraycopy(signature, 0,
+                             completedData, signatureOffset,
+                             signatureLength);
+            return completedData;
+        }
+    }
+}
@@ -25,12 +25,18 @@
 
 package com.oracle.ipack.signer;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
@@ -38,27 +44,62 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import javax.naming.InvalidNameException;
 import javax.naming.ldap.LdapName;
 import javax.naming.ldap.Rdn;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.jcajce.JcaCertStore;
 import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.CMSProcessableByteArray;
 import org.bouncycastle.cms.CMSSignedData;
 import org.bouncycastle.cms.CMSSignedDataGenerator;
 import org.bouncycastle.cms.CMSTypedData;
-import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DefaultSignatureAlgorithmIdentifierFinder;
 import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.RuntimeOperatorException;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.bouncycastle.util.Store;
 
-public final class Signer {
+public final class Signer implements Closeable {
+    /** Signs in the process with the Bouncy Castle provider. */
+    public static final String BACKEND_BC = "bc";
+    /** Signs in the process with the RSA provider of the JDK. */
+    public static final String BACKEND_JCA = "jca";
+    /** Signs in a separate process started with a command. */
+    public static final String BACKEND_COMMAND = "command";
+
+    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
     private final CMSSignedDataGenerator signatureGenerator;
+    private final SignatureTemplate signatureTemplate;
+    private final SigningQueue signingQueue;
     private final String subjectName;
+    private final int signatureSize;
+    private final byte[] certificateHash;
 
     private Signer(final CMSSignedDataGenerator signatureGenerator,
-                   final String subjectName) {
+                   final SignatureTemplate signatureTemplate,
+                   final SigningQueue signingQueue,
+                   final String subjectName,
+                   final int signatureSize,
+                   final byte[] certificateHash) {
         this.signatureGenerator = signatureGenerator;
+        this.signatureTemplate = signatureTemplate;
+        this.signingQueue = signingQueue;
         this.subjectName = subjectName;
+        this.signatureSize = signatureSize;
+        this.certificateHash = certificateHash;
     }
 
     public static Signer create(
@@ -73,17 +114,33 @@ public final class Signer {
                                              OperatorCreationException,
                                              CMSException,
                                              InvalidNameException {
-        final KeyStore jksKeyStore = KeyStore.getInstance("JKS");
-        final InputStream is = new FileInputStream(keystoreFile);
-        try {
-            jksKeyStore.load(is, keystorePassword.toCharArray());
-        } finally {
-            is.close();
-        }
+        return create(keystoreFile, keystorePassword, signingAlias,
+                      keyPassword, BACKEND_BC, null);
+    }
+
+    /**
+     * Creates a signer with the given backend. The keystore always provides
+     * the certificate chain, with the command backend the private key
+     * operations are done by the started process and the key password isn't
+     * used.
+     */
+    public static Signer create(
+            final File keystoreFile,
+            final String keystorePassword,
+            final String signingAlias,
+            final String keyPassword,
+            final String backendName,
+            final List<String> backendCommand) throws IOException,
+                                                      KeyStoreException,
+                                                      NoSuchAlgorithmException,
+                                                      CertificateException,
+                                                      UnrecoverableKeyException,
+                                                      OperatorCreationException,
+                                                      CMSException,
+                                                      InvalidNameException {
+        final KeyStore jksKeyStore =
+                loadKeyStore(keystoreFile, keystorePassword);
 
-        final PrivateKey privateKey =
-                (PrivateKey) jksKeyStore.getKey(signingAlias,
-                                                keyPassword.toCharArray());
         final Certificate[] certChain =
                 jksKeyStore.getCertificateChain(signingAlias);
         if (certChain == null) {
@@ -104,30 +161,267 @@ public final class Signer {
         } else {
             certChain2 = certChain;
         }
-        final Store certs = new JcaCertStore(Arrays.asList(certChain2));
-        final CMSSignedDataGenerator signatureGenerator =
-                new CMSSignedDataGenerator();
 
-        signatureGenerator.addSignerInfoGenerator(
-                new JcaSimpleSignerInfoGeneratorBuilder()
-                            .setProvider("BC")
-                            .build("SHA1withRSA", privateKey, signingCert));
-        signatureGenerator.addCertificates(certs);
+        final SigningBackend signingBackend =
+                BACKEND_COMMAND.equals(backendName)
+                        ? new ProcessSigningBackend(backendCommand)
+                        : createBackend(jksKeyStore, signingAlias,
+                                        keyPassword, backendName);
+        final SigningQueue signingQueue = new SigningQueue(signingBackend);
+        try {
+            final Store certs = new JcaCertStore(Arrays.asList(certChain2));
+            final CMSSignedDataGenerator signatureGenerator =
+                    new CMSSignedDataGenerator();
+
+            signatureGenerator.addSignerInfoGenerator(
+                    new JcaSignerInfoGeneratorBuilder(
+                            new JcaDigestCalculatorProviderBuilder()
+                                    .setProvider("BC")
+                                    .build())
+                            .build(new QueueContentSigner(signingQueue),
+                                   signingCert));
+            signatureGenerator.addCertificates(certs);
+
+            // the size of the signatures is known from the template, or
+            // from a signature of empty data if there is none
+            final SignatureTemplate signatureTemplate =
+                    SignatureTemplate.create(signatureGenerator);
+            final int signatureSize =
+                    (signatureTemplate != null)
+                            ? signatureTemplate.getSize()
+                            : signatureGenerator.generate(
+                                      new CMSProcessableByteArray(
+                                              new byte[0]))
+                                  .getEncoded().length;
+
+            return new Signer(signatureGenerator,
+                              signatureTemplate,
+                              signingQueue,
+                              subjectName,
+                              signatureSize,
+                              hashCertificates(certChain2));
+        } catch (final RuntimeOperatorException e) {
+            signingQueue.close();
+            throw new CMSException("Failed to sign with the backend",
+                                   (Exception) e.getCause());
+        } catch (final CertificateException e) {
+            signingQueue.close();
+            throw e;
+        } catch (final OperatorCreationException e) {
+            signingQueue.close();
+            throw e;
+        } catch (final CMSException e) {
+            signingQueue.close();
+            throw e;
+        } catch (final IOException e) {
+            signingQueue.close();
+            throw e;
+        }
+    }
 
-        return new Signer(signatureGenerator, subjectName);
+    /**
+     * Creates an in-process backend with the private key of the keystore,
+     * as used by a signing process serving the command backend.
+     */
+    public static SigningBackend createBackend(
+            final File keystoreFile,
+            final String keystorePassword,
+            final String signingAlias,
+            final String keyPassword,
+            final String backendName) throws IOException,
+                                             KeyStoreException,
+                                             NoSuchAlgorithmException,
+                                             CertificateException,
+                                             UnrecoverableKeyException {
+        return createBackend(loadKeyStore(keystoreFile, keystorePassword),
+                             signingAlias, keyPassword, backendName);
     }
 
+    private static SigningBackend createBackend(
+            final KeyStore keyStore,
+            final String signingAlias,
+            final String keyPassword,
+            final String backendName) throws KeyStoreException,
+                                             NoSuchAlgorithmException,
+                                             UnrecoverableKeyException {
+        final String providerName;
+        if (BACKEND_BC.equals(backendName)) {
+            providerName = "BC";
+        } else if (BACKEND_JCA.equals(backendName)) {
+            providerName = "SunRsaSign";
+        } else {
+            throw new IllegalArgumentException(
+                    "Unknown signing backend " + backendName);
+        }
+
+        final PrivateKey privateKey =
+                (PrivateKey) keyStore.getKey(signingAlias,
+                                             keyPassword.toCharArray());
+        if (privateKey == null) {
+            throw new UnrecoverableKeyException(
+                    "Private key not found under \"" + signingAlias + "\"");
+        }
+
+        try {
+            return new JcaSigningBackend(privateKey, providerName);
+        } catch (final GeneralSecurityException e) {
+            throw new NoSuchAlgorithmException(
+                    "Can't sign with " + providerName, e);
+        }
+    }
+
+    private static KeyStore loadKeyStore(final File keystoreFile,
+                                         final String keystorePassword)
+            throws IOException, KeyStoreException, NoSuchAlgorithmException,
+                   CertificateException {
+        final KeyStore jksKeyStore = KeyStore.getInstance("JKS");
+        final InputStream is = new FileInputStream(keystoreFile);
+        try {
+            jksKeyStore.load(is, keystorePassword.toCharArray());
+        } finally {
+            is.close();
+        }
+
+        return jksKeyStore;
+    }
+
+    /**
+     * Creates a detached CMS signature of the data, waiting for the
+     * backend.
+     */
     public byte[] sign(final byte[] data) throws CMSException, IOException {
+        return getSignature(signAsync(data));
+    }
+
+    /**
+     * Starts creating a detached CMS signature of the data. The private key
+     * operation is batched with the ones of other threads, the caller can
+     * continue until it needs the signature, which it gets with
+     * getSignature.
+     */
+    public Future<byte[]> signAsync(final byte[] data)
+            throws CMSException, IOException {
+        if (signatureTemplate != null) {
+            final Future<byte[]> signature =
+                    signatureTemplate.sign(data, signingQueue);
+            if (signature != null) {
+                return signature;
+            }
+        }
+
+        return CompletableFuture.completedFuture(generateSignature(data));
+    }
+
+    /**
+     * Waits for a signature started by signAsync. A fork join worker waiting
+     * for the backend is compensated, so the pool continues hashing.
+     */
+    public static byte[] getSignature(final Future<byte[]> signature)
+            throws CMSException, IOException {
+        final SignatureBlocker blocker = new SignatureBlocker(signature);
+        try {
+            ForkJoinPool.managedBlock(blocker);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while signing");
+        }
+
+        return blocker.getSignature();
+    }
+
+    /**
+     * Stops the signing threads and closes the backend.
+     */
+    @Override
+    public void close() throws IOException {
+        signingQueue.close();
+    }
+
+    // the generator isn't thread safe, it is used only when the signature
+    // doesn't fit into the template
+    private synchronized byte[] generateSignature(final byte[] data)
+            throws CMSException, IOException {
         final CMSTypedData typedData = new CMSProcessableByteArray(data);
-        final CMSSignedData signedData = signatureGenerator.generate(typedData);
+        final CMSSignedData signedData;
+        try {
+            signedData = signatureGenerator.generate(typedData);
+        } catch (final RuntimeOperatorException e) {
+            throw new CMSException("Failed to sign with the backend",
+                                   (Exception) e.getCause());
+        }
 
         return signedData.getEncoded();
     }
 
+    /**
+     * Verifies a detached CMS signature of the data, as created by sign.
+     * The signature has to be made by a certificate which it contains.
+     */
+    public static void verify(final byte[] data, final byte[] signature)
+            throws CMSException, CertificateException,
+                   OperatorCreationException {
+        final CMSSignedData signedData =
+                new CMSSignedData(new CMSProcessableByteArray(data),
+                                  signature);
+        final Store certs = signedData.getCertificates();
+        final Collection<?> signerInfos =
+                signedData.getSignerInfos().getSigners();
+        if (signerInfos.isEmpty()) {
+            throw new CMSException("No signer in signature");
+        }
+
+        for (final Object signerInfo: signerInfos) {
+            final SignerInformation signerInformation =
+                    (SignerInformation) signerInfo;
+            final Collection<?> signerCerts =
+                    certs.getMatches(signerInformation.getSID());
+            if (signerCerts.isEmpty()) {
+                throw new CertificateException(
+                        "Signing certificate not found in signature");
+            }
+
+            final X509CertificateHolder signerCert =
+                    (X509CertificateHolder) signerCerts.iterator().next();
+            if (!signerInformation.verify(
+                        new JcaSimpleSignerInfoVerifierBuilder()
+                                .setProvider("BC")
+                                .build(signerCert))) {
+                throw new CMSException("Signature doesn't match");
+            }
+        }
+    }
+
     public String getSubjectName() {
         return subjectName;
     }
 
+    /**
+     * Returns the size of the signatures created by the signer. The
+     * certificates and the key don't change and the signature values of a
+     * key have a fixed length, so all signatures have the same size.
+     */
+    public int getSignatureSize() {
+        return signatureSize;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the certificates included in the
+     * signatures, it identifies the signer in cached signing results.
+     */
+    public byte[] getCertificateHash() {
+        return certificateHash.clone();
+    }
+
+    private static byte[] hashCertificates(final Certificate[] certChain)
+            throws CertificateException, NoSuchAlgorithmException {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (final Certificate cert: certChain) {
+            digest.update(cert.getEncoded());
+        }
+
+        return digest.digest();
+    }
+
     private static String getSubjectName(final X509Certificate cert)
             throws InvalidNameException {
         final String fullSubjectDn = cert.getSubjectX500Principal().getName();
@@ -140,4 +434,85 @@ public final class Signer {
 
         throw new InvalidNameException("Common name not found");
     }
+
+    /**
+     * Lets the generator sign through the signing queue.
+     */
+    private static final class QueueContentSigner implements ContentSigner {
+        private final SigningQueue signingQueue;
+        private final ByteArrayOutputStream signedBytes;
+
+        QueueContentSigner(final SigningQueue signingQueue) {
+            this.signingQueue = signingQueue;
+            this.signedBytes = new ByteArrayOutputStream();
+        }
+
+        @Override
+        public AlgorithmIdentifier getAlgorithmIdentifier() {
+            return new DefaultSignatureAlgorithmIdentifierFinder()
+                           .find(SIGNATURE_ALGORITHM);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return signedBytes;
+        }
+
+        @Override
+        public byte[] getSignature() {
+            final byte[] message = signedBytes.toByteArray();
+            signedBytes.reset();
+            try {
+                return Signer.getSignature(signingQueue.submit(message));
+            } catch (final CMSException e) {
+                throw new RuntimeOperatorException(e.getMessage(), e);
+            } catch (final IOException e) {
+                throw new RuntimeOperatorException(e.getMessage(), e);
+            }
+        }
+    }
+
+    private static final class SignatureBlocker
+            implements ForkJoinPool.ManagedBlocker {
+        private final Future<byte[]> signature;
+        private byte[] signatureValue;
+        private Throwable failure;
+
+        SignatureBlocker(final Future<byte[]> signature) {
+            this.signature = signature;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            try {
+                signatureValue = signature.get();
+            } catch (final ExecutionException e) {
+                failure = e.getCause();
+            }
+
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return (signatureValue != null) || (failure != null);
+        }
+
+        byte[] getSignature() throws CMSException, IOException {
+            if (failure instanceof CMSException) {
+                throw (CMSException) failure;
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure != null) {
+                throw new CMSException("Failed to sign",
+                                       (failure instanceof Exception)
+                                               ? (Exception) failure
+                                               : new RuntimeException(failure));
+            }
+
+            return signatureValue;
+        }
+    }
 }
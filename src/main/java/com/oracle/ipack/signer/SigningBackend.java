@@ -23,45 +23,27 @@
  * questions.
  */
 
-package com.oracle.ipack.macho;
+package com.oracle.ipack.signer;
 
-import com.oracle.ipack.util.Util;
-import java.io.DataInput;
-import java.io.DataOutput;
+import java.io.Closeable;
 import java.io.IOException;
 
-public final class UnknownCommand extends MachoCommand {
-    private final int id;
-    private final byte[] data;
-
-    public UnknownCommand(final int id, final int payloadSize) {
-        this.id = id;
-        this.data = new byte[payloadSize];
-    }
-
-    @Override
-    public int getId() {
-        return id;
-    }
-
-    @Override
-    public String toString() {
-        return "UnknownCommand { id: 0x" + Util.hex32(id)
-                       + ", payloadSize: " + data.length + " }";
-    }
-
-    @Override
-    protected int getPayloadSize() {
-        return data.length;
-    }
-
-    @Override
-    protected void readPayload(final DataInput dataInput) throws IOException {
-        dataInput.readFully(data);
-    }
-
-    @Override
-    protected void writePayload(DataOutput dataOutput) throws IOException {
-        dataOutput.write(data);
-    }
+/**
+ * Performs the private key operations of a signer. The signer passes the
+ * encoded signed attributes of its CMS signatures, the backend returns their
+ * SHA1withRSA signatures. The requests of concurrent signing jobs are
+ * collected into batches, so a backend with an expensive round trip to its
+ * key can sign a whole batch at once.
+ */
+public interface SigningBackend extends Closeable {
+    /**
+     * Returns the number of batches which can be signed concurrently.
+     */
+    int getParallelism();
+
+    /**
+     * Signs each of the messages and returns the signatures in the same
+     * order.
+     */
+    byte[][] sign(byte[][] messages) throws IOException;
 }
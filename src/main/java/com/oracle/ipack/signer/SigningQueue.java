@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.signer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Collects the signing requests of concurrent jobs into batches for a
+ * signing backend. Each of the dispatcher threads, one per batch the backend
+ * can sign concurrently, takes the requests which are pending at the time
+ * it becomes free, so the batches grow while the backend is busy and the
+ * requesting threads can continue hashing until they need the signatures.
+ */
+final class SigningQueue {
+    private static final int MAX_BATCH_SIZE = 64;
+
+    private final SigningBackend backend;
+    private final BlockingQueue<Request> pendingRequests;
+    private final List<Thread> dispatchers;
+
+    private volatile boolean closed;
+
+    SigningQueue(final SigningBackend backend) {
+        this.backend = backend;
+        this.pendingRequests = new LinkedBlockingQueue<Request>();
+        this.dispatchers = new ArrayList<Thread>();
+
+        for (int i = 0; i < backend.getParallelism(); ++i) {
+            final Thread dispatcher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            }, "ipack-signing-" + i);
+            // the queue doesn't keep the process alive
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+            dispatchers.add(dispatcher);
+        }
+    }
+
+    Future<byte[]> submit(final byte[] message) {
+        final Request request = new Request(message);
+        if (closed) {
+            request.fail(new IOException("Signer closed"));
+            return request.signature;
+        }
+
+        pendingRequests.add(request);
+        if (closed && pendingRequests.remove(request)) {
+            // closed while the request was added, so it wouldn't be taken
+            request.fail(new IOException("Signer closed"));
+        }
+
+        return request.signature;
+    }
+
+    /**
+     * Stops the dispatcher threads and closes the backend. Pending requests
+     * fail, as do the requests submitted afterwards.
+     */
+    void close() throws IOException {
+        closed = true;
+        for (final Thread dispatcher: dispatchers) {
+            dispatcher.interrupt();
+        }
+
+        Request request;
+        while ((request = pendingRequests.poll()) != null) {
+            request.fail(new IOException("Signer closed"));
+        }
+
+        backend.close();
+    }
+
+    private void dispatch() {
+        final List<Request> batch = new ArrayList<Request>(MAX_BATCH_SIZE);
+        while (true) {
+            try {
+                batch.add(pendingRequests.take());
+            } catch (final InterruptedException e) {
+                return;
+            }
+            pendingRequests.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+            final byte[][] messages = new byte[batch.size()][];
+            for (int i = 0; i < messages.length; ++i) {
+                messages[i] = batch.get(i).message;
+            }
+
+            try {
+                final byte[][] signatures = backend.sign(messages);
+                if ((signatures == null)
+                        || (signatures.length != messages.length)) {
+                    throw new IOException(
+                            "Signing backend returned "
+                                + ((signatures != null) ? signatures.length
+                                                        : 0)
+                                + " signatures for " + messages.length
+                                + " messages");
+                }
+                for (int i = 0; i < signatures.length; ++i) {
+                    batch.get(i).signature.complete(signatures[i]);
+                }
+            } catch (final Throwable t) {
+                // no request of the batch is left waiting, and the
+                // dispatcher continues with the next batch
+                for (final Request request: batch) {
+                    request.fail(t);
+                }
+            }
+
+            batch.clear();
+        }
+    }
+
+    private static final class Request {
+        private final byte[] message;
+        private final CompletableFuture<byte[]> signature;
+
+        Request(final byte[] message) {
+            this.message = message;
+            this.signature = new CompletableFuture<byte[]>();
+        }
+
+        void fail(final Throwable failure) {
+            signature.completeExceptionally(failure);
+        }
+    }
+}
@@ -52,6 +52,52 @@ public final class Base64 {
         return byteArrayToBase64(a, true);
     }
 
+    /**
+     * Returns the length of the Base64 string for a byte array of the
+     * specified length.
+     */
+    public static int encodedLength(int aLen) {
+        return 4*((aLen + 2)/3);
+    }
+
+    /**
+     * Translates the specified byte array into Base64 characters stored at
+     * the start of the result array, which must hold at least
+     * encodedLength(a.length) characters.
+     */
+    public static void byteArrayToBase64(byte[] a, char[] result) {
+        int aLen = a.length;
+        int numFullGroups = aLen/3;
+        int numBytesInPartialGroup = aLen - 3*numFullGroups;
+        char[] intToAlpha = intToBase64;
+
+        int inCursor = 0, outCursor = 0;
+        for (int i=0; i<numFullGroups; i++) {
+            int byte0 = a[inCursor++] & 0xff;
+            int byte1 = a[inCursor++] & 0xff;
+            int byte2 = a[inCursor++] & 0xff;
+            result[outCursor++] = intToAlpha[byte0 >> 2];
+            result[outCursor++] = intToAlpha[(byte0 << 4)&0x3f | (byte1 >> 4)];
+            result[outCursor++] = intToAlpha[(byte1 << 2)&0x3f | (byte2 >> 6)];
+            result[outCursor++] = intToAlpha[byte2 & 0x3f];
+        }
+
+        if (numBytesInPartialGroup != 0) {
+            int byte0 = a[inCursor++] & 0xff;
+            result[outCursor++] = intToAlpha[byte0 >> 2];
+            if (numBytesInPartialGroup == 1) {
+                result[outCursor++] = intToAlpha[(byte0 << 4) & 0x3f];
+                result[outCursor++] = '=';
+                result[outCursor++] = '=';
+            } else {
+                int byte1 = a[inCursor++] & 0xff;
+                result[outCursor++] = intToAlpha[(byte0 << 4)&0x3f | (byte1 >> 4)];
+                result[outCursor++] = intToAlpha[(byte1 << 2)&0x3f];
+                result[outCursor++] = '=';
+            }
+        }
+    }
+
     private static String byteArrayToBase64(byte[] a, boolean alternate) {
         int aLen = a.length;
         int numFullGroups = aLen/3;
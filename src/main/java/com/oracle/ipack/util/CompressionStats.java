@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Collects the sizes and the CPU time of the entries written to an archive.
+ * Entries can be compressed on several threads, so all the methods are
+ * synchronized.
+ */
+public final class CompressionStats {
+    private static final ThreadMXBean THREAD_MX_BEAN =
+            ManagementFactory.getThreadMXBean();
+
+    private int deflatedEntries;
+    private long deflatedSize;
+    private long deflatedCompressedSize;
+    private long deflateTime;
+    private int storedEntries;
+    private long storedSize;
+
+    /**
+     * Returns the CPU time of the current thread in nanoseconds, or the
+     * wall clock time if the JVM doesn't measure the thread CPU time.
+     */
+    public static long currentThreadTime() {
+        return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()
+                       ? THREAD_MX_BEAN.getCurrentThreadCpuTime()
+                       : System.nanoTime();
+    }
+
+    public synchronized void addDeflatedEntry(final long size,
+                                              final long compressedSize) {
+        ++deflatedEntries;
+        deflatedSize += size;
+        deflatedCompressedSize += compressedSize;
+    }
+
+    public synchronized void addDeflateTime(final long time) {
+        deflateTime += time;
+    }
+
+    public synchronized void addStoredEntry(final long size) {
+        ++storedEntries;
+        storedSize += size;
+    }
+
+    public synchronized int getDeflatedEntries() {
+        return deflatedEntries;
+    }
+
+    public synchronized long getDeflatedSize() {
+        return deflatedSize;
+    }
+
+    public synchronized long getDeflatedCompressedSize() {
+        return deflatedCompressedSize;
+    }
+
+    /**
+     * Returns the CPU time spent deflating entries in nanoseconds.
+     */
+    public synchronized long getDeflateTime() {
+        return deflateTime;
+    }
+
+    public synchronized int getStoredEntries() {
+        return storedEntries;
+    }
+
+    public synchronized long getStoredSize() {
+        return storedSize;
+    }
+
+    /**
+     * Estimates the CPU time in nanoseconds which deflating the stored
+     * entries would have taken, at the rate measured on the deflated ones.
+     */
+    public synchronized long getEstimatedSavedTime() {
+        if (deflatedSize == 0) {
+            return 0;
+        }
+
+        return (long) ((double) storedSize * deflateTime / deflatedSize);
+    }
+}
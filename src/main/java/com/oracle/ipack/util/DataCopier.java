@@ -62,11 +62,11 @@ public final class DataCopier {
 
     public void copyStream(final OutputStream os,
                            final InputStream is,
-                           final int limit) throws IOException {
-        int remaining = limit;
+                           final long limit) throws IOException {
+        long remaining = limit;
         while (remaining > 0) {
             final int chunkSize = (remaining < buffer.length)
-                                          ? remaining
+                                          ? (int) remaining
                                           : buffer.length;
             final int read = is.read(buffer, 0, chunkSize);
             if (read == -1) {
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.util;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Calculates the SHA-1 and SHA-256 hashes of the same data in one pass.
+ *
+ * The data are passed to both digests in blocks which are small enough to
+ * stay in the L1 cache between the two updates. Only bulk updates are
+ * supported, callers are expected to collect single bytes themselves.
+ */
+public final class DualDigest {
+    private static final int BLOCK_SIZE = 4096;
+
+    private final MessageDigest messageDigest;
+    private final MessageDigest messageDigest256;
+
+    public DualDigest() {
+        try {
+            // standard names, so we get the platform implementations
+            // instead of the ones registered by the BouncyCastle provider
+            messageDigest = MessageDigest.getInstance("SHA-1");
+            messageDigest256 = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Can't create message digest", e);
+        }
+    }
+
+    public void update(final byte[] buffer,
+                       final int offset,
+                       final int length) {
+        int position = offset;
+        int remaining = length;
+        while (remaining > 0) {
+            final int blockLength = (remaining < BLOCK_SIZE) ? remaining
+                                                            : BLOCK_SIZE;
+            messageDigest.update(buffer, position, blockLength);
+            messageDigest256.update(buffer, position, blockLength);
+
+            position += blockLength;
+            remaining -= blockLength;
+        }
+    }
+
+    /**
+     * Updates both digests with the remaining bytes of the given buffer and
+     * advances its position to the limit.
+     */
+    public void update(final ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                   buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+
+        final ByteBuffer block = buffer.duplicate();
+        while (buffer.hasRemaining()) {
+            final int blockLength = Math.min(buffer.remaining(), BLOCK_SIZE);
+            block.limit(buffer.position() + blockLength);
+            block.position(buffer.position());
+            messageDigest.update(block);
+            block.position(buffer.position());
+            messageDigest256.update(block);
+
+            buffer.position(buffer.position() + blockLength);
+        }
+    }
+
+    /**
+     * Completes the hash calculation for the given hash type (1 or 256) and
+     * resets the corresponding digest.
+     */
+    public byte[] digest(final int shaType) {
+        if (shaType == 1) {
+            return messageDigest.digest();
+        } else if (shaType == 256) {
+            return messageDigest256.digest();
+        } else {
+            throw new IllegalStateException("No matching hash size");
+        }
+    }
+
+    /**
+     * Completes both hash calculations, stores the results into the given
+     * arrays and resets the digests.
+     */
+    public void digest(final byte[] hash,
+                       final int hashOffset,
+                       final byte[] hash256,
+                       final int hash256Offset) {
+        try {
+            messageDigest.digest(hash, hashOffset, 20);
+            messageDigest256.digest(hash256, hash256Offset, 32);
+        } catch (final DigestException e) {
+            throw new IllegalStateException("Can't store message digest", e);
+        }
+    }
+
+    public void reset() {
+        messageDigest.reset();
+        messageDigest256.reset();
+    }
+}
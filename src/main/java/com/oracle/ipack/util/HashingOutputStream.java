@@ -28,50 +28,50 @@ package com.oracle.ipack.util;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 public class HashingOutputStream extends FilterOutputStream {
-    private final MessageDigest messageDigest;
-    private final MessageDigest messageDigest256;
+    private final DualDigest digest;
+    // single byte writes are collected here and hashed in bulk
+    private final byte[] pendingBytes;
+    private int numberOfPendingBytes;
 
     public HashingOutputStream(final OutputStream out) {
         super(out);
-        try {
-            messageDigest = MessageDigest.getInstance("SHA1");
-            messageDigest256 = MessageDigest.getInstance("SHA256");
-        } catch (final NoSuchAlgorithmException e) {
-            throw new IllegalStateException("Can't create message digest", e);
-        }
+        digest = new DualDigest();
+        pendingBytes = new byte[64];
     }
 
     @Override
     public void write(final int byteValue) throws IOException {
         out.write(byteValue);
-        messageDigest.update((byte) byteValue);
-        messageDigest256.update((byte) byteValue);
+        pendingBytes[numberOfPendingBytes++] = (byte) byteValue;
+        if (numberOfPendingBytes == pendingBytes.length) {
+            hashPendingBytes();
+        }
     }
 
     @Override
     public void write(final byte[] buffer, final int offset, final int length)
             throws IOException {
         out.write(buffer, offset, length);
-        messageDigest.update(buffer, offset, length);
-        messageDigest256.update(buffer, offset, length);
+        hashPendingBytes();
+        digest.update(buffer, offset, length);
     }
 
 
     public byte[] calculateHash(int shaType) {
-        if (shaType == 1) {
-            return messageDigest.digest();
-        } else if (shaType == 256) {
-            return messageDigest256.digest();
-        } else {
-            throw new IllegalStateException("No matching hash size");
-        }
+        hashPendingBytes();
+        return digest.digest(shaType);
     }
 
     public byte[] calculateHash() {
         return calculateHash(1);
     }
+
+    private void hashPendingBytes() {
+        if (numberOfPendingBytes > 0) {
+            digest.update(pendingBytes, 0, numberOfPendingBytes);
+            numberOfPendingBytes = 0;
+        }
+    }
 }
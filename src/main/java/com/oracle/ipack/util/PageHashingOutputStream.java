@@ -28,8 +28,6 @@ package com.oracle.ipack.util;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -39,13 +37,15 @@ import java.util.List;
  * page of the input stream.
  */
 public final class PageHashingOutputStream extends FilterOutputStream {
-    private final MessageDigest messageDigest;
+    private final DualDigest digest;
     private final List<byte[]> pageHashes;
     private final int pageSize;
-    private final MessageDigest messageDigest256;
     private final List<byte[]> pageHashes256;
+    // single byte writes are collected here and hashed in bulk
+    private final byte[] pendingBytes;
 
     private int pageRemaining;
+    private int numberOfPendingBytes;
 
     public PageHashingOutputStream(final OutputStream out) {
         this(out, 4096);
@@ -53,12 +53,8 @@ public final class PageHashingOutputStream extends FilterOutputStream {
 
     public PageHashingOutputStream(final OutputStream out, final int pageSize) {
         super(out);
-        try {
-            messageDigest = MessageDigest.getInstance("SHA1");
-            messageDigest256 = MessageDigest.getInstance("SHA256");
-        } catch (final NoSuchAlgorithmException e) {
-            throw new IllegalStateException("Can't create message digest", e);
-        }
+        digest = new DualDigest();
+        pendingBytes = new byte[64];
         pageHashes = new ArrayList<byte[]>();
         pageHashes256 = new ArrayList<byte[]>();
         this.pageSize = pageSize;
@@ -82,11 +78,12 @@ public final class PageHashingOutputStream extends FilterOutputStream {
     @Override
     public void write(final int byteValue) throws IOException {
         out.write(byteValue);
-        messageDigest.update((byte) byteValue);
-        messageDigest256.update((byte) byteValue);
+        pendingBytes[numberOfPendingBytes++] = (byte) byteValue;
         --pageRemaining;
         if (pageRemaining == 0) {
             commitPageHashImpl();
+        } else if (numberOfPendingBytes == pendingBytes.length) {
+            hashPendingBytes();
         }
     }
 
@@ -94,6 +91,7 @@ public final class PageHashingOutputStream extends FilterOutputStream {
     public void write(final byte[] buffer, final int offset, final int length)
             throws IOException {
         out.write(buffer, offset, length);
+        hashPendingBytes();
 
         int hashRemaining = length;
         int hashOffset = offset;
@@ -102,8 +100,7 @@ public final class PageHashingOutputStream extends FilterOutputStream {
                     (pageRemaining < hashRemaining) ? pageRemaining
                                                     : hashRemaining;
 
-            messageDigest.update(buffer, hashOffset, chunkLength);
-            messageDigest256.update(buffer, hashOffset, chunkLength);
+            digest.update(buffer, hashOffset, chunkLength);
 
             hashOffset += chunkLength;
             hashRemaining -= chunkLength;
@@ -130,8 +127,16 @@ public final class PageHashingOutputStream extends FilterOutputStream {
     }
 
     private void commitPageHashImpl() {
-        pageHashes.add(messageDigest.digest());
-        pageHashes256.add(messageDigest256.digest());
+        hashPendingBytes();
+        pageHashes.add(digest.digest(1));
+        pageHashes256.add(digest.digest(256));
         pageRemaining = pageSize;
     }
+
+    private void hashPendingBytes() {
+        if (numberOfPendingBytes > 0) {
+            digest.update(pendingBytes, 0, numberOfPendingBytes);
+            numberOfPendingBytes = 0;
+        }
+    }
 }
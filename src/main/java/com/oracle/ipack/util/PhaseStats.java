@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Collects the time, the number of files and the number of bytes of the
+ * phases of packing an application. Every measured step of a phase is also
+ * reported as a flight recorder event when a recording is running.
+ *
+ * The steps of a phase run on several threads, so the totals are kept in
+ * adders and accumulators which don't make the threads wait for each
+ * other. The time of a phase is the sum of the time of its steps on all
+ * threads, its elapsed time spans from the start of its first step to the
+ * end of its last one.
+ *
+ * Disabled statistics record nothing, their steps are only reported as
+ * events, or not measured at all when no recording wants them.
+ */
+public final class PhaseStats {
+    public static final String DIRECTORY_SCAN = "directory_scan";
+    public static final String RESOURCE_HASHING = "resource_hashing";
+    public static final String COMPRESSION = "compression";
+    public static final String HEADER_PATCHING = "header_patching";
+    public static final String PAGE_HASHING = "page_hashing";
+    public static final String SIGNING = "signing";
+    public static final String ARCHIVE_FINALIZATION = "archive_finalization";
+
+    // the order of the phases in the summary
+    private static final String[] PHASES = {
+            DIRECTORY_SCAN,
+            RESOURCE_HASHING,
+            COMPRESSION,
+            HEADER_PATCHING,
+            PAGE_HASHING,
+            SIGNING,
+            ARCHIVE_FINALIZATION
+        };
+
+    private static final boolean EVENTS_AVAILABLE = isEventsAvailable();
+
+    // ended when nothing is measured
+    private static final Measurement NO_MEASUREMENT =
+            new Measurement(null, null, null);
+
+    private final boolean enabled;
+    private final Map<String, Phase> phases;
+
+    public PhaseStats() {
+        this(true);
+    }
+
+    public PhaseStats(final boolean enabled) {
+        this.enabled = enabled;
+        phases = new LinkedHashMap<String, Phase>();
+        for (final String phase: PHASES) {
+            phases.put(phase, new Phase());
+        }
+    }
+
+    /**
+     * Starts measuring a step of the given phase. The step is added to the
+     * phase when the returned measurement is ended.
+     */
+    public Measurement start(final String phase) {
+        final Phase totals = getPhase(phase);
+        final boolean recorded = EVENTS_AVAILABLE && PhaseEvent.isRecorded();
+        if (!enabled && !recorded) {
+            return NO_MEASUREMENT;
+        }
+
+        return new Measurement(phase,
+                               enabled ? totals : null,
+                               recorded ? new PhaseEvent() : null);
+    }
+
+    /**
+     * Adds files and bytes to a phase without measuring any time, for
+     * steps which are spread over several measurements.
+     */
+    public void add(final String phase, final int files, final long bytes) {
+        final Phase totals = getPhase(phase);
+        if (enabled) {
+            totals.files.add(files);
+            totals.bytes.add(bytes);
+        }
+    }
+
+    public int getSteps(final String phase) {
+        return (int) getPhase(phase).steps.sum();
+    }
+
+    public int getFiles(final String phase) {
+        return (int) getPhase(phase).files.sum();
+    }
+
+    public long getBytes(final String phase) {
+        return getPhase(phase).bytes.sum();
+    }
+
+    /**
+     * Returns the time spent in the steps of a phase on all threads in
+     * nanoseconds.
+     */
+    public long getTime(final String phase) {
+        return getPhase(phase).time.sum();
+    }
+
+    /**
+     * Returns the wall clock time in nanoseconds from the start of the
+     * first step of a phase to the end of its last one.
+     */
+    public long getElapsedTime(final String phase) {
+        final Phase totals = getPhase(phase);
+        return (totals.steps.sum() > 0)
+                       ? totals.lastEnd.get() - totals.firstStart.get()
+                       : 0;
+    }
+
+    /**
+     * Returns the bytes processed per second of step time, 0 if the phase
+     * hasn't been measured.
+     */
+    public long getThroughput(final String phase) {
+        final Phase totals = getPhase(phase);
+        final long time = totals.time.sum();
+        if (time == 0) {
+            return 0;
+        }
+
+        return (long) ((double) totals.bytes.sum() * 1000000000L / time);
+    }
+
+    /**
+     * Returns the summary of all the phases as a JSON object, with the
+     * phases in the order in which they usually start.
+     */
+    public String toJson() {
+        final String nl = System.getProperty("line.separator");
+        final StringBuilder sb = new StringBuilder();
+        sb.append('{').append(nl);
+        sb.append("  \"phases\": {");
+        boolean first = true;
+        for (final String phase: PHASES) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append(nl).append("    \"").append(phase).append("\": {")
+              .append("\"steps\": ").append(getSteps(phase))
+              .append(", \"files\": ").append(getFiles(phase))
+              .append(", \"bytes\": ").append(getBytes(phase))
+              .append(", \"time_ns\": ").append(getTime(phase))
+              .append(", \"elapsed_ns\": ").append(getElapsedTime(phase))
+              .append(", \"bytes_per_second\": ")
+              .append(getThroughput(phase))
+              .append('}');
+        }
+        sb.append(nl).append("  }").append(nl);
+        sb.append('}').append(nl);
+
+        return sb.toString();
+    }
+
+    private Phase getPhase(final String phase) {
+        final Phase totals = phases.get(phase);
+        if (totals == null) {
+            throw new IllegalArgumentException("Unknown phase " + phase);
+        }
+
+        return totals;
+    }
+
+    // the flight recorder is missing from older and stripped runtimes
+    private static boolean isEventsAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (final ClassNotFoundException e) {
+            return false;
+        } catch (final LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * A step of a phase being measured. It can be ended on another thread,
+     * its event is then reported for that thread.
+     */
+    public static final class Measurement {
+        private final String phase;
+        private final Phase totals;
+        private final PhaseEvent event;
+        private final long startTime;
+
+        private Measurement(final String phase,
+                            final Phase totals,
+                            final PhaseEvent event) {
+            this.phase = phase;
+            this.totals = totals;
+            this.event = event;
+            if (event != null) {
+                event.begin();
+            }
+            // taken last, so the event setup isn't part of the step
+            this.startTime = (totals != null) ? System.nanoTime() : 0;
+        }
+
+        public void end(final int files, final long bytes) {
+            if (totals != null) {
+                totals.addStep(files, bytes, startTime, System.nanoTime());
+            }
+            if (event == null) {
+                return;
+            }
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = phase;
+                event.files = files;
+                event.bytes = bytes;
+                event.commit();
+            }
+        }
+    }
+
+    private static final class Phase {
+        private final LongAdder steps = new LongAdder();
+        private final LongAdder files = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder time = new LongAdder();
+        private final LongAccumulator firstStart =
+                new LongAccumulator(new LongBinaryOperator() {
+                        @Override
+                        public long applyAsLong(final long left,
+                                                final long right) {
+                            return Math.min(left, right);
+                        }
+                    }, Long.MAX_VALUE);
+        private final LongAccumulator lastEnd =
+                new LongAccumulator(new LongBinaryOperator() {
+                        @Override
+                        public long applyAsLong(final long left,
+                                                final long right) {
+                            return Math.max(left, right);
+                        }
+                    }, Long.MIN_VALUE);
+
+        void addStep(final int stepFiles,
+                     final long stepBytes,
+                     final long startTime,
+                     final long endTime) {
+            firstStart.accumulate(startTime);
+            lastEnd.accumulate(endTime);
+            files.add(stepFiles);
+            bytes.add(stepBytes);
+            time.add(endTime - startTime);
+            // counted last, so a step is complete once it's counted
+            steps.increment();
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Reads the string values of the top level dictionary of a property list,
+ * which is enough to get the bundle identifier and executable from an
+ * Info.plist. Both the XML and the binary (bplist00) formats are supported,
+ * values of other types are skipped.
+ *
+ * XML property lists can also be read completely, as needed for the
+ * CodeResources of a signed bundle.
+ */
+public final class PlistReader {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF16 = Charset.forName("UTF-16BE");
+
+    private static final ErrorHandler SILENT_ERROR_HANDLER =
+            new ErrorHandler() {
+                @Override
+                public void warning(final SAXParseException e) {
+                }
+
+                @Override
+                public void error(final SAXParseException e)
+                        throws SAXException {
+                    throw e;
+                }
+
+                @Override
+                public void fatalError(final SAXParseException e)
+                        throws SAXException {
+                    throw e;
+                }
+            };
+
+    private PlistReader() {
+    }
+
+    public static Map<String, String> readStrings(final File plistFile)
+            throws IOException {
+        return readStrings(Files.readAllBytes(plistFile.toPath()));
+    }
+
+    public static Map<String, String> readStrings(final byte[] data)
+            throws IOException {
+        if (isBinary(data)) {
+            return readBinaryStrings(ByteBuffer.wrap(data));
+        }
+
+        return readXmlStrings(data);
+    }
+
+    /**
+     * Reads the top level dictionary of an XML property list. Dictionaries
+     * are returned as maps in their order, arrays as lists, data as byte
+     * arrays, booleans as Boolean, integers as Long, reals as Double and
+     * strings and dates as String.
+     */
+    public static Map<String, Object> readDictionary(final byte[] data)
+            throws IOException {
+        if (isBinary(data)) {
+            throw new IOException(
+                    "Binary property lists can't be read completely");
+        }
+
+        final Element dict =
+                findChildElement(parseXml(data).getDocumentElement());
+        if ((dict == null) || !"dict".equals(dict.getTagName())) {
+            throw new IOException("Property list without a dictionary");
+        }
+
+        return readDict(dict);
+    }
+
+    private static boolean isBinary(final byte[] data) {
+        return (data.length >= 8)
+                   && "bplist00".equals(new String(data, 0, 8, ASCII));
+    }
+
+    private static Document parseXml(final byte[] data) throws IOException {
+        try {
+            final DocumentBuilderFactory factory =
+                    DocumentBuilderFactory.newInstance();
+            // the plist DTD isn't needed and mustn't be downloaded
+            factory.setFeature("http://apache.org/xml/features/"
+                                   + "nonvalidating/load-external-dtd",
+                               false);
+            final DocumentBuilder builder = factory.newDocumentBuilder();
+            // errors are reported through the thrown exception only, the
+            // default handler also prints them to the standard error
+            builder.setErrorHandler(SILENT_ERROR_HANDLER);
+            return builder.parse(new ByteArrayInputStream(data));
+        } catch (final ParserConfigurationException e) {
+            throw new IOException("Failed to parse property list", e);
+        } catch (final SAXException e) {
+            throw new IOException("Failed to parse property list", e);
+        }
+    }
+
+    private static Map<String, Object> readDict(final Element dict)
+            throws IOException {
+        final Map<String, Object> values =
+                new LinkedHashMap<String, Object>();
+        String key = null;
+        for (Node node = dict.getFirstChild(); node != null;
+                node = node.getNextSibling()) {
+            if (!(node instanceof Element)) {
+                continue;
+            }
+
+            final Element element = (Element) node;
+            if ("key".equals(element.getTagName())) {
+                key = element.getTextContent();
+            } else {
+                if (key == null) {
+                    throw new IOException("Dictionary value without a key");
+                }
+                values.put(key, readValue(element));
+                key = null;
+            }
+        }
+
+        return values;
+    }
+
+    private static Object readValue(final Element element)
+            throws IOException {
+        final String tagName = element.getTagName();
+        if ("dict".equals(tagName)) {
+            return readDict(element);
+        }
+        if ("array".equals(tagName)) {
+            final List<Object> values = new ArrayList<Object>();
+            for (Node node = element.getFirstChild(); node != null;
+                    node = node.getNextSibling()) {
+                if (node instanceof Element) {
+                    values.add(readValue((Element) node));
+                }
+            }
+            return values;
+        }
+        if ("true".equals(tagName) || "false".equals(tagName)) {
+            return Boolean.valueOf("true".equals(tagName));
+        }
+
+        final String text = element.getTextContent().trim();
+        try {
+            if ("data".equals(tagName)) {
+                // the encoded data can be split into indented lines
+                return Base64.base64ToByteArray(text.replaceAll("\\s", ""));
+            }
+            if ("integer".equals(tagName)) {
+                return Long.valueOf(text);
+            }
+            if ("real".equals(tagName)) {
+                return Double.valueOf(text);
+            }
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Invalid " + tagName + " value", e);
+        } catch (final IndexOutOfBoundsException e) {
+            throw new IOException("Invalid " + tagName + " value", e);
+        }
+        if ("string".equals(tagName) || "date".equals(tagName)) {
+            return element.getTextContent();
+        }
+
+        throw new IOException("Unknown property list element " + tagName);
+    }
+
+    private static Map<String, String> readXmlStrings(final byte[] data)
+            throws IOException {
+        final Document document = parseXml(data);
+
+        final Map<String, String> strings = new HashMap<String, String>();
+        final Element dict = findChildElement(document.getDocumentElement());
+        if ((dict == null) || !"dict".equals(dict.getTagName())) {
+            return strings;
+        }
+
+        String key = null;
+        for (Node node = dict.getFirstChild(); node != null;
+                node = node.getNextSibling()) {
+            if (!(node instanceof Element)) {
+                continue;
+            }
+
+            final Element element = (Element) node;
+            if ("key".equals(element.getTagName())) {
+                key = element.getTextContent();
+            } else {
+                if ((key != null) && "string".equals(element.getTagName())) {
+                    strings.put(key, element.getTextContent());
+                }
+                key = null;
+            }
+        }
+
+        return strings;
+    }
+
+    private static Element findChildElement(final Element parent) {
+        for (Node node = parent.getFirstChild(); node != null;
+                node = node.getNextSibling()) {
+            if (node instanceof Element) {
+                return (Element) node;
+            }
+        }
+
+        return null;
+    }
+
+    private static Map<String, String> readBinaryStrings(
+            final ByteBuffer data) throws IOException {
+        try {
+            // the trailer is in the last 32 bytes
+            final int trailer = data.limit() - 32;
+            final int offsetSize = data.get(trailer + 6) & 0xff;
+            final int objectRefSize = data.get(trailer + 7) & 0xff;
+            final long topObject = data.getLong(trailer + 16);
+            final int offsetTable = (int) data.getLong(trailer + 24);
+
+            final BinaryPlist plist =
+                    new BinaryPlist(data, offsetSize, objectRefSize,
+                                    offsetTable);
+
+            final Map<String, String> strings =
+                    new HashMap<String, String>();
+            int offset = plist.getObjectOffset(topObject);
+            final int marker = data.get(offset++) & 0xff;
+            if ((marker >> 4) != 0xd) {
+                return strings;
+            }
+
+            final long[] lengthAndOffset =
+                    plist.readLength(marker, offset);
+            final int count = (int) lengthAndOffset[0];
+            offset = (int) lengthAndOffset[1];
+            for (int i = 0; i < count; ++i) {
+                final String key =
+                        plist.readString(plist.readRef(offset
+                                             + i * objectRefSize));
+                final String value =
+                        plist.readString(plist.readRef(offset
+                                             + (count + i) * objectRefSize));
+                if ((key != null) && (value != null)) {
+                    strings.put(key, value);
+                }
+            }
+
+            return strings;
+        } catch (final IndexOutOfBoundsException e) {
+            throw new IOException("Invalid binary property list", e);
+        }
+    }
+
+    private static final class BinaryPlist {
+        private final ByteBuffer data;
+        private final int offsetSize;
+        private final int objectRefSize;
+        private final int offsetTable;
+
+        public BinaryPlist(final ByteBuffer data,
+                           final int offsetSize,
+                           final int objectRefSize,
+                           final int offsetTable) {
+            this.data = data;
+            this.offsetSize = offsetSize;
+            this.objectRefSize = objectRefSize;
+            this.offsetTable = offsetTable;
+        }
+
+        public int getObjectOffset(final long objectRef) {
+            return (int) readUnsigned(
+                    offsetTable + (int) objectRef * offsetSize, offsetSize);
+        }
+
+        public long readRef(final int offset) {
+            return readUnsigned(offset, objectRefSize);
+        }
+
+        /**
+         * Reads the length of an object starting with the given marker.
+         * Returns the length and the offset of the object data.
+         */
+        public long[] readLength(final int marker, final int offset) {
+            if ((marker & 0xf) != 0xf) {
+                return new long[] { marker & 0xf, offset };
+            }
+
+            // the length follows as an integer object
+            final int intSize = 1 << (data.get(offset) & 0xf);
+            return new long[] { readUnsigned(offset + 1, intSize),
+                                offset + 1 + intSize };
+        }
+
+        /**
+         * Returns the string object with the given reference or null if
+         * the object is of another type.
+         */
+        public String readString(final long objectRef) {
+            final int offset = getObjectOffset(objectRef);
+            final int marker = data.get(offset) & 0xff;
+            final int type = marker >> 4;
+            if ((type != 0x5) && (type != 0x6)) {
+                return null;
+            }
+
+            final long[] lengthAndOffset = readLength(marker, offset + 1);
+            final int length = (int) lengthAndOffset[0];
+            final int dataOffset = (int) lengthAndOffset[1];
+            final byte[] bytes = new byte[(type == 0x5) ? length : 2 * length];
+            for (int i = 0; i < bytes.length; ++i) {
+                bytes[i] = data.get(dataOffset + i);
+            }
+
+            return new String(bytes, (type == 0x5) ? ASCII : UTF16);
+        }
+
+        private long readUnsigned(final int offset, final int size) {
+            long value = 0;
+            for (int i = 0; i < size; ++i) {
+                value = (value << 8) | (data.get(offset + i) & 0xff);
+            }
+
+            return value;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes an XML property list element by element, indented with tabs like
+ * the property lists written by the Apple tools. Keys and strings are
+ * escaped and data are Base64 encoded directly into the output, so no
+ * intermediate strings are built for them.
+ */
+public final class PlistWriter {
+    private final Writer writer;
+    private int depth;
+    private char[] base64Buffer;
+
+    public PlistWriter(final OutputStream os) throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+        // enough for a SHA-256 hash
+        base64Buffer = new char[44];
+    }
+
+    public void writeStartDocument() throws IOException {
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                         + "<!DOCTYPE plist PUBLIC"
+                         + " \"-//Apple//DTD PLIST 1.0//EN\""
+                         + " \"http://www.apple.com/DTDs/"
+                         + "PropertyList-1.0.dtd\">\n"
+                         + "<plist version=\"1.0\">\n");
+    }
+
+    public void writeEndDocument() throws IOException {
+        writer.write("</plist>\n");
+    }
+
+    public void writeStartDict() throws IOException {
+        writeLine("<dict>");
+        ++depth;
+    }
+
+    public void writeEndDict() throws IOException {
+        --depth;
+        writeLine("</dict>");
+    }
+
+    public void writeKey(final String key) throws IOException {
+        writeIndent();
+        writer.write("<key>");
+        writeEscaped(key);
+        writer.write("</key>\n");
+    }
+
+    public void writeString(final String value) throws IOException {
+        writeIndent();
+        writer.write("<string>");
+        writeEscaped(value);
+        writer.write("</string>\n");
+    }
+
+    public void writeTrue() throws IOException {
+        writeLine("<true/>");
+    }
+
+    public void writeReal(final int value) throws IOException {
+        writeLine("<real>" + value + "</real>");
+    }
+
+    /**
+     * Writes the data Base64 encoded on a single line, which is how short
+     * data like hashes are written.
+     */
+    public void writeData(final byte[] data) throws IOException {
+        final int encodedLength = Base64.encodedLength(data.length);
+        if (base64Buffer.length < encodedLength) {
+            base64Buffer = new char[encodedLength];
+        }
+        Base64.byteArrayToBase64(data, base64Buffer);
+
+        writeLine("<data>");
+        writeIndent();
+        writer.write(base64Buffer, 0, encodedLength);
+        writer.write('\n');
+        writeLine("</data>");
+    }
+
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    private void writeLine(final String line) throws IOException {
+        writeIndent();
+        writer.write(line);
+        writer.write('\n');
+    }
+
+    private void writeIndent() throws IOException {
+        for (int i = 0; i < depth; ++i) {
+            writer.write('\t');
+        }
+    }
+
+    private void writeEscaped(final String text) throws IOException {
+        final int length = text.length();
+        int start = 0;
+        for (int i = 0; i < length; ++i) {
+            final String escaped;
+            switch (text.charAt(i)) {
+                case '<':
+                    escaped = "&lt;";
+                    break;
+                case '>':
+                    escaped = "&gt;";
+                    break;
+                case '"':
+                    escaped = "&quot;";
+                    break;
+                case '&':
+                    escaped = "&amp;";
+                    break;
+                case '\'':
+                    escaped = "&apos;";
+                    break;
+                default:
+                    continue;
+            }
+
+            writer.write(text, start, i - start);
+            writer.write(escaped);
+            start = i + 1;
+        }
+        writer.write(text, start, length - start);
+    }
+}
@@ -52,6 +52,13 @@ public final class Util {
         return String.valueOf(buffer);
     }
 
+    public static String hex64(final long value) {
+        final char[] buffer = new char[16];
+        addHex32(buffer, 0, (int) (value >> 32));
+        addHex32(buffer, 8, (int) value);
+        return String.valueOf(buffer);
+    }
+
     public static String hex16(final int value) {
         final char[] buffer = new char[4];
         addHex16(buffer, 0, value);
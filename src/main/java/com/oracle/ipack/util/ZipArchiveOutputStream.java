@@ -0,0 +1,984 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a ZIP archive in the same layout as java.util.zip.ZipOutputStream,
+ * but additionally allows to store entries which have been deflated in
+ * advance (possibly on other threads).
+ *
+ * DEFLATED entries are followed by a data descriptor, so an entry stored
+ * through putNextEntry / write / closeEntry and the same entry stored through
+ * writeDeflatedEntry produce identical bytes in the archive. STORED entries
+ * need their size and crc in advance, they are written in the local header.
+ *
+ * When writing to a file channel, the local headers hold the crc and sizes
+ * of their entries. The local header of a streamed DEFLATED entry is
+ * completed in place once the entry is closed, it gets a Zip64 extra field
+ * up front if the size set on the entry may not fit without it. Streamed
+ * entries without a size still get a data descriptor.
+ * STORED entries can then also be transferred from file channels without
+ * copying their data through the heap.
+ *
+ * With parallel deflate enabled, entries larger than PARALLEL_BLOCK_SIZE are
+ * split into blocks which are deflated independently on an executor, each
+ * primed with the last 32 KB of the preceding block. All but the last block
+ * end with a sync flush, so their concatenation is a single valid deflate
+ * stream.
+ */
+public final class ZipArchiveOutputStream extends FilterOutputStream {
+    private static final int LOCSIG = 0x04034b50;
+    private static final int EXTSIG = 0x08074b50;
+    private static final int CENSIG = 0x02014b50;
+    private static final int ENDSIG = 0x06054b50;
+    private static final int ZIP64_ENDSIG = 0x06064b50;
+    private static final int ZIP64_LOCSIG = 0x07064b50;
+    private static final int ZIP64_EXTID = 0x0001;
+    private static final long ZIP64_MAGICVAL = 0xffffffffL;
+    private static final int ZIP64_MAGICCOUNT = 0xffff;
+
+    // data descriptor follows, names are UTF-8
+    private static final int DESCRIPTOR_FLAGS = 0x0808;
+    // names are UTF-8
+    private static final int FLAGS = 0x0800;
+    private static final int VERSION = 20;
+    private static final int STORED_VERSION = 10;
+    private static final int ZIP64_VERSION = 45;
+
+    public static final int PARALLEL_BLOCK_SIZE = 1024 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final FileChannel channel;
+    private final List<EntryRecord> entries;
+    private final Set<String> names;
+    private final Deflater deflater;
+    private final CRC32 crc;
+    private final byte[] deflateBuffer;
+    private final byte[] singleByte;
+    private final CompressionStats compressionStats;
+    private PhaseStats phaseStats;
+
+    private EntryRecord current;
+    private long written;
+    private long storedWritten;
+    private int level;
+    private boolean finished;
+
+    private ExecutorService blockExecutor;
+    private int maxPendingBlocks;
+    private ArrayDeque<Future<byte[]>> pendingBlocks;
+    private byte[] block;
+    private int blockLength;
+    private byte[] previousBlock;
+    private long blockInputSize;
+    private long blockOutputSize;
+
+    public ZipArchiveOutputStream(final OutputStream out) {
+        this(out, null);
+    }
+
+    /**
+     * Creates a stream writing to the file channel, with the sizes of all
+     * entries in their local headers. The channel is closed with the
+     * stream.
+     */
+    public ZipArchiveOutputStream(final FileChannel channel) {
+        this(new BufferedOutputStream(Channels.newOutputStream(channel),
+                                      65536),
+             channel);
+    }
+
+    private ZipArchiveOutputStream(final OutputStream out,
+                                   final FileChannel channel) {
+        super(out);
+        this.channel = channel;
+        entries = new ArrayList<EntryRecord>();
+        names = new HashSet<String>();
+        level = Deflater.DEFAULT_COMPRESSION;
+        deflater = new Deflater(level, true);
+        crc = new CRC32();
+        deflateBuffer = new byte[65536];
+        singleByte = new byte[1];
+        compressionStats = new CompressionStats();
+        phaseStats = new PhaseStats(false);
+    }
+
+    /**
+     * Enables the parallel deflate of large entries on the given executor,
+     * or disables it with a null executor. At most maxPendingBlocks blocks
+     * are deflated ahead of the output. Must not be called in the middle of
+     * an entry.
+     */
+    public void setParallelDeflate(final ExecutorService blockExecutor,
+                                   final int maxPendingBlocks) {
+        this.blockExecutor = blockExecutor;
+        this.maxPendingBlocks = maxPendingBlocks;
+        if (blockExecutor != null) {
+            pendingBlocks = new ArrayDeque<Future<byte[]>>();
+            block = new byte[PARALLEL_BLOCK_SIZE];
+        } else {
+            pendingBlocks = null;
+            block = null;
+        }
+    }
+
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    /**
+     * Sets the statistics to which the compression and the finishing of
+     * the archive are added, by default the stream has its own.
+     */
+    public void setPhaseStats(final PhaseStats phaseStats) {
+        this.phaseStats = phaseStats;
+    }
+
+    /**
+     * Sets the compression level for subsequent entries.
+     */
+    public void setLevel(final int level) {
+        deflater.setLevel(level);
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public void putNextEntry(final ZipEntry entry) throws IOException {
+        if (current != null) {
+            closeEntry();
+        }
+
+        if ((entry.getMethod() == ZipEntry.STORED)
+                && ((entry.getSize() == -1) || (entry.getCrc() == -1))) {
+            throw new ZipException("STORED entry missing size or crc-32");
+        }
+
+        current = addEntry(entry);
+        if (current.method == ZipEntry.STORED) {
+            current.crc = entry.getCrc();
+            current.size = entry.getSize();
+            current.compressedSize = entry.getSize();
+            current.hasZip64Header = current.size >= ZIP64_MAGICVAL;
+        } else if (entry.getSize() == -1) {
+            // without a size hint the entry may need Zip64, its crc and
+            // sizes follow the data in a data descriptor
+            writeDescriptorLocalHeader(current);
+            return;
+        } else {
+            // the sizes are known only when the entry is closed
+            current.hasZip64Header = mayNeedZip64(entry.getSize());
+        }
+        writeLocalHeader(current);
+    }
+
+    public void closeEntry() throws IOException {
+        if (current == null) {
+            return;
+        }
+
+        if (current.method == ZipEntry.STORED) {
+            closeStoredEntry();
+            return;
+        }
+
+        if (blockInputSize > 0) {
+            // the remaining input is the last block
+            submitBlock(true);
+            while (!pendingBlocks.isEmpty()) {
+                writeBlock(pendingBlocks.removeFirst());
+            }
+
+            current.size = blockInputSize;
+            current.compressedSize = blockOutputSize;
+            previousBlock = null;
+            blockInputSize = 0;
+            blockOutputSize = 0;
+        } else {
+            final long startTime = CompressionStats.currentThreadTime();
+            final PhaseStats.Measurement measurement =
+                    phaseStats.start(PhaseStats.COMPRESSION);
+            final int bufferedLength = blockLength;
+            if (blockLength > 0) {
+                // smaller than a single block, deflated the usual way
+                deflater.setInput(block, 0, blockLength);
+                blockLength = 0;
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate();
+            }
+            compressionStats.addDeflateTime(
+                    CompressionStats.currentThreadTime() - startTime);
+            measurement.end(0, bufferedLength);
+
+            current.size = deflater.getBytesRead();
+            current.compressedSize = deflater.getBytesWritten();
+        }
+
+        current.crc = crc.getValue();
+        compressionStats.addDeflatedEntry(current.size,
+                                          current.compressedSize);
+        // the bytes were added by the deflated parts of the entry
+        phaseStats.add(PhaseStats.COMPRESSION, 1, 0);
+        if (current.hasDataDescriptor) {
+            writeDataDescriptor(current);
+        } else {
+            completeLocalHeader(current);
+        }
+
+        deflater.reset();
+        crc.reset();
+        current = null;
+    }
+
+    /**
+     * Stores a complete entry whose data have already been deflated (raw
+     * deflate stream, no zlib wrapper) with the current compression level.
+     * The entry must have its size and crc set.
+     */
+    public void writeDeflatedEntry(final ZipEntry entry,
+                                   final byte[] data,
+                                   final int offset,
+                                   final int length) throws IOException {
+        if (current != null) {
+            closeEntry();
+        }
+
+        if ((entry.getSize() == -1) || (entry.getCrc() == -1)) {
+            throw new ZipException(
+                    "Deflated entry missing size or crc-32");
+        }
+
+        final EntryRecord record = addEntry(entry);
+        record.crc = entry.getCrc();
+        record.size = entry.getSize();
+        record.compressedSize = length;
+        record.hasZip64Header = (record.size >= ZIP64_MAGICVAL);
+
+        writeLocalHeader(record);
+        writeBytes(data, offset, length);
+        if (record.hasDataDescriptor) {
+            writeDataDescriptor(record);
+        }
+        compressionStats.addDeflatedEntry(record.size, length);
+    }
+
+    /**
+     * Stores a complete entry without compression. The entry must have
+     * its crc set.
+     */
+    public void writeStoredEntry(final ZipEntry entry,
+                                 final byte[] data,
+                                 final int offset,
+                                 final int length) throws IOException {
+        if (current != null) {
+            closeEntry();
+        }
+
+        final ZipEntry storedEntry = new ZipEntry(entry);
+        storedEntry.setMethod(ZipEntry.STORED);
+        storedEntry.setSize(length);
+        storedEntry.setCompressedSize(length);
+        putNextEntry(storedEntry);
+        write(data, offset, length);
+        closeEntry();
+    }
+
+    /**
+     * Stores a complete entry copied from another archive. The data are
+     * the raw entry data, deflated for DEFLATED entries, and the entry must
+     * have its crc and both sizes set.
+     */
+    public void writeRawEntry(final ZipEntry entry,
+                              final InputStream data) throws IOException {
+        if (current != null) {
+            closeEntry();
+        }
+
+        if ((entry.getSize() == -1) || (entry.getCompressedSize() == -1)
+                || (entry.getCrc() == -1)) {
+            throw new ZipException(
+                    "Raw entry missing size, compressed size or crc-32");
+        }
+
+        final EntryRecord record = addEntry(entry);
+        record.crc = entry.getCrc();
+        record.size = entry.getSize();
+        record.compressedSize = (record.method == ZipEntry.STORED)
+                                        ? entry.getSize()
+                                        : entry.getCompressedSize();
+        record.hasZip64Header = (record.size >= ZIP64_MAGICVAL)
+                                    || (record.compressedSize
+                                            >= ZIP64_MAGICVAL);
+
+        writeLocalHeader(record);
+        long remaining = record.compressedSize;
+        while (remaining > 0) {
+            final int read =
+                    data.read(deflateBuffer, 0,
+                              (int) Math.min(remaining,
+                                             deflateBuffer.length));
+            if (read == -1) {
+                throw new ZipException("Unexpected end of raw entry data");
+            }
+            writeBytes(deflateBuffer, 0, read);
+            remaining -= read;
+        }
+
+        if (record.method == ZipEntry.STORED) {
+            compressionStats.addStoredEntry(record.size);
+        } else {
+            if (record.hasDataDescriptor) {
+                writeDataDescriptor(record);
+            }
+            compressionStats.addDeflatedEntry(record.size,
+                                              record.compressedSize);
+        }
+    }
+
+    /**
+     * Stores a complete entry without compression, with the data of the
+     * source file. The entry must have its crc set, which is usually
+     * calculated while the file is hashed. When writing to a file channel
+     * the data are transferred between the channels directly.
+     */
+    public void writeStoredEntry(final ZipEntry entry,
+                                 final FileChannel source)
+            throws IOException {
+        if (current != null) {
+            closeEntry();
+        }
+
+        if (entry.getCrc() == -1) {
+            throw new ZipException("STORED entry missing crc-32");
+        }
+
+        final long size = source.size();
+        final ZipEntry storedEntry = new ZipEntry(entry);
+        storedEntry.setMethod(ZipEntry.STORED);
+        final EntryRecord record = addEntry(storedEntry);
+        record.crc = entry.getCrc();
+        record.size = size;
+        record.compressedSize = size;
+        record.hasZip64Header = size >= ZIP64_MAGICVAL;
+        writeLocalHeader(record);
+
+        if (channel != null) {
+            out.flush();
+        }
+        long transferred = 0;
+        while (transferred < size) {
+            final long count;
+            if (channel != null) {
+                count = source.transferTo(transferred, size - transferred,
+                                          channel);
+            } else {
+                final ByteBuffer buffer = ByteBuffer.wrap(
+                        deflateBuffer, 0,
+                        (int) Math.min(size - transferred,
+                                       deflateBuffer.length));
+                count = Math.max(source.read(buffer, transferred), 0);
+                out.write(deflateBuffer, 0, (int) count);
+            }
+            if (count == 0) {
+                throw new ZipException("Unexpected end of "
+                                           + entry.getName());
+            }
+            transferred += count;
+        }
+        written += size;
+
+        compressionStats.addStoredEntry(size);
+    }
+
+    @Override
+    public void write(final int byteValue) throws IOException {
+        singleByte[0] = (byte) byteValue;
+        write(singleByte, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] buffer, final int offset, final int length)
+            throws IOException {
+        if (current == null) {
+            throw new ZipException("No current ZIP entry");
+        }
+        if (length == 0) {
+            return;
+        }
+
+        crc.update(buffer, offset, length);
+        if (current.method == ZipEntry.STORED) {
+            writeBytes(buffer, offset, length);
+            storedWritten += length;
+            return;
+        }
+
+        if (blockExecutor != null) {
+            bufferBlockInput(buffer, offset, length);
+            return;
+        }
+
+        final long startTime = CompressionStats.currentThreadTime();
+        final PhaseStats.Measurement measurement =
+                phaseStats.start(PhaseStats.COMPRESSION);
+        deflater.setInput(buffer, offset, length);
+        while (!deflater.needsInput()) {
+            deflate();
+        }
+        compressionStats.addDeflateTime(
+                CompressionStats.currentThreadTime() - startTime);
+        measurement.end(0, length);
+    }
+
+    /**
+     * Writes the central directory without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (current != null) {
+            closeEntry();
+        }
+
+        final PhaseStats.Measurement measurement =
+                phaseStats.start(PhaseStats.ARCHIVE_FINALIZATION);
+        final long centralDirectoryOffset = written;
+        for (final EntryRecord record: entries) {
+            writeCentralHeader(record);
+        }
+        writeEnd(centralDirectoryOffset, written - centralDirectoryOffset);
+        out.flush();
+        finished = true;
+        measurement.end(entries.size(), written - centralDirectoryOffset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    private void closeStoredEntry() throws IOException {
+        if (storedWritten != current.size) {
+            throw new ZipException(
+                    "invalid entry size (expected " + current.size
+                        + " but got " + storedWritten + " bytes)");
+        }
+        if (crc.getValue() != current.crc) {
+            throw new ZipException(
+                    "invalid entry crc-32 (expected 0x"
+                        + Long.toHexString(current.crc) + " but got 0x"
+                        + Long.toHexString(crc.getValue()) + ")");
+        }
+
+        compressionStats.addStoredEntry(current.size);
+        storedWritten = 0;
+        crc.reset();
+        current = null;
+    }
+
+    private void bufferBlockInput(final byte[] buffer,
+                                  final int offset,
+                                  final int length) throws IOException {
+        int position = offset;
+        int remaining = length;
+        while (remaining > 0) {
+            if (blockLength == block.length) {
+                // another block follows, so this one isn't the last
+                submitBlock(false);
+            }
+
+            final int chunkSize = Math.min(remaining,
+                                           block.length - blockLength);
+            System.arraycopy(buffer, position, block, blockLength, chunkSize);
+            blockLength += chunkSize;
+            position += chunkSize;
+            remaining -= chunkSize;
+        }
+    }
+
+    private void submitBlock(final boolean last) throws IOException {
+        pendingBlocks.add(blockExecutor.submit(
+                new BlockDeflateTask(level, previousBlock,
+                                     block, blockLength, last,
+                                     compressionStats, phaseStats)));
+        blockInputSize += blockLength;
+        previousBlock = block;
+        block = new byte[PARALLEL_BLOCK_SIZE];
+        blockLength = 0;
+
+        while (pendingBlocks.size() > maxPendingBlocks) {
+            writeBlock(pendingBlocks.removeFirst());
+        }
+    }
+
+    private void writeBlock(final Future<byte[]> pendingBlock)
+            throws IOException {
+        final byte[] deflatedBlock;
+        try {
+            deflatedBlock = pendingBlock.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while deflating", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to deflate", cause);
+        }
+
+        writeBytes(deflatedBlock, 0, deflatedBlock.length);
+        blockOutputSize += deflatedBlock.length;
+    }
+
+    private EntryRecord addEntry(final ZipEntry entry) throws IOException {
+        if (finished) {
+            throw new ZipException("ZIP archive already finished");
+        }
+        if (!names.add(entry.getName())) {
+            throw new ZipException("duplicate entry: " + entry.getName());
+        }
+
+        final long time = (entry.getTime() != -1)
+                                  ? entry.getTime()
+                                  : System.currentTimeMillis();
+        final EntryRecord record =
+                new EntryRecord(entry.getName().getBytes(UTF8),
+                                (entry.getMethod() == ZipEntry.STORED)
+                                        ? ZipEntry.STORED
+                                        : ZipEntry.DEFLATED,
+                                javaToDosTime(time),
+                                written);
+        entries.add(record);
+        return record;
+    }
+
+    private void deflate() throws IOException {
+        final int length = deflater.deflate(deflateBuffer, 0,
+                                            deflateBuffer.length);
+        if (length > 0) {
+            writeBytes(deflateBuffer, 0, length);
+        }
+    }
+
+    private void writeLocalHeader(final EntryRecord record)
+            throws IOException {
+        if ((record.method != ZipEntry.STORED) && (channel == null)) {
+            writeDescriptorLocalHeader(record);
+            return;
+        }
+
+        final boolean isZip64 = record.hasZip64Header;
+
+        writeInt(LOCSIG);
+        writeShort(isZip64 ? ZIP64_VERSION
+                           : (record.method == ZipEntry.STORED)
+                                     ? STORED_VERSION
+                                     : VERSION);
+        writeShort(FLAGS);
+        writeShort(record.method);
+        writeInt(record.dosTime);
+        writeInt(record.crc);
+        if (isZip64) {
+            writeInt(ZIP64_MAGICVAL);
+            writeInt(ZIP64_MAGICVAL);
+        } else {
+            writeInt(record.compressedSize);
+            writeInt(record.size);
+        }
+        writeShort(record.name.length);
+        writeShort(isZip64 ? 20 : 0);
+        writeBytes(record.name, 0, record.name.length);
+
+        if (isZip64) {
+            writeShort(ZIP64_EXTID);
+            writeShort(16);
+            writeLong(record.size);
+            writeLong(record.compressedSize);
+        }
+    }
+
+    private void writeDescriptorLocalHeader(final EntryRecord record)
+            throws IOException {
+        record.hasDataDescriptor = true;
+
+        writeInt(LOCSIG);
+        writeShort(VERSION);
+        writeShort(DESCRIPTOR_FLAGS);
+        writeShort(ZipEntry.DEFLATED);
+        writeInt(record.dosTime);
+        // crc-32, compressed and uncompressed size are stored in the data
+        // descriptor
+        writeInt(0);
+        writeInt(0);
+        writeInt(0);
+        writeShort(record.name.length);
+        writeShort(0);
+        writeBytes(record.name, 0, record.name.length);
+    }
+
+    /**
+     * Writes the crc and sizes of a closed streamed entry into its local
+     * header.
+     */
+    private void completeLocalHeader(final EntryRecord record)
+            throws IOException {
+        if (!record.hasZip64Header
+                && ((record.size >= ZIP64_MAGICVAL)
+                        || (record.compressedSize >= ZIP64_MAGICVAL))) {
+            throw new ZipException("entry too large for its local header: "
+                                       + new String(record.name, UTF8));
+        }
+
+        out.flush();
+        final ByteBuffer fields =
+                ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        fields.putInt((int) record.crc);
+        fields.putInt(record.hasZip64Header ? (int) ZIP64_MAGICVAL
+                                            : (int) record.compressedSize);
+        fields.putInt(record.hasZip64Header ? (int) ZIP64_MAGICVAL
+                                            : (int) record.size);
+        fields.flip();
+        writeFully(fields, record.offset + 14);
+
+        if (record.hasZip64Header) {
+            final ByteBuffer zip64Fields =
+                    ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            zip64Fields.putLong(record.size);
+            zip64Fields.putLong(record.compressedSize);
+            zip64Fields.flip();
+            writeFully(zip64Fields, record.offset + 30 + record.name.length + 4);
+        }
+    }
+
+    private void writeFully(final ByteBuffer buffer, final long position)
+            throws IOException {
+        final long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, start + buffer.position());
+        }
+    }
+
+    /**
+     * Returns whether an entry of the given uncompressed size may not fit
+     * into a local header without Zip64 once deflated. Deflate expands
+     * incompressible data only slightly.
+     */
+    private static boolean mayNeedZip64(final long size) {
+        return size + (size >>> 12) + (size >>> 14) + 64 >= ZIP64_MAGICVAL;
+    }
+
+    private void writeDataDescriptor(final EntryRecord record)
+            throws IOException {
+        writeInt(EXTSIG);
+        writeInt(record.crc);
+        if ((record.compressedSize >= ZIP64_MAGICVAL)
+                || (record.size >= ZIP64_MAGICVAL)) {
+            writeLong(record.compressedSize);
+            writeLong(record.size);
+        } else {
+            writeInt(record.compressedSize);
+            writeInt(record.size);
+        }
+    }
+
+    private void writeCentralHeader(final EntryRecord record)
+            throws IOException {
+        long compressedSize = record.compressedSize;
+        long size = record.size;
+        long offset = record.offset;
+        int zip64Length = 0;
+
+        // an entry with Zip64 sizes in its local header has them in its
+        // central header as well
+        if (record.hasZip64Header || (compressedSize >= ZIP64_MAGICVAL)) {
+            compressedSize = ZIP64_MAGICVAL;
+            zip64Length += 8;
+        }
+        if (record.hasZip64Header || (size >= ZIP64_MAGICVAL)) {
+            size = ZIP64_MAGICVAL;
+            zip64Length += 8;
+        }
+        if (offset >= ZIP64_MAGICVAL) {
+            offset = ZIP64_MAGICVAL;
+            zip64Length += 8;
+        }
+
+        final boolean isStored = record.method == ZipEntry.STORED;
+        writeInt(CENSIG);
+        if (zip64Length != 0) {
+            writeShort(ZIP64_VERSION);
+            writeShort(ZIP64_VERSION);
+        } else {
+            writeShort(isStored ? STORED_VERSION : VERSION);
+            writeShort(isStored ? STORED_VERSION : VERSION);
+        }
+        writeShort(record.hasDataDescriptor ? DESCRIPTOR_FLAGS : FLAGS);
+        writeShort(record.method);
+        writeInt(record.dosTime);
+        writeInt(record.crc);
+        writeInt(compressedSize);
+        writeInt(size);
+        writeShort(record.name.length);
+        writeShort((zip64Length != 0) ? zip64Length + 4 : 0);
+        writeShort(0); // comment length
+        writeShort(0); // starting disk number
+        writeShort(0); // internal file attributes
+        writeInt(0); // external file attributes
+        writeInt(offset);
+        writeBytes(record.name, 0, record.name.length);
+
+        if (zip64Length != 0) {
+            writeShort(ZIP64_EXTID);
+            writeShort(zip64Length);
+            if (size == ZIP64_MAGICVAL) {
+                writeLong(record.size);
+            }
+            if (compressedSize == ZIP64_MAGICVAL) {
+                writeLong(record.compressedSize);
+            }
+            if (offset == ZIP64_MAGICVAL) {
+                writeLong(record.offset);
+            }
+        }
+    }
+
+    private void writeEnd(final long centralDirectoryOffset,
+                          final long centralDirectoryLength)
+            throws IOException {
+        final boolean hasZip64 = (centralDirectoryOffset >= ZIP64_MAGICVAL)
+                                     || (centralDirectoryLength
+                                             >= ZIP64_MAGICVAL)
+                                     || (entries.size() >= ZIP64_MAGICCOUNT);
+        if (hasZip64) {
+            final long zip64EndOffset = written;
+            writeInt(ZIP64_ENDSIG);
+            writeLong(44); // size of the zip64 end record
+            writeShort(ZIP64_VERSION);
+            writeShort(ZIP64_VERSION);
+            writeInt(0); // number of this disk
+            writeInt(0); // central directory start disk
+            writeLong(entries.size());
+            writeLong(entries.size());
+            writeLong(centralDirectoryLength);
+            writeLong(centralDirectoryOffset);
+
+            writeInt(ZIP64_LOCSIG);
+            writeInt(0); // zip64 end start disk
+            writeLong(zip64EndOffset);
+            writeInt(1); // total number of disks
+        }
+
+        final int count = (entries.size() >= ZIP64_MAGICCOUNT)
+                                  ? ZIP64_MAGICCOUNT
+                                  : entries.size();
+        writeInt(ENDSIG);
+        writeShort(0); // number of this disk
+        writeShort(0); // central directory start disk
+        writeShort(count);
+        writeShort(count);
+        writeInt(Math.min(centralDirectoryLength, ZIP64_MAGICVAL));
+        writeInt(Math.min(centralDirectoryOffset, ZIP64_MAGICVAL));
+        writeShort(0); // comment length
+    }
+
+    private void writeShort(final int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+        written += 2;
+    }
+
+    private void writeInt(final long value) throws IOException {
+        out.write((int) (value & 0xff));
+        out.write((int) ((value >>> 8) & 0xff));
+        out.write((int) ((value >>> 16) & 0xff));
+        out.write((int) ((value >>> 24) & 0xff));
+        written += 4;
+    }
+
+    private void writeLong(final long value) throws IOException {
+        writeInt(value & 0xffffffffL);
+        writeInt(value >>> 32);
+    }
+
+    private void writeBytes(final byte[] buffer,
+                            final int offset,
+                            final int length) throws IOException {
+        out.write(buffer, offset, length);
+        written += length;
+    }
+
+    private static long javaToDosTime(final long time) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        final int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+
+        return ((year - 1980) << 25)
+                   | ((calendar.get(Calendar.MONTH) + 1) << 21)
+                   | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+                   | (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+                   | (calendar.get(Calendar.MINUTE) << 5)
+                   | (calendar.get(Calendar.SECOND) >> 1);
+    }
+
+    /**
+     * Deflates a single block of a large entry.
+     */
+    private static final class BlockDeflateTask implements Callable<byte[]> {
+        private final int level;
+        private final byte[] dictionary;
+        private final byte[] data;
+        private final int length;
+        private final boolean last;
+        private final CompressionStats compressionStats;
+        private final PhaseStats phaseStats;
+
+        public BlockDeflateTask(final int level,
+                                final byte[] dictionary,
+                                final byte[] data,
+                                final int length,
+                                final boolean last,
+                                final CompressionStats compressionStats,
+                                final PhaseStats phaseStats) {
+            this.level = level;
+            this.dictionary = dictionary;
+            this.data = data;
+            this.length = length;
+            this.last = last;
+            this.compressionStats = compressionStats;
+            this.phaseStats = phaseStats;
+        }
+
+        @Override
+        public byte[] call() {
+            final long startTime = CompressionStats.currentThreadTime();
+            final PhaseStats.Measurement measurement =
+                    phaseStats.start(PhaseStats.COMPRESSION);
+            final Deflater blockDeflater = new Deflater(level, true);
+            try {
+                if (dictionary != null) {
+                    blockDeflater.setDictionary(
+                            dictionary,
+                            dictionary.length - DICTIONARY_SIZE,
+                            DICTIONARY_SIZE);
+                }
+                blockDeflater.setInput(data, 0, length);
+
+                final ByteArrayOutputStream deflatedBlock =
+                        new ByteArrayOutputStream(length / 2 + 64);
+                final byte[] buffer = new byte[65536];
+                if (last) {
+                    blockDeflater.finish();
+                    while (!blockDeflater.finished()) {
+                        final int deflated = blockDeflater.deflate(buffer);
+                        deflatedBlock.write(buffer, 0, deflated);
+                    }
+                } else {
+                    // the sync flush ends the block on a byte boundary
+                    // without marking it final
+                    int deflated;
+                    do {
+                        deflated = blockDeflater.deflate(
+                                           buffer, 0, buffer.length,
+                                           Deflater.SYNC_FLUSH);
+                        deflatedBlock.write(buffer, 0, deflated);
+                    } while (deflated == buffer.length);
+                }
+
+                return deflatedBlock.toByteArray();
+            } finally {
+                blockDeflater.end();
+                compressionStats.addDeflateTime(
+                        CompressionStats.currentThreadTime() - startTime);
+                measurement.end(0, length);
+            }
+        }
+    }
+
+    private static final class EntryRecord {
+        private final byte[] name;
+        private final int method;
+        private final long dosTime;
+        private final long offset;
+
+        private long crc;
+        private long size;
+        private long compressedSize;
+        private boolean hasZip64Header;
+        private boolean hasDataDescriptor;
+
+        public EntryRecord(final byte[] name,
+                           final int method,
+                           final long dosTime,
+                           final long offset) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.offset = offset;
+        }
+    }
+}
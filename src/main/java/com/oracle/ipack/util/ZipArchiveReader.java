@@ -0,0 +1,406 @@
+/*
+ * Copyright (c) 2011, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.oracle.ipack.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the entries of a ZIP archive from its central directory and gives
+ * access to both their inflated content and their raw compressed data, so
+ * unchanged entries can be copied into another archive without being
+ * recompressed. java.util.zip.ZipFile doesn't expose the position of the
+ * entry data, which is why the central directory is parsed here.
+ *
+ * Streams read the archive through positional reads of a shared channel,
+ * so several of them can be open at the same time.
+ */
+public final class ZipArchiveReader implements Closeable {
+    private static final int LOCSIG = 0x04034b50;
+    private static final int CENSIG = 0x02014b50;
+    private static final int ENDSIG = 0x06054b50;
+    private static final int ZIP64_ENDSIG = 0x06064b50;
+    private static final int ZIP64_LOCSIG = 0x07064b50;
+    private static final int ZIP64_EXTID = 0x0001;
+    private static final long ZIP64_MAGICVAL = 0xffffffffL;
+    private static final int ZIP64_MAGICCOUNT = 0xffff;
+
+    private static final int LOCHDR = 30;
+    private static final int CENHDR = 46;
+    private static final int ENDHDR = 22;
+    private static final int ZIP64_LOCHDR = 20;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final FileChannel channel;
+    private final List<Entry> entries;
+    private final Map<String, Entry> entriesByName;
+
+    public ZipArchiveReader(final File file) throws IOException {
+        channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            entries = Collections.unmodifiableList(readCentralDirectory());
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        entriesByName = new HashMap<String, Entry>();
+        for (final Entry entry: entries) {
+            entriesByName.put(entry.getName(), entry);
+        }
+    }
+
+    /**
+     * Returns the entries in the order of the central directory.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public Entry getEntry(final String name) {
+        return entriesByName.get(name);
+    }
+
+    /**
+     * Returns a stream with the uncompressed content of the entry.
+     */
+    public InputStream getInputStream(final Entry entry) throws IOException {
+        final InputStream rawStream = getRawInputStream(entry);
+        if (entry.getMethod() == ZipEntry.STORED) {
+            return rawStream;
+        }
+
+        return new EntryInflaterInputStream(rawStream);
+    }
+
+    /**
+     * Returns a stream with the data of the entry as they are stored in the
+     * archive, compressed for DEFLATED entries.
+     */
+    public InputStream getRawInputStream(final Entry entry)
+            throws IOException {
+        final ByteBuffer localHeader = read(entry.localHeaderOffset, LOCHDR);
+        if (localHeader.getInt(0) != LOCSIG) {
+            throw new ZipException("Invalid local header of "
+                                       + entry.getName());
+        }
+
+        final long dataOffset = entry.localHeaderOffset + LOCHDR
+                                    + (localHeader.getShort(26) & 0xffff)
+                                    + (localHeader.getShort(28) & 0xffff);
+        return new ChannelInputStream(channel, dataOffset,
+                                      entry.getCompressedSize());
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        final long fileSize = channel.size();
+        final int tailSize =
+                (int) Math.min(fileSize, ENDHDR + MAX_COMMENT_SIZE);
+        final ByteBuffer tail = read(fileSize - tailSize, tailSize);
+
+        int endOffset = tailSize - ENDHDR;
+        while ((endOffset >= 0) && (tail.getInt(endOffset) != ENDSIG)) {
+            --endOffset;
+        }
+        if (endOffset < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        long count = tail.getShort(endOffset + 10) & 0xffff;
+        long centralDirectoryOffset =
+                tail.getInt(endOffset + 16) & ZIP64_MAGICVAL;
+        if ((count == ZIP64_MAGICCOUNT)
+                || (centralDirectoryOffset == ZIP64_MAGICVAL)) {
+            // the real values are in the zip64 end record
+            final ByteBuffer locator =
+                    read(fileSize - tailSize + endOffset - ZIP64_LOCHDR,
+                         ZIP64_LOCHDR);
+            if (locator.getInt(0) != ZIP64_LOCSIG) {
+                throw new ZipException("Zip64 end locator not found");
+            }
+            final ByteBuffer zip64End = read(locator.getLong(8), 56);
+            if (zip64End.getInt(0) != ZIP64_ENDSIG) {
+                throw new ZipException("Zip64 end record not found");
+            }
+            count = zip64End.getLong(32);
+            centralDirectoryOffset = zip64End.getLong(48);
+        }
+
+        final List<Entry> centralEntries = new ArrayList<Entry>();
+        long offset = centralDirectoryOffset;
+        for (long i = 0; i < count; ++i) {
+            final ByteBuffer header = read(offset, CENHDR);
+            if (header.getInt(0) != CENSIG) {
+                throw new ZipException("Invalid central directory header");
+            }
+
+            final int nameLength = header.getShort(28) & 0xffff;
+            final int extraLength = header.getShort(30) & 0xffff;
+            final int commentLength = header.getShort(32) & 0xffff;
+            final ByteBuffer variable =
+                    read(offset + CENHDR, nameLength + extraLength);
+
+            final byte[] name = new byte[nameLength];
+            variable.get(name);
+
+            long compressedSize = header.getInt(20) & ZIP64_MAGICVAL;
+            long size = header.getInt(24) & ZIP64_MAGICVAL;
+            long localHeaderOffset = header.getInt(42) & ZIP64_MAGICVAL;
+
+            // the zip64 extra field holds the values which don't fit,
+            // in this order
+            int extraOffset = nameLength;
+            while (extraOffset + 4 <= nameLength + extraLength) {
+                final int id = variable.getShort(extraOffset) & 0xffff;
+                final int length = variable.getShort(extraOffset + 2) & 0xffff;
+                if (id == ZIP64_EXTID) {
+                    int valueOffset = extraOffset + 4;
+                    if (size == ZIP64_MAGICVAL) {
+                        size = variable.getLong(valueOffset);
+                        valueOffset += 8;
+                    }
+                    if (compressedSize == ZIP64_MAGICVAL) {
+                        compressedSize = variable.getLong(valueOffset);
+                        valueOffset += 8;
+                    }
+                    if (localHeaderOffset == ZIP64_MAGICVAL) {
+                        localHeaderOffset = variable.getLong(valueOffset);
+                    }
+                }
+                extraOffset += 4 + length;
+            }
+
+            centralEntries.add(new Entry(new String(name, UTF8),
+                                         header.getShort(10) & 0xffff,
+                                         dosToJavaTime(header.getInt(12)
+                                                           & ZIP64_MAGICVAL),
+                                         header.getInt(16) & ZIP64_MAGICVAL,
+                                         size,
+                                         compressedSize,
+                                         localHeaderOffset));
+            offset += CENHDR + nameLength + extraLength + commentLength;
+        }
+
+        return centralEntries;
+    }
+
+    private ByteBuffer read(final long position, final int length)
+            throws IOException {
+        final ByteBuffer buffer =
+                ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of archive");
+            }
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    private static long dosToJavaTime(final long dosTime) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set((int) ((dosTime >> 25) & 0x7f) + 1980,
+                     (int) ((dosTime >> 21) & 0x0f) - 1,
+                     (int) ((dosTime >> 16) & 0x1f),
+                     (int) ((dosTime >> 11) & 0x1f),
+                     (int) ((dosTime >> 5) & 0x3f),
+                     (int) ((dosTime << 1) & 0x3e));
+        return calendar.getTimeInMillis();
+    }
+
+    public static final class Entry {
+        private final String name;
+        private final int method;
+        private final long time;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+        private final long localHeaderOffset;
+
+        private Entry(final String name,
+                      final int method,
+                      final long time,
+                      final long crc,
+                      final long size,
+                      final long compressedSize,
+                      final long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.time = time;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        /**
+         * Returns a ZipEntry with the name, method, time, crc and sizes of
+         * this entry, as needed to copy its raw data to another archive.
+         */
+        public ZipEntry toZipEntry() {
+            final ZipEntry zipEntry = new ZipEntry(name);
+            zipEntry.setMethod(method);
+            zipEntry.setTime(time);
+            zipEntry.setCrc(crc);
+            zipEntry.setSize(size);
+            zipEntry.setCompressedSize(compressedSize);
+            return zipEntry;
+        }
+    }
+
+    private static final class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        public ChannelInputStream(final FileChannel channel,
+                                  final long position,
+                                  final long length) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] singleByte = new byte[1];
+            return (read(singleByte, 0, 1) == -1) ? -1
+                                                   : (singleByte[0] & 0xff);
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset,
+                        final int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            final int chunkSize = (int) Math.min(length, remaining);
+            final int read =
+                    channel.read(ByteBuffer.wrap(buffer, offset, chunkSize),
+                                 position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of archive");
+            }
+
+            position += read;
+            remaining -= read;
+            return read;
+        }
+    }
+
+    /**
+     * Inflates raw deflate data. The inflater needs an extra dummy byte
+     * after the data in the nowrap mode.
+     */
+    private static final class EntryInflaterInputStream
+            extends InflaterInputStream {
+        private boolean eof;
+
+        public EntryInflaterInputStream(final InputStream in) {
+            super(in, new Inflater(true), 65536);
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("Unexpected end of ZLIB input stream");
+            }
+
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+}